@@ -6,42 +6,112 @@ package com.benayn.berkeley;
 import static com.google.common.base.MoreObjects.firstNonNull;
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkPositionIndexes;
+import static com.google.common.base.Preconditions.checkState;
 import static com.sleepycat.bind.tuple.TupleBinding.getPrimitiveBinding;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.ObjectStreamConstants;
 import java.io.PrintStream;
 import java.io.Serializable;
 import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
 import java.lang.reflect.Type;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.benayn.ustyle.Pair;
+import com.benayn.ustyle.Reflecter;
+import com.benayn.ustyle.Suppliers2;
 import com.benayn.ustyle.TypeRefer;
 import com.benayn.ustyle.TypeRefer.TypeDescrib;
 import com.benayn.ustyle.behavior.StructBehaviorAdapter;
 import com.benayn.ustyle.logger.Log;
 import com.benayn.ustyle.logger.Loggers;
 import com.benayn.ustyle.string.Strs;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ForwardingObject;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+import com.google.common.hash.Hashing;
+import com.google.common.io.BaseEncoding;
 import com.google.common.io.Closer;
 import com.google.common.primitives.Primitives;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sleepycat.bind.EntryBinding;
 import com.sleepycat.bind.serial.ClassCatalog;
 import com.sleepycat.bind.serial.SerialBinding;
 import com.sleepycat.bind.serial.StoredClassCatalog;
 import com.sleepycat.bind.tuple.TupleBinding;
+import com.sleepycat.bind.tuple.TupleInput;
+import com.sleepycat.bind.tuple.TupleOutput;
 import com.sleepycat.collections.StoredMap;
 import com.sleepycat.collections.StoredSortedMap;
 import com.sleepycat.je.CacheMode;
@@ -58,6 +128,7 @@ import com.sleepycat.je.DatabaseStats;
 import com.sleepycat.je.DeleteConstraintException;
 import com.sleepycat.je.DiskOrderedCursor;
 import com.sleepycat.je.DiskOrderedCursorConfig;
+import com.sleepycat.je.Durability;
 import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
 import com.sleepycat.je.EnvironmentMutableConfig;
@@ -73,6 +144,7 @@ import com.sleepycat.je.SecondaryConfig;
 import com.sleepycat.je.SecondaryCursor;
 import com.sleepycat.je.SecondaryDatabase;
 import com.sleepycat.je.SecondaryKeyCreator;
+import com.sleepycat.je.SecondaryMultiKeyCreator;
 import com.sleepycat.je.Sequence;
 import com.sleepycat.je.SequenceConfig;
 import com.sleepycat.je.SequenceExistsException;
@@ -95,8 +167,10 @@ import com.sleepycat.persist.evolve.EvolveStats;
 import com.sleepycat.persist.evolve.Mutations;
 import com.sleepycat.persist.impl.Store;
 import com.sleepycat.persist.model.EntityModel;
+import com.sleepycat.persist.model.PrimaryKey;
 import com.sleepycat.persist.model.SecondaryKey;
 import com.sleepycat.persist.raw.RawStore;
+import com.sleepycat.util.PackedInteger;
 
 /**
  * https://github.com/jronrun/benayn
@@ -141,6 +215,52 @@ public abstract class Berkeley<M> extends ForwardingObject {
         return env(envHomePath).queue(queueName, valueClass, cacheSize);
     }
     
+    /**
+     * Returns a new {@link BerkeleyQueue} instance with given cache size and value codec
+     * @see QueueCodec
+     * @see DefaultBerkeleyQueue#connection(String, Class, int, EntryBinding)
+     */
+    public static <E> BerkeleyQueue<E> queue(String envHomePath, 
+            String queueName, Class<E> valueClass, int cacheSize, EntryBinding<E> codec) {
+        return env(envHomePath).queue(queueName, valueClass, cacheSize, codec);
+    }
+    
+    /**
+     * Returns a new {@link BerkeleyQueue} instance with given cache size and read-ahead buffer size
+     * @see DefaultBerkeleyQueue#prefetch(int, int)
+     */
+    public static <E extends Serializable> BerkeleyQueue<E> queue(String envHomePath, 
+            String queueName, Class<E> valueClass, int cacheSize, int prefetchSize) {
+        return env(envHomePath).queue(queueName, valueClass, cacheSize, prefetchSize);
+    }
+    
+    /**
+     * Returns a new {@link ShardedBerkeleyQueue} instance with given shard count and cache size of each shard
+     * @see ShardedBerkeleyQueue#connection(String, Class, int, int)
+     */
+    public static <E extends Serializable> ShardedBerkeleyQueue<E> shardedQueue(String envHomePath, 
+            String queueName, Class<E> valueClass, int shardCount, int cacheSize) {
+        return env(envHomePath).shardedQueue(queueName, valueClass, shardCount, cacheSize);
+    }
+    
+    /**
+     * Returns a new {@link BlockingBerkeleyQueue} instance with given cache size and capacity
+     * @see BlockingBerkeleyQueue#connection(String, Class, int, int)
+     */
+    public static <E extends Serializable> BlockingBerkeleyQueue<E> blockingQueue(String envHomePath, 
+            String queueName, Class<E> valueClass, int cacheSize, int capacity) {
+        return env(envHomePath).blockingQueue(queueName, valueClass, cacheSize, capacity);
+    }
+    
+    /**
+     * Returns a new high throughput {@link BerkeleyQueue} instance with given batch size and commit interval
+     * @see BatchedBerkeleyQueue#connection(String, Class, int, long)
+     */
+    public static <E extends Serializable> BerkeleyQueue<E> batchedQueue(String envHomePath, 
+            String queueName, Class<E> valueClass, int batchSize, long commitInterval) {
+        return env(envHomePath).batchedQueue(queueName, valueClass, batchSize, commitInterval);
+    }
+    
     /**
      * Returns a new {@link BerkeleyEnv} instance with given path and default configuration
      * @see Berkeley#defaultEnvironmentConfig()
@@ -212,1187 +332,5243 @@ public abstract class Berkeley<M> extends ForwardingObject {
          */
         public abstract StoredMap<Long, E> getQueueMap();
         
+        /**
+         * Inserts all the given elements into this {@link BerkeleyQueue}
+         * @see Queue#offer(Object)
+         */
+        public boolean offerAll(Collection<? extends E> c) {
+            boolean modified = false;
+            for (E e : checkNotNull(c)) {
+                if (offer(e)) {
+                    modified = true;
+                }
+            }
+            return modified;
+        }
+        
+        /**
+         * Retrieves and removes at most the given number of elements from the head of this {@link BerkeleyQueue}
+         * @see Queue#poll()
+         */
+        public List<E> pollBatch(int maxElements) {
+            checkArgument(maxElements >= 0, "The max elements cannot be negative, but is %s", maxElements);
+            E item = null; List<E> items = Lists.newArrayList();
+            
+            while (items.size() < maxElements && null != (item = poll())) {
+                items.add(item);
+            }
+            return items;
+        }
+        
+        /**
+         * Removes all available elements from this {@link BerkeleyQueue} and adds them to the given collection
+         * @see BlockingQueue#drainTo(Collection)
+         */
+        public int drainTo(Collection<? super E> c) {
+            return drainTo(c, Integer.MAX_VALUE);
+        }
+        
+        /**
+         * Removes at most the given number of available elements from this {@link BerkeleyQueue} 
+         * and adds them to the given collection
+         * @see BlockingQueue#drainTo(Collection, int)
+         */
+        public int drainTo(Collection<? super E> c, int maxElements) {
+            checkArgument(checkNotNull(c) != this, "Cannot drain a queue to itself.");
+            List<E> items = pollBatch(maxElements);
+            c.addAll(items);
+            return items.size();
+        }
+
+        /**
+         * Returns true if the given key is a queue element index key, the head/tail pointer records and
+         * {@link StoredClassCatalog} records share the queue database and all sort before the index keys
+         */
+        protected static boolean isIndexKey(DatabaseEntry key) {
+            return 8 == key.getSize() && (key.getData()[key.getOffset()] & 0x80) != 0;
+        }
+
     }
     
     /**
-     * 
+     * Pluggable value codec of {@link BerkeleyQueue}, encodes into the reused buffer of current thread 
+     * instead of a new buffer per element
      */
-    private static class BindingBehavior extends StructBehaviorAdapter<EntryBinding<?>> {
+    public static abstract class QueueCodec<E> implements EntryBinding<E> {
         
-        public BindingBehavior(Object delegate) {
-            super(delegate);
-        }
+        /**
+         * Writes the given element to the given output
+         */
+        protected abstract void write(E object, TupleOutput output);
         
-        public BindingBehavior update(Object delegate) {
-            this.delegate = delegate;
-            return this;
+        /**
+         * Reads an element from the given input
+         */
+        protected abstract E read(TupleInput input);
+        
+        @Override public E entryToObject(DatabaseEntry entry) {
+            return read(new TupleInput(entry.getData(), entry.getOffset(), entry.getSize()));
         }
 
-        @Override protected EntryBinding<?> noneMatched() {
-            if (this.clazz == String.class) {
-                return defaultBehavior();
+        /**
+         * The entry shares the buffer of current thread until the next encoding of current thread,
+         * JE copies the entry data on write so that the entry can be written before that
+         */
+        @Override public void objectToEntry(E object, DatabaseEntry entry) {
+            TupleOutput output = buffers.get();
+            if (output.getBufferBytes().length > MAX_POOLED_BUFFER) {
+                //do not hold an oversize buffer for the thread
+                buffers.set(output = new TupleOutput());
             }
             
-            return null;
-        }
-
-        @Override protected EntryBinding<?> defaultBehavior() {
-            return (EntryBinding<?>) getPrimitiveBinding(Primitives.wrap(this.clazz));
+            output.reset();
+            write(object, output);
+            entry.setData(output.getBufferBytes(), 0, output.getBufferLength());
         }
         
+        private static final int MAX_POOLED_BUFFER = 64 * 1024;
+        private final ThreadLocal<TupleOutput> buffers = new ThreadLocal<TupleOutput>() {
+            
+            @Override protected TupleOutput initialValue() {
+                return new TupleOutput();
+            }
+        };
+        
     }
     
     /**
-     * 
+     * {@link QueueCodec} based on the given {@link TupleBinding}
      */
-    public static class EntityJoinQuery<PK, E> extends EntityJoin<PK, E> {
+    public static class TupleQueueCodec<E> extends QueueCodec<E> {
         
-        public EntityJoinQuery(PrimaryIndex<PK, E> index) {
-            super(index);
+        public TupleQueueCodec(TupleBinding<E> binding) {
+            this.binding = checkNotNull(binding, "The TupleBinding cannot be null.");
         }
         
-        public <SK> EntityJoinQuery<PK, E> join(SecondaryIndex<SK, PK, E> index, SK key) {
-            if (null != index && null != key) {
-                addCondition(index, key);
-            }
-            return this;
+        /**
+         * Returns a new {@link TupleQueueCodec} with the primitive {@link TupleBinding} of given class
+         * @see TupleBinding#getPrimitiveBinding(Class)
+         */
+        public static <E> TupleQueueCodec<E> of(Class<E> primitiveClass) {
+            return new TupleQueueCodec<E>(checkNotNull(getPrimitiveBinding(Primitives.wrap(primitiveClass)), 
+                    "None primitive binding of class %s", primitiveClass));
+        }
+        
+        @Override protected void write(E object, TupleOutput output) {
+            binding.objectToEntry(object, output);
+        }
+
+        @Override protected E read(TupleInput input) {
+            return binding.entryToObject(input);
         }
         
+        private TupleBinding<E> binding = null;
+        
     }
     
     /**
-     * 
+     * Raw byte array passthrough {@link QueueCodec}, the element bytes are used as the entry data without copy
      */
-    public static class DefaultBerkeleyQueue<E extends Serializable> extends BerkeleyQueue<E> implements Serializable {
-
-        /**
-         * 
-         */
-        private static final long serialVersionUID = 4578701790841592245L;
+    public static class RawQueueCodec extends QueueCodec<byte[]> {
         
-        public DefaultBerkeleyQueue(BerkeleyEnv berkeleyEnv) {
-            headIndex = new AtomicLong(0);
-            tailIndex = new AtomicLong(0);
-            this.berkeleyEnv = checkNotNull(berkeleyEnv, "Berkeley environment cannot be null.");
+        @Override public void objectToEntry(byte[] object, DatabaseEntry entry) {
+            entry.setData(object);
         }
         
-        /**
-         * Returns a new {@link BerkeleyQueue} with given parameters
-         */
-        public BerkeleyQueue<E> connection(String queueName, Class<E> valueClass, int cacheSize) {
-            DatabaseConfig databaseConfig = 
-                    defaultDatabaseConfig()
-                    .setTransactional(false)
-                    .setDeferredWrite(true);
-            
-            queueDB = berkeleyEnv.connection(queueName, databaseConfig, null);
-            
-            theCacheSize = cacheSize;
-            headIdxEntry = queueDB.getEntry(headIdx, getPrimitiveBinding(String.class));
-            tailIdxEntry = queueDB.getEntry(tailIdx, getPrimitiveBinding(String.class));
-            
-            Long tmpHeadIndex = queueDB.get(headIdx, headIdxValBinding = getPrimitiveBinding(Long.class));
-            Long tmpTailIndex = queueDB.get(tailIdx, tailIdxValBinding = getPrimitiveBinding(Long.class));
-            if (null != tmpHeadIndex && null != tmpTailIndex) {
-                headIndex = new AtomicLong(tmpHeadIndex);
-                tailIndex = new AtomicLong(tmpTailIndex);
-            }
-            
-            checkNotNull(valueClass, "The queue value class cannot be null.");
-            queueMap = queueDB.getStoredSortedMap(
-                    getPrimitiveBinding(Long.class), queueDB.getBinding(valueClass), true);
-            
-            return this;
+        @Override public byte[] entryToObject(DatabaseEntry entry) {
+            return bytesOf(entry);
         }
         
-        @Override public boolean offer(E e) {
-            synchronized (tailIndex) {
-                queueMap.put(tailIndex.getAndIncrement(), e); // from tail insert
-            }
-            return true;
+        @Override protected void write(byte[] object, TupleOutput output) {
+            output.writeFast(object);
         }
 
-        @Override public E poll() {
-            synchronized (headIndex) {
-                E headItem = peek();
-                if (headItem != null) {
-                    queueMap.remove(headIndex.getAndIncrement());
-                    peekItem = null;
-                    cacheCheck();
-                    return headItem;
-                }
-            }
-            return null;
+        @Override protected byte[] read(TupleInput input) {
+            byte[] data = new byte[input.available()];
+            input.readFast(data);
+            return data;
         }
-
-        @Override public E peek() {
-            synchronized (headIndex) {
-                if (peekItem != null) {
-                    return peekItem;
-                }
-                E headItem = null;
-                while (headItem == null && headIndex.get() < tailIndex.get()) { //in range
-                    headItem = queueMap.get(headIndex.get());
-                    if (headItem != null) {
-                        peekItem = headItem;
-                        continue;
+        
+    }
+    
+    /**
+     * Reflection generated {@link QueueCodec}, writes the non static and non transient fields in name order.
+     * Supports the primitives and wrappers, {@link String}, {@link Date}, {@link Enum} and byte array fields,
+     * the value class must have a default constructor
+     */
+    public static class FieldQueueCodec<E> extends QueueCodec<E> {
+        
+        public FieldQueueCodec(Class<E> valueClass) {
+            checkNotNull(valueClass, "The queue value class cannot be null.");
+            List<Field> fieldList = Lists.newArrayList();
+            for (Class<?> clazz = valueClass; null != clazz && Object.class != clazz; clazz = clazz.getSuperclass()) {
+                for (Field field : clazz.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers()) && !Modifier.isTransient(field.getModifiers())) {
+                        field.setAccessible(true);
+                        fieldList.add(field);
                     }
-                    headIndex.incrementAndGet(); //head pointer backward
                 }
-                cacheCheck();
-                return headItem;
             }
-        }
-
-        @Override public Iterator<E> iterator() {
-            return queueMap.values().iterator();
-        }
-
-        @Override public int size() {
-            synchronized (tailIndex) {
-                synchronized (headIndex) {
-                    return (int) (tailIndex.get() - headIndex.get());
+            Collections.sort(fieldList, new Comparator<Field>() {
+                
+                @Override public int compare(Field o1, Field o2) {
+                    int c = o1.getName().compareTo(o2.getName());
+                    return 0 != c ? c : o1.getDeclaringClass().getName().compareTo(o2.getDeclaringClass().getName());
                 }
+            });
+            
+            this.fields = fieldList.toArray(new Field[fieldList.size()]);
+            this.kinds = new int[fields.length];
+            for (int i = 0; i < fields.length; i++) {
+                kinds[i] = kindOf(fields[i].getType());
+                checkArgument(kinds[i] >= 0, "Unsupported field type %s of %s", fields[i].getType(), fields[i]);
             }
+            this.instantiator = Suppliers2.newInstance(Suppliers2.constructor(valueClass, new Class<?>[0]).get());
         }
         
-        @Override public void sync() {
-            if (null != queueDB) {
-                synchronized (tailIndex) {
-                    synchronized (headIndex) {
-                        queueDB.put(null, headIdxEntry, queueDB.getEntry(headIndex.get(), headIdxValBinding));
-                        queueDB.put(null, tailIdxEntry, queueDB.getEntry(tailIndex.get(), tailIdxValBinding));
-                        queueDB.sync();
+        @Override protected void write(E object, TupleOutput output) {
+            try {
+                for (int i = 0; i < fields.length; i++) {
+                    Object value = fields[i].get(object);
+                    if (fields[i].getType().isPrimitive()) {
+                        writeValue(kinds[i], value, output);
+                    } else if (null == value) {
+                        output.writeBoolean(false);
+                    } else {
+                        output.writeBoolean(true);
+                        writeValue(kinds[i], value, output);
                     }
                 }
+            } catch (IllegalAccessException e) {
+                throw Throwables.propagate(e);
             }
         }
-        
-        private void cacheCheck() {
-            opsCounter++;
-            if (theCacheSize >= 0 && opsCounter >= theCacheSize) {
-                sync();
-                opsCounter = 0;
-            }
-        }
-        
-        @Override public void close() {
+
+        @Override protected E read(TupleInput input) {
+            E object = instantiator.get();
             try {
-                if (null != queueDB) {
-                    sync();
-                    queueDB.close();
+                for (int i = 0; i < fields.length; i++) {
+                    if (!fields[i].getType().isPrimitive() && !input.readBoolean()) {
+                        continue;
+                    }
+                    fields[i].set(object, readValue(kinds[i], fields[i].getType(), input));
                 }
-            } catch (DatabaseException e) {
-                e.printStackTrace();
-            } catch (UnsupportedOperationException e) {
-                e.printStackTrace();
+            } catch (IllegalAccessException e) {
+                throw Throwables.propagate(e);
             }
+            return object;
+        }
+        
+        @SuppressWarnings({ "unchecked", "rawtypes" }) 
+        static Object readValue(int kind, Class<?> type, TupleInput input) {
+            switch (kind) {
+                case BOOLEAN: return input.readBoolean();
+                case BYTE: return input.readByte();
+                case SHORT: return input.readShort();
+                case CHAR: return input.readChar();
+                case INT: return input.readPackedInt();
+                case LONG: return input.readPackedLong();
+                case FLOAT: return input.readFloat();
+                case DOUBLE: return input.readDouble();
+                case STRING: return input.readString();
+                case DATE: return new Date(input.readPackedLong());
+                case ENUM: return Enum.valueOf((Class<Enum>) type, input.readString());
+                case BYTES: 
+                    byte[] bytes = new byte[input.readPackedInt()];
+                    input.readFast(bytes);
+                    return bytes;
+            }
+            return null;
         }
         
-        @Override public void clear() {
-            try {
-                close();
-                if (null != queueDB) {
-                    queueDB.getEnvironment().removeDatabase(null, queueDB.getDatabaseName());
-                }
-            } catch (DatabaseNotFoundException e) {
-                e.printStackTrace();
-            } catch (DatabaseException e) {
-                e.printStackTrace();
+        static void writeValue(int kind, Object value, TupleOutput output) {
+            switch (kind) {
+                case BOOLEAN: output.writeBoolean((Boolean) value); break;
+                case BYTE: output.writeByte((Byte) value); break;
+                case SHORT: output.writeShort((Short) value); break;
+                case CHAR: output.writeChar((Character) value); break;
+                case INT: output.writePackedInt((Integer) value); break;
+                case LONG: output.writePackedLong((Long) value); break;
+                case FLOAT: output.writeFloat((Float) value); break;
+                case DOUBLE: output.writeDouble((Double) value); break;
+                case STRING: output.writeString((String) value); break;
+                case DATE: output.writePackedLong(((Date) value).getTime()); break;
+                case ENUM: output.writeString(((Enum<?>) value).name()); break;
+                case BYTES: 
+                    output.writePackedInt(((byte[]) value).length);
+                    output.writeFast((byte[]) value);
+                    break;
             }
         }
         
-        @Override public BerkeleyDB getQueueDB() {
-            return queueDB;
+        static int kindOf(Class<?> type) {
+            Class<?> clazz = Primitives.wrap(type);
+            if (Boolean.class == clazz) {
+                return BOOLEAN;
+            } else if (Byte.class == clazz) {
+                return BYTE;
+            } else if (Short.class == clazz) {
+                return SHORT;
+            } else if (Character.class == clazz) {
+                return CHAR;
+            } else if (Integer.class == clazz) {
+                return INT;
+            } else if (Long.class == clazz) {
+                return LONG;
+            } else if (Float.class == clazz) {
+                return FLOAT;
+            } else if (Double.class == clazz) {
+                return DOUBLE;
+            } else if (String.class == clazz) {
+                return STRING;
+            } else if (Date.class == clazz) {
+                return DATE;
+            } else if (clazz.isEnum()) {
+                return ENUM;
+            } else if (byte[].class == clazz) {
+                return BYTES;
+            }
+            return -1;
         }
         
-        @Override public StoredMap<Long, E> getQueueMap() {
-            return queueMap;
-        }
+        private static final int BOOLEAN = 0, BYTE = 1, SHORT = 2, CHAR = 3, INT = 4, LONG = 5, 
+                FLOAT = 6, DOUBLE = 7, STRING = 8, DATE = 9, ENUM = 10, BYTES = 11;
         
-        // The head pointer
-        private AtomicLong headIndex;
-        // The tail pointer
-        private AtomicLong tailIndex;
-        // Current value
-        private transient E peekItem = null;
-        // Persist map, Key is pointer position, Value is value, no need serial
-        private transient StoredMap<Long, E> queueMap = null;
-        private BerkeleyDB queueDB = null;
-        private BerkeleyEnv berkeleyEnv = null;
-        private String headIdx = "headIdx", tailIdx = "tailIdx";
+        private final Field[] fields;
+        private final int[] kinds;
+        private final Supplier<E> instantiator;
         
-        private DatabaseEntry headIdxEntry = null, tailIdxEntry = null;
-        private TupleBinding<Long> headIdxValBinding = null, tailIdxValBinding = null;
-        //Queue operation counter, which is used to sync the queue database to disk periodically.
-        private int opsCounter, theCacheSize;
-
-    }
-    
-    /**
-     * Default {@link SequenceConfig}, {allowCreate: true, initialValue: 1}
-     */
-    public static SequenceConfig defaultSequenceConfig() {
-        return new SequenceConfig()
-            .setAllowCreate(true)
-            .setInitialValue(1L);
-    }
-    
-    /**
-     * Default {@link StoreConfig}, {allowCreate: true, transactional: true}
-     */
-    public static StoreConfig defaultStoreConfig() {
-        return new StoreConfig()
-            .setAllowCreate(true)
-            .setTransactional(true);
     }
     
     /**
-     * Default {@link EnvironmentConfig}, {allowCreate: true, transactional: true}
+     * Reflection generated field ordered {@link TupleBinding} of an entity class, the class is inspected once 
+     * by {@link Reflecter}. A record begins with the schema version byte and the null bitmap of the nullable 
+     * fields, followed by the non-null fields in name order. Supports the primitives and wrappers, 
+     * {@link String}, {@link Date}, {@link Enum}, byte array and nested bean fields, the entity class and 
+     * the nested bean classes must have a default constructor
+     * @see BerkeleyDB#enableTupleBinding(Class, int)
      */
-    public static EnvironmentConfig defaultEnvironmentConfig() {
-        return new EnvironmentConfig()
-            .setAllowCreate(true)
-            .setTransactional(true);
+    public static class EntityTupleBinding<E> extends TupleBinding<E> {
+        
+        public EntityTupleBinding(Class<E> entityClass) {
+            this(entityClass, 0);
+        }
+        
+        public EntityTupleBinding(Class<E> entityClass, int schemaVersion) {
+            checkArgument(schemaVersion >= 0 && schemaVersion <= 0xFF, 
+                    "The schema version must be in [0, 255], but is %s", schemaVersion);
+            this.entityClass = checkNotNull(entityClass, "The entity class cannot be null.");
+            this.schemaVersion = schemaVersion;
+            this.schema = TupleSchema.of(entityClass, Maps.<Class<?>, TupleSchema>newHashMap());
+        }
+        
+        @SuppressWarnings("unchecked")
+        @Override public E entryToObject(TupleInput input) {
+            int version = input.readUnsignedByte();
+            checkState(schemaVersion == version, "The %s record is written with schema version %s, but the binding is %s", 
+                    entityClass.getName(), version, schemaVersion);
+            return (E) schema.read(input);
+        }
+
+        @Override public void objectToEntry(E object, TupleOutput output) {
+            output.writeUnsignedByte(schemaVersion);
+            schema.write(checkNotNull(object, "The entity cannot be null."), output);
+        }
+        
+        public Class<E> getEntityClass() {
+            return entityClass;
+        }
+        
+        public int getSchemaVersion() {
+            return schemaVersion;
+        }
+        
+        private final Class<E> entityClass;
+        private final int schemaVersion;
+        private final TupleSchema schema;
+        
+        /**
+         * The fields of a bean class in name order, the nested bean fields refer to the schemas of their classes
+         */
+        private static class TupleSchema {
+            
+            static TupleSchema of(Class<?> clazz, Map<Class<?>, TupleSchema> schemas) {
+                TupleSchema schema = schemas.get(clazz);
+                if (null == schema) {
+                    // registered before the fields are resolved so that the recursive beans refer to the same schema
+                    schemas.put(clazz, schema = new TupleSchema());
+                    schema.resolve(clazz, schemas);
+                }
+                return schema;
+            }
+            
+            void write(Object object, TupleOutput output) {
+                Object[] values = new Object[fields.length];
+                byte[] nulls = new byte[nullBytes];
+                try {
+                    for (int i = 0, n = 0; i < fields.length; i++) {
+                        values[i] = fields[i].get(object);
+                        if (!fields[i].getType().isPrimitive()) {
+                            if (null == values[i]) {
+                                nulls[n >>> 3] |= 1 << (n & 7);
+                            }
+                            n++;
+                        }
+                    }
+                } catch (IllegalAccessException e) {
+                    throw Throwables.propagate(e);
+                }
+                
+                output.writeFast(nulls);
+                for (int i = 0; i < fields.length; i++) {
+                    if (null == values[i]) {
+                        continue;
+                    }
+                    if (null != nested[i]) {
+                        nested[i].write(values[i], output);
+                    } else {
+                        FieldQueueCodec.writeValue(kinds[i], values[i], output);
+                    }
+                }
+            }
+            
+            Object read(TupleInput input) {
+                byte[] nulls = new byte[nullBytes];
+                input.readFast(nulls);
+                Object object = instantiator.get();
+                try {
+                    for (int i = 0, n = 0; i < fields.length; i++) {
+                        if (!fields[i].getType().isPrimitive() && 0 != (nulls[n >>> 3] & (1 << (n++ & 7)))) {
+                            continue;
+                        }
+                        fields[i].set(object, null != nested[i] ? nested[i].read(input) 
+                                : FieldQueueCodec.readValue(kinds[i], fields[i].getType(), input));
+                    }
+                } catch (IllegalAccessException e) {
+                    throw Throwables.propagate(e);
+                }
+                return object;
+            }
+            
+            private void resolve(Class<?> clazz, Map<Class<?>, TupleSchema> schemas) {
+                List<Field> fieldList = Lists.newArrayList();
+                for (Field field : Reflecter.from(clazz).fieldGather().list()) {
+                    int modifiers = field.getModifiers();
+                    if (!Modifier.isStatic(modifiers) && !Modifier.isTransient(modifiers) && !field.isSynthetic()) {
+                        field.setAccessible(true);
+                        fieldList.add(field);
+                    }
+                }
+                Collections.sort(fieldList, new Comparator<Field>() {
+                    
+                    @Override public int compare(Field o1, Field o2) {
+                        int c = o1.getName().compareTo(o2.getName());
+                        return 0 != c ? c : o1.getDeclaringClass().getName().compareTo(o2.getDeclaringClass().getName());
+                    }
+                });
+                
+                fields = fieldList.toArray(new Field[fieldList.size()]);
+                kinds = new int[fields.length];
+                nested = new TupleSchema[fields.length];
+                int nullables = 0;
+                for (int i = 0; i < fields.length; i++) {
+                    Class<?> type = fields[i].getType();
+                    kinds[i] = FieldQueueCodec.kindOf(type);
+                    if (kinds[i] < 0) {
+                        checkArgument(isBean(type), "Unsupported field type %s of %s", type, fields[i]);
+                        nested[i] = of(type, schemas);
+                    }
+                    if (!type.isPrimitive()) {
+                        nullables++;
+                    }
+                }
+                nullBytes = (nullables + 7) >>> 3;
+                instantiator = Suppliers2.newInstance(Suppliers2.constructor(clazz, new Class<?>[0]).get());
+            }
+            
+            private static boolean isBean(Class<?> type) {
+                return !type.isArray() && !type.isInterface() && !Modifier.isAbstract(type.getModifiers()) 
+                        && !type.getName().startsWith("java.");
+            }
+            
+            private Field[] fields;
+            private int[] kinds;
+            private TupleSchema[] nested;
+            private int nullBytes;
+            private Supplier<?> instantiator;
+        }
     }
     
     /**
-     * Default {@link DatabaseConfig}, {allowCreate: true, transactional: true}
+     * Compressing {@link EntryBinding} wrapper of the given binding, the entry begins with a one byte header 
+     * flag, the encoded data which is not less than the threshold is stored {@link LZCodec} compressed 
+     * with the raw length if it gets shorter, otherwise is stored as it is
+     * @see BerkeleyDB#enableCompression(int)
      */
-    public static DatabaseConfig defaultDatabaseConfig() {
-        return new DatabaseConfig()
-            .setAllowCreate(true)
-            .setTransactional(true);
+    public static class CompressedBinding<E> implements EntryBinding<E> {
+        
+        public CompressedBinding(EntryBinding<E> binding, int threshold) {
+            checkArgument(threshold >= 0, "The compression threshold cannot be negative, but is %s", threshold);
+            this.binding = checkNotNull(binding, "The EntryBinding cannot be null.");
+            this.threshold = threshold;
+        }
+
+        @Override public E entryToObject(DatabaseEntry entry) {
+            byte[] data = entry.getData();
+            int offset = entry.getOffset(), size = entry.getSize();
+            checkState(size > 0, "The entry is not written by CompressedBinding.");
+            
+            switch (data[offset]) {
+            case RAW:
+                return binding.entryToObject(new DatabaseEntry(data, offset + 1, size - 1));
+            case LZ:
+                byte[] raw = new byte[PackedInteger.readInt(data, offset + 1)];
+                int start = offset + 1 + PackedInteger.getReadIntLength(data, offset + 1);
+                LZCodec.decompress(data, start, offset + size - start, raw, 0, raw.length);
+                return binding.entryToObject(new DatabaseEntry(raw));
+            default:
+                throw new IllegalStateException("Unknown compression header flag " + data[offset]);
+            }
+        }
+
+        @Override public void objectToEntry(E object, DatabaseEntry entry) {
+            DatabaseEntry encoded = new DatabaseEntry();
+            binding.objectToEntry(object, encoded);
+            byte[] data = encoded.getData();
+            int offset = encoded.getOffset(), size = encoded.getSize();
+            
+            if (size >= threshold && size > 0) {
+                byte[] packed = new byte[1 + PackedInteger.MAX_LENGTH + LZCodec.maxCompressedLength(size)];
+                packed[0] = LZ;
+                int header = PackedInteger.writeInt(packed, 1, size);
+                int length = header + LZCodec.compress(data, offset, size, packed, header);
+                if (length < size + 1) {
+                    entry.setData(packed, 0, length);
+                    return;
+                }
+            }
+            
+            byte[] plain = new byte[size + 1];
+            plain[0] = RAW;
+            System.arraycopy(data, offset, plain, 1, size);
+            entry.setData(plain);
+        }
+        
+        public EntryBinding<E> getBinding() {
+            return binding;
+        }
+        
+        public int getThreshold() {
+            return threshold;
+        }
+        
+        private static final byte RAW = 0;
+        private static final byte LZ = 1;
+        private final EntryBinding<E> binding;
+        private final int threshold;
     }
     
     /**
-     * Default {@link SecondaryConfig}, {allowCreate: true, sortedDuplicates: true} with given {@link SecondaryKeyCreator}
-     * @param keyCreator
-     * @return
+     * In-project LZ77 block codec in the LZ4 sequence layout, a token of the literal and match length nibbles,
+     * the literals, the two bytes little endian match offset then the match length extension bytes. 
+     * The block carries no length, the caller keeps the raw length
+     * @see CompressedBinding
      */
-    public static SecondaryConfig defaultSecondaryConfig(SecondaryKeyCreator keyCreator) {
-        SecondaryConfig cfg = new SecondaryConfig();
-        cfg.setAllowCreate(true);
-        //Duplicates are frequently required for secondary databases
-        cfg.setSortedDuplicates(true);
-        cfg.setTransactional(true);
-        cfg.setKeyCreator(checkNotNull(keyCreator, "SecondaryKeyCreator cannot be null"));
-        return cfg;
+    public static final class LZCodec {
+        
+        private LZCodec() {}
+        
+        /**
+         * Returns the worst case compressed length of the given raw length
+         */
+        public static int maxCompressedLength(int length) {
+            checkArgument(length >= 0, "The length cannot be negative, but is %s", length);
+            return length + length / 255 + 16;
+        }
+        
+        /**
+         * Compresses the given source range into the destination, returns the compressed length, 
+         * the destination must have {@link #maxCompressedLength(int)} bytes available
+         */
+        public static int compress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff) {
+            checkPositionIndexes(srcOff, srcOff + srcLen, src.length);
+            checkArgument(dest.length - destOff >= maxCompressedLength(srcLen), 
+                    "The destination must have %s bytes available", maxCompressedLength(srcLen));
+            int end = srcOff + srcLen, sp = srcOff, anchor = srcOff, dp = destOff;
+            
+            if (srcLen >= MIN_INPUT) {
+                int hashLog = Math.min(MAX_HASH_LOG, Math.max(8, 32 - Integer.numberOfLeadingZeros(srcLen)));
+                int[] table = new int[1 << hashLog];
+                int limit = end - MIN_INPUT + 1, matchLimit = end - LAST_LITERALS;
+                
+                while (sp < limit) {
+                    int sequence = readInt(src, sp);
+                    int h = (sequence * -1640531535) >>> (32 - hashLog);
+                    int ref = srcOff + table[h] - 1;
+                    table[h] = sp - srcOff + 1;
+                    if (ref < srcOff || sp - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+                        //skips faster over the incompressible data
+                        sp += 1 + ((sp - anchor) >>> SKIP_STRENGTH);
+                        continue;
+                    }
+                    
+                    while (sp > anchor && ref > srcOff && src[sp - 1] == src[ref - 1]) {
+                        sp--; ref--;
+                    }
+                    int matchLength = MIN_MATCH;
+                    while (sp + matchLength < matchLimit && src[sp + matchLength] == src[ref + matchLength]) {
+                        matchLength++;
+                    }
+                    
+                    dp = writeLiterals(src, anchor, sp - anchor, matchLength - MIN_MATCH, dest, dp);
+                    dest[dp++] = (byte) (sp - ref);
+                    dest[dp++] = (byte) ((sp - ref) >>> 8);
+                    dp = writeLength(matchLength - MIN_MATCH, dest, dp);
+                    anchor = sp += matchLength;
+                }
+            }
+            
+            return writeLiterals(src, anchor, end - anchor, 0, dest, dp) - destOff;
+        }
+        
+        /**
+         * Decompresses the given block into the destination range which has exactly the raw length
+         */
+        public static void decompress(byte[] src, int srcOff, int srcLen, byte[] dest, int destOff, int destLen) {
+            checkPositionIndexes(srcOff, srcOff + srcLen, src.length);
+            checkPositionIndexes(destOff, destOff + destLen, dest.length);
+            int end = srcOff + srcLen, sp = srcOff, dp = destOff, destEnd = destOff + destLen;
+            
+            try {
+                while (sp < end) {
+                    int token = src[sp++] & 0xFF;
+                    int literals = token >>> 4;
+                    if (literals == 0x0F) {
+                        int b;
+                        do {
+                            literals += (b = src[sp++] & 0xFF);
+                        } while (b == 0xFF);
+                    }
+                    checkState(sp + literals <= end && dp + literals <= destEnd, "Malformed LZ block.");
+                    System.arraycopy(src, sp, dest, dp, literals);
+                    sp += literals;
+                    dp += literals;
+                    if (sp == end) {
+                        break;
+                    }
+                    
+                    int offset = (src[sp++] & 0xFF) | (src[sp++] & 0xFF) << 8;
+                    int matchLength = token & 0x0F;
+                    if (matchLength == 0x0F) {
+                        int b;
+                        do {
+                            matchLength += (b = src[sp++] & 0xFF);
+                        } while (b == 0xFF);
+                    }
+                    matchLength += MIN_MATCH;
+                    int ref = dp - offset;
+                    checkState(offset > 0 && ref >= destOff && dp + matchLength <= destEnd, "Malformed LZ block.");
+                    
+                    if (offset >= matchLength) {
+                        System.arraycopy(dest, ref, dest, dp, matchLength);
+                        dp += matchLength;
+                    } else {
+                        //the overlapped match repeats the last offset bytes
+                        for (int i = 0; i < matchLength; i++) {
+                            dest[dp++] = dest[ref++];
+                        }
+                    }
+                }
+            } catch (ArrayIndexOutOfBoundsException e) {
+                throw new IllegalStateException("Malformed LZ block.", e);
+            }
+            
+            checkState(dp == destEnd, "The LZ block length %s does not match the raw length %s", dp - destOff, destLen);
+        }
+        
+        private static int writeLiterals(byte[] src, int start, int literals, int matchToken, byte[] dest, int dp) {
+            dest[dp++] = (byte) (Math.min(literals, 0x0F) << 4 | Math.min(matchToken, 0x0F));
+            dp = writeLength(literals, dest, dp);
+            System.arraycopy(src, start, dest, dp, literals);
+            return dp + literals;
+        }
+        
+        private static int writeLength(int length, byte[] dest, int dp) {
+            if (length >= 0x0F) {
+                for (length -= 0x0F; length >= 0xFF; length -= 0xFF) {
+                    dest[dp++] = (byte) 0xFF;
+                }
+                dest[dp++] = (byte) length;
+            }
+            return dp;
+        }
+        
+        private static int readInt(byte[] src, int i) {
+            return (src[i] & 0xFF) | (src[i + 1] & 0xFF) << 8 | (src[i + 2] & 0xFF) << 16 | src[i + 3] << 24;
+        }
+        
+        private static final int MIN_MATCH = 4;
+        private static final int LAST_LITERALS = 5;
+        private static final int MIN_INPUT = 13;
+        private static final int MAX_OFFSET = 0xFFFF;
+        private static final int MAX_HASH_LOG = 12;
+        private static final int SKIP_STRENGTH = 6;
     }
     
     /**
-     * @see Environment
+     * 
      */
-    public static class BerkeleyEnv extends ForwardingObject {
+    private static class BindingBehavior extends StructBehaviorAdapter<EntryBinding<?>> {
+        
+        public BindingBehavior(Object delegate) {
+            super(delegate);
+        }
+
+        @Override protected EntryBinding<?> noneMatched() {
+            if (this.clazz == String.class) {
+                return defaultBehavior();
+            }
+            
+            return null;
+        }
+
+        @Override protected EntryBinding<?> defaultBehavior() {
+            return (EntryBinding<?>) getPrimitiveBinding(Primitives.wrap(this.clazz));
+        }
+        
+    }
+    
+    /**
+     * Entity visitor of {@link EntityStream}, returns false to stop the visiting
+     */
+    public static abstract class EntityVisit<E> {
+        
+        protected abstract boolean apply(E entity);
+        
+    }
+    
+    /**
+     * Lazy entities of a {@link ForwardCursor}, the cursor is opened when the iteration begins and closed 
+     * when the iteration is exhausted or the stream is closed, none more than the batch size of entities 
+     * are buffered. The iterators still open are closed with the stream
+     */
+    public static class EntityStream<E> implements Iterable<E>, Closeable {
+        
+        public EntityStream(Supplier<? extends ForwardCursor<E>> cursors) {
+            this.cursors = checkNotNull(cursors, "The cursor supplier cannot be null.");
+        }
+        
+        /**
+         * Sets the max number of entities read ahead from the cursor, default is 100
+         */
+        public EntityStream<E> batchSize(int batchSize) {
+            checkArgument(batchSize > 0, "The batch size must be positive, but is %s", batchSize);
+            this.batchSize = batchSize;
+            return this;
+        }
+        
+        /**
+         * Visits the entities until the visitor returns false, returns the number of visited entities
+         */
+        public int visit(EntityVisit<E> visit) {
+            checkNotNull(visit, "The entity visitor cannot be null.");
+            StreamIterator it = iterator();
+            int count = 0;
+            
+            try {
+                while (it.hasNext()) {
+                    count++;
+                    if (!visit.apply(it.next())) {
+                        break;
+                    }
+                }
+            } finally {
+                it.close();
+            }
+            
+            return count;
+        }
+        
+        /**
+         * Returns the entities as a list, materializes all of the entities
+         */
+        public List<E> toList() {
+            List<E> items = Lists.newArrayList();
+            StreamIterator it = iterator();
+            
+            try {
+                while (it.hasNext()) {
+                    items.add(it.next());
+                }
+            } finally {
+                it.close();
+            }
+            
+            return items;
+        }
+        
+        /**
+         * Opens a new cursor and returns a closeable iterator over it, the iterators opened before are kept open
+         */
+        @Override public StreamIterator iterator() {
+            StreamIterator it = new StreamIterator(cursors.get());
+            iterators.add(it);
+            return it;
+        }
+        
+        /**
+         * Closes all of the iterators still open
+         */
+        @Override public void close() {
+            for (StreamIterator it : Lists.newArrayList(iterators)) {
+                it.close();
+            }
+        }
+        
+        /**
+         * 
+         */
+        public class StreamIterator extends AbstractIterator<E> implements Closeable {
+            
+            private StreamIterator(ForwardCursor<E> cursor) {
+                this.cursor = checkNotNull(cursor);
+                this.batch = new ArrayDeque<E>(batchSize);
+            }
+
+            @Override protected E computeNext() {
+                if (batch.isEmpty() && null != cursor) {
+                    try {
+                        E item = null;
+                        while (batch.size() < batchSize && null != (item = cursor.next())) {
+                            batch.add(item);
+                        }
+                    } catch (RuntimeException e) {
+                        close();
+                        throw e;
+                    }
+                    
+                    if (batch.size() < batchSize) {
+                        close();
+                    }
+                }
+                
+                return batch.isEmpty() ? endOfData() : batch.poll();
+            }
+            
+            @Override public void close() {
+                if (null != cursor) {
+                    try {
+                        cursor.close();
+                    } finally {
+                        cursor = null;
+                        iterators.remove(this);
+                    }
+                }
+            }
+            
+            private ForwardCursor<E> cursor = null;
+            private final ArrayDeque<E> batch;
+        }
+        
+        private int batchSize = 100;
+        private final Set<StreamIterator> iterators = Sets.newConcurrentHashSet();
+        private final Supplier<? extends ForwardCursor<E>> cursors;
+    }
+    
+    /**
+     * Base {@link ForwardCursor} with the iterators over {@link ForwardCursor#next(LockMode)}
+     */
+    public static abstract class AbstractForwardCursor<V> implements ForwardCursor<V> {
+        
+        @Override public V next() throws DatabaseException {
+            return next(null);
+        }
+        
+        @Override public Iterator<V> iterator() {
+            return iterator(null);
+        }
+        
+        @Override public Iterator<V> iterator(final LockMode lockMode) {
+            return new AbstractIterator<V>() {
+                
+                @Override protected V computeNext() {
+                    V item = AbstractForwardCursor.this.next(lockMode);
+                    return null == item ? endOfData() : item;
+                }
+            };
+        }
+        
+    }
+    
+    /**
+     * Cost based {@link EntityJoin}, estimates the cardinality of each condition with 
+     * {@link Cursor#countEstimate()} and drives the join from the most selective condition. If the most selective 
+     * condition has no more than the intersect threshold of entities, its sorted primary keys are intersected 
+     * with the other conditions by key probes of the secondary key databases, and the entities are read 
+     * in primary key order
+     */
+    public static class EntityJoinQuery<PK, E> extends EntityJoin<PK, E> {
+        
+        public EntityJoinQuery(PrimaryIndex<PK, E> index) {
+            super(index);
+            this.primary = index;
+        }
+        
+        public <SK> EntityJoinQuery<PK, E> join(SecondaryIndex<SK, PK, E> index, SK key) {
+            if (null != index && null != key) {
+                addCondition(index, key);
+            }
+            return this;
+        }
+        
+        @Override public <SK> void addCondition(SecondaryIndex<SK, PK, E> index, SK key) {
+            super.addCondition(index, key);
+            DatabaseEntry keyEntry = new DatabaseEntry();
+            index.getKeyBinding().objectToEntry(key, keyEntry);
+            conditions.add(new JoinCondition(index, keyEntry));
+        }
+        
+        /**
+         * Sets the max estimated entities of the most selective condition to intersect the sorted primary keys 
+         * instead of the join cursor, default is 256
+         */
+        public EntityJoinQuery<PK, E> intersectThreshold(int intersectThreshold) {
+            checkArgument(intersectThreshold >= 0, 
+                    "The intersect threshold cannot be negative, but is %s", intersectThreshold);
+            this.intersectThreshold = intersectThreshold;
+            return this;
+        }
+        
+        /**
+         * Returns the estimated entities of each condition in adding order
+         */
+        public List<Long> estimates() {
+            List<Long> estimates = Lists.newArrayList();
+            for (JoinCondition condition : conditions) {
+                estimates.add(condition.estimate(null, null));
+            }
+            return estimates;
+        }
+        
+        @Override public ForwardCursor<E> entities() throws DatabaseException {
+            return entities(null, null);
+        }
+        
+        @Override public ForwardCursor<E> entities(Transaction txn, CursorConfig config) throws DatabaseException {
+            return new PlannedJoinCursor<E>(txn, config, true);
+        }
+        
+        @Override public ForwardCursor<PK> keys() throws DatabaseException {
+            return keys(null, null);
+        }
+        
+        @Override public ForwardCursor<PK> keys(Transaction txn, CursorConfig config) throws DatabaseException {
+            return new PlannedJoinCursor<PK>(txn, config, false);
+        }
+        
+        /**
+         * Returns the conditions ordered by the estimated entities, or empty if any condition has none
+         */
+        private List<JoinCondition> plan(Transaction txn, CursorConfig config, long[] leastEstimate) {
+            checkState(!conditions.isEmpty(), "No conditions were added to the join.");
+            final Map<JoinCondition, Long> estimates = Maps.newIdentityHashMap();
+            for (JoinCondition condition : conditions) {
+                long estimate = condition.estimate(txn, config);
+                if (0 == estimate) {
+                    return Collections.emptyList();
+                }
+                estimates.put(condition, estimate);
+            }
+            
+            List<JoinCondition> ordered = Lists.newArrayList(conditions);
+            Collections.sort(ordered, new Comparator<JoinCondition>() {
+                
+                @Override public int compare(JoinCondition o1, JoinCondition o2) {
+                    return estimates.get(o1).compareTo(estimates.get(o2));
+                }
+            });
+            leastEstimate[0] = estimates.get(ordered.get(0));
+            return ordered;
+        }
+        
+        /**
+         * Returns the sorted primary keys of the first condition which match all of the other conditions
+         */
+        private Iterator<byte[]> intersect(List<JoinCondition> ordered, Transaction txn, CursorConfig config) {
+            List<byte[]> keys = Lists.newArrayList();
+            Cursor cursor = ordered.get(0).keysDatabase().openCursor(txn, config);
+            try {
+                DatabaseEntry key = copyOf(ordered.get(0).key), data = new DatabaseEntry();
+                OperationStatus status = cursor.getSearchKey(key, data, null);
+                while (OperationStatus.SUCCESS == status) {
+                    keys.add(bytesOf(data));
+                    status = cursor.getNextDup(key, data, null);
+                }
+            } finally {
+                cursor.close();
+            }
+            
+            for (int i = 1; i < ordered.size() && !keys.isEmpty(); i++) {
+                cursor = ordered.get(i).keysDatabase().openCursor(txn, config);
+                try {
+                    for (Iterator<byte[]> itr = keys.iterator(); itr.hasNext();) {
+                        if (OperationStatus.SUCCESS != cursor.getSearchBoth(
+                                copyOf(ordered.get(i).key), new DatabaseEntry(itr.next()), null)) {
+                            itr.remove();
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            
+            return keys.iterator();
+        }
+        
+        /**
+         * The secondary index and key entry of a join condition
+         */
+        private class JoinCondition {
+            
+            JoinCondition(SecondaryIndex<?, PK, E> index, DatabaseEntry key) {
+                this.index = index;
+                this.key = key;
+            }
+            
+            Database keysDatabase() {
+                index.keysIndex();
+                return index.getKeysDatabase();
+            }
+            
+            long estimate(Transaction txn, CursorConfig config) {
+                Cursor cursor = keysDatabase().openCursor(txn, config);
+                try {
+                    DatabaseEntry data = new DatabaseEntry();
+                    data.setPartial(0, 0, true);
+                    return OperationStatus.SUCCESS == cursor.getSearchKey(
+                            copyOf(key), data, LockMode.READ_UNCOMMITTED) ? cursor.countEstimate() : 0;
+                } finally {
+                    cursor.close();
+                }
+            }
+            
+            final SecondaryIndex<?, PK, E> index;
+            final DatabaseEntry key;
+        }
+        
+        /**
+         * The cursor of the planned join, either intersects the primary keys or joins the secondary cursors 
+         * with the planned order
+         */
+        private class PlannedJoinCursor<V> extends AbstractForwardCursor<V> {
+            
+            PlannedJoinCursor(Transaction txn, CursorConfig config, boolean entities) {
+                this.txn = txn;
+                this.entities = entities;
+                
+                long[] leastEstimate = new long[1];
+                List<JoinCondition> ordered = plan(txn, config, leastEstimate);
+                if (ordered.isEmpty()) {
+                    return;
+                }
+                if (leastEstimate[0] <= intersectThreshold) {
+                    keys = intersect(ordered, txn, config);
+                    return;
+                }
+                
+                try {
+                    for (JoinCondition condition : ordered) {
+                        SecondaryCursor cursor = condition.index.getDatabase().openCursor(txn, config);
+                        cursors.add(cursor);
+                        DatabaseEntry data = new DatabaseEntry();
+                        data.setPartial(0, 0, true);
+                        if (OperationStatus.SUCCESS != cursor.getSearchKey(copyOf(condition.key), data, null)) {
+                            close();
+                            return;
+                        }
+                    }
+                    join = primary.getDatabase().join(cursors.toArray(
+                            new Cursor[cursors.size()]), new JoinConfig().setNoSort(true));
+                } catch (RuntimeException e) {
+                    close();
+                    throw e;
+                }
+            }
+            
+            @SuppressWarnings("unchecked")
+            @Override public V next(LockMode lockMode) throws DatabaseException {
+                DatabaseEntry key = new DatabaseEntry(), data = new DatabaseEntry();
+                if (null != keys) {
+                    while (keys.hasNext()) {
+                        key.setData(keys.next());
+                        if (!entities) {
+                            return (V) primary.getKeyBinding().entryToObject(key);
+                        }
+                        if (OperationStatus.SUCCESS == primary.getDatabase().get(txn, key, data, lockMode)) {
+                            return (V) primary.getEntityBinding().entryToObject(key, data);
+                        }
+                    }
+                } else if (null != join) {
+                    if (!entities && OperationStatus.SUCCESS == join.getNext(key, lockMode)) {
+                        return (V) primary.getKeyBinding().entryToObject(key);
+                    }
+                    if (entities && OperationStatus.SUCCESS == join.getNext(key, data, lockMode)) {
+                        return (V) primary.getEntityBinding().entryToObject(key, data);
+                    }
+                }
+                return null;
+            }
+            
+            @Override public void close() throws DatabaseException {
+                keys = null;
+                try {
+                    if (null != join) {
+                        join.close();
+                    }
+                } finally {
+                    join = null;
+                    for (Cursor cursor : cursors) {
+                        cursor.close();
+                    }
+                    cursors.clear();
+                }
+            }
+            
+            private Iterator<byte[]> keys = null;
+            private JoinCursor join = null;
+            private final List<Cursor> cursors = Lists.newArrayList();
+            private final Transaction txn;
+            private final boolean entities;
+        }
+        
+        private int intersectThreshold = 256;
+        private final PrimaryIndex<PK, E> primary;
+        private final List<JoinCondition> conditions = Lists.newArrayList();
+    }
+    
+    /**
+     * Query of the equality, IN, range and prefix conditions on the secondary indexes of a primary index, 
+     * similar to the SQL:
+     * <blockquote><pre>
+     * SELECT * FROM table WHERE col1 = key1 AND col2 IN (key2, key3) AND col3 BETWEEN from AND to AND col4 LIKE 'prefix%';
+     * </pre></blockquote>
+     * The query is driven by the range or prefix condition with the fewest primary keys if it has fewer than the 
+     * estimated primary keys of every equality and IN condition, the equality and IN conditions are then probed 
+     * by the driven primary keys. Otherwise the sorted primary keys of the equality and IN conditions are 
+     * intersected by leapfrogging the cursors of the secondary key databases. The range and prefix conditions 
+     * not driving the query are checked on the secondary keys created from the primary records, and the entities 
+     * are created only for the records matching all of the conditions
+     */
+    public static class EntityQuery<PK, E> {
+        
+        public EntityQuery(PrimaryIndex<PK, E> index) {
+            this.primary = checkNotNull(index, "The primary index cannot be null.");
+            this.comparator = firstNonNull(
+                    index.getDatabase().getConfig().getBtreeComparator(), UnsignedBytes.lexicographicalComparator());
+        }
+        
+        /**
+         * Adds the condition of the secondary key equals to given key
+         */
+        public <SK> EntityQuery<PK, E> equal(SecondaryIndex<SK, PK, E> index, SK key) {
+            return in(index, Collections.singleton(checkNotNull(key, "The key cannot be null.")));
+        }
+        
+        /**
+         * Adds the condition of the secondary key equals to any of given keys
+         */
+        public <SK> EntityQuery<PK, E> in(SecondaryIndex<SK, PK, E> index, Collection<SK> keys) {
+            checkNotNull(index, "The secondary index cannot be null.");
+            checkArgument(!checkNotNull(keys, "The keys cannot be null.").isEmpty(), "The keys cannot be empty.");
+            List<DatabaseEntry> entries = Lists.newArrayList();
+            for (SK key : keys) {
+                entries.add(entryOf(index, checkNotNull(key, "The key cannot be null.")));
+            }
+            keyConditions.add(new KeyCondition(index, entries));
+            return this;
+        }
+        
+        /**
+         * Adds the condition of the secondary key in given range, the null key means unbounded
+         */
+        public <SK> EntityQuery<PK, E> range(SecondaryIndex<SK, PK, E> index, 
+                SK fromKey, boolean fromInclusive, SK toKey, boolean toInclusive) {
+            checkNotNull(index, "The secondary index cannot be null.");
+            rangeConditions.add(new RangeCondition(index, 
+                    null == fromKey ? null : bytesOf(entryOf(index, fromKey)), fromInclusive, 
+                    null == toKey ? null : bytesOf(entryOf(index, toKey)), toInclusive));
+            return this;
+        }
+        
+        /**
+         * Adds the condition of the secondary key starts with given prefix
+         * @see BerkeleyStore#query(EntityIndex, String)
+         */
+        public EntityQuery<PK, E> prefix(SecondaryIndex<String, PK, E> index, String prefix) {
+            checkArgument(!Strs.isBlank(prefix));
+            
+            char[] ca = prefix.toCharArray();
+            ca[ca.length - 1]++;
+            return range(index, prefix, true, String.valueOf(ca), false);
+        }
+        
+        public ForwardCursor<E> entities() throws DatabaseException {
+            return entities(null, null);
+        }
+        
+        public ForwardCursor<E> entities(Transaction txn, CursorConfig config) throws DatabaseException {
+            return new QueryCursor<E>(txn, config, true);
+        }
+        
+        public ForwardCursor<PK> keys() throws DatabaseException {
+            return keys(null, null);
+        }
+        
+        public ForwardCursor<PK> keys(Transaction txn, CursorConfig config) throws DatabaseException {
+            return new QueryCursor<PK>(txn, config, false);
+        }
+        
+        private static <SK> DatabaseEntry entryOf(SecondaryIndex<SK, ?, ?> index, SK key) {
+            DatabaseEntry entry = new DatabaseEntry();
+            index.getKeyBinding().objectToEntry(key, entry);
+            return entry;
+        }
+        
+        private static Database keysDatabase(SecondaryIndex<?, ?, ?> index) {
+            index.keysIndex();
+            return index.getKeysDatabase();
+        }
+        
+        /**
+         * The equality or IN condition
+         */
+        private class KeyCondition {
+            
+            KeyCondition(SecondaryIndex<?, PK, E> index, List<DatabaseEntry> keys) {
+                this.index = index;
+                this.keys = keys;
+            }
+            
+            /**
+             * Returns the estimated primary keys of all of the keys
+             * @see Cursor#countEstimate()
+             */
+            long estimate(Transaction txn, CursorConfig config) {
+                long estimate = 0;
+                Cursor cursor = keysDatabase(index).openCursor(txn, config);
+                try {
+                    for (DatabaseEntry key : keys) {
+                        DatabaseEntry data = new DatabaseEntry();
+                        data.setPartial(0, 0, true);
+                        if (OperationStatus.SUCCESS == cursor.getSearchKey(copyOf(key), data, LockMode.READ_UNCOMMITTED)) {
+                            estimate += cursor.countEstimate();
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+                return estimate;
+            }
+            
+            /**
+             * Returns true if any of the keys has given primary key, probes with given cursor of the keys database
+             */
+            boolean contains(Cursor cursor, DatabaseEntry primaryKey, LockMode lockMode) {
+                for (DatabaseEntry key : keys) {
+                    if (OperationStatus.SUCCESS == cursor.getSearchBoth(copyOf(key), copyOf(primaryKey), lockMode)) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            
+            final SecondaryIndex<?, PK, E> index;
+            final List<DatabaseEntry> keys;
+        }
+        
+        /**
+         * The range or prefix condition
+         */
+        private class RangeCondition {
+            
+            RangeCondition(SecondaryIndex<?, PK, E> index, 
+                    byte[] fromKey, boolean fromInclusive, byte[] toKey, boolean toInclusive) {
+                this.index = index;
+                this.fromKey = fromKey;
+                this.fromInclusive = fromInclusive;
+                this.toKey = toKey;
+                this.toInclusive = toInclusive;
+                
+                SecondaryConfig config = index.getDatabase().getConfig();
+                this.keyCreator = config.getKeyCreator();
+                this.multiKeyCreator = config.getMultiKeyCreator();
+                this.comparator = firstNonNull(config.getBtreeComparator(), UnsignedBytes.lexicographicalComparator());
+            }
+            
+            boolean afterFrom(byte[] key) {
+                if (null == fromKey) {
+                    return true;
+                }
+                int c = comparator.compare(key, fromKey);
+                return c > 0 || (0 == c && fromInclusive);
+            }
+            
+            boolean beforeTo(byte[] key) {
+                if (null == toKey) {
+                    return true;
+                }
+                int c = comparator.compare(key, toKey);
+                return c < 0 || (0 == c && toInclusive);
+            }
+            
+            /**
+             * Returns true if any secondary key of given primary record is in the range
+             */
+            boolean matches(DatabaseEntry key, DatabaseEntry data) {
+                if (null != keyCreator) {
+                    DatabaseEntry result = new DatabaseEntry();
+                    return keyCreator.createSecondaryKey(index.getDatabase(), key, data, result) 
+                            && afterFrom(bytesOf(result)) && beforeTo(bytesOf(result));
+                }
+                
+                Set<DatabaseEntry> results = Sets.newHashSet();
+                multiKeyCreator.createSecondaryKeys(index.getDatabase(), key, data, results);
+                for (DatabaseEntry result : results) {
+                    if (afterFrom(bytesOf(result)) && beforeTo(bytesOf(result))) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            
+            /**
+             * Returns the smallest secondary key of given primary record in the range, or null if none
+             */
+            byte[] firstInRange(DatabaseEntry key, DatabaseEntry data) {
+                Set<DatabaseEntry> results = Sets.newHashSet();
+                multiKeyCreator.createSecondaryKeys(index.getDatabase(), key, data, results);
+                byte[] first = null;
+                for (DatabaseEntry result : results) {
+                    byte[] bytes = bytesOf(result);
+                    if (afterFrom(bytes) && beforeTo(bytes) && (null == first || comparator.compare(bytes, first) < 0)) {
+                        first = bytes;
+                    }
+                }
+                return first;
+            }
+            
+            final SecondaryIndex<?, PK, E> index;
+            final byte[] fromKey;
+            final boolean fromInclusive;
+            final byte[] toKey;
+            final boolean toInclusive;
+            final SecondaryKeyCreator keyCreator;
+            final SecondaryMultiKeyCreator multiKeyCreator;
+            final Comparator<byte[]> comparator;
+        }
+        
+        /**
+         * The sorted primary keys of a secondary key, the cursor moves forward only
+         */
+        private class KeyHead {
+            
+            KeyHead(Cursor cursor, DatabaseEntry key) {
+                this.cursor = cursor;
+                this.key = key;
+            }
+            
+            /**
+             * Returns the smallest primary key greater than or equal to given key, or null if none
+             */
+            byte[] seek(byte[] target, LockMode lockMode) {
+                if (null != current && (null == target || comparator.compare(current, target) >= 0)) {
+                    return current;
+                }
+                
+                DatabaseEntry data = null == target ? new DatabaseEntry() : new DatabaseEntry(target);
+                OperationStatus status = null == target 
+                        ? cursor.getSearchKey(copyOf(key), data, lockMode) 
+                        : cursor.getSearchBothRange(copyOf(key), data, lockMode);
+                return current = OperationStatus.SUCCESS == status ? bytesOf(data) : null;
+            }
+            
+            /**
+             * Moves to the next primary key, returns null if none
+             */
+            byte[] next(LockMode lockMode) {
+                DatabaseEntry data = new DatabaseEntry();
+                return current = OperationStatus.SUCCESS == cursor.getNextDup(
+                        new DatabaseEntry(), data, lockMode) ? bytesOf(data) : null;
+            }
+            
+            private byte[] current = null;
+            private final Cursor cursor;
+            private final DatabaseEntry key;
+        }
+        
+        /**
+         * The sorted union of the primary keys of an equality or IN condition
+         */
+        private class KeyStream {
+            
+            KeyStream(KeyCondition condition, List<Cursor> cursors, Transaction txn, CursorConfig config) {
+                Database database = keysDatabase(condition.index);
+                for (DatabaseEntry key : condition.keys) {
+                    Cursor cursor = database.openCursor(txn, config);
+                    cursors.add(cursor);
+                    heads.add(new KeyHead(cursor, key));
+                }
+            }
+            
+            /**
+             * Returns the smallest primary key greater than or equal to given key, or null if none
+             */
+            byte[] seek(byte[] target, LockMode lockMode) {
+                byte[] min = null;
+                for (Iterator<KeyHead> itr = heads.iterator(); itr.hasNext();) {
+                    byte[] key = itr.next().seek(target, lockMode);
+                    if (null == key) {
+                        itr.remove();
+                    } else if (null == min || comparator.compare(key, min) < 0) {
+                        min = key;
+                    }
+                }
+                return min;
+            }
+            
+            /**
+             * Moves the heads on given primary key to the next
+             */
+            void skip(byte[] last, LockMode lockMode) {
+                for (Iterator<KeyHead> itr = heads.iterator(); itr.hasNext();) {
+                    KeyHead head = itr.next();
+                    if (null != head.current && 0 == comparator.compare(head.current, last) 
+                            && null == head.next(lockMode)) {
+                        itr.remove();
+                    }
+                }
+            }
+            
+            private final List<KeyHead> heads = Lists.newArrayList();
+        }
+        
+        /**
+         * The distinct primary keys of a range condition in the secondary key order. A primary key of 
+         * a multi-valued secondary key may be in the range more than once, it is returned only at its smallest 
+         * secondary key in the range, which is created from the primary record, so that nothing is remembered
+         */
+        private class RangeStream {
+            
+            RangeStream(RangeCondition condition, List<Cursor> cursors, Transaction txn, CursorConfig config) {
+                this.condition = condition;
+                this.txn = txn;
+                this.cursor = keysDatabase(condition.index).openCursor(txn, config);
+                cursors.add(cursor);
+            }
+            
+            /**
+             * Moves to the next distinct primary key in the range and sets it to given entry, returns false if none
+             */
+            boolean next(DatabaseEntry primaryKey, LockMode lockMode) {
+                DatabaseEntry key = new DatabaseEntry();
+                OperationStatus status = null;
+                if (!started) {
+                    started = true;
+                    if (null == condition.fromKey) {
+                        status = cursor.getFirst(key, primaryKey, lockMode);
+                    } else {
+                        key.setData(condition.fromKey);
+                        status = cursor.getSearchKeyRange(key, primaryKey, lockMode);
+                    }
+                } else {
+                    status = cursor.getNext(key, primaryKey, lockMode);
+                }
+                
+                while (OperationStatus.SUCCESS == status) {
+                    byte[] keyBytes = bytesOf(key);
+                    if (!condition.beforeTo(keyBytes)) {
+                        break;
+                    }
+                    if (condition.afterFrom(keyBytes) && isFirst(keyBytes, primaryKey, lockMode)) {
+                        return true;
+                    }
+                    status = cursor.getNext(key, primaryKey, lockMode);
+                }
+                return false;
+            }
+            
+            /**
+             * Returns true if given secondary key is the smallest one of the primary key in the range
+             */
+            private boolean isFirst(byte[] keyBytes, DatabaseEntry primaryKey, LockMode lockMode) {
+                if (null == condition.multiKeyCreator) {
+                    return true;
+                }
+                
+                DatabaseEntry data = new DatabaseEntry();
+                if (OperationStatus.SUCCESS != primary.getDatabase().get(txn, copyOf(primaryKey), data, lockMode)) {
+                    return false;
+                }
+                byte[] first = condition.firstInRange(primaryKey, data);
+                return null != first && 0 == condition.comparator.compare(first, keyBytes);
+            }
+            
+            private boolean started = false;
+            private final Cursor cursor;
+            private final Transaction txn;
+            private final RangeCondition condition;
+        }
+        
+        /**
+         * The cursor of the query, the primary records are read only if the entities are required 
+         * or any range condition is checked on the record
+         */
+        private class QueryCursor<V> extends AbstractForwardCursor<V> {
+            
+            QueryCursor(Transaction txn, CursorConfig config, boolean entities) {
+                checkState(!keyConditions.isEmpty() || !rangeConditions.isEmpty(), 
+                        "No conditions were added to the query.");
+                this.txn = txn;
+                this.entities = entities;
+                
+                try {
+                    filters.addAll(rangeConditions);
+                    RangeCondition driven = plan(txn, config);
+                    if (null != driven) {
+                        filters.remove(driven);
+                        driver = new RangeStream(driven, cursors, txn, config);
+                        for (KeyCondition condition : keyConditions) {
+                            Cursor cursor = keysDatabase(condition.index).openCursor(txn, config);
+                            cursors.add(cursor);
+                            probes.put(condition, cursor);
+                        }
+                    } else {
+                        for (KeyCondition condition : keyConditions) {
+                            streams.add(new KeyStream(condition, cursors, txn, config));
+                        }
+                    }
+                } catch (RuntimeException e) {
+                    close();
+                    throw e;
+                }
+            }
+            
+            /**
+             * Returns the range condition to drive the query if it has fewer primary keys than the estimated 
+             * primary keys of every equality and IN condition, or null to intersect the equality and IN conditions. 
+             * The primary keys of a range are counted up to {@link EntityQuery#PLAN_SCAN_LIMIT}, a range with 
+             * more drives the query only if there are no equality or IN conditions and no smaller range
+             */
+            private RangeCondition plan(Transaction txn, CursorConfig config) {
+                if (keyConditions.isEmpty() && 1 == rangeConditions.size()) {
+                    return rangeConditions.get(0);
+                }
+                
+                long least = Long.MAX_VALUE;
+                for (KeyCondition condition : keyConditions) {
+                    least = Math.min(least, condition.estimate(txn, config));
+                }
+                
+                RangeCondition driven = null;
+                for (RangeCondition condition : rangeConditions) {
+                    List<Cursor> counting = Lists.newArrayList();
+                    try {
+                        RangeStream stream = new RangeStream(condition, counting, txn, config);
+                        DatabaseEntry primaryKey = new DatabaseEntry();
+                        long count = 0, limit = Math.min(least, PLAN_SCAN_LIMIT);
+                        while (count < limit && stream.next(primaryKey, LockMode.READ_UNCOMMITTED)) {
+                            count++;
+                        }
+                        //an unfinished walk only knows the range has at least the limit of primary keys
+                        if (count < limit ? count < least : null == driven && keyConditions.isEmpty()) {
+                            least = count;
+                            driven = condition;
+                        }
+                    } finally {
+                        for (Cursor cursor : counting) {
+                            cursor.close();
+                        }
+                    }
+                }
+                return driven;
+            }
+            
+            @SuppressWarnings("unchecked")
+            @Override public V next(LockMode lockMode) throws DatabaseException {
+                DatabaseEntry key = new DatabaseEntry(), data = new DatabaseEntry();
+                while (!done) {
+                    if (null != driver) {
+                        done = !driver.next(key, lockMode);
+                        if (!done && !probe(key, lockMode)) {
+                            continue;
+                        }
+                    } else {
+                        done = null == (last = intersect(last, lockMode));
+                        key.setData(last);
+                    }
+                    if (done) {
+                        break;
+                    }
+                    
+                    if (entities || !filters.isEmpty()) {
+                        if (OperationStatus.SUCCESS != primary.getDatabase().get(txn, key, data, lockMode) 
+                                || !matches(key, data)) {
+                            continue;
+                        }
+                    }
+                    return (V) (entities ? primary.getEntityBinding().entryToObject(key, data) 
+                            : primary.getKeyBinding().entryToObject(key));
+                }
+                return null;
+            }
+            
+            /**
+             * Returns the smallest primary key greater than the last key in all of the key streams, or null if none
+             */
+            private byte[] intersect(byte[] last, LockMode lockMode) {
+                if (null != last) {
+                    streams.get(0).skip(last, lockMode);
+                }
+                
+                byte[] candidate = streams.get(0).seek(last, lockMode);
+                int size = streams.size(), agreed = 1, i = 1 % size;
+                while (null != candidate && agreed < size) {
+                    byte[] key = streams.get(i).seek(candidate, lockMode);
+                    if (null == key) {
+                        return null;
+                    }
+                    if (0 == comparator.compare(key, candidate)) {
+                        agreed++;
+                    } else {
+                        candidate = key;
+                        agreed = 1;
+                    }
+                    i = (i + 1) % size;
+                }
+                return candidate;
+            }
+            
+            private boolean probe(DatabaseEntry key, LockMode lockMode) {
+                for (Map.Entry<KeyCondition, Cursor> probe : probes.entrySet()) {
+                    if (!probe.getKey().contains(probe.getValue(), key, lockMode)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            
+            private boolean matches(DatabaseEntry key, DatabaseEntry data) {
+                for (RangeCondition filter : filters) {
+                    if (!filter.matches(key, data)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            
+            @Override public void close() throws DatabaseException {
+                done = true;
+                try {
+                    for (Cursor cursor : cursors) {
+                        cursor.close();
+                    }
+                } finally {
+                    cursors.clear();
+                }
+            }
+            
+            private boolean done = false;
+            private byte[] last = null;
+            private RangeStream driver = null;
+            private final List<KeyStream> streams = Lists.newArrayList();
+            private final List<RangeCondition> filters = Lists.newArrayList();
+            private final Map<KeyCondition, Cursor> probes = Maps.newLinkedHashMap();
+            private final List<Cursor> cursors = Lists.newArrayList();
+            private final Transaction txn;
+            private final boolean entities;
+        }
+        
+        // The max number of primary keys of a range condition counted by the planning
+        private static final long PLAN_SCAN_LIMIT = 1024;
+        private final PrimaryIndex<PK, E> primary;
+        private final Comparator<byte[]> comparator;
+        private final List<KeyCondition> keyConditions = Lists.newArrayList();
+        private final List<RangeCondition> rangeConditions = Lists.newArrayList();
+    }
+    
+    /**
+     * 
+     */
+    public static class DefaultBerkeleyQueue<E> extends BerkeleyQueue<E> implements Serializable {
+
+        /**
+         * 
+         */
+        private static final long serialVersionUID = 4578701790841592245L;
+        
+        public DefaultBerkeleyQueue(BerkeleyEnv berkeleyEnv) {
+            headIndex = new AtomicLong(0);
+            tailIndex = new AtomicLong(0);
+            this.berkeleyEnv = checkNotNull(berkeleyEnv, "Berkeley environment cannot be null.");
+        }
+        
+        /**
+         * Returns a new {@link BerkeleyQueue} with given parameters
+         */
+        public BerkeleyQueue<E> connection(String queueName, Class<E> valueClass, int cacheSize) {
+            return connection(queueName, valueClass, cacheSize, null);
+        }
+        
+        /**
+         * Returns a new {@link BerkeleyQueue} with given parameters and value codec, 
+         * or the {@link SerialBinding} of value class if the codec is null
+         * @see QueueCodec
+         */
+        public BerkeleyQueue<E> connection(String queueName, Class<E> valueClass, int cacheSize, EntryBinding<E> codec) {
+            DatabaseConfig databaseConfig = 
+                    defaultDatabaseConfig()
+                    .setTransactional(false)
+                    .setDeferredWrite(true);
+            
+            queueDB = berkeleyEnv.connection(queueName, databaseConfig, null);
+            
+            theCacheSize = cacheSize;
+            headIdxEntry = queueDB.getEntry(headIdx, getPrimitiveBinding(String.class));
+            tailIdxEntry = queueDB.getEntry(tailIdx, getPrimitiveBinding(String.class));
+            
+            Long tmpHeadIndex = queueDB.get(headIdx, headIdxValBinding = getPrimitiveBinding(Long.class));
+            Long tmpTailIndex = queueDB.get(tailIdx, tailIdxValBinding = getPrimitiveBinding(Long.class));
+            if (null != tmpHeadIndex && null != tmpTailIndex) {
+                headIndex = new AtomicLong(tmpHeadIndex);
+                tailIndex = new AtomicLong(tmpTailIndex);
+            }
+            
+            checkNotNull(valueClass, "The queue value class cannot be null.");
+            keyBinding = getPrimitiveBinding(Long.class);
+            valueBinding = null != codec ? codec : queueDB.<Class<E>, E>getBinding(valueClass);
+            queueMap = queueDB.getStoredSortedMap(keyBinding, valueBinding, true);
+            
+            return this;
+        }
+        
+        /**
+         * Enables the read-ahead buffer, the next elements are streamed with a key-ordered cursor into memory
+         * so that {@link #peek()} and {@link #poll()} are served from memory, the buffer is refilled 
+         * in background when it drops to the low watermark
+         * @param prefetchSize The maximum number of buffered elements
+         * @param lowWatermark The number of buffered elements that triggers a background refill
+         */
+        public DefaultBerkeleyQueue<E> prefetch(int prefetchSize, int lowWatermark) {
+            checkArgument(prefetchSize > 0, "The prefetch size must be positive, but is %s", prefetchSize);
+            checkArgument(lowWatermark >= 0 && lowWatermark < prefetchSize, 
+                    "The low watermark must be in [0, %s), but is %s", prefetchSize, lowWatermark);
+            
+            synchronized (headIndex) {
+                if (null == prefetcher) {
+                    prefetcher = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
+                            .setDaemon(true).setNameFormat("berkeley-queue-prefetch-%d").build());
+                }
+                this.prefetchSize = prefetchSize;
+                this.lowWatermark = lowWatermark;
+                readAhead = new ArrayDeque<Pair<Long, E>>(prefetchSize);
+                invalidateReadAhead();
+            }
+            return this;
+        }
+        
+        @Override public boolean offer(E e) {
+            synchronized (tailIndex) {
+                queueMap.put(tailIndex.getAndIncrement(), e); // from tail insert
+            }
+            return true;
+        }
+
+        @Override public E poll() {
+            synchronized (headIndex) {
+                if (null != readAhead) {
+                    Pair<Long, E> headItem = peekAhead();
+                    if (null != headItem) {
+                        readAhead.removeFirst();
+                        queueDB.delete(null, queueDB.getEntry(headItem.getL(), keyBinding));
+                        headIndex.set(headItem.getL() + 1);
+                        cacheCheck();
+                        return headItem.getR();
+                    }
+                    return null;
+                }
+                
+                E headItem = peek();
+                if (headItem != null) {
+                    queueMap.remove(headIndex.getAndIncrement());
+                    peekItem = null;
+                    cacheCheck();
+                    return headItem;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * Writes all the given elements with one cursor pass
+         */
+        @Override public boolean offerAll(Collection<? extends E> c) {
+            if (checkNotNull(c).isEmpty()) {
+                return false;
+            }
+            
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            synchronized (tailIndex) {
+                Cursor cursor = queueDB.openCursor(null, null);
+                try {
+                    for (E e : c) {
+                        keyBinding.objectToEntry(tailIndex.get(), key);
+                        valueBinding.objectToEntry(checkNotNull(e), data);
+                        cursor.put(key, data);
+                        tailIndex.incrementAndGet(); // from tail insert
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+            return true;
+        }
+        
+        /**
+         * Reads and deletes the contiguous elements from head with one cursor pass, then advances the head pointer once
+         */
+        @Override public List<E> pollBatch(int maxElements) {
+            checkArgument(maxElements >= 0, "The max elements cannot be negative, but is %s", maxElements);
+            List<E> items = Lists.newArrayListWithCapacity(Math.max(0, Math.min(maxElements, size())));
+            long tail = 0;
+            synchronized (tailIndex) {
+                tail = tailIndex.get();
+            }
+            
+            synchronized (headIndex) {
+                long head = headIndex.get();
+                if (0 == maxElements || head >= tail) {
+                    return items;
+                }
+                
+                DatabaseEntry key = new DatabaseEntry();
+                DatabaseEntry data = new DatabaseEntry();
+                Cursor cursor = queueDB.openCursor(null, null);
+                try {
+                    keyBinding.objectToEntry(head, key);
+                    OperationStatus status = cursor.getSearchKeyRange(key, data, null);
+                    while (OperationStatus.SUCCESS == status && isIndexKey(key)) {
+                        long idx = keyBinding.entryToObject(key);
+                        if (idx >= tail) {
+                            break;
+                        }
+                        
+                        items.add(valueBinding.entryToObject(data));
+                        cursor.delete();
+                        head = idx + 1;
+                        if (items.size() >= maxElements) {
+                            break;
+                        }
+                        status = cursor.getNext(key, data, null);
+                    }
+                } finally {
+                    cursor.close();
+                }
+                
+                //none elements remain in range, head pointer backward to the tail
+                headIndex.set(items.size() < maxElements ? tail : head);
+                peekItem = null;
+                invalidateReadAhead();
+                cacheCheck(items.size());
+            }
+            return items;
+        }
+
+        @Override public E peek() {
+            synchronized (headIndex) {
+                if (null != readAhead) {
+                    Pair<Long, E> headItem = peekAhead();
+                    return null != headItem ? headItem.getR() : null;
+                }
+                if (peekItem != null) {
+                    return peekItem;
+                }
+                E headItem = null;
+                while (headItem == null && headIndex.get() < tailIndex.get()) { //in range
+                    headItem = queueMap.get(headIndex.get());
+                    if (headItem != null) {
+                        peekItem = headItem;
+                        continue;
+                    }
+                    headIndex.incrementAndGet(); //head pointer backward
+                }
+                cacheCheck();
+                return headItem;
+            }
+        }
+
+        /**
+         * Returns the first buffered element, fills the buffer if it is empty, 
+         * triggers a background refill if it drops to the low watermark. Must hold the head pointer monitor
+         */
+        private Pair<Long, E> peekAhead() {
+            if (readAhead.isEmpty()) {
+                List<Pair<Long, E>> items = fetch(fetchIndex, prefetchSize);
+                readAhead.addAll(items);
+                if (!items.isEmpty()) {
+                    fetchIndex = items.get(items.size() - 1).getL() + 1;
+                }
+            } else if (readAhead.size() <= lowWatermark && !refilling) {
+                refilling = true;
+                final long from = fetchIndex, generation = readAheadGeneration;
+                final int count = prefetchSize - readAhead.size();
+                
+                prefetcher.execute(new Runnable() {
+                    
+                    @Override public void run() {
+                        List<Pair<Long, E>> items = null;
+                        try {
+                            items = fetch(from, count);
+                        } catch (Exception e) {
+                            log.error("Queue read-ahead failure: " + e.getMessage());
+                        }
+                        
+                        synchronized (headIndex) {
+                            refilling = false;
+                            //discard if the buffer has been filled or invalidated meanwhile
+                            if (null != items && !items.isEmpty() && null != readAhead
+                                    && from == fetchIndex && generation == readAheadGeneration) {
+                                readAhead.addAll(items);
+                                fetchIndex = items.get(items.size() - 1).getL() + 1;
+                            }
+                        }
+                    }
+                });
+            }
+            
+            return readAhead.peekFirst();
+        }
+        
+        /**
+         * Returns at most the given number of elements start from the given position with one cursor pass
+         */
+        private List<Pair<Long, E>> fetch(long from, int count) {
+            List<Pair<Long, E>> items = Lists.newArrayListWithCapacity(count);
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            Cursor cursor = queueDB.openCursor(null, null);
+            try {
+                keyBinding.objectToEntry(from, key);
+                OperationStatus status = cursor.getSearchKeyRange(key, data, null);
+                while (items.size() < count && OperationStatus.SUCCESS == status && isIndexKey(key)) {
+                    items.add(Pair.of(keyBinding.entryToObject(key), valueBinding.entryToObject(data)));
+                    status = cursor.getNext(key, data, null);
+                }
+            } finally {
+                cursor.close();
+            }
+            return items;
+        }
+        
+        /**
+         * Discards the buffered elements and the running background refill. Must hold the head pointer monitor
+         */
+        private void invalidateReadAhead() {
+            if (null != readAhead) {
+                readAhead.clear();
+                readAheadGeneration++;
+                fetchIndex = headIndex.get();
+            }
+        }
+
+        @Override public Iterator<E> iterator() {
+            return queueMap.values().iterator();
+        }
+
+        @Override public int size() {
+            synchronized (tailIndex) {
+                synchronized (headIndex) {
+                    return (int) (tailIndex.get() - headIndex.get());
+                }
+            }
+        }
+        
+        @Override public void sync() {
+            if (null != queueDB) {
+                synchronized (tailIndex) {
+                    synchronized (headIndex) {
+                        queueDB.put(null, headIdxEntry, queueDB.getEntry(headIndex.get(), headIdxValBinding));
+                        queueDB.put(null, tailIdxEntry, queueDB.getEntry(tailIndex.get(), tailIdxValBinding));
+                        queueDB.sync();
+                    }
+                }
+            }
+        }
+        
+        private void cacheCheck() {
+            cacheCheck(1);
+        }
+        
+        private void cacheCheck(int ops) {
+            opsCounter += ops;
+            if (theCacheSize >= 0 && opsCounter >= theCacheSize) {
+                sync();
+                opsCounter = 0;
+            }
+        }
+        
+        @Override public void close() {
+            try {
+                if (null != prefetcher) {
+                    prefetcher.shutdown();
+                }
+                if (null != queueDB) {
+                    sync();
+                    queueDB.close();
+                }
+            } catch (DatabaseException e) {
+                e.printStackTrace();
+            } catch (UnsupportedOperationException e) {
+                e.printStackTrace();
+            }
+        }
+        
+        @Override public void clear() {
+            try {
+                close();
+                if (null != queueDB) {
+                    queueDB.getEnvironment().removeDatabase(null, queueDB.getDatabaseName());
+                }
+            } catch (DatabaseNotFoundException e) {
+                e.printStackTrace();
+            } catch (DatabaseException e) {
+                e.printStackTrace();
+            }
+        }
+        
+        @Override public BerkeleyDB getQueueDB() {
+            return queueDB;
+        }
+        
+        @Override public StoredMap<Long, E> getQueueMap() {
+            return queueMap;
+        }
+        
+        // The head pointer
+        private AtomicLong headIndex;
+        // The tail pointer
+        private AtomicLong tailIndex;
+        // Current value
+        private transient E peekItem = null;
+        // Persist map, Key is pointer position, Value is value, no need serial
+        private transient StoredMap<Long, E> queueMap = null;
+        private BerkeleyDB queueDB = null;
+        private BerkeleyEnv berkeleyEnv = null;
+        private String headIdx = "headIdx", tailIdx = "tailIdx";
+        
+        private DatabaseEntry headIdxEntry = null, tailIdxEntry = null;
+        private TupleBinding<Long> headIdxValBinding = null, tailIdxValBinding = null;
+        private transient TupleBinding<Long> keyBinding = null;
+        private transient EntryBinding<E> valueBinding = null;
+        // Read-ahead buffer, Key is pointer position, guarded by the head pointer monitor
+        private transient ArrayDeque<Pair<Long, E>> readAhead = null;
+        private transient ExecutorService prefetcher = null;
+        private transient int prefetchSize, lowWatermark;
+        // The next position to fetch and the buffer generation which changes on invalidation
+        private transient long fetchIndex, readAheadGeneration;
+        private transient boolean refilling;
+        //Queue operation counter, which is used to sync the queue database to disk periodically.
+        private int opsCounter, theCacheSize;
+
+    }
+
+    /**
+     * Bounded {@link BlockingQueue} backed by {@link DefaultBerkeleyQueue}, the consumers park on condition
+     * and are woken on offer, the capacity is checked with the persisted head/tail pointers
+     * @see BlockingQueue
+     */
+    public static class BlockingBerkeleyQueue<E extends Serializable> extends DefaultBerkeleyQueue<E> implements BlockingQueue<E> {
+
+        /**
+         * 
+         */
+        private static final long serialVersionUID = -3247461529813016752L;
+
+        public BlockingBerkeleyQueue(BerkeleyEnv berkeleyEnv) {
+            super(berkeleyEnv);
+        }
+        
+        /**
+         * Returns a new {@link BlockingBerkeleyQueue} with given parameters
+         * @param capacity The maximum number of elements in this queue
+         */
+        public BlockingBerkeleyQueue<E> connection(String queueName, Class<E> valueClass, int cacheSize, int capacity) {
+            checkArgument(capacity > 0, "The capacity must be positive, but is %s", capacity);
+            this.capacity = capacity;
+            super.connection(queueName, valueClass, cacheSize);
+            return this;
+        }
+        
+        @Override public boolean offer(E e) {
+            checkNotNull(e);
+            lock.lock();
+            try {
+                if (size() >= capacity) {
+                    return false;
+                }
+                enqueue(e);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+            checkNotNull(e);
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                while (size() >= capacity) {
+                    if (nanos <= 0) {
+                        return false;
+                    }
+                    nanos = notFull.awaitNanos(nanos);
+                }
+                enqueue(e);
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override public void put(E e) throws InterruptedException {
+            checkNotNull(e);
+            lock.lockInterruptibly();
+            try {
+                while (size() >= capacity) {
+                    notFull.await();
+                }
+                enqueue(e);
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Inserts all the given elements if there is enough space, otherwise returns false
+         */
+        @Override public boolean offerAll(Collection<? extends E> c) {
+            lock.lock();
+            try {
+                if (size() + checkNotNull(c).size() > capacity) {
+                    return false;
+                }
+                if (super.offerAll(c)) {
+                    notEmpty.signalAll();
+                    return true;
+                }
+                return false;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        @Override public E poll() {
+            lock.lock();
+            try {
+                return dequeue();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+            long nanos = unit.toNanos(timeout);
+            lock.lockInterruptibly();
+            try {
+                E item = null;
+                while (null == (item = dequeue())) {
+                    if (nanos <= 0) {
+                        return null;
+                    }
+                    nanos = notEmpty.awaitNanos(nanos);
+                }
+                return item;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override public E take() throws InterruptedException {
+            lock.lockInterruptibly();
+            try {
+                E item = null;
+                while (null == (item = dequeue())) {
+                    notEmpty.await();
+                }
+                return item;
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        @Override public List<E> pollBatch(int maxElements) {
+            lock.lock();
+            try {
+                List<E> items = super.pollBatch(maxElements);
+                if (!items.isEmpty()) {
+                    notFull.signalAll();
+                }
+                return items;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        @Override public int remainingCapacity() {
+            return Math.max(0, capacity - size());
+        }
+        
+        @Override public void clear() {
+            lock.lock();
+            try {
+                super.clear();
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+        
+        private void enqueue(E e) {
+            super.offer(e);
+            notEmpty.signal();
+        }
+        
+        private E dequeue() {
+            E item = super.poll();
+            if (null != item) {
+                notFull.signal();
+            }
+            return item;
+        }
+        
+        private int capacity = Integer.MAX_VALUE;
+        // Main lock guarding the conditions
+        private final ReentrantLock lock = new ReentrantLock();
+        // Condition for waiting takes
+        private final Condition notEmpty = lock.newCondition();
+        // Condition for waiting puts
+        private final Condition notFull = lock.newCondition();
+        
+    }
+
+    /**
+     * Partitioned {@link BerkeleyQueue} that stripes the elements across several {@link DefaultBerkeleyQueue}s
+     * named queueName-0..K-1, the offers are routed round-robin or by key hash, the consumers poll a given shard 
+     * or steal from the other shards when the home shard of current thread is empty. 
+     * The FIFO order is only kept within one shard
+     */
+    public static class ShardedBerkeleyQueue<E extends Serializable> extends BerkeleyQueue<E> {
+        
+        public ShardedBerkeleyQueue(BerkeleyEnv berkeleyEnv) {
+            this.berkeleyEnv = checkNotNull(berkeleyEnv, "Berkeley environment cannot be null.");
+        }
+        
+        /**
+         * Returns a new {@link ShardedBerkeleyQueue} with given parameters
+         * @param shardCount The number of underlying queue databases
+         * @see DefaultBerkeleyQueue#connection(String, Class, int)
+         */
+        public ShardedBerkeleyQueue<E> connection(String queueName, Class<E> valueClass, int shardCount, int cacheSize) {
+            checkArgument(shardCount > 0, "The shard count must be positive, but is %s", shardCount);
+            checkNotNull(queueName, "The queue name cannot be null.");
+            
+            List<BerkeleyQueue<E>> queues = Lists.newArrayListWithCapacity(shardCount);
+            for (int i = 0; i < shardCount; i++) {
+                queues.add(berkeleyEnv.queue(queueName + "-" + i, valueClass, cacheSize));
+            }
+            shards = ImmutableList.copyOf(queues);
+            return this;
+        }
+        
+        /**
+         * Inserts the given element into the next shard in round-robin order
+         */
+        @Override public boolean offer(E e) {
+            return shard((int) ((roundRobin.getAndIncrement() & Long.MAX_VALUE) % shards.size())).offer(e);
+        }
+        
+        /**
+         * Inserts the given element into the shard of given routing key, the elements with same key keep FIFO order
+         */
+        public boolean offer(Object routingKey, E e) {
+            return shard(shardFor(routingKey)).offer(e);
+        }
+        
+        /**
+         * Retrieves and removes the head of the home shard of current thread, 
+         * or steals from the other shards if the home shard is empty
+         */
+        @Override public E poll() {
+            int home = homeShard();
+            for (int i = 0; i < shards.size(); i++) {
+                E item = shard((home + i) % shards.size()).poll();
+                if (null != item) {
+                    return item;
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * Retrieves and removes the head of the given shard
+         */
+        public E poll(int shard) {
+            return shard(shard).poll();
+        }
+        
+        @Override public E peek() {
+            int home = homeShard();
+            for (int i = 0; i < shards.size(); i++) {
+                E item = shard((home + i) % shards.size()).peek();
+                if (null != item) {
+                    return item;
+                }
+            }
+            return null;
+        }
+        
+        @Override public List<E> pollBatch(int maxElements) {
+            checkArgument(maxElements >= 0, "The max elements cannot be negative, but is %s", maxElements);
+            List<E> items = Lists.newArrayList();
+            int home = homeShard();
+            for (int i = 0; i < shards.size() && items.size() < maxElements; i++) {
+                items.addAll(shard((home + i) % shards.size()).pollBatch(maxElements - items.size()));
+            }
+            return items;
+        }
+        
+        /**
+         * Returns the shard index of given routing key
+         */
+        public int shardFor(Object routingKey) {
+            return Hashing.consistentHash(checkNotNull(routingKey).hashCode(), shards.size());
+        }
+        
+        /**
+         * Returns the underlying {@link BerkeleyQueue} of given shard index
+         */
+        public BerkeleyQueue<E> shard(int shard) {
+            return shards.get(shard);
+        }
+        
+        /**
+         * Returns the number of shards
+         */
+        public int getShardCount() {
+            return shards.size();
+        }
+        
+        @Override public Iterator<E> iterator() {
+            List<Iterator<E>> iterators = Lists.newArrayListWithCapacity(shards.size());
+            for (BerkeleyQueue<E> shard : shards) {
+                iterators.add(shard.iterator());
+            }
+            return Iterators.concat(iterators.iterator());
+        }
+        
+        @Override public int size() {
+            int size = 0;
+            for (BerkeleyQueue<E> shard : shards) {
+                size += shard.size();
+            }
+            return size;
+        }
+        
+        @Override public void sync() {
+            for (BerkeleyQueue<E> shard : shards) {
+                shard.sync();
+            }
+        }
+        
+        @Override public void close() {
+            for (BerkeleyQueue<E> shard : shards) {
+                shard.close();
+            }
+        }
+        
+        @Override public void clear() {
+            for (BerkeleyQueue<E> shard : shards) {
+                shard.clear();
+            }
+        }
+        
+        /**
+         * Returns the {@link BerkeleyDB} of the home shard of current thread
+         * @see ShardedBerkeleyQueue#getQueueDBs()
+         */
+        @Override public BerkeleyDB getQueueDB() {
+            return shard(homeShard()).getQueueDB();
+        }
+        
+        /**
+         * Returns the {@link StoredMap} of the home shard of current thread
+         * @see ShardedBerkeleyQueue#getQueueMaps()
+         */
+        @Override public StoredMap<Long, E> getQueueMap() {
+            return shard(homeShard()).getQueueMap();
+        }
+        
+        /**
+         * Returns the {@link BerkeleyDB}s of all of the shards in shard index order
+         */
+        public List<BerkeleyDB> getQueueDBs() {
+            List<BerkeleyDB> queueDBs = Lists.newArrayListWithCapacity(shards.size());
+            for (BerkeleyQueue<E> shard : shards) {
+                queueDBs.add(shard.getQueueDB());
+            }
+            return queueDBs;
+        }
+        
+        /**
+         * Returns the {@link StoredMap}s of all of the shards in shard index order
+         */
+        public List<StoredMap<Long, E>> getQueueMaps() {
+            List<StoredMap<Long, E>> queueMaps = Lists.newArrayListWithCapacity(shards.size());
+            for (BerkeleyQueue<E> shard : shards) {
+                queueMaps.add(shard.getQueueMap());
+            }
+            return queueMaps;
+        }
+        
+        private int homeShard() {
+            return (int) (Thread.currentThread().getId() % shards.size());
+        }
+        
+        private BerkeleyEnv berkeleyEnv = null;
+        private List<BerkeleyQueue<E>> shards = ImmutableList.of();
+        private final AtomicLong roundRobin = new AtomicLong();
+        
+    }
+
+    /**
+     * High throughput {@link BerkeleyQueue}, the head/tail pointers are reserved lock-free, the offers are
+     * accumulated and written with one cursor pass, the head/tail pointers are committed as a group
+     * when the batch size or the commit interval is reached
+     */
+    public static class BatchedBerkeleyQueue<E extends Serializable> extends BerkeleyQueue<E> {
+
+        public BatchedBerkeleyQueue(BerkeleyEnv berkeleyEnv) {
+            this.berkeleyEnv = checkNotNull(berkeleyEnv, "Berkeley environment cannot be null.");
+        }
+
+        /**
+         * Returns a new {@link BerkeleyQueue} with given parameters
+         * @param batchSize Number of element operations that trigger a group commit,
+         *                  also the number of element operations it is allowed to loose in case of system crash.
+         * @param commitInterval Milliseconds between two timed group commits, no timed commit if not positive
+         */
+        public BerkeleyQueue<E> connection(String queueName, Class<E> valueClass, int batchSize, long commitInterval) {
+            checkArgument(batchSize > 0, "The batch size must be positive, but is %s", batchSize);
+            DatabaseConfig databaseConfig =
+                    defaultDatabaseConfig()
+                    .setTransactional(false)
+                    .setDeferredWrite(true);
+
+            queueDB = berkeleyEnv.connection(queueName, databaseConfig, null);
+
+            theBatchSize = batchSize;
+            keyBinding = getPrimitiveBinding(Long.class);
+            headIdxEntry = queueDB.getEntry(headIdx, getPrimitiveBinding(String.class));
+            tailIdxEntry = queueDB.getEntry(tailIdx, getPrimitiveBinding(String.class));
+
+            checkNotNull(valueClass, "The queue value class cannot be null.");
+            valueBinding = queueDB.getBinding(valueClass);
+            queueMap = queueDB.getStoredSortedMap(keyBinding, valueBinding, true);
+            recover();
+
+            if (commitInterval > 0) {
+                committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                        .setDaemon(true).setNameFormat("berkeley-queue-" + queueName + "-%d").build());
+                committer.scheduleWithFixedDelay(new Runnable() {
+
+                    @Override public void run() {
+                        try {
+                            groupCommit(false);
+                        } catch (Exception e) {
+                            log.error("Queue group commit failure: " + e.getMessage());
+                        }
+                    }
+                }, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+            }
+
+            return this;
+        }
+
+        @Override public boolean offer(E e) {
+            checkNotNull(e, "The queue element cannot be null.");
+            long idx = tailIndex.getAndIncrement(); // from tail insert
+            boolean filled = false;
+            try {
+                pending.put(idx, e);
+                filled = true;
+            } finally {
+                if (!filled) { //the position is never filled
+                    abandoned.add(idx);
+                }
+                signalFilled();
+            }
+            opsCheck();
+            return true;
+        }
+
+        @Override public E poll() {
+            for (;;) {
+                long head = headIndex.get();
+                E headItem = lookup(head);
+                if (null == headItem) {
+                    return null;
+                }
+                if (headIndex.compareAndSet(head, head + 1)) {
+                    pending.remove(head);
+                    opsCheck();
+                    return headItem;
+                }
+            }
+        }
+
+        @Override public E peek() {
+            return lookup(headIndex.get());
+        }
+
+        @Override public boolean offerAll(Collection<? extends E> c) {
+            List<E> items = Lists.newArrayList(checkNotNull(c));
+            if (items.isEmpty()) {
+                return false;
+            }
+            for (E e : items) {
+                checkNotNull(e);
+            }
+
+            long idx = tailIndex.getAndAdd(items.size()), end = idx + items.size(); // reserve the positions once
+            try {
+                for (E e : items) {
+                    pending.put(idx, e);
+                    idx++;
+                }
+            } finally {
+                //the positions are never filled if failed
+                for (; idx < end; idx++) {
+                    abandoned.add(idx);
+                }
+                signalFilled();
+            }
+            opsCheck(items.size());
+            return true;
+        }
+
+        /**
+         * Waits for the in flight positions from head to be filled without the commit lock, then reserves 
+         * the positions once, the batch polls are serialized with the group commit so that the reserved 
+         * elements are not deleted before read
+         */
+        @Override public List<E> pollBatch(int maxElements) {
+            checkArgument(maxElements >= 0, "The max elements cannot be negative, but is %s", maxElements);
+            List<E> items = Lists.newArrayList();
+
+            long head = 0, end = 0;
+            for (;;) {
+                head = headIndex.get();
+                end = head + Math.min(maxElements, tailIndex.get() - head);
+                if (end <= head) {
+                    return items;
+                }
+                if (!awaitFilled(head, end)) {
+                    continue; //the head is consumed by others
+                }
+                
+                commitLock.lock();
+                if (headIndex.compareAndSet(head, end)) {
+                    break;
+                }
+                commitLock.unlock();
+            }
+            
+            try {
+                DatabaseEntry key = new DatabaseEntry();
+                DatabaseEntry data = new DatabaseEntry();
+                Cursor cursor = queueDB.openCursor(null, null);
+                try {
+                    keyBinding.objectToEntry(head, key);
+                    OperationStatus status = cursor.getSearchKeyRange(key, data, null);
+                    for (long idx = head; idx < end; idx++) {
+                        E item = pending.remove(idx);
+                        while (null == item && OperationStatus.SUCCESS == status && isIndexKey(key)
+                                && keyBinding.entryToObject(key) <= idx) {
+                            if (keyBinding.entryToObject(key) == idx) {
+                                item = valueBinding.entryToObject(data);
+                            }
+                            status = cursor.getNext(key, data, null);
+                        }
+
+                        //lost before the last crash or never filled by a failed offer if null
+                        if (null != item) {
+                            items.add(item);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } finally {
+                commitLock.unlock();
+            }
+
+            opsCheck(items.size());
+            return items;
+        }
+
+        /**
+         * Returns true when the positions in given range are all filled, lost or abandoned, 
+         * or false if the given head is consumed by others during the wait
+         */
+        private boolean awaitFilled(long head, long end) {
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            data.setPartial(0, 0, true);
+            Cursor cursor = queueDB.openCursor(null, null);
+            try {
+                keyBinding.objectToEntry(head, key);
+                OperationStatus status = cursor.getSearchKeyRange(key, data, LockMode.READ_UNCOMMITTED);
+                for (long idx = Math.max(head, recoveredTail); idx < end; idx++) {
+                    while (OperationStatus.SUCCESS == status && isIndexKey(key) && keyBinding.entryToObject(key) < idx) {
+                        status = cursor.getNext(key, data, LockMode.READ_UNCOMMITTED);
+                    }
+                    if (OperationStatus.SUCCESS == status && isIndexKey(key) && keyBinding.entryToObject(key) == idx) {
+                        continue;
+                    }
+                    
+                    //the element may be written by the group commit after the cursor passed
+                    while (!pending.containsKey(idx) && !isAbandoned(idx) && !queueMap.containsKey(idx)) {
+                        if (headIndex.get() != head) {
+                            return false;
+                        }
+                        awaitFill(idx);
+                    }
+                }
+                return true;
+            } finally {
+                cursor.close();
+            }
+        }
+        
+        /**
+         * Waits until the offers signal the filled positions, or the fill wait elapsed
+         */
+        private void awaitFill(long idx) {
+            fillLock.lock();
+            try {
+                fillWaiters.incrementAndGet();
+                try {
+                    if (!pending.containsKey(idx) && !abandoned.contains(idx)) {
+                        filled.await(FILL_WAIT, TimeUnit.MILLISECONDS);
+                    }
+                } finally {
+                    fillWaiters.decrementAndGet();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                fillLock.unlock();
+            }
+        }
+        
+        /**
+         * Signals the waiters of the in flight positions if any
+         */
+        private void signalFilled() {
+            if (fillWaiters.get() > 0) {
+                fillLock.lock();
+                try {
+                    filled.signalAll();
+                } finally {
+                    fillLock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Returns the element at given head position or at the first available position behind it,
+         * or null if the queue is empty, waits for the element in flight at head which is never skipped
+         */
+        private E lookup(long head) {
+            for (;;) {
+                if (head >= tailIndex.get()) { //out of range
+                    return null;
+                }
+
+                E headItem = pending.get(head);
+                if (null == headItem) {
+                    headItem = queueMap.get(head);
+                }
+                if (null != headItem) {
+                    return headItem;
+                }
+
+                if (head < recoveredTail || isAbandoned(head)) {
+                    //lost before the last crash or never filled by a failed offer, head pointer backward
+                    headIndex.compareAndSet(head, head + 1);
+                } else if (head == headIndex.get()) {
+                    //the position is reserved but the element is in flight
+                    awaitFill(head);
+                }
+                head = headIndex.get();
+            }
+        }
+        
+        /**
+         * Returns true if the given position is reserved by a failed offer, the positions behind head are discarded
+         */
+        private boolean isAbandoned(long idx) {
+            if (abandoned.isEmpty()) {
+                return false;
+            }
+            abandoned.headSet(headIndex.get()).clear();
+            return abandoned.contains(idx);
+        }
+
+        @Override public Iterator<E> iterator() {
+            groupCommit(true);
+            return queueMap.subMap(headIndex.get(), tailIndex.get()).values().iterator();
+        }
+
+        @Override public int size() {
+            return (int) Math.max(0, tailIndex.get() - headIndex.get());
+        }
+
+        @Override public void sync() {
+            if (null != queueDB) {
+                groupCommit(true);
+            }
+        }
+
+        private void opsCheck() {
+            opsCheck(1);
+        }
+
+        private void opsCheck(int ops) {
+            if (opsCounter.addAndGet(ops) >= theBatchSize) {
+                groupCommit(false);
+            }
+        }
+
+        /**
+         * Writes the accumulated offers, deletes the consumed elements with one cursor pass,
+         * then commits the head/tail pointers. Returns immediately if not forced and other thread is committing
+         */
+        private void groupCommit(boolean force) {
+            if (force) {
+                commitLock.lock();
+            } else if (!commitLock.tryLock()) {
+                return;
+            }
+
+            try {
+                opsCounter.set(0);
+                List<Long> written = Lists.newArrayList();
+                DatabaseEntry key = new DatabaseEntry();
+                DatabaseEntry data = new DatabaseEntry();
+                Cursor cursor = queueDB.openCursor(null, null);
+
+                try {
+                    for (Map.Entry<Long, E> item : pending.entrySet()) {
+                        //skip the elements which consumed before written
+                        if (item.getKey() >= headIndex.get()) {
+                            keyBinding.objectToEntry(item.getKey(), key);
+                            valueBinding.objectToEntry(item.getValue(), data);
+                            cursor.put(key, data);
+                        }
+                        written.add(item.getKey());
+                    }
+
+                    long head = headIndex.get();
+                    if (deletedIndex < head) {
+                        keyBinding.objectToEntry(deletedIndex, key);
+                        data.setPartial(0, 0, true);
+                        OperationStatus status = cursor.getSearchKeyRange(key, data, null);
+                        while (OperationStatus.SUCCESS == status
+                                && isIndexKey(key) && keyBinding.entryToObject(key) < head) {
+                            cursor.delete();
+                            status = cursor.getNext(key, data, null);
+                        }
+                        deletedIndex = head;
+                    }
+                } finally {
+                    cursor.close();
+                }
+
+                for (Long idx : written) {
+                    pending.remove(idx);
+                }
+
+                queueDB.put(null, headIdxEntry, queueDB.getEntry(deletedIndex, keyBinding));
+                queueDB.put(null, tailIdxEntry, queueDB.getEntry(tailIndex.get(), keyBinding));
+                queueDB.sync();
+            } finally {
+                commitLock.unlock();
+            }
+        }
+
+        /**
+         * Restores the head/tail pointers, the batches may have been written without the pointers committed
+         */
+        private void recover() {
+            Long tmpHeadIndex = queueDB.get(headIdx, keyBinding);
+            Long tmpTailIndex = queueDB.get(tailIdx, keyBinding);
+            long head = null != tmpHeadIndex ? tmpHeadIndex : 0;
+            long tail = null != tmpTailIndex ? tmpTailIndex : 0;
+
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            data.setPartial(0, 0, true);
+            Cursor cursor = queueDB.openCursor(null, null);
+            try {
+                if (OperationStatus.SUCCESS == cursor.getLast(key, data, null) && isIndexKey(key)) {
+                    tail = Math.max(tail, keyBinding.entryToObject(key) + 1);
+                }
+                keyBinding.objectToEntry(0L, key);
+                if (OperationStatus.SUCCESS == cursor.getSearchKeyRange(key, data, null) && isIndexKey(key)) {
+                    deletedIndex = Math.min(head, keyBinding.entryToObject(key));
+                } else {
+                    deletedIndex = head;
+                }
+            } finally {
+                cursor.close();
+            }
+
+            recoveredTail = tail;
+            headIndex.set(head);
+            tailIndex.set(tail);
+        }
+
+        @Override public void close() {
+            try {
+                if (null != committer) {
+                    committer.shutdown();
+                }
+                if (null != queueDB) {
+                    sync();
+                    queueDB.close();
+                }
+            } catch (DatabaseException e) {
+                e.printStackTrace();
+            } catch (UnsupportedOperationException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override public void clear() {
+            try {
+                close();
+                if (null != queueDB) {
+                    queueDB.getEnvironment().removeDatabase(null, queueDB.getDatabaseName());
+                }
+            } catch (DatabaseNotFoundException e) {
+                e.printStackTrace();
+            } catch (DatabaseException e) {
+                e.printStackTrace();
+            }
+        }
+
+        @Override public BerkeleyDB getQueueDB() {
+            return queueDB;
+        }
+
+        @Override public StoredMap<Long, E> getQueueMap() {
+            return queueMap;
+        }
+
+        // The head pointer
+        private final AtomicLong headIndex = new AtomicLong(0);
+        // The tail pointer
+        private final AtomicLong tailIndex = new AtomicLong(0);
+        // The offered elements not written yet, Key is pointer position
+        private final ConcurrentNavigableMap<Long, E> pending = new ConcurrentSkipListMap<Long, E>();
+        // The reserved positions which are never filled because the offer failed
+        private final ConcurrentSkipListSet<Long> abandoned = new ConcurrentSkipListSet<Long>();
+        private final AtomicInteger opsCounter = new AtomicInteger();
+        private final ReentrantLock commitLock = new ReentrantLock();
+        // The waiters of the in flight elements, signaled by the offers
+        private final ReentrantLock fillLock = new ReentrantLock();
+        private final Condition filled = fillLock.newCondition();
+        private final AtomicInteger fillWaiters = new AtomicInteger();
+        // The milliseconds to wait for a signal before the in flight element is checked again
+        private static final long FILL_WAIT = 10;
+        // The positions before it are deleted, only accessed by the committer
+        private long deletedIndex;
+        // The positions before it are restored from database, missing elements are lost in crash
+        private volatile long recoveredTail;
+
+        private StoredSortedMap<Long, E> queueMap = null;
+        private BerkeleyDB queueDB = null;
+        private BerkeleyEnv berkeleyEnv = null;
+        private ScheduledExecutorService committer = null;
+        private String headIdx = "headIdx", tailIdx = "tailIdx";
+
+        private DatabaseEntry headIdxEntry = null, tailIdxEntry = null;
+        private TupleBinding<Long> keyBinding = null;
+        private EntryBinding<E> valueBinding = null;
+        private int theBatchSize;
+
+    }
+
+    /**
+     * Default {@link SequenceConfig}, {allowCreate: true, initialValue: 1}
+     */
+    public static SequenceConfig defaultSequenceConfig() {
+        return new SequenceConfig()
+            .setAllowCreate(true)
+            .setInitialValue(1L);
+    }
+    
+    /**
+     * Default {@link StoreConfig}, {allowCreate: true, transactional: true}
+     */
+    public static StoreConfig defaultStoreConfig() {
+        return new StoreConfig()
+            .setAllowCreate(true)
+            .setTransactional(true);
+    }
+    
+    /**
+     * Default {@link EnvironmentConfig}, {allowCreate: true, transactional: true}
+     */
+    public static EnvironmentConfig defaultEnvironmentConfig() {
+        return new EnvironmentConfig()
+            .setAllowCreate(true)
+            .setTransactional(true);
+    }
+    
+    /**
+     * Default {@link DatabaseConfig}, {allowCreate: true, transactional: true}
+     */
+    public static DatabaseConfig defaultDatabaseConfig() {
+        return new DatabaseConfig()
+            .setAllowCreate(true)
+            .setTransactional(true);
+    }
+    
+    /**
+     * Default {@link SecondaryConfig}, {allowCreate: true, sortedDuplicates: true} with given {@link SecondaryKeyCreator}
+     * @param keyCreator
+     * @return
+     */
+    public static SecondaryConfig defaultSecondaryConfig(SecondaryKeyCreator keyCreator) {
+        SecondaryConfig cfg = new SecondaryConfig();
+        cfg.setAllowCreate(true);
+        //Duplicates are frequently required for secondary databases
+        cfg.setSortedDuplicates(true);
+        cfg.setTransactional(true);
+        cfg.setKeyCreator(checkNotNull(keyCreator, "SecondaryKeyCreator cannot be null"));
+        return cfg;
+    }
+    
+    /**
+     * Pluggable registry of the metrics of {@link BerkeleyMetrics}, adapts the counters, latencies and gauges 
+     * to any metrics library
+     * @see DefaultMetricRegistry
+     */
+    public static abstract class MetricRegistry {
+        
+        /**
+         * Increments the counter of given name by given delta
+         */
+        public abstract void increment(String name, long delta);
+        
+        /**
+         * Records the latency in nanoseconds to the histogram of given name
+         */
+        public abstract void record(String name, long nanos);
+        
+        /**
+         * Registers the gauge of given name, replaces the registered gauge of the name
+         */
+        public abstract void gauge(String name, Supplier<? extends Number> gauge);
+        
+    }
+    
+    /**
+     * In memory {@link MetricRegistry} with the {@link AtomicLong} counters and the {@link LatencyHistogram}s
+     */
+    public static class DefaultMetricRegistry extends MetricRegistry {
+        
+        @Override public void increment(String name, long delta) {
+            AtomicLong counter = counters.get(name);
+            if (null == counter) {
+                AtomicLong created = new AtomicLong();
+                counter = firstNonNull(counters.putIfAbsent(name, created), created);
+            }
+            counter.addAndGet(delta);
+        }
+        
+        @Override public void record(String name, long nanos) {
+            LatencyHistogram histogram = histograms.get(name);
+            if (null == histogram) {
+                LatencyHistogram created = new LatencyHistogram();
+                histogram = firstNonNull(histograms.putIfAbsent(name, created), created);
+            }
+            histogram.record(nanos);
+        }
+        
+        @Override public void gauge(String name, Supplier<? extends Number> gauge) {
+            gauges.put(checkNotNull(name), checkNotNull(gauge, "The gauge cannot be null."));
+        }
+        
+        /**
+         * Returns the value of the counter of given name, 0 if none
+         */
+        public long getCounter(String name) {
+            AtomicLong counter = counters.get(name);
+            return null == counter ? 0 : counter.get();
+        }
+        
+        /**
+         * Returns the histogram of given name, or absent if none
+         */
+        public Optional<LatencyHistogram> getHistogram(String name) {
+            return Optional.fromNullable(histograms.get(name));
+        }
+        
+        /**
+         * Returns the current value of the gauge of given name, or null if none
+         */
+        public Number getGauge(String name) {
+            Supplier<? extends Number> gauge = gauges.get(name);
+            return null == gauge ? null : gauge.get();
+        }
+        
+        /**
+         * Returns the names of all of the counters, histograms and gauges
+         */
+        public Set<String> getNames() {
+            Set<String> names = Sets.newTreeSet(counters.keySet());
+            names.addAll(histograms.keySet());
+            names.addAll(gauges.keySet());
+            return names;
+        }
+        
+        @Override public String toString() {
+            StringBuilder text = new StringBuilder();
+            for (String name : getNames()) {
+                text.append(name).append('=');
+                if (counters.containsKey(name)) {
+                    text.append(getCounter(name));
+                } else if (histograms.containsKey(name)) {
+                    text.append(histograms.get(name));
+                } else {
+                    text.append(getGauge(name));
+                }
+                text.append('\n');
+            }
+            return text.toString();
+        }
+        
+        private final ConcurrentMap<String, AtomicLong> counters = Maps.newConcurrentMap();
+        private final ConcurrentMap<String, LatencyHistogram> histograms = Maps.newConcurrentMap();
+        private final ConcurrentMap<String, Supplier<? extends Number>> gauges = Maps.newConcurrentMap();
+    }
+    
+    /**
+     * Lock free latency histogram with the power of two buckets of nanoseconds, the percentiles are 
+     * the upper bounds of the buckets
+     */
+    public static class LatencyHistogram {
+        
+        /**
+         * Records given latency in nanoseconds
+         */
+        public void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(nanos));
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+            long current;
+            while (nanos > (current = max.get()) && !max.compareAndSet(current, nanos)) {
+                //retry
+            }
+        }
+        
+        public long getCount() {
+            return count.get();
+        }
+        
+        public long getMax() {
+            return max.get();
+        }
+        
+        public double getMean() {
+            long c = count.get();
+            return 0 == c ? 0 : (double) total.get() / c;
+        }
+        
+        /**
+         * Returns the upper bound in nanoseconds of the bucket of given percentile, such as 0.99
+         */
+        public long getPercentile(double percentile) {
+            checkArgument(percentile > 0 && percentile <= 1, "The percentile must be in (0, 1], but is %s", percentile);
+            long threshold = (long) Math.ceil(count.get() * percentile), seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                if ((seen += buckets.get(i)) >= threshold && seen > 0) {
+                    return i >= 63 ? Long.MAX_VALUE : (1L << i) - 1;
+                }
+            }
+            return 0;
+        }
+        
+        @Override public String toString() {
+            return String.format("{count=%d, mean=%.0fns, p50=%dns, p99=%dns, max=%dns}", 
+                    getCount(), getMean(), getPercentile(0.5), getPercentile(0.99), getMax());
+        }
+        
+        private final AtomicLongArray buckets = new AtomicLongArray(65);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+    }
+    
+    /**
+     * Metrics of a {@link BerkeleyEnv}, records the operation counts and latencies of the databases, cursors and 
+     * data accesses to the {@link MetricRegistry}, and polls the {@link EnvironmentStats} to the gauges, such as 
+     * "env.cache.hitRatio", "env.cleaner.backlog" and "env.lock.waits". The operation metrics are named as 
+     * "&lt;database&gt;.&lt;operation&gt;" counters and "&lt;database&gt;.&lt;operation&gt;.latency" histograms
+     * @see BerkeleyEnv#metrics(MetricRegistry, long, TimeUnit)
+     */
+    public static class BerkeleyMetrics implements Closeable {
+        
+        protected BerkeleyMetrics(BerkeleyEnv berkeleyEnv, MetricRegistry registry, long pollInterval, TimeUnit unit) {
+            checkArgument(pollInterval > 0, "The poll interval must be positive, but is %s", pollInterval);
+            this.berkeleyEnv = checkNotNull(berkeleyEnv, "Berkeley environment cannot be null.");
+            this.registry = checkNotNull(registry, "The MetricRegistry cannot be null.");
+            
+            for (String gauge : GAUGES) {
+                registry.gauge(gauge, new StatGauge(gauge));
+            }
+            poll();
+            this.poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setDaemon(true).setNameFormat("berkeley-metrics-%d").build());
+            this.poller.scheduleWithFixedDelay(new Runnable() {
+                
+                @Override public void run() {
+                    try {
+                        poll();
+                    } catch (Exception e) {
+                        log.warn("Failed to poll the environment stats. " + e.getMessage());
+                    }
+                }
+            }, pollInterval, pollInterval, checkNotNull(unit));
+        }
+        
+        /**
+         * Records the operation of given database or entity name with the latency in nanoseconds
+         */
+        public void record(String name, String operation, long nanos) {
+            String metric = name + '.' + operation;
+            registry.increment(metric, 1);
+            registry.record(metric + ".latency", nanos);
+        }
+        
+        /**
+         * Polls the {@link EnvironmentStats} to the gauges
+         */
+        public synchronized void poll() {
+            EnvironmentStats stats = berkeleyEnv.getStats(new StatsConfig());
+            Map<String, Number> values = Maps.newHashMap();
+            
+            long fetches = stats.getNLNsFetch() + stats.getNBINsFetch() + stats.getNUpperINsFetch();
+            long misses = stats.getNLNsFetchMiss() + stats.getNBINsFetchMiss() + stats.getNUpperINsFetchMiss();
+            Map<String, Number> last = snapshot;
+            double hitRatio = null == last ? 1.0 : last.get(GAUGES[0]).doubleValue();
+            if (fetches > lastFetches) {
+                hitRatio = 1.0 - (double) Math.max(0, misses - lastMisses) / (fetches - lastFetches);
+            }
+            lastFetches = fetches;
+            lastMisses = misses;
+            
+            values.put(GAUGES[0], hitRatio);
+            values.put(GAUGES[1], stats.getCacheTotalBytes());
+            values.put(GAUGES[2], stats.getCacheDataBytes());
+            values.put(GAUGES[3], stats.getNCacheMiss());
+            values.put(GAUGES[4], stats.getNNodesEvicted());
+            values.put(GAUGES[5], stats.getCleanerBacklog());
+            values.put(GAUGES[6], stats.getFileDeletionBacklog());
+            values.put(GAUGES[7], stats.getNCleanerRuns());
+            values.put(GAUGES[8], stats.getNWaits());
+            values.put(GAUGES[9], stats.getNWaiters());
+            values.put(GAUGES[10], stats.getNRequests());
+            values.put(GAUGES[11], stats.getTotalLogSize());
+            values.put(GAUGES[12], stats.getNLogFSyncs());
+            values.put(GAUGES[13], stats.getNCheckpoints());
+            
+            lastStats = stats;
+            snapshot = values;
+        }
+        
+        /**
+         * Returns the last polled {@link EnvironmentStats}
+         */
+        public EnvironmentStats getLastStats() {
+            return lastStats;
+        }
+        
+        public MetricRegistry getRegistry() {
+            return registry;
+        }
+        
+        /**
+         * Stops polling the environment stats
+         */
+        @Override public void close() {
+            poller.shutdownNow();
+        }
+        
+        /**
+         * The gauge of a polled stat
+         */
+        private class StatGauge implements Supplier<Number> {
+            
+            StatGauge(String name) {
+                this.name = name;
+            }
+            
+            @Override public Number get() {
+                Map<String, Number> values = snapshot;
+                return null == values ? null : values.get(name);
+            }
+            
+            private final String name;
+        }
+        
+        private static final String[] GAUGES = {
+            "env.cache.hitRatio", "env.cache.totalBytes", "env.cache.dataBytes", "env.cache.misses", 
+            "env.evictor.nodesEvicted", "env.cleaner.backlog", "env.cleaner.fileDeletionBacklog", "env.cleaner.runs", 
+            "env.lock.waits", "env.lock.waiters", "env.lock.requests", "env.log.totalSize", "env.log.fsyncs", 
+            "env.checkpoints" 
+        };
+        
+        private volatile Map<String, Number> snapshot = null;
+        private volatile EnvironmentStats lastStats = null;
+        private long lastFetches = 0;
+        private long lastMisses = 0;
+        private final BerkeleyEnv berkeleyEnv;
+        private final MetricRegistry registry;
+        private final ScheduledExecutorService poller;
+    }
+    
+    /**
+     * @see Environment
+     */
+    public static class BerkeleyEnv extends ForwardingObject {
+
+        /**
+         * @see Environment#close()
+         */
+        public synchronized void close() throws DatabaseException {
+            if (null != metrics) {
+                metrics.close();
+                metrics = null;
+            }
+            delegate().close();
+        }
+        
+        /**
+         * Enables the {@link BerkeleyMetrics} of the environment with given registry, polls the environment stats 
+         * with given interval, replaces the enabled metrics if any
+         */
+        public synchronized BerkeleyMetrics metrics(MetricRegistry registry, long pollInterval, TimeUnit unit) {
+            if (null != metrics) {
+                metrics.close();
+            }
+            return metrics = new BerkeleyMetrics(this, registry, pollInterval, unit);
+        }
+        
+        /**
+         * Returns the enabled {@link BerkeleyMetrics}, or absent if the metrics are not enabled
+         */
+        public Optional<BerkeleyMetrics> getMetrics() {
+            return Optional.fromNullable(metrics);
+        }
+
+        /**
+         * @see Environment#openDatabase(Transaction, String, DatabaseConfig)
+         */
+        public synchronized Database openDatabase(Transaction txn, String databaseName, DatabaseConfig dbConfig)
+                throws DatabaseNotFoundException, DatabaseExistsException, IllegalArgumentException, IllegalStateException {
+            return delegate().openDatabase(txn, databaseName, dbConfig);
+        }
+
+        /**
+         * @see Environment#openSecondaryDatabase(Transaction, String, Database, SecondaryConfig)
+         */
+        public synchronized SecondaryDatabase openSecondaryDatabase(Transaction txn, String databaseName, 
+                Database primaryDatabase, SecondaryConfig dbConfig) throws DatabaseNotFoundException, DatabaseExistsException,
+                DatabaseException, IllegalArgumentException, IllegalStateException {
+            return delegate().openSecondaryDatabase(txn, databaseName, primaryDatabase, dbConfig);
+        }
+
+        /**
+         * Removes the database and its persisted settings if any
+         * @see Environment#removeDatabase(Transaction, String)
+         * @see BerkeleyDB#enableCompression(int)
+         */
+        public void removeDatabase(final Transaction txn, final String databaseName) throws DatabaseNotFoundException {
+            delegate().removeDatabase(txn, databaseName);
+            String settingsName = databaseName + BerkeleyDB.SETTINGS_SUFFIX;
+            if (delegate().getDatabaseNames().contains(settingsName)) {
+                delegate().removeDatabase(txn, settingsName);
+            }
+        }
+
+        /**
+         * Renames the database and its persisted settings if any
+         * @see Environment#renameDatabase(Transaction, String, String)
+         * @see BerkeleyDB#enableCompression(int)
+         */
+        public void renameDatabase(final Transaction txn, 
+                final String databaseName, final String newName) throws DatabaseNotFoundException {
+            delegate().renameDatabase(txn, databaseName, newName);
+            String settingsName = databaseName + BerkeleyDB.SETTINGS_SUFFIX;
+            if (delegate().getDatabaseNames().contains(settingsName)) {
+                delegate().renameDatabase(txn, settingsName, newName + BerkeleyDB.SETTINGS_SUFFIX);
+            }
+        }
+
+        /**
+         * @see Environment#truncateDatabase(Transaction, String, boolean)
+         */
+        public long truncateDatabase(final Transaction txn, 
+                final String databaseName, final boolean returnCount) throws DatabaseNotFoundException {
+            return delegate().truncateDatabase(txn, databaseName, returnCount);
+        }
+
+        /**
+         * @see Environment#getHome()
+         */
+        public File getHome() throws DatabaseException {
+            return delegate().getHome();
+        }
+
+        /**
+         * @see Environment#beginTransaction(Transaction, TransactionConfig)
+         */
+        public Transaction beginTransaction(Transaction parent, TransactionConfig txnConfig) 
+                throws DatabaseException, IllegalArgumentException {
+            return delegate().beginTransaction(parent, txnConfig);
+        }
+
+        /**
+         * @see Environment#checkpoint(CheckpointConfig)
+         */
+        public void checkpoint(CheckpointConfig ckptConfig) throws DatabaseException {
+            delegate().checkpoint(ckptConfig);
+        }
+
+        /**
+         * @see Environment#sync()
+         */
+        public void sync() throws DatabaseException {
+            delegate().sync();
+        }
+
+        /**
+         * @see Environment#flushLog(boolean)
+         */
+        public void flushLog(boolean fsync) {
+            delegate().flushLog(fsync);
+        }
+
+        /**
+         * @see Environment#cleanLog()
+         */
+        public int cleanLog() throws DatabaseException {
+            return delegate().cleanLog();
+        }
+
+        /**
+         * @see Environment#evictMemory()
+         */
+        public void evictMemory() throws DatabaseException {
+            delegate().evictMemory();
+        }
+
+        /**
+         * @see Environment#compress()
+         */
+        public void compress() throws DatabaseException {
+            delegate().compress();
+        }
+
+        /**
+         * @see Environment#preload(Database[], PreloadConfig)
+         */
+        public PreloadStats preload(final Database[] databases, final PreloadConfig config) throws DatabaseException {
+            return delegate().preload(databases, config);
+        }
+
+        /**
+         * @see Environment#getConfig()
+         */
+        public EnvironmentConfig getConfig() throws DatabaseException {
+            return delegate().getConfig();
+        }
+
+        /**
+         * @see Environment#setMutableConfig(EnvironmentMutableConfig)
+         */
+        public synchronized void setMutableConfig( EnvironmentMutableConfig mutableConfig) throws DatabaseException {
+            delegate().setMutableConfig(mutableConfig);
+        }
+
+        /**
+         * @see Environment#getMutableConfig()
+         */
+        public EnvironmentMutableConfig getMutableConfig() throws DatabaseException {
+            return delegate().getMutableConfig();
+        }
+
+        /**
+         * @see Environment#getStats(StatsConfig)
+         */
+        public EnvironmentStats getStats(StatsConfig config) throws DatabaseException {
+            return delegate().getStats(config);
+        }
+
+        /**
+         * @see Environment#getTransactionStats(StatsConfig)
+         */
+        public TransactionStats getTransactionStats(StatsConfig config) throws DatabaseException {
+            return delegate().getTransactionStats(config);
+        }
+
+        /**
+         * @see Environment#getDatabaseNames()
+         */
+        public List<String> getDatabaseNames() throws DatabaseException {
+            return delegate().getDatabaseNames();
+        }
+
+        /**
+         * @see Environment#verify(VerifyConfig, PrintStream)
+         */
+        public boolean verify(VerifyConfig config, PrintStream out) throws DatabaseException {
+            return delegate().verify(config, out);
+        }
+
+        /**
+         * @see Environment#getThreadTransaction()
+         */
+        public Transaction getThreadTransaction() throws DatabaseException {
+            return delegate().getThreadTransaction();
+        }
+
+        /**
+         * @see Environment#setThreadTransaction(Transaction)
+         */
+        public void setThreadTransaction(Transaction txn) {
+            delegate().setThreadTransaction(txn);
+        }
+
+        /**
+         * @see Environment#isValid()
+         */
+        public boolean isValid() {
+            return delegate().isValid();
+        }
+
+        /**
+         * @see Environment#printStartupInfo(PrintStream)
+         */
+        public void printStartupInfo(PrintStream out) {
+            delegate().printStartupInfo(out);
+        }
+
+        /**
+         * @see Environment#checkHandleIsValid()
+         */
+        public void checkHandleIsValid() throws DatabaseException {
+            delegate().checkHandleIsValid();
+        }
+        
+        public Environment getEnvironment() {
+            return environment;
+        }
+        
+        /**
+         * @see BerkeleyStore#connection(String, StoreConfig)
+         */
+        public BerkeleyStore connection(String storeName, StoreConfig storeConfig) {
+            return new BerkeleyStore(this).connection(storeName, storeConfig);
+        }
+        
+        /**
+         * @see BerkeleyDB#connection(String, DatabaseConfig, Transaction)
+         */
+        public BerkeleyDB connection(String databaseName, DatabaseConfig databaseConfig, Transaction transaction) {
+            return new BerkeleyDB(this).connection(databaseName, databaseConfig, transaction);
+        }
+        
+        /**
+         * Returns a {@link BerkeleyDB} of which the values not less than the given threshold are compressed
+         * @see BerkeleyDB#enableCompression(int)
+         */
+        public BerkeleyDB connection(String databaseName, DatabaseConfig databaseConfig, 
+                                     Transaction transaction, int compressThreshold) {
+            return connection(databaseName, databaseConfig, transaction).enableCompression(compressThreshold);
+        }
+        
+        /**
+         * @see DefaultBerkeleyQueue#connection(String, Class, Long)
+         */
+        public <E extends Serializable> BerkeleyQueue<E> queue(String queueName, Class<E> valueClass) {
+            return queue(queueName, valueClass, -1);
+        }
+        
+        /**
+         * @see DefaultBerkeleyQueue#connection(String, Class, Long)
+         */
+        public <E extends Serializable> BerkeleyQueue<E> queue(String queueName, Class<E> valueClass, int cacheSize) {
+            return new DefaultBerkeleyQueue<E>(this).connection(queueName, valueClass, cacheSize);
+        }
+        
+        /**
+         * @see DefaultBerkeleyQueue#connection(String, Class, int, EntryBinding)
+         */
+        public <E> BerkeleyQueue<E> queue(String queueName, Class<E> valueClass, int cacheSize, EntryBinding<E> codec) {
+            return new DefaultBerkeleyQueue<E>(this).connection(queueName, valueClass, cacheSize, codec);
+        }
+        
+        /**
+         * Returns a new {@link BerkeleyQueue} with read-ahead buffer, refilled when a quarter remains 
+         * @see DefaultBerkeleyQueue#prefetch(int, int)
+         */
+        public <E extends Serializable> BerkeleyQueue<E> queue(String queueName, 
+                Class<E> valueClass, int cacheSize, int prefetchSize) {
+            DefaultBerkeleyQueue<E> queue = new DefaultBerkeleyQueue<E>(this);
+            queue.connection(queueName, valueClass, cacheSize);
+            return queue.prefetch(prefetchSize, prefetchSize / 4);
+        }
+        
+        /**
+         * @see ShardedBerkeleyQueue#connection(String, Class, int, int)
+         */
+        public <E extends Serializable> ShardedBerkeleyQueue<E> shardedQueue(String queueName, 
+                Class<E> valueClass, int shardCount, int cacheSize) {
+            return new ShardedBerkeleyQueue<E>(this).connection(queueName, valueClass, shardCount, cacheSize);
+        }
+        
+        /**
+         * @see BlockingBerkeleyQueue#connection(String, Class, int, int)
+         */
+        public <E extends Serializable> BlockingBerkeleyQueue<E> blockingQueue(String queueName, Class<E> valueClass) {
+            return blockingQueue(queueName, valueClass, -1, Integer.MAX_VALUE);
+        }
+        
+        /**
+         * @see BlockingBerkeleyQueue#connection(String, Class, int, int)
+         */
+        public <E extends Serializable> BlockingBerkeleyQueue<E> blockingQueue(String queueName, 
+                Class<E> valueClass, int cacheSize, int capacity) {
+            return new BlockingBerkeleyQueue<E>(this).connection(queueName, valueClass, cacheSize, capacity);
+        }
+        
+        /**
+         * @see BatchedBerkeleyQueue#connection(String, Class, int, long)
+         */
+        public <E extends Serializable> BerkeleyQueue<E> batchedQueue(String queueName, 
+                Class<E> valueClass, int batchSize, long commitInterval) {
+            return new BatchedBerkeleyQueue<E>(this).connection(queueName, valueClass, batchSize, commitInterval);
+        }
+        
+        protected BerkeleyEnv(File envHome, EnvironmentConfig environmentConfig) {
+            checkNotNull(envHome, "The berkeley home cannot be null.");
+            checkArgument(envHome.exists(), "The berkeley home not exists. %s", envHome.getPath());
+            checkArgument(envHome.canRead(), "The berkeley home cannot read. %s", envHome.getPath());
+            checkArgument(envHome.canWrite(), "The berkeley home cannot write. %s", envHome.getPath());
+            
+            this.environment = new Environment(envHome, 
+                    environmentConfig = firstNonNull(environmentConfig, defaultEnvironmentConfig()));
+            
+            if (log.isDebugEnabled()) {
+                log.debug("Environment initialized with home path: " + getHome().getPath());
+                log.debug("EnvironmentConfig initialized: " + environmentConfig.toString());
+            }
+        }
+
+        @Override protected Environment delegate() {
+            return checkNotNull(environment, "Please initialize environment first.");
+        }
+        
+        private Environment environment = null; 
+        private volatile BerkeleyMetrics metrics = null;
+        
+    }
+    
+    /**
+     * @see EntityStore
+     */
+    public static class BerkeleyStore extends Berkeley<BerkeleyStore> {
+        
+        public BerkeleyStore(BerkeleyEnv berkeleyEnv) {
+            super(berkeleyEnv);
+        }
+
+        /**
+         * Returns a {@link BerkeleyStore} instance with given parameter
+         */
+        public BerkeleyStore connection(String storeName) {
+            return connection(storeName, null);
+        }
+        
+        /**
+         * Returns a {@link BerkeleyStore} instance with given parameter
+         */
+        public BerkeleyStore connection(String storeName, StoreConfig storeConfig) {
+            _store = new EntityStore(getEnvironment(), 
+                    checkNotNull(storeName), storeConfig = firstNonNull(storeConfig, defaultStoreConfig()));
+            if (log.isDebugEnabled()) {
+                log.debug("EntityStore initialized with name: " + storeName);
+            }
+            return this;
+        }
+        
+        /**
+         * Do prefix query, similar to the SQL statement:
+         * <blockquote><pre>
+         * SELECT * FROM table WHERE col LIKE 'prefix%';
+         * </pre></blockquote>
+         */
+        public <V> EntityCursor<V> query(EntityIndex<String, V> index, String prefix) {
+            checkArgument(!Strs.isBlank(prefix));
+            
+            char[] ca = prefix.toCharArray();
+            final int lastCharIndex = ca.length - 1;
+            ca[lastCharIndex]++;
+            return query(index, prefix, true, String.valueOf(ca), false);
+        }
+        
+        /**
+         * Do a "AND" join on a single primary database, similar to the SQL:
+         * <blockquote><pre>
+         * SELECT * FROM table WHERE col1 = key1 AND col2 = key2;
+         * </pre></blockquote>
+         */
+        public <PK, SK1, SK2, E> ForwardCursor<E> query(PrimaryIndex<PK, E> pk,
+                                SecondaryIndex<SK1, PK, E> sk1, SK1 key1,
+                                SecondaryIndex<SK2, PK, E> sk2, SK2 key2) {
+            return query(pk, sk1, key1, sk2, key2, null, null);
+        }
+        
+        /**
+         * Do a "AND" join on a single primary database, similar to the SQL:
+         * <blockquote><pre>
+         * SELECT * FROM table WHERE col1 = key1 AND col2 = key2 AND col3 = key3;
+         * </pre></blockquote>
+         */
+        public <PK, SK1, SK2, SK3, E> ForwardCursor<E> query(PrimaryIndex<PK, E> pk,
+                                SecondaryIndex<SK1, PK, E> sk1, SK1 key1,
+                                SecondaryIndex<SK2, PK, E> sk2, SK2 key2,
+                                SecondaryIndex<SK3, PK, E> sk3, SK3 key3) {
+            return join(pk).join(sk1, key1).join(sk2, key2).join(sk3, key3).entities();
+        }
+        
+        /**
+         * Do a "AND" join on a single primary database, similar to the SQL:
+         * <blockquote><pre>
+         * SELECT * FROM table WHERE col1 = key1 AND ... AND colN = keyN;
+         * </pre></blockquote>
+         */
+        public <PK, E> EntityJoinQuery<PK, E> join(PrimaryIndex<PK, E> pk) {
+            return new EntityJoinQuery<PK, E>(checkNotNull(pk));
+        }
+        
+        /**
+         * Do a query of the equality, IN, range and prefix conditions on a single primary database, similar to the SQL:
+         * <blockquote><pre>
+         * SELECT * FROM table WHERE col1 = key1 AND col2 IN (key2, key3) AND col3 BETWEEN from AND to;
+         * </pre></blockquote>
+         * @see EntityQuery
+         */
+        public <PK, E> EntityQuery<PK, E> query(PrimaryIndex<PK, E> pk) {
+            return new EntityQuery<PK, E>(checkNotNull(pk));
+        }
+
+        /**
+         * Do range query, similar to the SQL statement:
+         * <blockquote><pre>
+         * SELECT * FROM table WHERE col >= fromKey AND col <= toKey;
+         * </pre></blockquote>
+         */
+        public <K, V> EntityCursor<V> query(
+                EntityIndex<K, V> index, K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+            /* Opens a cursor for traversing entities in a key range. */
+            return checkNotNull(index).entities(fromKey, fromInclusive, toKey, toInclusive);
+        }
+        
+        /**
+         * @see EntityStore#getConfig()
+         */
+        public StoreConfig getConfig() {
+            return delegate().getConfig();
+        }
+
+        /**
+         * @see EntityStore#getStoreName()
+         */
+        public String getStoreName() {
+            return delegate().getStoreName();
+        }
+
+        /**
+         * @see EntityStore#getStoreNames(Environment)
+         */
+        public static Set<String> getStoreNames(Environment env) throws DatabaseException {
+            return Store.getStoreNames(env);
+        }
+        
+        /**
+         * @see EntityStore#isReplicaUpgradeMode()
+         */
+        public boolean isReplicaUpgradeMode() {
+            return delegate().isReplicaUpgradeMode();
+        }
+
+        /**
+         * @see EntityStore#getModel()
+         */
+        public EntityModel getModel() {
+            return delegate().getModel();
+        }
+
+        /**
+         * @see EntityStore#getMutations()
+         */
+        public Mutations getMutations() {
+            return delegate().getMutations();
+        }
+
+        /**
+         * @see EntityStore#getPrimaryIndex(Class, Class)
+         */
+        public <PK, E> PrimaryIndex<PK, E> getPrimaryIndex(
+                Class<PK> primaryKeyClass, Class<E> entityClass) throws DatabaseException {
+            return delegate().getPrimaryIndex(primaryKeyClass, entityClass);
+        }
 
         /**
-         * @see Environment#close()
+         * @see EntityStore#getSecondaryIndex(PrimaryIndex, Class, String)
          */
-        public synchronized void close() throws DatabaseException {
-            delegate().close();
+        public <SK, PK, E> SecondaryIndex<SK, PK, E> getSecondaryIndex(
+                PrimaryIndex<PK, E> primaryIndex, Class<SK> keyClass, String keyName) throws DatabaseException {
+            return delegate().getSecondaryIndex(primaryIndex, keyClass, keyName);
         }
 
         /**
-         * @see Environment#openDatabase(Transaction, String, DatabaseConfig)
+         * @see EntityStore#getSubclassIndex(PrimaryIndex, Class, Class, String)
          */
-        public synchronized Database openDatabase(Transaction txn, String databaseName, DatabaseConfig dbConfig)
-                throws DatabaseNotFoundException, DatabaseExistsException, IllegalArgumentException, IllegalStateException {
-            return delegate().openDatabase(txn, databaseName, dbConfig);
+        public <SK, PK, E1, E2 extends E1> SecondaryIndex<SK, PK, E2>
+            getSubclassIndex(PrimaryIndex<PK, E1> primaryIndex,
+                             Class<E2> entitySubclass, Class<SK> keyClass,
+                             String keyName) throws DatabaseException {
+            return delegate().getSubclassIndex(primaryIndex, entitySubclass, keyClass, keyName);
         }
 
         /**
-         * @see Environment#openSecondaryDatabase(Transaction, String, Database, SecondaryConfig)
+         * @see EntityStore#evolve(EvolveConfig)
          */
-        public synchronized SecondaryDatabase openSecondaryDatabase(Transaction txn, String databaseName, 
-                Database primaryDatabase, SecondaryConfig dbConfig) throws DatabaseNotFoundException, DatabaseExistsException,
-                DatabaseException, IllegalArgumentException, IllegalStateException {
-            return delegate().openSecondaryDatabase(txn, databaseName, primaryDatabase, dbConfig);
+        public EvolveStats evolve(EvolveConfig config) throws DatabaseException {
+            return delegate().evolve(config);
         }
 
         /**
-         * @see Environment#removeDatabase(Transaction, String)
+         * @see EntityStore#truncateClass(Class)
          */
-        public void removeDatabase(final Transaction txn, final String databaseName) throws DatabaseNotFoundException {
-            delegate().removeDatabase(txn, databaseName);
+        public void truncateClass(Class<?> entityClass) throws DatabaseException {
+            delegate().truncateClass(entityClass);
         }
 
         /**
-         * @see Environment#renameDatabase(Transaction, String, String)
+         * @see EntityStore#truncateClass(Transaction, Class)
          */
-        public void renameDatabase(final Transaction txn, 
-                final String databaseName, final String newName) throws DatabaseNotFoundException {
-            delegate().renameDatabase(txn, databaseName, newName);
+        public void truncateClass(Transaction txn, Class<?> entityClass) throws DatabaseException {
+            delegate().truncateClass(txn, entityClass);
         }
 
         /**
-         * @see Environment#truncateDatabase(Transaction, String, boolean)
+         * @see EntityStore#sync()
          */
-        public long truncateDatabase(final Transaction txn, 
-                final String databaseName, final boolean returnCount) throws DatabaseNotFoundException {
-            return delegate().truncateDatabase(txn, databaseName, returnCount);
+        public void sync() throws DatabaseException {
+            delegate().sync();
         }
-
+        
         /**
-         * @see Environment#getHome()
+         * @see EntityStore#closeClass(Class)
          */
-        public File getHome() throws DatabaseException {
-            return delegate().getHome();
+        public void closeClass(Class<?> entityClass) throws DatabaseException {
+            delegate().closeClass(entityClass);
         }
 
         /**
-         * @see Environment#beginTransaction(Transaction, TransactionConfig)
+         * @see EntityStore#close()
          */
-        public Transaction beginTransaction(Transaction parent, TransactionConfig txnConfig) 
-                throws DatabaseException, IllegalArgumentException {
-            return delegate().beginTransaction(parent, txnConfig);
+        public void close() throws DatabaseException {
+            delegate().close();
         }
 
         /**
-         * @see Environment#checkpoint(CheckpointConfig)
+         * Exports the raw records of all of the databases of this store to the given snapshot file, 
+         * returns the number of the records
+         * @see BerkeleySnapshot#export(Map)
          */
-        public void checkpoint(CheckpointConfig ckptConfig) throws DatabaseException {
-            delegate().checkpoint(ckptConfig);
+        public long exportSnapshot(File file) {
+            Environment environment = getEnvironment();
+            String prefix = storePrefix(getStoreName());
+            Map<String, Database> databases = Maps.newLinkedHashMap();
+            DatabaseConfig config = new DatabaseConfig();
+            config.setReadOnly(true);
+            config.setUseExistingConfig(true);
+            try {
+                for (String databaseName : environment.getDatabaseNames()) {
+                    if (databaseName.startsWith(prefix)) {
+                        databases.put(databaseName.substring(prefix.length()), 
+                                environment.openDatabase(null, databaseName, config));
+                    }
+                }
+                return new BerkeleySnapshot(environment, file).export(databases);
+            } finally {
+                for (Database database : databases.values()) {
+                    database.close();
+                }
+            }
         }
-
+        
         /**
-         * @see Environment#sync()
+         * Replaces all of the databases of this store with the given snapshot file, the store is closed 
+         * and reopened, the primary and secondary indexes of the store should be got again after the import. 
+         * The databases of the store are truncated rather than removed that the databases keep their comparators, 
+         * the databases with comparators must exist before the import. The snapshot is validated before any 
+         * database is truncated. Returns the number of the imported records
+         * @see BerkeleySnapshot#load(Function)
          */
-        public void sync() throws DatabaseException {
-            delegate().sync();
+        public synchronized long importSnapshot(File file) {
+            String storeName = getStoreName();
+            StoreConfig storeConfig = delegate().getConfig();
+            doClose();
+            entityCaches.clear();
+            _store = null;
+            
+            Environment environment = getEnvironment();
+            final String prefix = storePrefix(storeName);
+            try {
+                BerkeleySnapshot snapshot = new BerkeleySnapshot(environment, file);
+                Function<String, String> databaseNames = new Function<String, String>() {
+                    
+                    @Override public String apply(String section) {
+                        return prefix + section;
+                    }
+                };
+                
+                //nothing is truncated until the whole snapshot is known to load
+                snapshot.validate(databaseNames);
+                for (String databaseName : environment.getDatabaseNames()) {
+                    if (databaseName.startsWith(prefix)) {
+                        environment.truncateDatabase(null, databaseName, false);
+                    } else if (databaseName.equals(storeName + "-bloom")) {
+                        // the persisted Bloom filters are stale
+                        environment.removeDatabase(null, databaseName);
+                    }
+                }
+                return snapshot.load(databaseNames);
+            } finally {
+                connection(storeName, storeConfig);
+            }
+        }
+        
+        /**
+         * Returns the name prefix of the databases of given store
+         */
+        private static String storePrefix(String storeName) {
+            return "persist#" + storeName + "#";
         }
 
         /**
-         * @see Environment#flushLog(boolean)
+         * @see EntityStore#getSequence(String) 
          */
-        public void flushLog(boolean fsync) {
-            delegate().flushLog(fsync);
+        public Sequence getSequence(String name) throws DatabaseException {
+            return delegate().getSequence(name);
         }
 
         /**
-         * @see Environment#cleanLog()
+         * @see EntityStore#getSequenceConfig(String)
          */
-        public int cleanLog() throws DatabaseException {
-            return delegate().cleanLog();
+        public SequenceConfig getSequenceConfig(String name) {
+            return delegate().getSequenceConfig(name);
         }
 
         /**
-         * @see Environment#evictMemory()
+         * @see EntityStore#setSequenceConfig(String, SequenceConfig)
          */
-        public void evictMemory() throws DatabaseException {
-            delegate().evictMemory();
+        public void setSequenceConfig(String name, SequenceConfig config) {
+            delegate().setSequenceConfig(name, config);
         }
 
         /**
-         * @see Environment#compress()
+         * @see EntityStore#getPrimaryConfig(Class)
          */
-        public void compress() throws DatabaseException {
-            delegate().compress();
+        public DatabaseConfig getPrimaryConfig(Class<?> entityClass) {
+            return delegate().getPrimaryConfig(entityClass);
         }
 
         /**
-         * @see Environment#preload(Database[], PreloadConfig)
+         * @see EntityStore#setPrimaryConfig(Class, DatabaseConfig)
          */
-        public PreloadStats preload(final Database[] databases, final PreloadConfig config) throws DatabaseException {
-            return delegate().preload(databases, config);
+        public void setPrimaryConfig(Class<?> entityClass, DatabaseConfig config) {
+            delegate().setPrimaryConfig(entityClass, config);
         }
 
         /**
-         * @see Environment#getConfig()
+         * @see EntityStore#getSecondaryConfig(Class, String)
          */
-        public EnvironmentConfig getConfig() throws DatabaseException {
-            return delegate().getConfig();
+        public SecondaryConfig getSecondaryConfig(Class<?> entityClass, String keyName) {
+            return delegate().getSecondaryConfig(entityClass, keyName);
         }
 
         /**
-         * @see Environment#setMutableConfig(EnvironmentMutableConfig)
+         * @see EntityStore#setSecondaryConfig(Class, String, SecondaryConfig)
          */
-        public synchronized void setMutableConfig( EnvironmentMutableConfig mutableConfig) throws DatabaseException {
-            delegate().setMutableConfig(mutableConfig);
+        public void setSecondaryConfig(Class<?> entityClass, String keyName, SecondaryConfig config) {
+            delegate().setSecondaryConfig(entityClass, keyName, config);
+        }
+        
+        /**
+         * Returns the shared {@link EntityCache} of given entity class, or absent if the cache is not enabled
+         * @see BerkeleyAccess#enableCache(CacheBuilder)
+         */
+        @SuppressWarnings("unchecked")
+        public <PK, E> Optional<EntityCache<PK, E>> getEntityCache(Class<E> entityClass) {
+            return Optional.fromNullable((EntityCache<PK, E>) entityCaches.get(entityClass));
+        }
+        
+        @Override protected EntityStore delegate() {
+            return checkNotNull(_store, "Please connect an EntityStore first.");
+        }
+
+        @Override protected BerkeleyStore THIS() {
+            return this;
         }
 
         /**
-         * @see Environment#getMutableConfig()
+         * Returns the shared {@link EntityBloomFilter} of given entity class, or absent if the filter is not enabled
+         * @see BerkeleyAccess#enableBloomFilter(long, double)
          */
-        public EnvironmentMutableConfig getMutableConfig() throws DatabaseException {
-            return delegate().getMutableConfig();
+        @SuppressWarnings("unchecked")
+        public <PK> Optional<EntityBloomFilter<PK>> getBloomFilter(Class<?> entityClass) {
+            return Optional.fromNullable((EntityBloomFilter<PK>) bloomFilters.get(entityClass));
+        }
+        
+        @Override public void doClose() {
+            for (EntityBloomFilter<?> filter : bloomFilters.values()) {
+                filter.close();
+            }
+            bloomFilters.clear();
+            if (null != _store) {
+                close();
+            }
+        }
+        
+        private EntityStore _store;
+        // The entity caches by entity class, shared by the data accesses of the store
+        private final ConcurrentMap<Class<?>, EntityCache<?, ?>> entityCaches = Maps.newConcurrentMap();
+        // The primary key Bloom filters by entity class
+        private final ConcurrentMap<Class<?>, EntityBloomFilter<?>> bloomFilters = Maps.newConcurrentMap();
+        // The ID block sizes of the auto increase IDs by entity class
+        private final ConcurrentMap<Class<?>, Integer> idBlockSizes = Maps.newConcurrentMap();
+        
+    }
+    
+   /**
+    * @see SecondaryKeyCreator
+    */
+   public static abstract class GenericKeyCreator<SK, D> implements SecondaryKeyCreator {
+       
+       @Override public boolean createSecondaryKey(SecondaryDatabase secondary,
+                                                   DatabaseEntry key, DatabaseEntry data, DatabaseEntry result) {
+           D d = null;
+           this.primaryKey = key;
+           this.secondary = secondary;
+           try {
+               d = dataBinding.entryToObject(data);
+           } catch (Exception e) {
+               return false;
+           }
+           secKeyBinding.objectToEntry(createSecondaryKey(d), result);
+           return true;
+       }
+       
+       /**
+        * @see SecondaryKeyCreator#createSecondaryKey(SecondaryDatabase, DatabaseEntry, DatabaseEntry, DatabaseEntry)
+        */
+       protected abstract SK createSecondaryKey(D data);
+       
+       protected void initBinding(ClassCatalog catalog) {
+           if (null != this.secKeyBinding && null != this.dataBinding) {
+               return;
+           }
+           
+           Pair<Class<SK>, Class<D>> clazzPair = getGenericSuperclass(getClass().getGenericSuperclass());
+           this.secKeyBinding = getBinding(clazzPair.getL(), checkNotNull(catalog, "ClassCatalog cannot be null"));
+           this.dataBinding = Berkeley.getDataBinding(clazzPair.getR(), catalog);
+       }
+       
+       public EntryBinding<D> getDataBinding() {
+           return dataBinding;
+       }
+       
+       public EntryBinding<SK> getSecondaryKeyBinding() {
+           return secKeyBinding;
+       }
+       
+       private EntryBinding<D> dataBinding;
+       private EntryBinding<SK> secKeyBinding;
+       
+       protected DatabaseEntry primaryKey;
+       protected SecondaryDatabase secondary;
+   }
+    
+   /**
+    * @see SecondaryDatabase
+    */
+    public static class BerkeleyIndex extends BaseBerkeleyDatabase<BerkeleyIndex> {
+        
+        /**
+         * Returns the data with given key.
+         * Or throw new UnsupportedOperationException if key creator is not {@link GenericKeyCreator} instance
+         */
+        public <K, E> E get(K key) {
+            if (null != genericKeyCreator) {
+                return get(key, genericKeyCreator.getDataBinding());
+            }
+            
+            throw new UnsupportedOperationException(
+                    "Operation not allowed with null GenericKeyCreator, using get(K key, Class<?> clazz) instead.");
+        }
+        
+        /**
+         * Returns the {@link BerkeleyDB} instance
+         */
+        public BerkeleyDB getBerkeleyDatabase() {
+            return this.berkeleyDB;
         }
 
         /**
-         * @see Environment#getStats(StatsConfig)
+         * @see SecondaryDatabase#sync()
          */
-        public EnvironmentStats getStats(StatsConfig config) throws DatabaseException {
-            return delegate().getStats(config);
+        public void sync() throws DatabaseException, UnsupportedOperationException {
+            delegate().sync();
         }
 
         /**
-         * @see Environment#getTransactionStats(StatsConfig)
+         * @see SecondaryDatabase#openSequence(Transaction, DatabaseEntry, SequenceConfig)
          */
-        public TransactionStats getTransactionStats(StatsConfig config) throws DatabaseException {
-            return delegate().getTransactionStats(config);
+        public Sequence openSequence(final Transaction txn, final DatabaseEntry key,
+                                     final SequenceConfig config) throws SequenceNotFoundException,
+                SequenceExistsException {
+            return delegate().openSequence(txn, key, config);
         }
 
         /**
-         * @see Environment#getDatabaseNames()
+         * @see SecondaryDatabase#removeSequence(Transaction, DatabaseEntry)
          */
-        public List<String> getDatabaseNames() throws DatabaseException {
-            return delegate().getDatabaseNames();
+        public void removeSequence(final Transaction txn, final DatabaseEntry key) throws DatabaseException {
+            delegate().removeSequence(txn, key);
         }
 
         /**
-         * @see Environment#verify(VerifyConfig, PrintStream)
+         * @see SecondaryDatabase#openCursor(DiskOrderedCursorConfig)
          */
-        public boolean verify(VerifyConfig config, PrintStream out) throws DatabaseException {
-            return delegate().verify(config, out);
+        public DiskOrderedCursor openCursor(final DiskOrderedCursorConfig cursorConfig)
+                throws DatabaseException, IllegalArgumentException {
+            return delegate().openCursor(cursorConfig);
         }
 
         /**
-         * @see Environment#getThreadTransaction()
+         * @see SecondaryDatabase#preload(PreloadConfig)
          */
-        public Transaction getThreadTransaction() throws DatabaseException {
-            return delegate().getThreadTransaction();
+        public PreloadStats preload(final PreloadConfig config) throws DatabaseException {
+            return delegate().preload(config);
         }
 
         /**
-         * @see Environment#setThreadTransaction(Transaction)
+         * @see SecondaryDatabase#count()
          */
-        public void setThreadTransaction(Transaction txn) {
-            delegate().setThreadTransaction(txn);
+        public long count() throws DatabaseException {
+            return delegate().count();
         }
 
         /**
-         * @see Environment#isValid()
+         * @see SecondaryDatabase#count(long)
          */
-        public boolean isValid() {
-            return delegate().isValid();
+        public long count(long memoryLimit) throws DatabaseException {
+            return delegate().count(memoryLimit);
         }
 
         /**
-         * @see Environment#printStartupInfo(PrintStream)
+         * @see SecondaryDatabase#getStats(StatsConfig)
          */
-        public void printStartupInfo(PrintStream out) {
-            delegate().printStartupInfo(out);
+        public DatabaseStats getStats(final StatsConfig config) throws DatabaseException {
+            return delegate().getStats(config);
         }
 
         /**
-         * @see Environment#checkHandleIsValid()
+         * @see SecondaryDatabase#verify(VerifyConfig)
          */
-        public void checkHandleIsValid() throws DatabaseException {
-            delegate().checkHandleIsValid();
-        }
-        
-        public Environment getEnvironment() {
-            return environment;
+        public DatabaseStats verify(final VerifyConfig config) throws DatabaseException {
+            return delegate().verify(config);
         }
-        
+
         /**
-         * @see BerkeleyStore#connection(String, StoreConfig)
+         * @see SecondaryDatabase#getDatabaseName()
          */
-        public BerkeleyStore connection(String storeName, StoreConfig storeConfig) {
-            return new BerkeleyStore(this).connection(storeName, storeConfig);
+        public String getDatabaseName() throws DatabaseException {
+            return delegate().getDatabaseName();
         }
-        
+
         /**
-         * @see BerkeleyDB#connection(String, DatabaseConfig, Transaction)
+         * @see SecondaryDatabase#getEnvironment()
          */
-        public BerkeleyDB connection(String databaseName, DatabaseConfig databaseConfig, Transaction transaction) {
-            return new BerkeleyDB(this).connection(databaseName, databaseConfig, transaction);
+        public Environment getEnvironment() {
+            return delegate().getEnvironment();
         }
-        
+
         /**
-         * @see DefaultBerkeleyQueue#connection(String, Class, Long)
+         * @see SecondaryDatabase#compareKeys(DatabaseEntry, DatabaseEntry)
          */
-        public <E extends Serializable> BerkeleyQueue<E> queue(String queueName, Class<E> valueClass) {
-            return queue(queueName, valueClass, -1);
+        public int compareKeys(final DatabaseEntry entry1, final DatabaseEntry entry2) {
+            return delegate().compareKeys(entry1, entry2);
         }
-        
+
         /**
-         * @see DefaultBerkeleyQueue#connection(String, Class, Long)
+         * @see SecondaryDatabase#compareDuplicates(DatabaseEntry,
+         *      DatabaseEntry)
          */
-        public <E extends Serializable> BerkeleyQueue<E> queue(String queueName, Class<E> valueClass, int cacheSize) {
-            return new DefaultBerkeleyQueue<E>(this).connection(queueName, valueClass, cacheSize);
-        }
-        
-        protected BerkeleyEnv(File envHome, EnvironmentConfig environmentConfig) {
-            checkNotNull(envHome, "The berkeley home cannot be null.");
-            checkArgument(envHome.exists(), "The berkeley home not exists. %s", envHome.getPath());
-            checkArgument(envHome.canRead(), "The berkeley home cannot read. %s", envHome.getPath());
-            checkArgument(envHome.canWrite(), "The berkeley home cannot write. %s", envHome.getPath());
-            
-            this.environment = new Environment(envHome, 
-                    environmentConfig = firstNonNull(environmentConfig, defaultEnvironmentConfig()));
-            
-            if (log.isDebugEnabled()) {
-                log.debug("Environment initialized with home path: " + getHome().getPath());
-                log.debug("EnvironmentConfig initialized: " + environmentConfig.toString());
-            }
+        public int compareDuplicates(final DatabaseEntry entry1, final DatabaseEntry entry2) {
+            return delegate().compareDuplicates(entry1, entry2);
         }
 
-        @Override protected Environment delegate() {
-            return checkNotNull(environment, "Please initialize environment first.");
-        }
-        
-        private Environment environment = null; 
-        
-    }
-    
-    /**
-     * @see EntityStore
-     */
-    public static class BerkeleyStore extends Berkeley<BerkeleyStore> {
-        
-        public BerkeleyStore(BerkeleyEnv berkeleyEnv) {
-            super(berkeleyEnv);
-        }
+        private BerkeleyDB berkeleyDB = null;
+        private volatile SecondaryDatabase delegate = null;
+        private StoredClassCatalog catalog = null;
+        private GenericKeyCreator<?, ?> genericKeyCreator = null;
+        // The config and name of the suspended secondary database
+        private SecondaryConfig suspended = null;
+        private volatile String suspendedName = null;
 
         /**
-         * Returns a {@link BerkeleyStore} instance with given parameter
+         * Closes the secondary database, a suspended index is resumed before closed that the closed 
+         * secondary database is up to date
+         * @see SecondaryDatabase#close()
          */
-        public BerkeleyStore connection(String storeName) {
-            return connection(storeName, null);
+        public synchronized void close() throws DatabaseException {
+            resume();
+            berkeleyDB.indexes.remove(this);
+            delegate().close();
         }
         
         /**
-         * Returns a {@link BerkeleyStore} instance with given parameter
+         * Closes the secondary database that the writes of primary database do not maintain the index 
+         * until {@link BerkeleyIndex#resume()}, the reads of the index fail with {@link IllegalStateException} 
+         * while suspended
          */
-        public BerkeleyStore connection(String storeName, StoreConfig storeConfig) {
-            _store = new EntityStore(getEnvironment(), 
-                    checkNotNull(storeName), storeConfig = firstNonNull(storeConfig, defaultStoreConfig()));
-            if (log.isDebugEnabled()) {
-                log.debug("EntityStore initialized with name: " + storeName);
+        protected synchronized void suspend() {
+            if (null == suspended) {
+                suspended = delegate().getConfig();
+                suspendedName = delegate().getDatabaseName();
+                delegate().close();
+                delegate = null;
             }
-            return this;
-        }
-        
-        /**
-         * Do prefix query, similar to the SQL statement:
-         * <blockquote><pre>
-         * SELECT * FROM table WHERE col LIKE 'prefix%';
-         * </pre></blockquote>
-         */
-        public <V> EntityCursor<V> query(EntityIndex<String, V> index, String prefix) {
-            checkArgument(!Strs.isBlank(prefix));
-            
-            char[] ca = prefix.toCharArray();
-            final int lastCharIndex = ca.length - 1;
-            ca[lastCharIndex]++;
-            return query(index, prefix, true, String.valueOf(ca), false);
         }
         
         /**
-         * Do a "AND" join on a single primary database, similar to the SQL:
-         * <blockquote><pre>
-         * SELECT * FROM table WHERE col1 = key1 AND col2 = key2;
-         * </pre></blockquote>
+         * Removes and rebuilds the suspended secondary database in bulk from the primary database, 
+         * the writes to the primary database during the build are caught up, the index stays suspended 
+         * and can be resumed again if the build failed
+         * @see IndexBuilder
          */
-        public <PK, SK1, SK2, E> ForwardCursor<E> query(PrimaryIndex<PK, E> pk,
-                                SecondaryIndex<SK1, PK, E> sk1, SK1 key1,
-                                SecondaryIndex<SK2, PK, E> sk2, SK2 key2) {
-            return query(pk, sk1, key1, sk2, key2, null, null);
+        protected synchronized void resume() {
+            if (null != suspended) {
+                Environment environment = berkeleyDB.getEnvironment();
+                if (environment.getDatabaseNames().contains(suspendedName)) {
+                    environment.removeDatabase(null, suspendedName);
+                }
+                delegate = new IndexBuilder(berkeleyDB, suspendedName, suspended, genericKeyCreator).online(true).populate();
+                suspended = null;
+                suspendedName = null;
+            }
         }
         
         /**
-         * Do a "AND" join on a single primary database, similar to the SQL:
-         * <blockquote><pre>
-         * SELECT * FROM table WHERE col1 = key1 AND col2 = key2 AND col3 = key3;
-         * </pre></blockquote>
+         * Rebuilds the secondary database in bulk from the primary database, the index is unavailable 
+         * during the rebuild
+         * @see BerkeleyIndex#resume()
          */
-        public <PK, SK1, SK2, SK3, E> ForwardCursor<E> query(PrimaryIndex<PK, E> pk,
-                                SecondaryIndex<SK1, PK, E> sk1, SK1 key1,
-                                SecondaryIndex<SK2, PK, E> sk2, SK2 key2,
-                                SecondaryIndex<SK3, PK, E> sk3, SK3 key3) {
-            return join(pk).join(sk1, key1).join(sk2, key2).join(sk3, key3).entities();
+        public synchronized void rebuild() {
+            suspend();
+            resume();
         }
-        
+
         /**
-         * Do a "AND" join on a single primary database, similar to the SQL:
-         * <blockquote><pre>
-         * SELECT * FROM table WHERE col1 = key1 AND ... AND colN = keyN;
-         * </pre></blockquote>
+         * @see SecondaryDatabase#getPrimaryDatabase()
          */
-        public <PK, E> EntityJoinQuery<PK, E> join(PrimaryIndex<PK, E> pk) {
-            return new EntityJoinQuery<PK, E>(checkNotNull(pk));
+        public Database getPrimaryDatabase() {
+            return delegate().getPrimaryDatabase();
         }
 
         /**
-         * Do range query, similar to the SQL statement:
-         * <blockquote><pre>
-         * SELECT * FROM table WHERE col >= fromKey AND col <= toKey;
-         * </pre></blockquote>
+         * @see SecondaryDatabase#getConfig()
          */
-        public <K, V> EntityCursor<V> query(
-                EntityIndex<K, V> index, K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
-            /* Opens a cursor for traversing entities in a key range. */
-            return checkNotNull(index).entities(fromKey, fromInclusive, toKey, toInclusive);
+        public SecondaryConfig getConfig() throws DatabaseException {
+            return delegate().getConfig();
         }
         
-        /**
-         * @see EntityStore#getConfig()
-         */
-        public StoreConfig getConfig() {
-            return delegate().getConfig();
+        public BerkeleyIndexCursor opensCursor(Transaction txn, CursorConfig cursorConfig) {
+            return new BerkeleyIndexCursor(getEnv(), this, openCursor(txn, cursorConfig));
         }
 
         /**
-         * @see EntityStore#getStoreName()
+         * @see SecondaryDatabase#openCursor(Transaction, CursorConfig)
          */
-        public String getStoreName() {
-            return delegate().getStoreName();
+        public SecondaryCursor openCursor(final Transaction txn, final CursorConfig cursorConfig)
+                throws DatabaseException {
+            return delegate().openCursor(txn, cursorConfig);
         }
 
         /**
-         * @see EntityStore#getStoreNames(Environment)
+         * @see SecondaryDatabase#delete(Transaction, DatabaseEntry)
          */
-        public static Set<String> getStoreNames(Environment env) throws DatabaseException {
-            return Store.getStoreNames(env);
+        public OperationStatus delete(final Transaction txn, final DatabaseEntry key)
+                throws DeleteConstraintException, LockConflictException, DatabaseException,
+                UnsupportedOperationException, IllegalArgumentException {
+            return delegate().delete(txn, key);
         }
-        
+
         /**
-         * @see EntityStore#isReplicaUpgradeMode()
+         * @see SecondaryDatabase#get(Transaction, DatabaseEntry, DatabaseEntry,
+         *      LockMode)
          */
-        public boolean isReplicaUpgradeMode() {
-            return delegate().isReplicaUpgradeMode();
+        @Override public OperationStatus get(final Transaction txn, final DatabaseEntry key,
+                                   final DatabaseEntry data, final LockMode lockMode)
+                throws DatabaseException {
+            return delegate().get(txn, key, data, lockMode);
         }
 
         /**
-         * @see EntityStore#getModel()
+         * @see SecondaryDatabase#get(Transaction, DatabaseEntry, DatabaseEntry,
+         *      DatabaseEntry, LockMode)
          */
-        public EntityModel getModel() {
-            return delegate().getModel();
+        public OperationStatus get(final Transaction txn, final DatabaseEntry key,
+                                   final DatabaseEntry pKey, final DatabaseEntry data,
+                                   LockMode lockMode) throws DatabaseException {
+            return delegate().get(txn, key, pKey, data, lockMode);
         }
 
         /**
-         * @see EntityStore#getMutations()
+         * @see SecondaryDatabase#get(Transaction, DatabaseEntry, DatabaseEntry,
+         *      DatabaseEntry, LockMode)
          */
-        public Mutations getMutations() {
-            return delegate().getMutations();
+        public OperationStatus getSearchBoth(final Transaction txn, final DatabaseEntry key,
+                                             final DatabaseEntry pKey, final DatabaseEntry data,
+                                             LockMode lockMode) throws DatabaseException {
+            return delegate().getSearchBoth(txn, key, pKey, data, lockMode);
         }
 
-        /**
-         * @see EntityStore#getPrimaryIndex(Class, Class)
-         */
-        public <PK, E> PrimaryIndex<PK, E> getPrimaryIndex(
-                Class<PK> primaryKeyClass, Class<E> entityClass) throws DatabaseException {
-            return delegate().getPrimaryIndex(primaryKeyClass, entityClass);
+        @Override protected SecondaryDatabase delegate() {
+            SecondaryDatabase current = delegate;
+            checkState(null != current, "The index %s is suspended until the deferred writes are closed.", suspendedName);
+            return current;
         }
 
-        /**
-         * @see EntityStore#getSecondaryIndex(PrimaryIndex, Class, String)
-         */
-        public <SK, PK, E> SecondaryIndex<SK, PK, E> getSecondaryIndex(
-                PrimaryIndex<PK, E> primaryIndex, Class<SK> keyClass, String keyName) throws DatabaseException {
-            return delegate().getSecondaryIndex(primaryIndex, keyClass, keyName);
+        @Override protected BerkeleyIndex THIS() {
+            return this;
         }
 
-        /**
-         * @see EntityStore#getSubclassIndex(PrimaryIndex, Class, Class, String)
-         */
-        public <SK, PK, E1, E2 extends E1> SecondaryIndex<SK, PK, E2>
-            getSubclassIndex(PrimaryIndex<PK, E1> primaryIndex,
-                             Class<E2> entitySubclass, Class<SK> keyClass,
-                             String keyName) throws DatabaseException {
-            return delegate().getSubclassIndex(primaryIndex, entitySubclass, keyClass, keyName);
+        @Override protected void doClose() {
+            close();
+        }
+
+        @Override public StoredClassCatalog getCatalog() {
+            return catalog;
+        }
+        
+        protected BerkeleyIndex(BerkeleyEnv berkeleyEnv, BerkeleyDB berkeleyDB, 
+                                GenericKeyCreator<?, ?> genericKeyCreator, SecondaryDatabase delegate) {
+            super(berkeleyEnv);
+            this.delegate = delegate;
+            this.berkeleyDB = checkNotNull(berkeleyDB, "BerkeleyDB cannot be null");
+            this.catalog = checkNotNull(berkeleyDB.getCatalog(), "StoredClassCatalog cannot be null");
+            this.genericKeyCreator = genericKeyCreator;
         }
 
+    }
+    
+    /**
+     * 
+     */
+    public static abstract class BaseBerkeleyDatabase<M> extends Berkeley<M> {
+
+        protected BaseBerkeleyDatabase(BerkeleyEnv berkeleyEnv) {
+            super(berkeleyEnv);
+        }
+        
         /**
-         * @see EntityStore#evolve(EvolveConfig)
+         * Returns the data with given key and data class
          */
-        public EvolveStats evolve(EvolveConfig config) throws DatabaseException {
-            return delegate().evolve(config);
+        public <K, E> E get(K key, Class<?> clazz) {
+            return get(key, clazz, null);
         }
-
+        
         /**
-         * @see EntityStore#truncateClass(Class)
+         * Returns the data with given key and data class and {@link Transaction}
          */
-        public void truncateClass(Class<?> entityClass) throws DatabaseException {
-            delegate().truncateClass(entityClass);
+        public <K, E> E get(K key, Class<?> clazz, Transaction transaction) {
+            return get(key, getDataBinding(clazz), transaction);
         }
-
+        
         /**
-         * @see EntityStore#truncateClass(Transaction, Class)
+         * Returns the data with given key and data class and {@link Transaction} and {@link LockMode}
          */
-        public void truncateClass(Transaction txn, Class<?> entityClass) throws DatabaseException {
-            delegate().truncateClass(txn, entityClass);
+        public <K, E> E get(K key, Class<?> clazz, Transaction transaction, LockMode lockMode) {
+            return get(key, getDataBinding(clazz), transaction, lockMode);
         }
-
+ 
         /**
-         * @see EntityStore#sync()
+         * Returns the data with given key and data {@link EntryBinding}
          */
-        public void sync() throws DatabaseException {
-            delegate().sync();
+        public <K, E> E get(K key, EntryBinding<?> binding) {
+            return get(key, binding, null);
         }
         
         /**
-         * @see EntityStore#closeClass(Class)
+         * Returns the data with given key and data {@link EntryBinding} and {@link Transaction}
          */
-        public void closeClass(Class<?> entityClass) throws DatabaseException {
-            delegate().closeClass(entityClass);
+        public <K, E> E get(K key, EntryBinding<?> binding, Transaction transaction) {
+            return get(key, binding, transaction, LockMode.DEFAULT);
         }
-
+        
         /**
-         * @see EntityStore#close()
+         * 
          */
-        public void close() throws DatabaseException {
-            delegate().close();
+        @SuppressWarnings("unchecked") public <K, E> E get(K key, EntryBinding<?> binding, 
+                                                           Transaction transaction, LockMode lockMode) {
+            //Transaction, key DatabaseEntry, result DatabaseEntry, LockMode
+            DatabaseEntry data = new DatabaseEntry();
+            OperationStatus status = get(transaction, getEntry(key), data, checkNotNull(lockMode));
+            if (OperationStatus.SUCCESS == status) {
+                return (E) binding.entryToObject(data);
+            }
+            
+            log.warn(status.toString() + " with key: " + key);
+            return null;
         }
-
+        
         /**
-         * @see EntityStore#getSequence(String) 
+         * Returns matched {@link EntryBinding} with given target
          */
-        public Sequence getSequence(String name) throws DatabaseException {
-            return delegate().getSequence(name);
+        public <T, E> EntryBinding<E> getBinding(T target) {
+            return getBinding(target, getCatalog());
         }
-
+        
         /**
-         * @see EntityStore#getSequenceConfig(String)
+         * Returns {@link DatabaseEntry} instance with given target
          */
-        public SequenceConfig getSequenceConfig(String name) {
-            return delegate().getSequenceConfig(name);
+        public <T> DatabaseEntry getEntry(T target) {
+            return getEntry(target, getBinding(target));
         }
-
+        
         /**
-         * @see EntityStore#setSequenceConfig(String, SequenceConfig)
+         * Returns matched data {@link EntryBinding} with given target
+         * @see Berkeley#getDataBinding(Object, ClassCatalog)
          */
-        public void setSequenceConfig(String name, SequenceConfig config) {
-            delegate().setSequenceConfig(name, config);
+        public <T, E> EntryBinding<E> getDataBinding(T target) {
+            return getDataBinding(target, getCatalog());
         }
-
+        
         /**
-         * @see EntityStore#getPrimaryConfig(Class)
+         * Returns data {@link DatabaseEntry} instance with given target
          */
-        public DatabaseConfig getPrimaryConfig(Class<?> entityClass) {
-            return delegate().getPrimaryConfig(entityClass);
+        public <T> DatabaseEntry getDataEntry(T target) {
+            return getEntry(target, getDataBinding(target));
         }
-
+        
         /**
-         * @see EntityStore#setPrimaryConfig(Class, DatabaseConfig)
+         * Returns {@link DatabaseEntry} instance with given target and {@link EntryBinding}
          */
-        public void setPrimaryConfig(Class<?> entityClass, DatabaseConfig config) {
-            delegate().setPrimaryConfig(entityClass, config);
+        public <T> DatabaseEntry getEntry(T target, EntryBinding<T> binding) {
+            DatabaseEntry entry = new DatabaseEntry();
+            checkNotNull(binding, "The EntryBinding cannot be null.").objectToEntry(target, entry);
+            return entry;
         }
-
+        
+        public <E> E getValue(EntryBinding<E> binding, DatabaseEntry entry) {
+            return binding.entryToObject(entry);
+        }
+        
         /**
-         * @see EntityStore#getSecondaryConfig(Class, String)
+         * Returns the {@link StoredClassCatalog} instance
          */
-        public SecondaryConfig getSecondaryConfig(Class<?> entityClass, String keyName) {
-            return delegate().getSecondaryConfig(entityClass, keyName);
-        }
-
+        public abstract StoredClassCatalog getCatalog();
+        
         /**
-         * @see EntityStore#setSecondaryConfig(Class, String, SecondaryConfig)
+         * 
          */
-        public void setSecondaryConfig(Class<?> entityClass, String keyName, SecondaryConfig config) {
-            delegate().setSecondaryConfig(entityClass, keyName, config);
-        }
+        public abstract OperationStatus get(final Transaction txn, final DatabaseEntry key,
+                                   final DatabaseEntry data, LockMode lockMode)
+                                   throws LockConflictException, DatabaseException, IllegalArgumentException;
         
-        @Override protected EntityStore delegate() {
-            return checkNotNull(_store, "Please connect an EntityStore first.");
+    }
+    
+    /**
+     * 
+     */
+    public static abstract class DBEntryVisit<K, D> {
+        
+        public DBEntryVisit() {
+            Pair<Class<K>, Class<D>> clazzPair = getGenericSuperclass(getClass().getGenericSuperclass());
+            this.keyClazz = clazzPair.getL();
+            this.dataClazz = clazzPair.getR();
         }
-
-        @Override protected BerkeleyStore THIS() {
-            return this;
+        
+        public DBEntryVisit(boolean ascending) {
+            this();
+            this.ascending = ascending;
         }
-
-        @Override public void doClose() {
-            if (null != _store) {
-                close();
-            }
+        
+        protected abstract void apply(K key, D data);
+        
+        public Class<K> getKeyClass() {
+            return this.keyClazz;
         }
         
-        private EntityStore _store;
+        public Class<D> getDataClass() {
+            return this.dataClazz;
+        }
         
+        public boolean isAscending() {
+            return ascending;
+        }
+
+        public void setAscending(boolean ascending) {
+            this.ascending = ascending;
+        }
+
+        private boolean ascending = true;
+        private Class<K> keyClazz = null;
+        private Class<D> dataClazz = null;
     }
     
-   /**
-    * @see SecondaryKeyCreator
-    */
-   public static abstract class GenericKeyCreator<SK, D> implements SecondaryKeyCreator {
-       
-       @Override public boolean createSecondaryKey(SecondaryDatabase secondary,
-                                                   DatabaseEntry key, DatabaseEntry data, DatabaseEntry result) {
-           D d = null;
-           this.primaryKey = key;
-           this.secondary = secondary;
-           try {
-               d = dataBinding.entryToObject(data);
-           } catch (Exception e) {
-               return false;
-           }
-           secKeyBinding.objectToEntry(createSecondaryKey(d), result);
-           return true;
-       }
-       
-       /**
-        * @see SecondaryKeyCreator#createSecondaryKey(SecondaryDatabase, DatabaseEntry, DatabaseEntry, DatabaseEntry)
-        */
-       protected abstract SK createSecondaryKey(D data);
-       
-       protected void initBinding(ClassCatalog catalog) {
-           if (null != this.secKeyBinding && null != this.dataBinding) {
-               return;
-           }
-           
-           Pair<Class<SK>, Class<D>> clazzPair = getGenericSuperclass(getClass().getGenericSuperclass());
-           this.secKeyBinding = getBinding(clazzPair.getL(), checkNotNull(catalog, "ClassCatalog cannot be null"));
-           this.dataBinding = getBinding(clazzPair.getR(), catalog);
-       }
-       
-       public EntryBinding<D> getDataBinding() {
-           return dataBinding;
-       }
-       
-       public EntryBinding<SK> getSecondaryKeyBinding() {
-           return secKeyBinding;
-       }
-       
-       private EntryBinding<D> dataBinding;
-       private EntryBinding<SK> secKeyBinding;
-       
-       protected DatabaseEntry primaryKey;
-       protected SecondaryDatabase secondary;
-   }
-    
-   /**
-    * @see SecondaryDatabase
-    */
-    public static class BerkeleyIndex extends BaseBerkeleyDatabase<BerkeleyIndex> {
+    /**
+     * Visits the raw bytes of the records without deserializing, the slices are only valid during the apply 
+     * since the entries of the cursor are reused, and the data slice is the partial bytes if the data entry 
+     * is partial. The filters run against the encoded bytes and decode the matching records only
+     * @see BaseBerkeleyCursor#rawVisit(DatabaseEntry, DatabaseEntry, LockMode, RawEntryVisit)
+     */
+    public static abstract class RawEntryVisit {
         
-        /**
-         * Returns the data with given key.
-         * Or throw new UnsupportedOperationException if key creator is not {@link GenericKeyCreator} instance
-         */
-        public <K, E> E get(K key) {
-            if (null != genericKeyCreator) {
-                return get(key, genericKeyCreator.getDataBinding());
-            }
-            
-            throw new UnsupportedOperationException(
-                    "Operation not allowed with null GenericKeyCreator, using get(K key, Class<?> clazz) instead.");
+        public RawEntryVisit() { }
+        
+        public RawEntryVisit(boolean ascending) {
+            this.ascending = ascending;
         }
         
         /**
-         * Returns the {@link BerkeleyDB} instance
+         * Visits the given key and data slices, returns true if the record is accepted, which is counted to the page
          */
-        public BerkeleyDB getBerkeleyDatabase() {
-            return this.berkeleyDB;
+        protected abstract boolean apply(byte[] key, int keyOffset, int keyLength, 
+                                         byte[] data, int dataOffset, int dataLength);
+        
+        public boolean isAscending() {
+            return ascending;
         }
 
-        /**
-         * @see SecondaryDatabase#sync()
-         */
-        public void sync() throws DatabaseException, UnsupportedOperationException {
-            delegate().sync();
+        public void setAscending(boolean ascending) {
+            this.ascending = ascending;
+        }
+
+        private boolean ascending = true;
+    }
+    
+    /**
+     * Collects the writes and applies them in one transaction per batch size of writes, a failed batch is 
+     * aborted and discarded. The writes are applied without transaction if the database is not transactional
+     */
+    public static abstract class WriteBatch<W> implements Closeable {
+        
+        protected WriteBatch(Environment environment, boolean transactional, int batchSize, Durability durability) {
+            checkArgument(batchSize > 0, "The batch size must be positive, but is %s", batchSize);
+            this.environment = checkNotNull(environment, "The environment cannot be null.");
+            this.transactional = transactional;
+            this.batchSize = batchSize;
+            this.txnConfig = new TransactionConfig().setDurability(durability);
+            this.writes = Lists.newArrayListWithCapacity(batchSize);
         }
-
+        
         /**
-         * @see SecondaryDatabase#openSequence(Transaction, DatabaseEntry, SequenceConfig)
+         * Applies the given writes with the given transaction, which is null if not transactional
          */
-        public Sequence openSequence(final Transaction txn, final DatabaseEntry key,
-                                     final SequenceConfig config) throws SequenceNotFoundException,
-                SequenceExistsException {
-            return delegate().openSequence(txn, key, config);
-        }
-
+        protected abstract void apply(List<W> writes, Transaction txn);
+        
         /**
-         * @see SecondaryDatabase#removeSequence(Transaction, DatabaseEntry)
+         * Invoked after the given writes committed
          */
-        public void removeSequence(final Transaction txn, final DatabaseEntry key) throws DatabaseException {
-            delegate().removeSequence(txn, key);
-        }
-
+        protected void committed(List<W> writes) { }
+        
         /**
-         * @see SecondaryDatabase#openCursor(DiskOrderedCursorConfig)
+         * Collects the given write, applies the collected writes if the batch is full
          */
-        public DiskOrderedCursor openCursor(final DiskOrderedCursorConfig cursorConfig)
-                throws DatabaseException, IllegalArgumentException {
-            return delegate().openCursor(cursorConfig);
+        protected void add(W write) {
+            writes.add(write);
+            if (writes.size() >= batchSize) {
+                flush();
+            }
         }
-
+        
         /**
-         * @see SecondaryDatabase#preload(PreloadConfig)
+         * Applies the collected writes in one transaction
          */
-        public PreloadStats preload(final PreloadConfig config) throws DatabaseException {
-            return delegate().preload(config);
+        public void flush() {
+            if (writes.isEmpty()) {
+                return;
+            }
+            
+            Transaction txn = transactional ? environment.beginTransaction(null, txnConfig) : null;
+            try {
+                apply(writes, txn);
+                if (null != txn) {
+                    txn.commit();
+                    txn = null;
+                }
+                applied += writes.size();
+                committed(writes);
+            } finally {
+                writes.clear();
+                if (null != txn) {
+                    txn.abort();
+                }
+            }
         }
-
+        
         /**
-         * @see SecondaryDatabase#count()
+         * Applies the remaining writes
          */
-        public long count() throws DatabaseException {
-            return delegate().count();
+        @Override public void close() {
+            flush();
         }
-
+        
         /**
-         * @see SecondaryDatabase#count(long)
+         * Returns the number of applied writes
          */
-        public long count(long memoryLimit) throws DatabaseException {
-            return delegate().count(memoryLimit);
+        public long getApplied() {
+            return applied;
         }
-
+        
+        private long applied = 0;
+        private final int batchSize;
+        private final boolean transactional;
+        private final List<W> writes;
+        private final Environment environment;
+        private final TransactionConfig txnConfig;
+    }
+    
+    /**
+     * {@link WriteBatch} of {@link BerkeleyDB}, the writes of a batch are applied in key order, 
+     * and the later write of the same key wins
+     */
+    public static class BerkeleyWriteBatch extends WriteBatch<byte[][]> {
+        
+        protected BerkeleyWriteBatch(BerkeleyDB berkeleyDB, int batchSize, Durability durability) {
+            super(berkeleyDB.getEnvironment(), berkeleyDB.getDatabase().getConfig().getTransactional(), batchSize, durability);
+            this.berkeleyDB = berkeleyDB;
+            this.comparator = firstNonNull(berkeleyDB.getDatabase().getConfig().getBtreeComparator(), 
+                    UnsignedBytes.lexicographicalComparator());
+        }
+        
         /**
-         * @see SecondaryDatabase#getStats(StatsConfig)
+         * @see BerkeleyDB#put(Object, Object)
          */
-        public DatabaseStats getStats(final StatsConfig config) throws DatabaseException {
-            return delegate().getStats(config);
+        public <K, V> BerkeleyWriteBatch put(K key, V value) {
+            add(new byte[][] { bytesOf(berkeleyDB.getEntry(checkNotNull(key, "The key cannot be null."))), 
+                    bytesOf(berkeleyDB.getDataEntry(checkNotNull(value, "The value cannot be null."))) });
+            return this;
         }
-
+        
         /**
-         * @see SecondaryDatabase#verify(VerifyConfig)
+         * @see BerkeleyDB#delete(Transaction, DatabaseEntry)
          */
-        public DatabaseStats verify(final VerifyConfig config) throws DatabaseException {
-            return delegate().verify(config);
+        public <K> BerkeleyWriteBatch delete(K key) {
+            add(new byte[][] { bytesOf(berkeleyDB.getEntry(checkNotNull(key, "The key cannot be null."))), null });
+            return this;
         }
-
+        
         /**
-         * @see SecondaryDatabase#getDatabaseName()
+         * Suspends the maintenance of the opened secondary indexes until the batch is closed, 
+         * then the indexes are rebuilt from the primary database
+         * @see BerkeleyIndex#suspend()
          */
-        public String getDatabaseName() throws DatabaseException {
-            return delegate().getDatabaseName();
+        public BerkeleyWriteBatch deferSecondaries() {
+            flush();
+            for (BerkeleyIndex index : berkeleyDB.indexes) {
+                index.suspend();
+                deferred.add(index);
+            }
+            return this;
         }
-
+        
+        @Override protected void apply(List<byte[][]> writes, Transaction txn) {
+            Collections.sort(writes, new Comparator<byte[][]>() {
+                
+                @Override public int compare(byte[][] o1, byte[][] o2) {
+                    return comparator.compare(o1[0], o2[0]);
+                }
+            });
+            
+            DatabaseEntry key = new DatabaseEntry(), data = new DatabaseEntry();
+            for (byte[][] write : writes) {
+                key.setData(write[0]);
+                if (null == write[1]) {
+                    berkeleyDB.delete(txn, key);
+                } else {
+                    data.setData(write[1]);
+                    berkeleyDB.put(txn, key, data);
+                }
+            }
+        }
+        
         /**
-         * @see SecondaryDatabase#getEnvironment()
+         * Applies the remaining writes and resumes the deferred secondary indexes
          */
-        public Environment getEnvironment() {
-            return delegate().getEnvironment();
+        @Override public void close() {
+            try {
+                super.close();
+            } finally {
+                for (BerkeleyIndex index : deferred) {
+                    index.resume();
+                }
+                deferred.clear();
+            }
         }
-
+        
+        private final BerkeleyDB berkeleyDB;
+        private final Comparator<byte[]> comparator;
+        private final List<BerkeleyIndex> deferred = Lists.newArrayList();
+    }
+    
+    /**
+     * Negative lookup Bloom filter over the primary keys of an entity class, shared by the data accesses of the 
+     * same entity class on the same {@link BerkeleyStore}. The filter is loaded from its own database if persisted, 
+     * otherwise built from a scan of the primary keys. The loaded record is removed until the filter is persisted 
+     * again, so that the filter is rebuilt after a crash instead of missing the keys written since loaded
+     * @see BerkeleyAccess#enableBloomFilter(long, double)
+     */
+    public static class EntityBloomFilter<PK> {
+        
+        protected EntityBloomFilter(Environment environment, String databaseName, 
+                Class<?> entityClass, PrimaryIndex<PK, ?> index, long expectedInsertions, double fpp) {
+            this.keyBinding = index.getKeyBinding();
+            this.filterKey = entityClass.getName().getBytes(Charsets.UTF_8);
+            this.database = environment.openDatabase(null, checkNotNull(databaseName), defaultDatabaseConfig());
+            
+            DatabaseEntry key = new DatabaseEntry(filterKey), data = new DatabaseEntry();
+            if (OperationStatus.SUCCESS == database.get(null, key, data, null)) {
+                try {
+                    this.filter = BloomFilter.readFrom(new ByteArrayInputStream(
+                            data.getData(), data.getOffset(), data.getSize()), Funnels.byteArrayFunnel());
+                } catch (IOException e) {
+                    throw Throwables.propagate(e);
+                }
+                database.delete(null, key);
+            } else {
+                this.filter = BloomFilter.create(Funnels.byteArrayFunnel(), expectedInsertions, fpp);
+                
+                Cursor cursor = index.getDatabase().openCursor(null, null);
+                try {
+                    data.setPartial(0, 0, true);
+                    while (OperationStatus.SUCCESS == cursor.getNext(key, data, LockMode.READ_UNCOMMITTED)) {
+                        filter.put(bytesOf(key));
+                    }
+                } finally {
+                    cursor.close();
+                }
+            }
+        }
+        
         /**
-         * @see SecondaryDatabase#compareKeys(DatabaseEntry, DatabaseEntry)
+         * Returns false if the given key definitely does not exist
          */
-        public int compareKeys(final DatabaseEntry entry1, final DatabaseEntry entry2) {
-            return delegate().compareKeys(entry1, entry2);
+        public boolean mightContain(PK key) {
+            byte[] bytes = keyBytes(key);
+            lock.readLock().lock();
+            try {
+                return filter.mightContain(bytes);
+            } finally {
+                lock.readLock().unlock();
+            }
         }
-
+        
         /**
-         * @see SecondaryDatabase#compareDuplicates(DatabaseEntry,
-         *      DatabaseEntry)
+         * Puts the given key, which should be put before the key is committed
          */
-        public int compareDuplicates(final DatabaseEntry entry1, final DatabaseEntry entry2) {
-            return delegate().compareDuplicates(entry1, entry2);
+        public void put(PK key) {
+            byte[] bytes = keyBytes(key);
+            lock.writeLock().lock();
+            try {
+                filter.put(bytes);
+            } finally {
+                lock.writeLock().unlock();
+            }
         }
-
-        private BerkeleyDB berkeleyDB = null;
-        private SecondaryDatabase delegate = null;
-        private StoredClassCatalog catalog = null;
-        private GenericKeyCreator<?, ?> genericKeyCreator = null;
-
+        
         /**
-         * @see SecondaryDatabase#close()
+         * Returns the expected false positive probability of current filter
          */
-        public synchronized void close() throws DatabaseException {
-            delegate().close();
+        public double expectedFpp() {
+            lock.readLock().lock();
+            try {
+                return filter.expectedFpp();
+            } finally {
+                lock.readLock().unlock();
+            }
         }
-
+        
         /**
-         * @see SecondaryDatabase#getPrimaryDatabase()
+         * Writes the filter to its database
          */
-        public Database getPrimaryDatabase() {
-            return delegate().getPrimaryDatabase();
+        public void persist() {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            lock.readLock().lock();
+            try {
+                filter.writeTo(out);
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            } finally {
+                lock.readLock().unlock();
+            }
+            database.put(null, new DatabaseEntry(filterKey), new DatabaseEntry(out.toByteArray()));
         }
-
+        
         /**
-         * @see SecondaryDatabase#getConfig()
+         * Persists the filter and closes its database
          */
-        public SecondaryConfig getConfig() throws DatabaseException {
-            return delegate().getConfig();
+        public void close() {
+            try {
+                persist();
+            } finally {
+                database.close();
+            }
         }
         
-        public BerkeleyIndexCursor opensCursor(Transaction txn, CursorConfig cursorConfig) {
-            return new BerkeleyIndexCursor(getEnv(), this, openCursor(txn, cursorConfig));
+        private byte[] keyBytes(PK key) {
+            DatabaseEntry entry = new DatabaseEntry();
+            keyBinding.objectToEntry(checkNotNull(key, "The key cannot be null."), entry);
+            return bytesOf(entry);
         }
-
+        
+        private final byte[] filterKey;
+        private final Database database;
+        private final BloomFilter<byte[]> filter;
+        private final EntryBinding<PK> keyBinding;
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    }
+    
+    /**
+     * Read-through entity cache of {@link BerkeleyAccess}, shared by the data accesses of the same entity class 
+     * on the same {@link BerkeleyStore}. The entities are cached by primary key, and by secondary key name and 
+     * key in the same cache that the bounds of the {@link CacheBuilder} apply to all of the entries. A write 
+     * invalidates the primary key and the secondary keys the entity was cached by after commit. The entity of 
+     * a non-unique secondary key is any one of the entities with the key. The cached entities are shared by 
+     * the readers and should not be modified
+     * @see BerkeleyAccess#enableCache(CacheBuilder)
+     */
+    public static class EntityCache<PK, E> {
+        
+        protected EntityCache(CacheBuilder<Object, Object> cacheBuilder, Function<? super E, PK> primaryKey) {
+            checkNotNull(cacheBuilder, "The CacheBuilder cannot be null.");
+            this.cache = cacheBuilder.build();
+            this.primaryKey = checkNotNull(primaryKey);
+        }
+        
         /**
-         * @see SecondaryDatabase#openCursor(Transaction, CursorConfig)
+         * Returns the cached entity of given primary key, or loads it from given index
          */
-        public SecondaryCursor openCursor(final Transaction txn, final CursorConfig cursorConfig)
-                throws DatabaseException {
-            return delegate().openCursor(txn, cursorConfig);
+        public E get(PK key, PrimaryIndex<PK, E> index) {
+            CachedEntity<E> cached = getCached(key);
+            if (null != cached) {
+                return cached.entity;
+            }
+            
+            long generation = writes.get();
+            E entity = index.get(key);
+            if (null != entity) {
+                cache.put(key, new CachedEntity<E>(entity));
+                //the entity may be written during the loading
+                if (generation != writes.get()) {
+                    invalidateCached(key);
+                }
+            }
+            return entity;
         }
-
+        
         /**
-         * @see SecondaryDatabase#delete(Transaction, DatabaseEntry)
+         * Returns the cached entity of given secondary key, or loads it from given index
          */
-        public OperationStatus delete(final Transaction txn, final DatabaseEntry key)
-                throws DeleteConstraintException, LockConflictException, DatabaseException,
-                UnsupportedOperationException, IllegalArgumentException {
-            return delegate().delete(txn, key);
+        public <SK> E get(String keyName, SK key, SecondaryIndex<SK, PK, E> index) {
+            List<Object> cacheKey = Arrays.<Object>asList(keyName, key);
+            Object cachedKey = cache.getIfPresent(cacheKey);
+            CachedEntity<E> cached = null == cachedKey ? null : getCached(cachedKey);
+            //the entity is no longer cached by the key once written
+            if (null != cached && cached.keys.contains(cacheKey)) {
+                return cached.entity;
+            }
+            
+            long generation = writes.get();
+            E entity = null;
+            ForwardCursor<E> cursor = index.subIndex(key).entities();
+            try {
+                entity = cursor.next();
+            } finally {
+                cursor.close();
+            }
+            
+            if (null != entity) {
+                PK entityKey = primaryKey.apply(entity);
+                if (null == (cached = getCached(entityKey))) {
+                    cache.put(entityKey, cached = new CachedEntity<E>(entity));
+                }
+                cached.keys.add(cacheKey);
+                cache.put(cacheKey, entityKey);
+                if (generation != writes.get()) {
+                    invalidateCached(entityKey);
+                }
+                return cached.entity;
+            }
+            return null;
         }
-
+        
         /**
-         * @see SecondaryDatabase#get(Transaction, DatabaseEntry, DatabaseEntry,
-         *      LockMode)
+         * Invalidates the entity of given primary key, and the secondary keys it was cached by
          */
-        @Override public OperationStatus get(final Transaction txn, final DatabaseEntry key,
-                                   final DatabaseEntry data, final LockMode lockMode)
-                throws DatabaseException {
-            return delegate().get(txn, key, data, lockMode);
+        public void invalidate(PK key) {
+            writes.incrementAndGet();
+            invalidateCached(key);
         }
-
+        
         /**
-         * @see SecondaryDatabase#get(Transaction, DatabaseEntry, DatabaseEntry,
-         *      DatabaseEntry, LockMode)
+         * Invalidates all of the entities
          */
-        public OperationStatus get(final Transaction txn, final DatabaseEntry key,
-                                   final DatabaseEntry pKey, final DatabaseEntry data,
-                                   LockMode lockMode) throws DatabaseException {
-            return delegate().get(txn, key, pKey, data, lockMode);
+        public void invalidateAll() {
+            writes.incrementAndGet();
+            cache.invalidateAll();
         }
-
+        
         /**
-         * @see SecondaryDatabase#get(Transaction, DatabaseEntry, DatabaseEntry,
-         *      DatabaseEntry, LockMode)
+         * Returns the number of the cached primary and secondary keys
+         * @see Cache#size()
          */
-        public OperationStatus getSearchBoth(final Transaction txn, final DatabaseEntry key,
-                                             final DatabaseEntry pKey, final DatabaseEntry data,
-                                             LockMode lockMode) throws DatabaseException {
-            return delegate().getSearchBoth(txn, key, pKey, data, lockMode);
-        }
-
-        @Override protected SecondaryDatabase delegate() {
-            return checkNotNull(delegate, "The SecondaryDatabase delegate cannot be null");
+        public long size() {
+            return cache.size();
         }
-
-        @Override protected BerkeleyIndex THIS() {
-            return this;
+        
+        /**
+         * Returns the hit, miss and eviction stats of the primary and secondary keys, records if the 
+         * {@link CacheBuilder#recordStats()} is enabled
+         */
+        public CacheStats stats() {
+            return cache.stats();
         }
-
-        @Override protected void doClose() {
-            delegate().close();
+        
+        @SuppressWarnings("unchecked")
+        private CachedEntity<E> getCached(Object key) {
+            return (CachedEntity<E>) cache.getIfPresent(key);
         }
-
-        @Override public StoredClassCatalog getCatalog() {
-            return catalog;
+        
+        private void invalidateCached(Object key) {
+            CachedEntity<E> cached = getCached(key);
+            cache.invalidate(key);
+            if (null != cached) {
+                cache.invalidateAll(cached.keys);
+            }
         }
         
-        protected BerkeleyIndex(BerkeleyEnv berkeleyEnv, BerkeleyDB berkeleyDB, 
-                                GenericKeyCreator<?, ?> genericKeyCreator, SecondaryDatabase delegate) {
-            super(berkeleyEnv);
-            this.delegate = delegate;
-            this.berkeleyDB = checkNotNull(berkeleyDB, "BerkeleyDB cannot be null");
-            this.catalog = checkNotNull(berkeleyDB.getCatalog(), "StoredClassCatalog cannot be null");
-            this.genericKeyCreator = genericKeyCreator;
+        /**
+         * The cached entity and the secondary keys it was cached by
+         */
+        private static final class CachedEntity<E> {
+            
+            private CachedEntity(E entity) {
+                this.entity = entity;
+            }
+            
+            private final E entity;
+            private final Set<Object> keys = Sets.newConcurrentHashSet();
         }
-
+        
+        // The primary keys to the cached entities, and the secondary keys to the primary keys
+        private final Cache<Object, Object> cache;
+        private final Function<? super E, PK> primaryKey;
+        // The write generation
+        private final AtomicLong writes = new AtomicLong();
     }
     
     /**
-     * 
+     * Lock-free ID allocator over an increasing {@link Sequence}, reserves blocks of IDs from the sequence with 
+     * one {@link Sequence#get(Transaction, int)} and hands them out with an {@link AtomicLong}. The block is shared 
+     * by all of the callers, or reserved per thread if thread local. The unused IDs of the reserved blocks are lost 
+     * when the allocator is discarded or the process crashes, the IDs are unique but may have gaps
+     * @see Berkeley#idAllocator(String, int, boolean)
      */
-    public static abstract class BaseBerkeleyDatabase<M> extends Berkeley<M> {
-
-        protected BaseBerkeleyDatabase(BerkeleyEnv berkeleyEnv) {
-            super(berkeleyEnv);
+    public static class IdAllocator {
+        
+        protected IdAllocator(Sequence sequence, int blockSize, boolean threadLocal) {
+            checkArgument(blockSize > 0, "The block size must be positive, but is %s", blockSize);
+            this.sequence = checkNotNull(sequence, "Sequence cannot be null.");
+            this.blockSize = blockSize;
+            this.threadLocal = threadLocal;
+        }
+        
+        /**
+         * Returns the next ID, reserves a new block from the sequence if the current block is exhausted
+         */
+        public long next() {
+            if (threadLocal) {
+                IdBlock block = local.get();
+                if (null == block || !block.hasNext()) {
+                    local.set(block = reserve());
+                }
+                return block.next.getAndIncrement();
+            }
+            
+            for (;;) {
+                IdBlock block = shared.get();
+                long id = block.next.getAndIncrement();
+                if (id < block.end) {
+                    return id;
+                }
+                synchronized (this) {
+                    if (shared.get() == block) {
+                        shared.set(reserve());
+                    }
+                }
+            }
         }
         
         /**
-         * Returns the data with given key and data class
+         * Returns the block size
          */
-        public <K, E> E get(K key, Class<?> clazz) {
-            return get(key, clazz, null);
+        public int getBlockSize() {
+            return blockSize;
         }
         
         /**
-         * Returns the data with given key and data class and {@link Transaction}
+         * Returns the count of the blocks reserved from the sequence
          */
-        public <K, E> E get(K key, Class<?> clazz, Transaction transaction) {
-            return get(key, getBinding(clazz), transaction);
+        public long getReserved() {
+            return reserved.get();
         }
         
-        /**
-         * Returns the data with given key and data class and {@link Transaction} and {@link LockMode}
-         */
-        public <K, E> E get(K key, Class<?> clazz, Transaction transaction, LockMode lockMode) {
-            return get(key, getBinding(clazz), transaction, lockMode);
+        private IdBlock reserve() {
+            long first = sequence.get(null, blockSize);
+            reserved.incrementAndGet();
+            return new IdBlock(first, first + blockSize);
         }
- 
+        
+        private static class IdBlock {
+            
+            IdBlock(long first, long end) {
+                this.next = new AtomicLong(first);
+                this.end = end;
+            }
+            
+            boolean hasNext() {
+                return next.get() < end;
+            }
+            
+            final AtomicLong next;
+            final long end;
+        }
+        
+        private final Sequence sequence;
+        private final int blockSize;
+        private final boolean threadLocal;
+        private final AtomicLong reserved = new AtomicLong();
+        private final AtomicReference<IdBlock> shared = new AtomicReference<IdBlock>(new IdBlock(0, 0));
+        private final ThreadLocal<IdBlock> local = new ThreadLocal<IdBlock>();
+    }
+    
+    /**
+     * A write of {@link AsyncWriter}, applied with the transaction of the group commit
+     */
+    public static abstract class AsyncWrite<T> {
+        
         /**
-         * Returns the data with given key and data {@link EntryBinding}
+         * Applies the write with given transaction, which is null if not transactional
          */
-        public <K, E> E get(K key, EntryBinding<?> binding) {
-            return get(key, binding, null);
-        }
+        protected abstract T apply(Transaction txn);
         
         /**
-         * Returns the data with given key and data {@link EntryBinding} and {@link Transaction}
+         * Invoked after the transaction committed, before the future completed
          */
-        public <K, E> E get(K key, EntryBinding<?> binding, Transaction transaction) {
-            return get(key, binding, transaction, LockMode.DEFAULT);
+        protected void committed(T result) { }
+        
+    }
+    
+    /**
+     * Asynchronous writer with group commit, a single writer thread drains the submitted writes and applies 
+     * up to max batch of them in one transaction, so that one commit completes many futures. If a group 
+     * fails, its writes are retried in their own transaction to isolate the failed ones. Without transactions 
+     * each write is applied and completed on its own since the applied writes cannot be rolled back
+     */
+    public static class AsyncWriter implements Closeable {
+        
+        protected AsyncWriter(Environment environment, boolean transactional, int maxBatch, Durability durability) {
+            checkArgument(maxBatch > 0, "The max batch must be positive, but is %s", maxBatch);
+            this.environment = checkNotNull(environment, "The environment cannot be null.");
+            this.transactional = transactional;
+            this.maxBatch = maxBatch;
+            this.txnConfig = new TransactionConfig().setDurability(durability);
+            this.pending = new LinkedBlockingQueue<AsyncTask<?>>(maxBatch * 16);
+            this.writer = new ThreadFactoryBuilder().setDaemon(true)
+                    .setNameFormat("berkeley-async-writer-%d").build().newThread(new Runnable() {
+                
+                @Override public void run() {
+                    List<AsyncTask<?>> group = Lists.newArrayListWithCapacity(AsyncWriter.this.maxBatch);
+                    try {
+                        while (!closed || !pending.isEmpty()) {
+                            AsyncTask<?> first = pending.poll(100, TimeUnit.MILLISECONDS);
+                            if (null == first) {
+                                continue;
+                            }
+                            
+                            group.add(first);
+                            pending.drainTo(group, AsyncWriter.this.maxBatch - 1);
+                            try {
+                                commit(group);
+                            } catch (Throwable e) {
+                                for (AsyncTask<?> task : group) {
+                                    task.future.setException(e);
+                                }
+                                if (!AsyncWriter.this.environment.isValid()) {
+                                    closed = true;
+                                }
+                            }
+                            group.clear();
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        IllegalStateException stopped = new IllegalStateException("The async writer has been stopped.");
+                        for (AsyncTask<?> task : group) {
+                            task.future.setException(stopped);
+                        }
+                        for (AsyncTask<?> task = pending.poll(); null != task; task = pending.poll()) {
+                            task.future.setException(stopped);
+                        }
+                    }
+                }
+            });
+            this.writer.start();
         }
         
         /**
-         * 
+         * Submits the given write, blocks if there are too many pending writes
          */
-        @SuppressWarnings("unchecked") public <K, E> E get(K key, EntryBinding<?> binding, 
-                                                           Transaction transaction, LockMode lockMode) {
-            //Transaction, key DatabaseEntry, result DatabaseEntry, LockMode
-            DatabaseEntry data = new DatabaseEntry();
-            OperationStatus status = get(transaction, getEntry(key), data, checkNotNull(lockMode));
-            if (OperationStatus.SUCCESS == status) {
-                return (E) binding.entryToObject(data);
+        public <T> ListenableFuture<T> submit(AsyncWrite<T> write) {
+            AsyncTask<T> task = new AsyncTask<T>(checkNotNull(write, "The async write cannot be null."));
+            try {
+                while (!closed) {
+                    if (pending.offer(task, 100, TimeUnit.MILLISECONDS)) {
+                        return task.future;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Futures.immediateFailedFuture(e);
             }
             
-            log.warn(status.toString() + " with key: " + key);
-            return null;
+            return Futures.immediateFailedFuture(new IllegalStateException("The async writer has been closed."));
         }
         
         /**
-         * Returns matched {@link EntryBinding} with given target
+         * Applies the pending writes and stops the writer thread
          */
-        public <T, E> EntryBinding<E> getBinding(T target) {
-            return getBinding(target, getCatalog());
+        @Override public void close() {
+            closed = true;
+            try {
+                writer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
         }
         
-        /**
-         * Returns {@link DatabaseEntry} instance with given target
-         */
-        public <T> DatabaseEntry getEntry(T target) {
-            return getEntry(target, getBinding(target));
+        private void commit(List<AsyncTask<?>> group) {
+            if (!transactional) {
+                for (AsyncTask<?> task : group) {
+                    try {
+                        task.apply(null);
+                    } catch (Throwable e) {
+                        task.future.setException(e);
+                        continue;
+                    }
+                    task.done();
+                }
+                return;
+            }
+            
+            Transaction txn = null;
+            try {
+                txn = environment.beginTransaction(null, txnConfig);
+                for (AsyncTask<?> task : group) {
+                    task.apply(txn);
+                }
+                txn.commit();
+                txn = null;
+            } catch (Throwable e) {
+                abortQuietly(txn);
+                if (1 == group.size()) {
+                    group.get(0).future.setException(e);
+                } else {
+                    for (AsyncTask<?> task : group) {
+                        commit(Collections.<AsyncTask<?>>singletonList(task));
+                    }
+                }
+                return;
+            }
+            
+            for (AsyncTask<?> task : group) {
+                task.done();
+            }
+        }
+        
+        private void abortQuietly(Transaction txn) {
+            if (null != txn) {
+                try {
+                    txn.abort();
+                } catch (Throwable e) {
+                    log.warn("Abort the async write transaction error: " + e.getMessage());
+                }
+            }
         }
         
         /**
-         * Returns {@link DatabaseEntry} instance with given target and {@link EntryBinding}
+         * 
          */
-        public <T> DatabaseEntry getEntry(T target, EntryBinding<T> binding) {
-            DatabaseEntry entry = new DatabaseEntry();
-            checkNotNull(binding, "The EntryBinding cannot be null.").objectToEntry(target, entry);
-            return entry;
-        }
+        private static class AsyncTask<T> {
+            
+            AsyncTask(AsyncWrite<T> write) {
+                this.write = write;
+            }
+            
+            void apply(Transaction txn) {
+                result = write.apply(txn);
+            }
+            
+            /**
+             * Completes the future with the result of the committed write, even if the callback failed
+             */
+            void done() {
+                try {
+                    write.committed(result);
+                } catch (Throwable e) {
+                    log.warn("The committed callback of the async write error: " + e.getMessage());
+                } finally {
+                    future.set(result);
+                }
+            }
+            
+            private T result = null;
+            private final AsyncWrite<T> write;
+            private final SettableFuture<T> future = SettableFuture.create();
+        }
+        
+        private final int maxBatch;
+        private final boolean transactional;
+        private final Thread writer;
+        private final Environment environment;
+        private final TransactionConfig txnConfig;
+        private final BlockingQueue<AsyncTask<?>> pending;
+        private volatile boolean closed = false;
+    }
+    
+    /**
+     * {@link AsyncWriter} of {@link BerkeleyDB}
+     */
+    public static class AsyncBerkeleyWriter extends AsyncWriter {
         
-        public <E> E getValue(EntryBinding<E> binding, DatabaseEntry entry) {
-            return binding.entryToObject(entry);
+        protected AsyncBerkeleyWriter(BerkeleyDB berkeleyDB, int maxBatch, Durability durability) {
+            super(berkeleyDB.getEnvironment(), berkeleyDB.getDatabase().getConfig().getTransactional(), maxBatch, durability);
+            this.berkeleyDB = berkeleyDB;
         }
         
         /**
-         * Returns the {@link StoredClassCatalog} instance
+         * @see BerkeleyDB#put(Object, Object)
          */
-        public abstract StoredClassCatalog getCatalog();
+        public <K, V> ListenableFuture<OperationStatus> put(K key, V value) {
+            final DatabaseEntry keyEntry = new DatabaseEntry(bytesOf(berkeleyDB.getEntry(checkNotNull(key, "The key cannot be null."))));
+            final DatabaseEntry dataEntry = new DatabaseEntry(bytesOf(berkeleyDB.getDataEntry(checkNotNull(value, "The value cannot be null."))));
+            return submit(new AsyncWrite<OperationStatus>() {
+                
+                @Override protected OperationStatus apply(Transaction txn) {
+                    return berkeleyDB.put(txn, keyEntry, dataEntry);
+                }
+            });
+        }
         
         /**
-         * 
+         * @see BerkeleyDB#delete(Transaction, DatabaseEntry)
          */
-        public abstract OperationStatus get(final Transaction txn, final DatabaseEntry key,
-                                   final DatabaseEntry data, LockMode lockMode)
-                                   throws LockConflictException, DatabaseException, IllegalArgumentException;
+        public <K> ListenableFuture<OperationStatus> delete(K key) {
+            final DatabaseEntry keyEntry = new DatabaseEntry(bytesOf(berkeleyDB.getEntry(checkNotNull(key, "The key cannot be null."))));
+            return submit(new AsyncWrite<OperationStatus>() {
+                
+                @Override protected OperationStatus apply(Transaction txn) {
+                    return berkeleyDB.delete(txn, keyEntry);
+                }
+            });
+        }
         
+        private final BerkeleyDB berkeleyDB;
     }
     
     /**
-     * 
+     * Aggregate visitor of {@link BerkeleyDB#parallelScan(DBEntryScan, int)}, each worker visits the entries 
+     * into its own partial result that the partial results are merged at the end
      */
-    public static abstract class DBEntryVisit<K, D> {
+    public static abstract class DBEntryScan<K, D, R> {
         
-        public DBEntryVisit() {
+        public DBEntryScan() {
             Pair<Class<K>, Class<D>> clazzPair = getGenericSuperclass(getClass().getGenericSuperclass());
             this.keyClazz = clazzPair.getL();
             this.dataClazz = clazzPair.getR();
         }
         
-        public DBEntryVisit(boolean ascending) {
-            this();
-            this.ascending = ascending;
-        }
+        /**
+         * Returns a new partial result for a worker
+         */
+        protected abstract R newResult();
         
-        protected abstract void apply(K key, D data);
+        /**
+         * Visits the given entry into the partial result of current worker, returns the partial result
+         */
+        protected abstract R apply(R result, K key, D data);
+        
+        /**
+         * Merges the given partial results, the left one is before the right one in key range scan
+         */
+        protected abstract R merge(R left, R right);
         
         public Class<K> getKeyClass() {
             return this.keyClazz;
@@ -1402,17 +5578,73 @@ public abstract class Berkeley<M> extends ForwardingObject {
             return this.dataClazz;
         }
         
-        public boolean isAscending() {
-            return ascending;
-        }
+        private Class<K> keyClazz = null;
+        private Class<D> dataClazz = null;
+    }
+    
+    /**
+     * The opaque resume token of {@link BaseBerkeleyCursor#pageVisit(PageToken, int, DBEntryVisit)}, 
+     * holds the last visited key of a page, and the duplicate data of the key if the database allows 
+     * the sorted duplicates, which is the primary key of a secondary database
+     */
+    public static final class PageToken implements Serializable {
+        
+        /**
+         * 
+         */
+        private static final long serialVersionUID = -6302189519404823437L;
 
-        public void setAscending(boolean ascending) {
+        /**
+         * Returns the {@link PageToken} of given string which is returned by {@link PageToken#toString()}
+         */
+        public static PageToken of(String token) {
+            byte[] bytes = BaseEncoding.base64Url().decode(checkNotNull(token, "The page token cannot be null."));
+            checkArgument(bytes.length > 0, "Invalid page token %s", token);
+            if (0 == (bytes[0] & DUPLICATE_FLAG)) {
+                return new PageToken(Arrays.copyOfRange(bytes, 1, bytes.length), null, 0 != (bytes[0] & ASCENDING_FLAG));
+            }
+            
+            checkArgument(bytes.length >= 5, "Invalid page token %s", token);
+            int keySize = ByteBuffer.wrap(bytes, 1, 4).getInt();
+            checkArgument(keySize >= 0 && keySize <= bytes.length - 5, "Invalid page token %s", token);
+            return new PageToken(Arrays.copyOfRange(bytes, 5, 5 + keySize), 
+                    Arrays.copyOfRange(bytes, 5 + keySize, bytes.length), 0 != (bytes[0] & ASCENDING_FLAG));
+        }
+        
+        @Override public String toString() {
+            byte flags = (byte) ((ascending ? ASCENDING_FLAG : 0) | (null != data ? DUPLICATE_FLAG : 0));
+            if (null == data) {
+                return BaseEncoding.base64Url().encode(ByteBuffer.allocate(key.length + 1).put(flags).put(key).array());
+            }
+            return BaseEncoding.base64Url().encode(ByteBuffer.allocate(key.length + data.length + 5)
+                    .put(flags).putInt(key.length).put(key).put(data).array());
+        }
+        
+        @Override public boolean equals(Object obj) {
+            if (!(obj instanceof PageToken)) {
+                return false;
+            }
+            PageToken that = (PageToken) obj;
+            return ascending == that.ascending && Arrays.equals(key, that.key) && Arrays.equals(data, that.data);
+        }
+        
+        @Override public int hashCode() {
+            return 31 * (31 * Arrays.hashCode(key) + Arrays.hashCode(data)) + (ascending ? 1 : 0);
+        }
+        
+        private PageToken(byte[] key, byte[] data, boolean ascending) {
+            this.key = checkNotNull(key);
+            this.data = data;
             this.ascending = ascending;
         }
-
-        private boolean ascending = true;
-        private Class<K> keyClazz = null;
-        private Class<D> dataClazz = null;
+        
+        private final byte[] key;
+        // The duplicate data of the key, null if the database does not allow the duplicates
+        private final byte[] data;
+        private final boolean ascending;
+        
+        private static final int ASCENDING_FLAG = 1;
+        private static final int DUPLICATE_FLAG = 2;
     }
     
     /**
@@ -1426,7 +5658,16 @@ public abstract class Berkeley<M> extends ForwardingObject {
         private static final long serialVersionUID = -1093431498750484993L;
         
         public DBEntry(StoredClassCatalog catalog) {
+            this(catalog, false);
+        }
+        
+        /**
+         * The data entry is read with the data binding which may be compressed
+         * @see Berkeley#getDataBinding(Object, ClassCatalog)
+         */
+        public DBEntry(StoredClassCatalog catalog, boolean data) {
             this.catalog = checkNotNull(catalog);
+            this.data = data;
         }
         
         /**
@@ -1440,10 +5681,11 @@ public abstract class Berkeley<M> extends ForwardingObject {
          * @see DatabaseEntry#entryToObject
          */
         @SuppressWarnings("unchecked") public <E> E asObject(Class<E> entryClass) {
-            return (E) getBinding(entryClass, catalog).entryToObject(this);
+            return (E) (data ? getDataBinding(entryClass, catalog) : getBinding(entryClass, catalog)).entryToObject(this);
         }
         
         private StoredClassCatalog catalog = null;
+        private boolean data = false;
     }
     
     /**
@@ -1468,9 +5710,8 @@ public abstract class Berkeley<M> extends ForwardingObject {
             
             Pair<DBEntry, DBEntry> kv = ascending ? this.getFirst(lockMode) : this.getLast(lockMode);
             
-            if ((skip = skip - 1) > 0) {
-                Pair<DBEntry, DBEntry> tmpKV = ascending ? this.skipNext(skip, lockMode) : this.skipPrev(skip, lockMode);
-                kv = firstNonNull(tmpKV, kv);
+            if (null != kv && skip > 0) {
+                kv = skip(ascending ? 'n' : 'p', skip, lockMode, true);
             }
             
             while (pos < count 
@@ -1479,12 +5720,207 @@ public abstract class Berkeley<M> extends ForwardingObject {
                     firstGet = false;
                 }
                 
-                try {
+                if (isCatalogKey(kv.getL())) {
+                    continue;
+                }
+                
+                visit.apply(kv.getL().asObject(visit.getKeyClass()), kv.getR().asObject(visit.getDataClass()));
+                pos++;
+            }
+        }
+        
+        /**
+         * Visits the page after the given token, or the first page if the token is null, returns the token 
+         * of the next page or null if none more. The page is positioned by the last record of the token with 
+         * {@link Cursor#getSearchBothRange(DatabaseEntry, DatabaseEntry, LockMode)} or 
+         * {@link Cursor#getSearchKeyRange(DatabaseEntry, DatabaseEntry, LockMode)} instead of skipping, so 
+         * that the page N costs the same as the first page, and all of the duplicates are visited
+         * @see PageToken
+         */
+        public <K, D> PageToken pageVisit(PageToken token, int count, DBEntryVisit<K, D> visit) {
+            return pageVisit(token, count, null, visit);
+        }
+        
+        /**
+         * @see BaseBerkeleyCursor#pageVisit(PageToken, int, DBEntryVisit)
+         */
+        public <K, D> PageToken pageVisit(PageToken token, int count, LockMode lockMode, DBEntryVisit<K, D> visit) {
+            checkArgument(count > 0, "The page count must be positive, but is %s", count);
+            boolean ascending = checkNotNull(visit, "The visit cannot be null.").isAscending();
+            checkArgument(null == token || token.ascending == ascending, 
+                    "The page token direction does not match the visit direction.");
+            
+            Pair<DBEntry, DBEntry> kv = null;
+            if (null == token) {
+                kv = ascending ? this.getFirst(lockMode) : this.getLast(lockMode);
+            } else {
+                DBEntry key = new DBEntry(catalog);
+                DBEntry data = new DBEntry(catalog, true);
+                kv = OperationStatus.SUCCESS == resume(token, key, data, lockMode) ? Pair.of(key, data) : null;
+            }
+            
+            int pos = 0;
+            byte[] lastKey = null;
+            while (null != kv) {
+                if (!isCatalogKey(kv.getL())) {
                     visit.apply(kv.getL().asObject(visit.getKeyClass()), kv.getR().asObject(visit.getDataClass()));
-                    pos++;
-                } catch (Exception e) { }
+                    lastKey = bytesOf(kv.getL());
+                    if (++pos >= count) {
+                        break;
+                    }
+                }
+                kv = ascending ? this.getNext(lockMode) : this.getPrev(lockMode);
+            }
+            
+            return pos < count ? null : new PageToken(lastKey, duplicateOf(lockMode), ascending);
+        }
+        
+        /**
+         * Positions this cursor at the record after the given token in the direction of the token, the duplicates 
+         * of the token key are positioned by the duplicate data of the token, returns the status of the position
+         */
+        private OperationStatus resume(PageToken token, DatabaseEntry key, DatabaseEntry data, LockMode lockMode) {
+            boolean ascending = token.ascending;
+            if (null != token.data) {
+                DatabaseEntry duplicate = new DatabaseEntry(token.data.clone());
+                key.setData(token.key.clone());
+                OperationStatus status = delegate instanceof SecondaryCursor 
+                        ? ((SecondaryCursor) delegate).getSearchBothRange(key, duplicate, partialEntry(), lockMode)
+                        : delegate.getSearchBothRange(key, duplicate, lockMode);
+                if (OperationStatus.SUCCESS == status) {
+                    //positioned at the token record, or the first duplicate after the token record
+                    if (!ascending) {
+                        return delegate.getPrev(key, data, lockMode);
+                    }
+                    return Arrays.equals(token.data, bytesOf(duplicate)) 
+                            ? delegate.getNext(key, data, lockMode) : delegate.getCurrent(key, data, lockMode);
+                }
+            }
+            
+            key.setData(token.key.clone());
+            OperationStatus status = delegate.getSearchKeyRange(key, data, lockMode);
+            if (OperationStatus.SUCCESS != status) {
+                return ascending ? status : delegate.getLast(key, data, lockMode);
+            }
+            
+            boolean tokenKey = Arrays.equals(token.key, bytesOf(key));
+            if (ascending) {
+                //all of the duplicates of the token key are before the token record if any
+                return tokenKey ? delegate.getNextNoDup(key, data, lockMode) : status;
+            }
+            if (tokenKey && null != token.data) {
+                //all of the duplicates of the token key are before the token record, resumes from the last of them
+                status = delegate.getNextNoDup(key, data, lockMode);
+                return OperationStatus.SUCCESS == status 
+                        ? delegate.getPrev(key, data, lockMode) : delegate.getLast(key, data, lockMode);
+            }
+            return delegate.getPrev(key, data, lockMode);
+        }
+        
+        /**
+         * Returns the duplicate data of the current record if the database allows the sorted duplicates, 
+         * the primary key of a secondary cursor, otherwise null
+         */
+        private byte[] duplicateOf(LockMode lockMode) {
+            if (!delegate.getDatabase().getConfig().getSortedDuplicates()) {
+                return null;
+            }
+            
+            DatabaseEntry key = new DatabaseEntry(), duplicate = new DatabaseEntry();
+            OperationStatus status = delegate instanceof SecondaryCursor 
+                    ? ((SecondaryCursor) delegate).getCurrent(key, duplicate, partialEntry(), lockMode)
+                    : delegate.getCurrent(key, duplicate, lockMode);
+            checkState(OperationStatus.SUCCESS == status, "The cursor is not positioned at the last visited record.");
+            return bytesOf(duplicate).clone();
+        }
+        
+        /**
+         * Returns a new entry which reads no bytes of the data
+         */
+        private static DatabaseEntry partialEntry() {
+            DatabaseEntry entry = new DatabaseEntry();
+            entry.setPartial(0, 0, true);
+            return entry;
+        }
+        
+        /**
+         * Visits the raw bytes of all of the records with the given entries which are reused for every record, 
+         * the data entry may be partial by {@link DatabaseEntry#setPartial(int, int, boolean)}, 
+         * returns the number of the accepted records
+         * @see RawEntryVisit
+         */
+        public long rawVisit(DatabaseEntry key, DatabaseEntry data, LockMode lockMode, RawEntryVisit visit) {
+            boolean ascending = checkRawVisit(key, data, visit);
+            long accepted = 0;
+            long start = meterStart();
+            OperationStatus status = ascending ? delegate.getFirst(key, data, lockMode) : delegate.getLast(key, data, lockMode);
+            while (OperationStatus.SUCCESS == status) {
+                if (!isCatalogKey(key) && applyRaw(visit, key, data)) {
+                    accepted++;
+                }
+                status = ascending ? delegate.getNext(key, data, lockMode) : delegate.getPrev(key, data, lockMode);
+            }
+            meterStop("rawVisit", start);
+            return accepted;
+        }
+        
+        /**
+         * Visits the raw bytes of the page after the given token with the given entries which are reused for 
+         * every record, the page ends after the count of accepted records, returns the token of the next page 
+         * or null if none more
+         * @see BaseBerkeleyCursor#pageVisit(PageToken, int, DBEntryVisit)
+         * @see RawEntryVisit
+         */
+        public PageToken rawPageVisit(PageToken token, int count, 
+                DatabaseEntry key, DatabaseEntry data, LockMode lockMode, RawEntryVisit visit) {
+            checkArgument(count > 0, "The page count must be positive, but is %s", count);
+            boolean ascending = checkRawVisit(key, data, visit);
+            checkArgument(null == token || token.ascending == ascending, 
+                    "The page token direction does not match the visit direction.");
+            long start = meterStart();
+            
+            OperationStatus status = null;
+            if (null == token) {
+                status = ascending ? delegate.getFirst(key, data, lockMode) : delegate.getLast(key, data, lockMode);
+            } else {
+                status = resume(token, key, data, lockMode);
+            }
+            
+            int pos = 0;
+            byte[] lastKey = null;
+            while (OperationStatus.SUCCESS == status) {
+                if (!isCatalogKey(key) && applyRaw(visit, key, data)) {
+                    lastKey = bytesOf(key).clone();
+                    if (++pos >= count) {
+                        break;
+                    }
+                }
+                status = ascending ? delegate.getNext(key, data, lockMode) : delegate.getPrev(key, data, lockMode);
             }
+            
+            PageToken next = pos < count ? null : new PageToken(lastKey, duplicateOf(lockMode), ascending);
+            meterStop("rawVisit", start);
+            return next;
+        }
+        
+        private boolean checkRawVisit(DatabaseEntry key, DatabaseEntry data, RawEntryVisit visit) {
+            checkNotNull(key, "The key entry cannot be null.");
+            checkNotNull(data, "The data entry cannot be null.");
+            return checkNotNull(visit, "The visit cannot be null.").isAscending();
+        }
+        
+        private boolean applyRaw(RawEntryVisit visit, DatabaseEntry key, DatabaseEntry data) {
+            return visit.apply(key.getData(), key.getOffset(), key.getSize(), 
+                    data.getData(), data.getOffset(), data.getSize());
+        }
+        
+        /**
+         * @see BerkeleyDB#isCatalogKey(DatabaseEntry)
+         */
+        protected boolean isCatalogKey(DatabaseEntry key) {
+            return !(delegate instanceof SecondaryCursor) && berkeleyDB.isCatalogKey(key);
         }
+
         
         /**
          * Returns {@link DatabaseEntry} instance with given target
@@ -1493,6 +5929,13 @@ public abstract class Berkeley<M> extends ForwardingObject {
             return berkeleyDB.getEntry(target);
         }
         
+        /**
+         * Returns data {@link DatabaseEntry} instance with given target
+         */
+        public <T> DatabaseEntry getDataEntry(T target) {
+            return berkeleyDB.getDataEntry(target);
+        }
+        
         /**
          * @see Cursor#getCurrent(DatabaseEntry, DatabaseEntry, LockMode)
          */
@@ -1630,7 +6073,7 @@ public abstract class Berkeley<M> extends ForwardingObject {
          * @see Cursor#skipNext(long, DatabaseEntry, DatabaseEntry, LockMode)
          */
         public Pair<DBEntry, DBEntry> skipNext(long maxCount, LockMode lockMode) {
-            return skip('n', maxCount, lockMode);
+            return skip('n', maxCount, lockMode, false);
         }
         
         /**
@@ -1644,16 +6087,16 @@ public abstract class Berkeley<M> extends ForwardingObject {
          * @see Cursor#skipPrev(long, DatabaseEntry, DatabaseEntry, LockMode)
          */
         public Pair<DBEntry, DBEntry> skipPrev(long maxCount, LockMode lockMode) {
-            return skip('p', maxCount, lockMode);
+            return skip('p', maxCount, lockMode, false);
         }
         
         /**
-         * 
+         * Returns the record after skipped, or null if none skipped or less than the max count skipped if exactly
          */
-        private Pair<DBEntry, DBEntry> skip(char which, long maxCount, LockMode lockMode) {
+        private Pair<DBEntry, DBEntry> skip(char which, long maxCount, LockMode lockMode, boolean exactly) {
             long skipped = 0;
             DBEntry key = new DBEntry(catalog);
-            DBEntry data = new DBEntry(catalog);
+            DBEntry data = new DBEntry(catalog, true);
             lockMode = null == lockMode ? LockMode.DEFAULT : lockMode;
             
             switch (which) {
@@ -1661,7 +6104,13 @@ public abstract class Berkeley<M> extends ForwardingObject {
                 case 'p': skipped = delegate.skipPrev(maxCount, key, data, lockMode); break;
             }
             
-            if (skipped <= 0) {
+            if (skipped <= 0 || (exactly && skipped < maxCount)) {
+                return null;
+            }
+            
+            //the skip of the secondary cursor returns the primary key as the data
+            if (delegate instanceof SecondaryCursor 
+                    && OperationStatus.SUCCESS != delegate.getCurrent(key, data, lockMode)) {
                 return null;
             }
             
@@ -1674,8 +6123,9 @@ public abstract class Berkeley<M> extends ForwardingObject {
         private Pair<DBEntry, DBEntry> get(char which, LockMode lockMode) {
             OperationStatus status = null;
             DBEntry key = new DBEntry(catalog);
-            DBEntry data = new DBEntry(catalog);
+            DBEntry data = new DBEntry(catalog, true);
             lockMode = null == lockMode ? LockMode.DEFAULT : lockMode;
+            long start = meterStart();
             
             switch (which) {
                 case 'c':   //getCurrent
@@ -1706,6 +6156,7 @@ public abstract class Berkeley<M> extends ForwardingObject {
                     status = delegate.getPrevNoDup(key, data, lockMode);
                     break;
             }
+            meterStop('n' == which || 'N' == which || 'O' == which ? "cursorNext" : "cursorGet", start);
             
             if (status == OperationStatus.SUCCESS) {
                 return Pair.of(key, data);
@@ -1721,6 +6172,13 @@ public abstract class Berkeley<M> extends ForwardingObject {
             return berkeleyDB;
         }
         
+        /**
+         * Returns the database name of the cursor
+         */
+        @Override protected String meterName() {
+            return delegate.getDatabase().getDatabaseName();
+        }
+        
         protected BaseBerkeleyCursor(BerkeleyEnv berkeleyEnv, BerkeleyDB berkeleyDB, Cursor cursor) {
             super(berkeleyEnv);
             this.delegate = checkNotNull(cursor);
@@ -1885,7 +6343,12 @@ public abstract class Berkeley<M> extends ForwardingObject {
          */
         public OperationStatus getNext(final DatabaseEntry key, 
                                        final DatabaseEntry data, final LockMode lockMode) throws DatabaseException {
-            return delegate().getNext(key, data, lockMode);
+            long start = meterStart();
+            try {
+                return delegate().getNext(key, data, lockMode);
+            } finally {
+                meterStop("cursorNext", start);
+            }
         }
 
         /**
@@ -1893,7 +6356,12 @@ public abstract class Berkeley<M> extends ForwardingObject {
          */
         public OperationStatus getNext(final DatabaseEntry key, final DatabaseEntry pKey, 
                                        final DatabaseEntry data, final LockMode lockMode) throws DatabaseException {
-            return delegate().getNext(key, pKey, data, lockMode);
+            long start = meterStart();
+            try {
+                return delegate().getNext(key, pKey, data, lockMode);
+            } finally {
+                meterStop("cursorNext", start);
+            }
         }
 
         /**
@@ -2055,28 +6523,28 @@ public abstract class Berkeley<M> extends ForwardingObject {
          * @see BerkeleyCursor#put(DatabaseEntry, DatabaseEntry)
          */
         public <K, V> OperationStatus puts(K key, V value) {
-            return put(getEntry(key), getEntry(value));
+            return put(getEntry(key), getDataEntry(value));
         }
         
         /**
          * @see BerkeleyCursor#putNoOverwrite(DatabaseEntry, DatabaseEntry)
          */
         public <K, V> OperationStatus putsNoOverwrite(K key, V value) {
-            return putNoOverwrite(getEntry(key), getEntry(value));
+            return putNoOverwrite(getEntry(key), getDataEntry(value));
         }
         
         /**
          * @see BerkeleyCursor#putNoDupData(DatabaseEntry, DatabaseEntry)
          */
         public <K, V> OperationStatus putsNoDupData(K key, V value) {
-            return putNoDupData(getEntry(key), getEntry(value));
+            return putNoDupData(getEntry(key), getDataEntry(value));
         }
         
         /**
          * @see BerkeleyCursor#putCurrent(DatabaseEntry, DatabaseEntry)
          */
         public <V> OperationStatus putsCurrent(V value) {
-            return putCurrent(getEntry(value));
+            return putCurrent(getDataEntry(value));
         }
         
         /**
@@ -2189,7 +6657,12 @@ public abstract class Berkeley<M> extends ForwardingObject {
          */
         public OperationStatus getNext( final DatabaseEntry key, final DatabaseEntry data, 
                                         final LockMode lockMode) throws DatabaseException {
-            return delegate().getNext(key, data, lockMode);
+            long start = meterStart();
+            try {
+                return delegate().getNext(key, data, lockMode);
+            } finally {
+                meterStop("cursorNext", start);
+            }
         }
 
         /**
@@ -2247,69 +6720,930 @@ public abstract class Berkeley<M> extends ForwardingObject {
                               final DatabaseEntry data, final LockMode lockMode) throws DatabaseException {
             return delegate().skipPrev(maxCount, key, data, lockMode);
         }
-
+
+        /**
+         * @see Cursor#getSearchKey(DatabaseEntry, DatabaseEntry, LockMode)
+         */
+        public OperationStatus getSearchKey( final DatabaseEntry key, final DatabaseEntry data, 
+                                             final LockMode lockMode) throws DatabaseException {
+            return delegate().getSearchKey(key, data, lockMode);
+        }
+
+        /**
+         * @see Cursor#getSearchKeyRange(DatabaseEntry, DatabaseEntry, LockMode)
+         */
+        public OperationStatus getSearchKeyRange( final DatabaseEntry key, final DatabaseEntry data, 
+                                                  final LockMode lockMode) throws DatabaseException {
+            return delegate().getSearchKeyRange(key, data, lockMode);
+        }
+
+        /**
+         * @see Cursor#getSearchBoth(DatabaseEntry, DatabaseEntry, LockMode)
+         */
+        public OperationStatus getSearchBoth( final DatabaseEntry key, final DatabaseEntry data, 
+                                              final LockMode lockMode) throws DatabaseException {
+            return delegate().getSearchBoth(key, data, lockMode);
+        }
+
+        /**
+         * @see Cursor#getSearchBothRange(DatabaseEntry, DatabaseEntry, LockMode)
+         */
+        public OperationStatus getSearchBothRange( final DatabaseEntry key, final DatabaseEntry data, 
+                                                   final LockMode lockMode) throws DatabaseException {
+            return delegate().getSearchBothRange(key, data, lockMode);
+        }
+
+        /**
+         * @see Cursor#count()
+         */
+        public int count() throws DatabaseException {
+            return delegate().count();
+        }
+        
+        /**
+         * @see Cursor#countEstimate()
+         */
+        public long countEstimate() throws DatabaseException {
+            return delegate().countEstimate();
+        }
+        
+        protected BerkeleyCursor(BerkeleyEnv berkeleyEnv, BerkeleyDB berkeleyDB, Cursor cursor) {
+            super(berkeleyEnv, berkeleyDB, cursor);
+        }
+        
+        @Override protected BerkeleyCursor THIS() {
+            return this;
+        }
+
+        @Override protected void doClose() {
+            delegate().close();
+        }
+
+        @Override protected Cursor delegate() {
+            return checkNotNull(delegate, "The Cursor delegate cannot be null");
+        }
+        
+    }
+    
+    /**
+     * Builds a secondary index of the {@link BerkeleyDB} in bulk, the primary database is scanned in disk order, 
+     * the secondary keys are sorted in memory and spilled to disk in sorted runs beyond the sort buffer, 
+     * then the merged runs are loaded into the secondary database in key order.
+     * <p>
+     * The offline build expects no concurrent writes to the primary database. The online build maintains the 
+     * secondary database incrementally for the concurrent writes during the load, and catches up the records 
+     * written during the load before the index is returned for reads
+     * @see SecondaryDatabase#startIncrementalPopulation()
+     */
+    public static class IndexBuilder {
+        
+        /**
+         * Whether the concurrent writes to the primary database are caught up, default is false
+         */
+        public IndexBuilder online(boolean online) {
+            this.online = online;
+            return this;
+        }
+        
+        /**
+         * Sets the bytes of the secondary key and primary key pairs to sort in memory before spilling a run
+         */
+        public IndexBuilder sortBufferSize(long sortBufferSize) {
+            checkArgument(sortBufferSize > 0, "The sort buffer size must be positive, but is %s", sortBufferSize);
+            this.sortBufferSize = sortBufferSize;
+            return this;
+        }
+        
+        /**
+         * Sets the directory of the spilled runs, default is the temporary-file directory
+         */
+        public IndexBuilder spillDirectory(File spillDirectory) {
+            this.spillDirectory = checkNotNull(spillDirectory, "The spill directory cannot be null.");
+            return this;
+        }
+        
+        /**
+         * Builds and opens the secondary index, the database of the index must not exist
+         */
+        public BerkeleyIndex build() {
+            BerkeleyIndex index = new BerkeleyIndex(berkeleyDB.getEnv(), berkeleyDB, genericKeyCreator, populate());
+            berkeleyDB.indexes.add(index);
+            return index;
+        }
+        
+        /**
+         * Returns the number of scanned primary records
+         */
+        public long getScanned() {
+            return scanned;
+        }
+        
+        /**
+         * Returns the number of loaded secondary records
+         */
+        public long getLoaded() {
+            return loaded;
+        }
+        
+        /**
+         * Returns the number of sorted runs spilled to disk
+         */
+        public int getSpilledRuns() {
+            return spilledRuns;
+        }
+        
+        /**
+         * Returns the number of primary records caught up after the online load
+         */
+        public long getCaughtUp() {
+            return caughtUp;
+        }
+        
+        /**
+         * Opens the secondary database without population and loads it, the database is removed if failed
+         */
+        protected synchronized SecondaryDatabase populate() {
+            Environment environment = berkeleyDB.getEnvironment();
+            checkState(!environment.getDatabaseNames().contains(databaseName), 
+                    "The database %s already exists, remove it before the build.", databaseName);
+            
+            final TrackingKeyCreator tracker = new TrackingKeyCreator(keyCreator, multiKeyCreator);
+            SecondaryConfig config = dbConfig.clone();
+            config.setAllowCreate(true);
+            config.setAllowPopulate(false);
+            if (online) {
+                if (null != keyCreator) {
+                    config.setKeyCreator(tracker);
+                } else {
+                    config.setMultiKeyCreator(tracker);
+                }
+                // tracks the writes from the open, the secondary is maintained by the writes since then
+                tracker.touched = Sets.newConcurrentHashSet();
+            }
+            
+            SecondaryDatabase secondary = environment.openSecondaryDatabase(
+                    null, databaseName, berkeleyDB.getDatabase(), config);
+            Closer closer = Closer.create();
+            try {
+                if (online) {
+                    secondary.startIncrementalPopulation();
+                }
+                
+                DatabaseConfig targetConfig = new DatabaseConfig();
+                targetConfig.setTransactional(config.getTransactional());
+                targetConfig.setSortedDuplicates(config.getSortedDuplicates());
+                if (null != config.getBtreeComparator()) {
+                    targetConfig.setBtreeComparator(config.getBtreeComparator());
+                }
+                if (null != config.getDuplicateComparator()) {
+                    targetConfig.setDuplicateComparator(config.getDuplicateComparator());
+                }
+                final Database target = environment.openDatabase(null, databaseName, targetConfig);
+                closer.register(new Closeable() {
+                    
+                    @Override public void close() throws IOException {
+                        target.close();
+                    }
+                });
+                
+                ListMultimap<ByteBuffer, byte[]> suspects = ArrayListMultimap.create();
+                load(target, sort(secondary, closer), tracker, suspects);
+                Set<ByteBuffer> touched = tracker.touched;
+                tracker.touched = null;
+                if (online) {
+                    catchUp(secondary, target, touched, suspects);
+                    secondary.endIncrementalPopulation();
+                }
+                //the loaded records are committed without sync and never repopulated, fsync before returning
+                environment.flushLog(true);
+                return secondary;
+            } catch (Throwable e) {
+                try {
+                    closer.close();
+                    secondary.close();
+                    environment.removeDatabase(null, databaseName);
+                } catch (Throwable suppressed) {
+                    log.warn("Remove the failed index " + databaseName + " error: " + suppressed.getMessage());
+                }
+                closer = null;
+                throw Throwables.propagate(e);
+            } finally {
+                tracker.touched = null;
+                if (null != closer) {
+                    try {
+                        closer.close();
+                    } catch (IOException e) {
+                        log.warn("Remove the spilled runs of " + databaseName + " error: " + e.getMessage());
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Scans the primary database in disk order, returns the merged sorted runs of the secondary key and 
+         * primary key pairs
+         */
+        private Iterator<byte[][]> sort(SecondaryDatabase secondary, Closer closer) throws IOException {
+            List<Iterator<byte[][]>> runs = Lists.newArrayList();
+            List<byte[][]> buffer = Lists.newArrayList();
+            long buffered = 0;
+            
+            DiskOrderedCursor cursor = berkeleyDB.openCursor(
+                    new DiskOrderedCursorConfig().setQueueSize(BerkeleyDB.SCAN_QUEUE_SIZE));
+            try {
+                DatabaseEntry key = new DatabaseEntry(), data = new DatabaseEntry();
+                while (OperationStatus.SUCCESS == cursor.getNext(key, data, null)) {
+                    if (berkeleyDB.isCatalogKey(key)) {
+                        continue;
+                    }
+                    
+                    scanned++;
+                    byte[] primaryKey = bytesOf(key);
+                    for (DatabaseEntry secKey : secondaryKeys(secondary, key, data)) {
+                        byte[][] pair = new byte[][] { bytesOf(secKey), primaryKey };
+                        buffer.add(pair);
+                        buffered += pair[0].length + pair[1].length + PAIR_OVERHEAD;
+                        if (buffered >= sortBufferSize) {
+                            runs.add(spill(buffer, closer));
+                            buffer = Lists.newArrayList();
+                            buffered = 0;
+                        }
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            
+            Collections.sort(buffer, comparator);
+            runs.add(buffer.iterator());
+            return 1 == runs.size() ? runs.get(0) : Iterators.mergeSorted(runs, comparator);
+        }
+        
+        /**
+         * Sorts and writes the given pairs to a run file as length-prefixed bytes, returns the reader of the run
+         */
+        private Iterator<byte[][]> spill(List<byte[][]> buffer, Closer closer) throws IOException {
+            Collections.sort(buffer, comparator);
+            final File run = File.createTempFile("berkeley-index-", ".run", spillDirectory);
+            closer.register(new Closeable() {
+                
+                @Override public void close() throws IOException {
+                    if (run.exists() && !run.delete()) {
+                        throw new IOException("Cannot delete the spilled run " + run);
+                    }
+                }
+            });
+            
+            DataOutputStream output = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(run), SPILL_BUFFER_SIZE));
+            try {
+                for (byte[][] pair : buffer) {
+                    output.writeInt(pair[0].length);
+                    output.write(pair[0]);
+                    output.writeInt(pair[1].length);
+                    output.write(pair[1]);
+                }
+            } finally {
+                output.close();
+            }
+            spilledRuns++;
+            
+            final int size = buffer.size();
+            final DataInputStream input = closer.register(new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(run), SPILL_BUFFER_SIZE)));
+            return new AbstractIterator<byte[][]>() {
+                
+                private int read = 0;
+                
+                @Override protected byte[][] computeNext() {
+                    if (read++ >= size) {
+                        return endOfData();
+                    }
+                    
+                    try {
+                        byte[] secKey = new byte[input.readInt()];
+                        input.readFully(secKey);
+                        byte[] primaryKey = new byte[input.readInt()];
+                        input.readFully(primaryKey);
+                        return new byte[][] { secKey, primaryKey };
+                    } catch (IOException e) {
+                        throw Throwables.propagate(e);
+                    }
+                }
+            };
+        }
+        
+        /**
+         * Loads the sorted pairs into the secondary database in batches, the pairs of the primary records written 
+         * during the online load are skipped, which are maintained by the secondary database itself, the pairs 
+         * written before the primary record is touched are rewritten by the catch up
+         */
+        private void load(final Database target, Iterator<byte[][]> pairs, 
+                final TrackingKeyCreator tracker, final ListMultimap<ByteBuffer, byte[]> suspects) {
+            WriteBatch<byte[][]> batch = new WriteBatch<byte[][]>(berkeleyDB.getEnvironment(), 
+                    target.getConfig().getTransactional(), LOAD_BATCH_SIZE, Durability.COMMIT_NO_SYNC) {
+                
+                @Override protected void apply(List<byte[][]> writes, Transaction txn) {
+                    DatabaseEntry key = new DatabaseEntry(), data = new DatabaseEntry();
+                    for (byte[][] pair : writes) {
+                        key.setData(pair[0]);
+                        data.setData(pair[1]);
+                        if (OperationStatus.SUCCESS == putPair(target, txn, key, data)) {
+                            loaded++;
+                        }
+                        
+                        // the primary record may be written between the check and the put of the batch
+                        if (tracker.isTouched(pair[1])) {
+                            suspects.put(ByteBuffer.wrap(pair[1]), pair[0]);
+                        }
+                    }
+                }
+            };
+            
+            try {
+                while (pairs.hasNext()) {
+                    byte[][] pair = pairs.next();
+                    if (!tracker.isTouched(pair[1])) {
+                        batch.add(pair);
+                    }
+                }
+            } finally {
+                batch.close();
+            }
+        }
+        
+        /**
+         * Rewrites the secondary keys of the primary records written during the online load, each primary record 
+         * is locked while its loaded secondary keys are compared to the current
+         */
+        private void catchUp(SecondaryDatabase secondary, Database target, 
+                Set<ByteBuffer> touched, ListMultimap<ByteBuffer, byte[]> suspects) {
+            Environment environment = berkeleyDB.getEnvironment();
+            boolean transactional = target.getConfig().getTransactional();
+            DatabaseEntry key = new DatabaseEntry(), data = new DatabaseEntry();
+            
+            for (ByteBuffer primaryKey : touched) {
+                key.setData(primaryKey.array());
+                Transaction txn = transactional ? environment.beginTransaction(null, null) : null;
+                Cursor cursor = null;
+                try {
+                    Set<DatabaseEntry> current = OperationStatus.SUCCESS == berkeleyDB.getDatabase()
+                            .get(txn, key, data, LockMode.RMW) ? secondaryKeys(secondary, key, data) : null;
+                    for (DatabaseEntry secKey : null != current ? current : Collections.<DatabaseEntry>emptySet()) {
+                        putPair(target, txn, secKey, key);
+                    }
+                    
+                    cursor = target.openCursor(txn, null);
+                    for (byte[] stale : suspects.get(primaryKey)) {
+                        DatabaseEntry secKey = new DatabaseEntry(stale);
+                        if ((null == current || !current.contains(secKey)) 
+                                && OperationStatus.SUCCESS == cursor.getSearchBoth(secKey, key, LockMode.RMW)) {
+                            cursor.delete();
+                        }
+                    }
+                    cursor.close();
+                    cursor = null;
+                    
+                    if (null != txn) {
+                        txn.commit();
+                        txn = null;
+                    }
+                    caughtUp++;
+                } finally {
+                    if (null != cursor) {
+                        cursor.close();
+                    }
+                    if (null != txn) {
+                        txn.abort();
+                    }
+                }
+            }
+        }
+        
+        /**
+         * Puts the given pair to the secondary database, a unique secondary key of another primary key fails
+         */
+        private OperationStatus putPair(Database target, Transaction txn, DatabaseEntry secKey, DatabaseEntry primaryKey) {
+            if (dbConfig.getSortedDuplicates()) {
+                return target.putNoDupData(txn, secKey, primaryKey);
+            }
+            
+            OperationStatus status = target.putNoOverwrite(txn, secKey, primaryKey);
+            if (OperationStatus.KEYEXIST == status) {
+                DatabaseEntry existing = new DatabaseEntry();
+                target.get(txn, secKey, existing, LockMode.DEFAULT);
+                checkState(existing.equals(primaryKey), 
+                        "The secondary key of index %s is not unique: %s", databaseName, Arrays.toString(bytesOf(secKey)));
+            }
+            return status;
+        }
+        
+        /**
+         * Returns the secondary keys of the given primary record created by the key creator of the config
+         */
+        private Set<DatabaseEntry> secondaryKeys(SecondaryDatabase secondary, DatabaseEntry key, DatabaseEntry data) {
+            Set<DatabaseEntry> results = Sets.newHashSet();
+            if (null != keyCreator) {
+                DatabaseEntry result = new DatabaseEntry();
+                if (keyCreator.createSecondaryKey(secondary, key, data, result)) {
+                    results.add(result);
+                }
+            } else {
+                multiKeyCreator.createSecondaryKeys(secondary, key, data, results);
+            }
+            return results;
+        }
+        
+        protected IndexBuilder(BerkeleyDB berkeleyDB, String databaseName, 
+                SecondaryConfig dbConfig, GenericKeyCreator<?, ?> genericKeyCreator) {
+            this.berkeleyDB = checkNotNull(berkeleyDB, "BerkeleyDB cannot be null");
+            this.databaseName = checkNotNull(databaseName, "databaseName cannot be null");
+            this.dbConfig = checkNotNull(dbConfig, "SecondaryConfig cannot be null").clone();
+            this.genericKeyCreator = genericKeyCreator;
+            this.keyCreator = TrackingKeyCreator.unwrap(dbConfig.getKeyCreator());
+            this.multiKeyCreator = TrackingKeyCreator.unwrap(dbConfig.getMultiKeyCreator());
+            checkArgument(null != keyCreator || null != multiKeyCreator, "The key creator of SecondaryConfig cannot be null.");
+            if (null != keyCreator) {
+                this.dbConfig.setKeyCreator(keyCreator);
+            } else {
+                this.dbConfig.setMultiKeyCreator(multiKeyCreator);
+            }
+            
+            final Comparator<byte[]> keyComparator = firstNonNull(
+                    dbConfig.getBtreeComparator(), UnsignedBytes.lexicographicalComparator());
+            final Comparator<byte[]> duplicateComparator = firstNonNull(
+                    dbConfig.getDuplicateComparator(), UnsignedBytes.lexicographicalComparator());
+            this.comparator = new Comparator<byte[][]>() {
+                
+                @Override public int compare(byte[][] o1, byte[][] o2) {
+                    int c = keyComparator.compare(o1[0], o2[0]);
+                    return 0 != c ? c : duplicateComparator.compare(o1[1], o2[1]);
+                }
+            };
+        }
+        
+        /**
+         * Delegates to the key creator of the secondary database, and records the primary keys of 
+         * the writes to the primary database while tracking
+         */
+        private static class TrackingKeyCreator implements SecondaryKeyCreator, SecondaryMultiKeyCreator {
+            
+            @Override public boolean createSecondaryKey(SecondaryDatabase secondary, 
+                    DatabaseEntry key, DatabaseEntry data, DatabaseEntry result) {
+                track(key);
+                return keyCreator.createSecondaryKey(secondary, key, data, result);
+            }
+            
+            @Override public void createSecondaryKeys(SecondaryDatabase secondary, 
+                    DatabaseEntry key, DatabaseEntry data, Set<DatabaseEntry> results) {
+                track(key);
+                multiKeyCreator.createSecondaryKeys(secondary, key, data, results);
+            }
+            
+            boolean isTouched(byte[] primaryKey) {
+                Set<ByteBuffer> tracking = touched;
+                return null != tracking && tracking.contains(ByteBuffer.wrap(primaryKey));
+            }
+            
+            private void track(DatabaseEntry key) {
+                Set<ByteBuffer> tracking = touched;
+                if (null != tracking) {
+                    tracking.add(ByteBuffer.wrap(Arrays.copyOfRange(
+                            key.getData(), key.getOffset(), key.getOffset() + key.getSize())));
+                }
+            }
+            
+            @SuppressWarnings("unchecked")
+            static <T> T unwrap(T keyCreator) {
+                if (keyCreator instanceof TrackingKeyCreator) {
+                    TrackingKeyCreator tracker = (TrackingKeyCreator) keyCreator;
+                    return (T) (null != tracker.keyCreator ? tracker.keyCreator : tracker.multiKeyCreator);
+                }
+                return keyCreator;
+            }
+            
+            TrackingKeyCreator(SecondaryKeyCreator keyCreator, SecondaryMultiKeyCreator multiKeyCreator) {
+                this.keyCreator = keyCreator;
+                this.multiKeyCreator = multiKeyCreator;
+            }
+            
+            private volatile Set<ByteBuffer> touched = null;
+            private final SecondaryKeyCreator keyCreator;
+            private final SecondaryMultiKeyCreator multiKeyCreator;
+        }
+        
+        private boolean online = false;
+        private long sortBufferSize = DEFAULT_SORT_BUFFER_SIZE;
+        private File spillDirectory = null;
+        private long scanned = 0;
+        private long loaded = 0;
+        private int spilledRuns = 0;
+        private long caughtUp = 0;
+        private final BerkeleyDB berkeleyDB;
+        private final String databaseName;
+        private final SecondaryConfig dbConfig;
+        private final GenericKeyCreator<?, ?> genericKeyCreator;
+        private final SecondaryKeyCreator keyCreator;
+        private final SecondaryMultiKeyCreator multiKeyCreator;
+        private final Comparator<byte[][]> comparator;
+        
+        private static final long DEFAULT_SORT_BUFFER_SIZE = 64L * 1024 * 1024;
+        // The estimated bytes of the arrays of a pair in the sort buffer
+        private static final int PAIR_OVERHEAD = 64;
+        private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+        private static final int LOAD_BATCH_SIZE = 1000;
+    }
+    
+    /**
+     * Streams the raw key and data bytes of databases to a compact snapshot file through a {@link FileChannel}, 
+     * and loads the memory-mapped snapshot file back in key order, the records are never deserialized.
+     * <p>
+     * The snapshot file begins with the magic and version, followed by the sections of the databases:
+     * <blockquote><pre>
+     * section: 1, name, flags, btree comparator class, duplicate comparator class, (key length, key, data length, data)*, -1, count
+     * end:     0
+     * </pre></blockquote>
+     * The records are read committed in key order, the writes during the export may or may not be included. 
+     * Only the class names of the comparators are written, the comparators are never loaded from the snapshot, 
+     * a section with comparators is loaded into an existing database with the same comparators
+     */
+    public static class BerkeleySnapshot {
+        
+        /**
+         * Writes the records of the given databases in key order, each database is a section named by its key, 
+         * returns the number of the written records
+         */
+        public long export(Map<String, Database> databases) {
+            checkNotNull(databases, "The databases cannot be null.");
+            FileChannel channel = null;
+            try {
+                channel = new FileOutputStream(file).getChannel();
+                ByteBuffer buffer = ByteBuffer.allocateDirect(WRITE_BUFFER_SIZE);
+                buffer.putInt(MAGIC).put(VERSION);
+                
+                long total = 0;
+                for (Map.Entry<String, Database> section : databases.entrySet()) {
+                    DatabaseConfig config = section.getValue().getConfig();
+                    write(channel, buffer, SECTION);
+                    write(channel, buffer, section.getKey().getBytes(Charsets.UTF_8));
+                    write(channel, buffer, new byte[] { (byte) (config.getSortedDuplicates() ? SORTED_DUPLICATES : 0) });
+                    write(channel, buffer, comparatorOf(config.getBtreeComparator()));
+                    write(channel, buffer, comparatorOf(config.getDuplicateComparator()));
+                    
+                    long count = 0;
+                    Cursor cursor = section.getValue().openCursor(null, CursorConfig.READ_COMMITTED);
+                    try {
+                        DatabaseEntry key = new DatabaseEntry(), data = new DatabaseEntry();
+                        while (OperationStatus.SUCCESS == cursor.getNext(key, data, null)) {
+                            write(channel, buffer, key.getData(), key.getOffset(), key.getSize());
+                            write(channel, buffer, data.getData(), data.getOffset(), data.getSize());
+                            count++;
+                        }
+                    } finally {
+                        cursor.close();
+                    }
+                    
+                    ensure(channel, buffer, 12);
+                    buffer.putInt(END_OF_SECTION).putLong(count);
+                    total += count;
+                }
+                
+                write(channel, buffer, END);
+                flush(channel, buffer);
+                channel.force(true);
+                return total;
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            } finally {
+                closeQuietly(channel);
+            }
+        }
+        
+        /**
+         * Reads through the whole snapshot file without writing anything, checks the magic, every section header, 
+         * the record counts and the end of the file, and the comparators of the existing databases of the sections 
+         * named by the given function, returns the number of the records of the named sections
+         * @throws IllegalStateException if the snapshot cannot be loaded into the named databases
+         */
+        public long validate(Function<String, String> databaseNames) {
+            checkNotNull(databaseNames, "The database names function cannot be null.");
+            FileChannel channel = null;
+            try {
+                channel = new FileInputStream(file).getChannel();
+                MappedReader reader = new MappedReader(channel);
+                checkState(MAGIC == reader.getInt() && VERSION == reader.get(), "The file %s is not a snapshot.", file);
+                
+                long total = 0;
+                for (byte part = reader.get(); END != part; part = reader.get()) {
+                    checkState(SECTION == part, "The snapshot %s is corrupt at %s", file, reader.position());
+                    String databaseName = databaseNames.apply(new String(reader.getBytes(), Charsets.UTF_8));
+                    DatabaseConfig config = sectionConfig(reader.getBytes());
+                    String btreeComparator = new String(reader.getBytes(), Charsets.UTF_8);
+                    String duplicateComparator = new String(reader.getBytes(), Charsets.UTF_8);
+                    //the existing databases are opened to check the configs and comparators, never created
+                    if (null != databaseName && (!btreeComparator.isEmpty() || !duplicateComparator.isEmpty() 
+                            || environment.getDatabaseNames().contains(databaseName))) {
+                        openDatabase(databaseName, config, btreeComparator, duplicateComparator).close();
+                    }
+                    
+                    long count = 0;
+                    for (int size = reader.getInt(); END_OF_SECTION != size; size = reader.getInt()) {
+                        reader.skip(size);
+                        reader.skip(reader.getInt());
+                        count++;
+                    }
+                    checkState(count == reader.getLong(), "The section of %s in snapshot %s is corrupt.", databaseName, file);
+                    if (null != databaseName) {
+                        total += count;
+                    }
+                }
+                return total;
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            } finally {
+                closeQuietly(channel);
+            }
+        }
+        
         /**
-         * @see Cursor#getSearchKey(DatabaseEntry, DatabaseEntry, LockMode)
+         * Loads the sections of the memory-mapped snapshot file in key order into the databases named by the 
+         * given function of the section names, the sections mapped to null are skipped, returns the number of 
+         * the loaded records. The databases of the sections without comparators are created if not exist, 
+         * the databases of the sections with comparators must exist with the same comparator classes. 
+         * The whole file is validated before any record is written
+         * @see BerkeleySnapshot#validate(Function)
          */
-        public OperationStatus getSearchKey( final DatabaseEntry key, final DatabaseEntry data, 
-                                             final LockMode lockMode) throws DatabaseException {
-            return delegate().getSearchKey(key, data, lockMode);
+        public long load(Function<String, String> databaseNames) {
+            validate(databaseNames);
+            FileChannel channel = null;
+            try {
+                channel = new FileInputStream(file).getChannel();
+                MappedReader reader = new MappedReader(channel);
+                checkState(MAGIC == reader.getInt() && VERSION == reader.get(), "The file %s is not a snapshot.", file);
+                
+                long total = 0;
+                DatabaseEntry key = new DatabaseEntry(), data = new DatabaseEntry();
+                for (byte part = reader.get(); END != part; part = reader.get()) {
+                    checkState(SECTION == part, "The snapshot %s is corrupt at %s", file, reader.position());
+                    String databaseName = databaseNames.apply(new String(reader.getBytes(), Charsets.UTF_8));
+                    DatabaseConfig config = sectionConfig(reader.getBytes());
+                    String btreeComparator = new String(reader.getBytes(), Charsets.UTF_8);
+                    String duplicateComparator = new String(reader.getBytes(), Charsets.UTF_8);
+                    
+                    Database database = null == databaseName ? null 
+                            : openDatabase(databaseName, config, btreeComparator, duplicateComparator);
+                    Transaction txn = null;
+                    long count = 0;
+                    try {
+                        for (int size = reader.getInt(); END_OF_SECTION != size; size = reader.getInt()) {
+                            reader.getEntry(key, size);
+                            reader.getEntry(data, reader.getInt());
+                            if (null == database) {
+                                count++;
+                                continue;
+                            }
+                            
+                            if (null == txn && config.getTransactional()) {
+                                txn = environment.beginTransaction(null, LOAD_TXN_CONFIG);
+                            }
+                            database.put(txn, key, data);
+                            if (0 == ++count % LOAD_BATCH_SIZE && null != txn) {
+                                txn.commit();
+                                txn = null;
+                            }
+                        }
+                        
+                        if (null != txn) {
+                            txn.commit();
+                            txn = null;
+                        }
+                    } finally {
+                        if (null != txn) {
+                            txn.abort();
+                        }
+                        if (null != database) {
+                            database.close();
+                        }
+                    }
+                    
+                    checkState(count == reader.getLong(), "The section of %s in snapshot %s is corrupt.", databaseName, file);
+                    if (null != databaseName) {
+                        total += count;
+                    }
+                }
+                
+                environment.flushLog(true);
+                return total;
+            } catch (IOException e) {
+                throw Throwables.propagate(e);
+            } finally {
+                closeQuietly(channel);
+            }
         }
-
+        
         /**
-         * @see Cursor#getSearchKeyRange(DatabaseEntry, DatabaseEntry, LockMode)
+         * Writes the given byte
          */
-        public OperationStatus getSearchKeyRange( final DatabaseEntry key, final DatabaseEntry data, 
-                                                  final LockMode lockMode) throws DatabaseException {
-            return delegate().getSearchKeyRange(key, data, lockMode);
+        private void write(FileChannel channel, ByteBuffer buffer, byte b) throws IOException {
+            ensure(channel, buffer, 1);
+            buffer.put(b);
         }
-
+        
         /**
-         * @see Cursor#getSearchBoth(DatabaseEntry, DatabaseEntry, LockMode)
+         * Writes the given bytes with the length prefix
          */
-        public OperationStatus getSearchBoth( final DatabaseEntry key, final DatabaseEntry data, 
-                                              final LockMode lockMode) throws DatabaseException {
-            return delegate().getSearchBoth(key, data, lockMode);
+        private void write(FileChannel channel, ByteBuffer buffer, byte[] bytes) throws IOException {
+            write(channel, buffer, bytes, 0, bytes.length);
         }
-
+        
         /**
-         * @see Cursor#getSearchBothRange(DatabaseEntry, DatabaseEntry, LockMode)
+         * Writes the given bytes with the length prefix, the bytes larger than the buffer are written directly
          */
-        public OperationStatus getSearchBothRange( final DatabaseEntry key, final DatabaseEntry data, 
-                                                   final LockMode lockMode) throws DatabaseException {
-            return delegate().getSearchBothRange(key, data, lockMode);
+        private void write(FileChannel channel, ByteBuffer buffer, byte[] bytes, int offset, int length) throws IOException {
+            ensure(channel, buffer, 4);
+            buffer.putInt(length);
+            if (length > buffer.capacity()) {
+                flush(channel, buffer);
+                ByteBuffer direct = ByteBuffer.wrap(bytes, offset, length);
+                while (direct.hasRemaining()) {
+                    channel.write(direct);
+                }
+                return;
+            }
+            
+            ensure(channel, buffer, length);
+            buffer.put(bytes, offset, length);
         }
-
+        
         /**
-         * @see Cursor#count()
+         * Flushes the buffer if the remaining is less than the given bytes
          */
-        public int count() throws DatabaseException {
-            return delegate().count();
+        private void ensure(FileChannel channel, ByteBuffer buffer, int bytes) throws IOException {
+            if (buffer.remaining() < bytes) {
+                flush(channel, buffer);
+            }
+        }
+        
+        private void flush(FileChannel channel, ByteBuffer buffer) throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
         }
         
         /**
-         * @see Cursor#countEstimate()
+         * Returns the class name of the comparator, or empty if null
          */
-        public long countEstimate() throws DatabaseException {
-            return delegate().countEstimate();
+        private byte[] comparatorOf(Comparator<byte[]> comparator) {
+            return comparatorName(comparator).getBytes(Charsets.UTF_8);
         }
         
-        protected BerkeleyCursor(BerkeleyEnv berkeleyEnv, BerkeleyDB berkeleyDB, Cursor cursor) {
-            super(berkeleyEnv, berkeleyDB, cursor);
+        private static String comparatorName(Comparator<byte[]> comparator) {
+            return null == comparator ? "" : comparator.getClass().getName();
         }
         
-        @Override protected BerkeleyCursor THIS() {
-            return this;
+        /**
+         * Returns the config of the database of a section with given flags
+         */
+        private DatabaseConfig sectionConfig(byte[] flags) {
+            checkState(1 == flags.length, "The snapshot %s is corrupt.", file);
+            DatabaseConfig config = new DatabaseConfig();
+            config.setAllowCreate(true);
+            config.setTransactional(environment.getConfig().getTransactional());
+            config.setSortedDuplicates(SORTED_DUPLICATES == (flags[0] & SORTED_DUPLICATES));
+            return config;
         }
-
-        @Override protected void doClose() {
-            delegate().close();
+        
+        /**
+         * Opens the database of a section, the database is created if the section has no comparators, 
+         * otherwise the existing database must have the same comparator classes as the section
+         */
+        private Database openDatabase(String databaseName, DatabaseConfig config, 
+                String btreeComparator, String duplicateComparator) {
+            boolean comparators = !btreeComparator.isEmpty() || !duplicateComparator.isEmpty();
+            checkState(!comparators || environment.getDatabaseNames().contains(databaseName), 
+                    "The database %s must exist with the comparators %s and %s of the snapshot %s", 
+                    databaseName, btreeComparator, duplicateComparator, file);
+            
+            config.setAllowCreate(!comparators);
+            Database database = environment.openDatabase(null, databaseName, config);
+            DatabaseConfig opened = database.getConfig();
+            if (!btreeComparator.equals(comparatorName(opened.getBtreeComparator())) 
+                    || !duplicateComparator.equals(comparatorName(opened.getDuplicateComparator()))) {
+                database.close();
+                throw new IllegalStateException(String.format(
+                        "The comparators of database %s do not match the comparators %s and %s of the snapshot %s", 
+                        databaseName, btreeComparator, duplicateComparator, file));
+            }
+            return database;
         }
-
-        @Override protected Cursor delegate() {
-            return checkNotNull(delegate, "The Cursor delegate cannot be null");
+        
+        private void closeQuietly(Closeable closeable) {
+            if (null != closeable) {
+                try {
+                    closeable.close();
+                } catch (IOException e) {
+                    log.warn("Close the snapshot " + file + " error: " + e.getMessage());
+                }
+            }
         }
         
+        /**
+         * Reads the snapshot file through the read-only mapped windows of the file channel
+         */
+        private static class MappedReader {
+            
+            byte get() throws IOException {
+                return require(1).get();
+            }
+            
+            int getInt() throws IOException {
+                return require(4).getInt();
+            }
+            
+            long getLong() throws IOException {
+                return require(8).getLong();
+            }
+            
+            byte[] getBytes() throws IOException {
+                int length = getInt();
+                checkState(length >= 0, "The snapshot is corrupt at %s", position());
+                byte[] bytes = new byte[length];
+                require(bytes.length).get(bytes);
+                return bytes;
+            }
+            
+            /**
+             * Skips the given size of bytes
+             */
+            void skip(int size) throws IOException {
+                checkState(size >= 0, "The snapshot is corrupt at %s", position());
+                ByteBuffer buffer = require(size);
+                buffer.position(buffer.position() + size);
+            }
+            
+            /**
+             * Reads the given size of bytes to the given entry, the array of the entry is reused if large enough
+             */
+            void getEntry(DatabaseEntry entry, int size) throws IOException {
+                checkState(size >= 0, "The snapshot is corrupt at %s", position());
+                byte[] bytes = entry.getData();
+                if (null == bytes || bytes.length < size) {
+                    bytes = new byte[size];
+                }
+                require(size).get(bytes, 0, size);
+                entry.setData(bytes, 0, size);
+            }
+            
+            long position() {
+                return null == window ? 0 : base + window.position();
+            }
+            
+            /**
+             * Maps the next window from the current position if the remaining of the window is less than the given bytes
+             */
+            private ByteBuffer require(int bytes) throws IOException {
+                if (null == window || window.remaining() < bytes) {
+                    long position = position();
+                    checkState(position + bytes <= size, "The snapshot is truncated at %s", position);
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, 
+                            position, Math.min(size - position, Math.max(MAP_WINDOW_SIZE, bytes)));
+                    base = position;
+                }
+                return window;
+            }
+            
+            MappedReader(FileChannel channel) throws IOException {
+                this.channel = channel;
+                this.size = channel.size();
+            }
+            
+            private ByteBuffer window = null;
+            private long base = 0;
+            private final long size;
+            private final FileChannel channel;
+        }
+        
+        public BerkeleySnapshot(Environment environment, File file) {
+            this.environment = checkNotNull(environment, "The environment cannot be null.");
+            this.file = checkNotNull(file, "The snapshot file cannot be null.");
+        }
+        
+        private final Environment environment;
+        private final File file;
+        
+        private static final int MAGIC = 0x424B5350;
+        private static final byte VERSION = 1;
+        private static final byte SECTION = 1;
+        private static final byte END = 0;
+        private static final int END_OF_SECTION = -1;
+        private static final int SORTED_DUPLICATES = 1;
+        private static final int WRITE_BUFFER_SIZE = 1024 * 1024;
+        private static final long MAP_WINDOW_SIZE = 256L * 1024 * 1024;
+        private static final int LOAD_BATCH_SIZE = 1000;
+        private static final TransactionConfig LOAD_TXN_CONFIG = 
+                new TransactionConfig().setDurability(Durability.COMMIT_NO_SYNC);
     }
    
     /**
@@ -2359,9 +7693,65 @@ public abstract class Berkeley<M> extends ForwardingObject {
             if (log.isDebugEnabled()) {
                 log.debug("StoredClassCatalog initialized with database: " + delegate().getDatabaseName());
             }
+            loadSettings();
             return this;
         }
         
+        /**
+         * Returns true if the given key is the key of a {@link StoredClassCatalog} record which shares this 
+         * database, the last class ID record {0}, the class format records {1 class ID} and the class info 
+         * records {2 class name} of the registered classes. The data keys which begin with byte 0, 1 or 2 
+         * are not catalog keys, the catalog keys are reloaded for them if the catalog registered new classes
+         */
+        protected boolean isCatalogKey(DatabaseEntry key) {
+            if (key.getSize() <= 0 || (key.getData()[key.getOffset()] & 0xFF) > 2) {
+                return false;
+            }
+            
+            ByteBuffer bytes = ByteBuffer.wrap(bytesOf(key));
+            return catalogKeys(false).contains(bytes) || catalogKeys(true).contains(bytes);
+        }
+        
+        /**
+         * Returns the keys of the class catalog records, loads the keys again if reload and the last class ID 
+         * changed since loaded. The class IDs are assigned from 1 in order, the name of each class is read from 
+         * its serialized class format
+         */
+        private Set<ByteBuffer> catalogKeys(boolean reload) {
+            Pair<BigInteger, Set<ByteBuffer>> loaded = catalogKeys;
+            if (null != loaded && !reload) {
+                return loaded.getR();
+            }
+            
+            DatabaseEntry key = new DatabaseEntry(new byte[] { 0 }), data = new DatabaseEntry();
+            boolean found = OperationStatus.SUCCESS == delegate().get(null, key, data, LockMode.READ_UNCOMMITTED);
+            BigInteger lastClassId = found && data.getSize() > 0 ? new BigInteger(bytesOf(data)) : BigInteger.ZERO;
+            if (null != loaded && lastClassId.equals(loaded.getL())) {
+                return loaded.getR();
+            }
+            
+            Set<ByteBuffer> keys = Sets.newHashSet();
+            if (found) {
+                keys.add(ByteBuffer.wrap(new byte[] { 0 }));
+            }
+            for (BigInteger classId = BigInteger.ONE; classId.compareTo(lastClassId) <= 0; classId = classId.add(BigInteger.ONE)) {
+                byte[] formatKey = catalogKey(1, classId.toByteArray());
+                if (OperationStatus.SUCCESS != delegate().get(
+                        null, new DatabaseEntry(formatKey), data, LockMode.READ_UNCOMMITTED)) {
+                    break;
+                }
+                
+                keys.add(ByteBuffer.wrap(formatKey));
+                String className = catalogClassName(data);
+                if (null != className) {
+                    keys.add(ByteBuffer.wrap(catalogKey(2, className.getBytes(Charsets.UTF_8))));
+                }
+            }
+            
+            catalogKeys = Pair.of(lastClassId, keys);
+            return keys;
+        }
+        
         /**
          * @see Environment#openSecondaryDatabase(Transaction, String, Database, SecondaryConfig)
          */
@@ -2377,6 +7767,200 @@ public abstract class Berkeley<M> extends ForwardingObject {
         public BerkeleyIndex openIndex(String databaseName, Transaction txn, SecondaryConfig dbConfig) {
             return openIndex(databaseName, txn, dbConfig, null);
         }
+        
+        /**
+         * Builds the secondary index in bulk from a disk ordered scan of this database
+         * @see IndexBuilder
+         */
+        public <SK, D> BerkeleyIndex buildIndex(String databaseName, 
+                                                GenericKeyCreator<SK, D> genericKeyCreator, boolean online) {
+            checkNotNull(genericKeyCreator, "GenericKeyCreator cannot be null").initBinding(getCatalog());
+            return new IndexBuilder(this, databaseName, 
+                    defaultSecondaryConfig(genericKeyCreator), genericKeyCreator).online(online).build();
+        }
+        
+        /**
+         * Builds the secondary index in bulk from a disk ordered scan of this database
+         * @see IndexBuilder
+         */
+        public BerkeleyIndex buildIndex(String databaseName, SecondaryConfig dbConfig, boolean online) {
+            return indexBuilder(databaseName, dbConfig).online(online).build();
+        }
+        
+        /**
+         * Returns a new {@link IndexBuilder} of the secondary index with given name and config
+         */
+        public IndexBuilder indexBuilder(String databaseName, SecondaryConfig dbConfig) {
+            return new IndexBuilder(this, databaseName, dbConfig, null);
+        }
+        
+        /**
+         * @see BerkeleyDB#enableTupleBinding(Class, int)
+         */
+        public <E> BerkeleyDB enableTupleBinding(Class<E> entityClass) {
+            return enableTupleBinding(entityClass, 0);
+        }
+        
+        /**
+         * Reads and writes the values of given entity class of this database and its indexes with the generated 
+         * {@link EntityTupleBinding} of given schema version instead of {@link SerialBinding}. The values written 
+         * by the serial binding before are not readable by the tuple binding, enable it before the first write. 
+         * The entity class name and schema version are persisted in the settings database of this database, 
+         * the later connections bind the class with the tuple binding when the class is first used
+         */
+        public <E> BerkeleyDB enableTupleBinding(Class<E> entityClass, int schemaVersion) {
+            EntityTupleBinding<E> binding = new EntityTupleBinding<E>(
+                    checkNotNull(entityClass, "The entity class cannot be null."), schemaVersion);
+            putSetting(TUPLE_SETTING_PREFIX + entityClass.getName(), schemaVersion);
+            tupleSchemas.getUnchecked(getCatalog()).put(entityClass.getName(), schemaVersion);
+            tupleBindings.getUnchecked(getCatalog()).put(entityClass, binding);
+            return this;
+        }
+        
+        /**
+         * Writes the values of this database with the {@link CompressedBinding} of given threshold, the values 
+         * written before are not readable with the compression, enable it before the first write and before 
+         * opening the indexes, the keys are never compressed. The threshold is persisted in the settings 
+         * database of this database, which is restored by the later connections
+         * @see BerkeleyEnv#connection(String, DatabaseConfig, Transaction, int)
+         */
+        public BerkeleyDB enableCompression(int threshold) {
+            checkArgument(threshold >= 0, "The compression threshold cannot be negative, but is %s", threshold);
+            putSetting(COMPRESSION_SETTING, threshold);
+            compressThresholds.put(getCatalog(), threshold);
+            return this;
+        }
+        
+        /**
+         * Returns the value compression threshold of this database, or -1 if the compression is disabled
+         */
+        public int getCompressionThreshold() {
+            Integer threshold = compressThresholds.getIfPresent(getCatalog());
+            return null == threshold ? -1 : threshold;
+        }
+        
+        /**
+         * Returns the name of the database which persists the settings of this database
+         */
+        public String getSettingsDatabaseName() {
+            return getDatabaseName() + SETTINGS_SUFFIX;
+        }
+        
+        /**
+         * Persists the given setting to the settings database
+         */
+        private void putSetting(String name, int value) {
+            Database settings = openSettings();
+            try {
+                settings.put(null, getEntry(name, getPrimitiveBinding(String.class)), 
+                        getEntry(value, getPrimitiveBinding(Integer.class)));
+            } finally {
+                settings.close();
+            }
+        }
+        
+        /**
+         * Restores the persisted settings of this database if any
+         */
+        private void loadSettings() {
+            compressThresholds.invalidate(getCatalog());
+            tupleSchemas.invalidate(getCatalog());
+            tupleBindings.invalidate(getCatalog());
+            if (!getEnvironment().getDatabaseNames().contains(getSettingsDatabaseName())) {
+                return;
+            }
+            
+            Database settings = openSettings();
+            try {
+                Cursor cursor = settings.openCursor(null, null);
+                try {
+                    DatabaseEntry key = new DatabaseEntry(), data = new DatabaseEntry();
+                    while (OperationStatus.SUCCESS == cursor.getNext(key, data, null)) {
+                        String name = getPrimitiveBinding(String.class).entryToObject(key);
+                        int value = getPrimitiveBinding(Integer.class).entryToObject(data);
+                        if (COMPRESSION_SETTING.equals(name)) {
+                            compressThresholds.put(getCatalog(), value);
+                        } else if (name.startsWith(TUPLE_SETTING_PREFIX)) {
+                            tupleSchemas.getUnchecked(getCatalog()).put(name.substring(TUPLE_SETTING_PREFIX.length()), value);
+                        }
+                    }
+                } finally {
+                    cursor.close();
+                }
+            } finally {
+                settings.close();
+            }
+        }
+        
+        private Database openSettings() {
+            return getEnvironment().openDatabase(null, getSettingsDatabaseName(), 
+                    defaultDatabaseConfig().setTransactional(getEnvironment().getConfig().getTransactional()));
+        }
+        
+        /**
+         * Exports the raw records of this database to the given snapshot file, the class catalog records 
+         * which share this database and the persisted settings are included, returns the number of the records
+         * @see BerkeleySnapshot#export(Map)
+         */
+        public long exportSnapshot(File file) {
+            Map<String, Database> databases = Maps.newLinkedHashMap();
+            databases.put(getDatabaseName(), getDatabase());
+            boolean settings = getEnvironment().getDatabaseNames().contains(getSettingsDatabaseName());
+            if (settings) {
+                databases.put(SETTINGS_SECTION, openSettings());
+            }
+            try {
+                return new BerkeleySnapshot(getEnvironment(), file).export(databases);
+            } finally {
+                if (settings) {
+                    databases.get(SETTINGS_SECTION).close();
+                }
+            }
+        }
+        
+        /**
+         * Imports the raw records of the given snapshot file into this database which has no records but the 
+         * last class ID record of the class catalog, the class catalog records and the settings are replaced 
+         * by the imported and the class catalog is reopened, returns the number of the records. Nothing is 
+         * changed if the snapshot cannot be loaded
+         * @see BerkeleySnapshot#load(Function)
+         */
+        public long importSnapshot(File file) {
+            Cursor cursor = openCursor(null, null);
+            try {
+                DatabaseEntry key = new DatabaseEntry(), data = new DatabaseEntry();
+                data.setPartial(0, 0, true);
+                while (OperationStatus.SUCCESS == cursor.getNext(key, data, LockMode.READ_UNCOMMITTED)) {
+                    //the class IDs of the registered classes would collide with the imported
+                    checkState(1 == key.getSize() && 0 == key.getData()[key.getOffset()], 
+                            "The database %s is not empty.", getDatabaseName());
+                }
+            } finally {
+                cursor.close();
+            }
+            
+            final String databaseName = getDatabaseName(), settingsName = getSettingsDatabaseName();
+            BerkeleySnapshot snapshot = new BerkeleySnapshot(getEnvironment(), file);
+            Function<String, String> databaseNames = new Function<String, String>() {
+                
+                @Override public String apply(String section) {
+                    return SETTINGS_SECTION.equals(section) ? settingsName : databaseName;
+                }
+            };
+            snapshot.validate(databaseNames);
+            
+            if (getEnvironment().getDatabaseNames().contains(settingsName)) {
+                getEnvironment().removeDatabase(null, settingsName);
+            }
+            try {
+                return snapshot.load(databaseNames);
+            } finally {
+                //the catalog caches the classes and formats in memory
+                storedClassCatalog = new StoredClassCatalog(delegate());
+                catalogKeys = null;
+                loadSettings();
+            }
+        }
                 
         /**
          * @see Environment#beginTransaction(Transaction, TransactionConfig)
@@ -2397,7 +7981,7 @@ public abstract class Berkeley<M> extends ForwardingObject {
         }
         
         public <K, V> OperationStatus put(K key, V value, Transaction transaction) {
-            return put(transaction, getEntry(key), getEntry(value));
+            return put(transaction, getEntry(key), getDataEntry(value));
         }
         
         /**
@@ -2422,37 +8006,259 @@ public abstract class Berkeley<M> extends ForwardingObject {
                 throws SequenceNotFoundException, SequenceExistsException {
             return delegate().openSequence(txn, key, config);
         }
-
+
+        /**
+         * @see Database#removeSequence(Transaction, DatabaseEntry)
+         */
+        public void removeSequence(final Transaction txn, final DatabaseEntry key)
+                throws DatabaseException {
+            delegate().removeSequence(txn, key);
+        }
+        
+        public BerkeleyCursor opensCursor(Transaction txn, CursorConfig cursorConfig) {
+            return new BerkeleyCursor(getEnv(), this, openCursor(txn, cursorConfig));
+        }
+
+        /**
+         * @see Database#openCursor(Transaction, CursorConfig)
+         */
+        public Cursor openCursor(final Transaction txn,
+                final CursorConfig cursorConfig) throws DatabaseException,
+                IllegalArgumentException {
+            return delegate().openCursor(txn, cursorConfig);
+        }
+
+        /**
+         * @see Database#openCursor(DiskOrderedCursorConfig)
+         */
+        public DiskOrderedCursor openCursor(
+                final DiskOrderedCursorConfig cursorConfig)
+                throws DatabaseException, IllegalArgumentException {
+            return delegate().openCursor(cursorConfig);
+        }
+
+        /**
+         * Returns a new {@link BerkeleyWriteBatch} which applies the writes in one transaction 
+         * per given batch size of writes with given durability
+         * @see WriteBatch
+         */
+        public BerkeleyWriteBatch writeBatch(int batchSize, Durability durability) {
+            return new BerkeleyWriteBatch(this, batchSize, durability);
+        }
+        
+        /**
+         * Returns a new {@link AsyncBerkeleyWriter} which group commits up to given max batch of writes 
+         * in one transaction with given durability
+         * @see AsyncWriter
+         */
+        public AsyncBerkeleyWriter asyncWriter(int maxBatch, Durability durability) {
+            return new AsyncBerkeleyWriter(this, maxBatch, durability);
+        }
+        
+        /**
+         * @see BerkeleyDB#parallelScan(DBEntryScan, int, DiskOrderedCursorConfig)
+         */
+        public <K, D, R> R parallelScan(DBEntryScan<K, D, R> scan, int threads) {
+            return parallelScan(scan, threads, null);
+        }
+        
+        /**
+         * Scans all of the entries in disk order with given threads, the {@link DiskOrderedCursor} reader 
+         * copies the raw entries in chunks to a bounded queue, and the workers deserialize and visit them,
+         * returns the merged result of the workers. The cursor config is a 64K entries queue if null
+         * @see DBEntryScan
+         */
+        public <K, D, R> R parallelScan(final DBEntryScan<K, D, R> scan, int threads, DiskOrderedCursorConfig cursorConfig) {
+            checkNotNull(scan, "The scan cannot be null.");
+            checkArgument(threads > 0, "The threads must be positive, but is %s", threads);
+            final EntryBinding<K> keyBinding = getBinding(scan.getKeyClass());
+            final EntryBinding<D> dataBinding = getDataBinding(scan.getDataClass());
+            final BlockingQueue<List<byte[]>> chunks = new ArrayBlockingQueue<List<byte[]>>(threads * 4);
+            final List<byte[]> end = new ArrayList<byte[]>(0);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            
+            ExecutorService workers = newDaemonPool(threads, "berkeley-scan-%d");
+            DiskOrderedCursor cursor = null;
+            try {
+                List<Future<R>> results = Lists.newArrayListWithCapacity(threads);
+                for (int i = 0; i < threads; i++) {
+                    results.add(workers.submit(new Callable<R>() {
+                        
+                        @Override public R call() throws Exception {
+                            R result = scan.newResult();
+                            DatabaseEntry key = new DatabaseEntry(), data = new DatabaseEntry();
+                            try {
+                                for (List<byte[]> chunk = chunks.take(); end != chunk; chunk = chunks.take()) {
+                                    for (int j = 0; j < chunk.size(); j += 2) {
+                                        key.setData(chunk.get(j));
+                                        data.setData(chunk.get(j + 1));
+                                        result = scan.apply(result, keyBinding.entryToObject(key), dataBinding.entryToObject(data));
+                                    }
+                                }
+                            } catch (Throwable e) {
+                                failure.compareAndSet(null, e);
+                                throw Throwables.propagate(e);
+                            }
+                            return result;
+                        }
+                    }));
+                }
+                
+                try {
+                    cursor = openCursor(null != cursorConfig 
+                            ? cursorConfig : new DiskOrderedCursorConfig().setQueueSize(SCAN_QUEUE_SIZE));
+                    DatabaseEntry key = new DatabaseEntry(), data = new DatabaseEntry();
+                    List<byte[]> chunk = new ArrayList<byte[]>(SCAN_CHUNK_SIZE * 2);
+                    while (null == failure.get() && OperationStatus.SUCCESS == cursor.getNext(key, data, null)) {
+                        if (isCatalogKey(key)) {
+                            continue;
+                        }
+                        
+                        chunk.add(bytesOf(key));
+                        chunk.add(bytesOf(data));
+                        if (chunk.size() >= SCAN_CHUNK_SIZE * 2) {
+                            offer(chunks, chunk, failure);
+                            chunk = new ArrayList<byte[]>(SCAN_CHUNK_SIZE * 2);
+                        }
+                    }
+                    if (!chunk.isEmpty()) {
+                        offer(chunks, chunk, failure);
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                } finally {
+                    for (int i = 0; i < threads; i++) {
+                        while (!chunks.offer(end, 100, TimeUnit.MILLISECONDS)) {
+                            if (null != failure.get()) {
+                                chunks.clear();
+                            }
+                        }
+                    }
+                }
+                
+                return merge(scan, results, failure);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(e);
+            } finally {
+                if (null != cursor) {
+                    cursor.close();
+                }
+                workers.shutdownNow();
+            }
+        }
+        
         /**
-         * @see Database#removeSequence(Transaction, DatabaseEntry)
+         * Scans all of the entries in key order with given threads, the key space is split into equal count 
+         * of key ranges by {@link Cursor#skipNext(long, DatabaseEntry, DatabaseEntry, LockMode)}, each range 
+         * is scanned in key order with its own cursor, and the results are merged in key range order
+         * @see DBEntryScan
          */
-        public void removeSequence(final Transaction txn, final DatabaseEntry key)
-                throws DatabaseException {
-            delegate().removeSequence(txn, key);
+        public <K, D, R> R parallelRangeScan(final DBEntryScan<K, D, R> scan, int threads) {
+            checkNotNull(scan, "The scan cannot be null.");
+            checkArgument(threads > 0, "The threads must be positive, but is %s", threads);
+            final EntryBinding<K> keyBinding = getBinding(scan.getKeyClass());
+            final EntryBinding<D> dataBinding = getDataBinding(scan.getDataClass());
+            final Comparator<byte[]> comparator = firstNonNull(
+                    getDatabase().getConfig().getBtreeComparator(), UnsignedBytes.lexicographicalComparator());
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            
+            final List<byte[]> splits = Lists.newArrayList();
+            splits.add(null);
+            Cursor cursor = openCursor(null, null);
+            try {
+                long step = getDatabase().count() / threads;
+                DatabaseEntry key = new DatabaseEntry(), data = new DatabaseEntry();
+                data.setPartial(0, 0, true);
+                if (step > 0 && OperationStatus.SUCCESS == cursor.getFirst(key, data, null)) {
+                    for (int i = 1; i < threads && cursor.skipNext(step, key, data, null) == step; i++) {
+                        splits.add(bytesOf(key));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+            splits.add(null);
+            
+            ExecutorService workers = newDaemonPool(splits.size() - 1, "berkeley-scan-%d");
+            try {
+                List<Future<R>> results = Lists.newArrayListWithCapacity(splits.size() - 1);
+                for (int i = 0; i < splits.size() - 1; i++) {
+                    final byte[] from = splits.get(i), to = splits.get(i + 1);
+                    results.add(workers.submit(new Callable<R>() {
+                        
+                        @Override public R call() throws Exception {
+                            R result = scan.newResult();
+                            DatabaseEntry key = new DatabaseEntry(), data = new DatabaseEntry();
+                            Cursor cursor = openCursor(null, null);
+                            try {
+                                OperationStatus status = null;
+                                if (null == from) {
+                                    status = cursor.getFirst(key, data, null);
+                                } else {
+                                    key.setData(from);
+                                    status = cursor.getSearchKeyRange(key, data, null);
+                                }
+                                
+                                while (OperationStatus.SUCCESS == status && null == failure.get()
+                                        && (null == to || comparator.compare(bytesOf(key), to) < 0)) {
+                                    if (!isCatalogKey(key)) {
+                                        result = scan.apply(result, keyBinding.entryToObject(key), dataBinding.entryToObject(data));
+                                    }
+                                    status = cursor.getNext(key, data, null);
+                                }
+                            } catch (Throwable e) {
+                                failure.compareAndSet(null, e);
+                                throw Throwables.propagate(e);
+                            } finally {
+                                cursor.close();
+                            }
+                            return result;
+                        }
+                    }));
+                }
+                
+                return merge(scan, results, failure);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(e);
+            } finally {
+                workers.shutdownNow();
+            }
         }
         
-        public BerkeleyCursor opensCursor(Transaction txn, CursorConfig cursorConfig) {
-            return new BerkeleyCursor(getEnv(), this, openCursor(txn, cursorConfig));
-        }
-
         /**
-         * @see Database#openCursor(Transaction, CursorConfig)
+         * Merges the results of the workers in order, rethrows the first failure if any
          */
-        public Cursor openCursor(final Transaction txn,
-                final CursorConfig cursorConfig) throws DatabaseException,
-                IllegalArgumentException {
-            return delegate().openCursor(txn, cursorConfig);
+        private <K, D, R> R merge(DBEntryScan<K, D, R> scan, 
+                List<Future<R>> results, AtomicReference<Throwable> failure) throws InterruptedException {
+            R result = null;
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    R partial = results.get(i).get();
+                    result = 0 == i ? partial : scan.merge(result, partial);
+                } catch (ExecutionException e) {
+                    failure.compareAndSet(null, e.getCause());
+                }
+            }
+            
+            if (null != failure.get()) {
+                throw Throwables.propagate(failure.get());
+            }
+            return result;
         }
-
+        
         /**
-         * @see Database#openCursor(DiskOrderedCursorConfig)
+         * Puts the given chunk to the queue unless any worker failed
          */
-        public DiskOrderedCursor openCursor(
-                final DiskOrderedCursorConfig cursorConfig)
-                throws DatabaseException, IllegalArgumentException {
-            return delegate().openCursor(cursorConfig);
+        private <T> void offer(BlockingQueue<T> queue, T chunk, AtomicReference<Throwable> failure) throws InterruptedException {
+            while (null == failure.get() && !queue.offer(chunk, 100, TimeUnit.MILLISECONDS)) { }
         }
-
+        
+        private static final int SCAN_CHUNK_SIZE = 256;
+        // The default queue size of the disk ordered cursor, the cursor producer stalls with a small queue
+        private static final int SCAN_QUEUE_SIZE = 64 * 1024;
+        
         /**
          * @see Database#populateSecondaries(DatabaseEntry, int)
          */
@@ -2468,7 +8274,12 @@ public abstract class Berkeley<M> extends ForwardingObject {
                 throws DeleteConstraintException, LockConflictException,
                 DatabaseException, UnsupportedOperationException,
                 IllegalArgumentException {
-            return delegate().delete(txn, key);
+            long start = meterStart();
+            try {
+                return delegate().delete(txn, key);
+            } finally {
+                meterStop("delete", start);
+            }
         }
 
         /**
@@ -2478,7 +8289,12 @@ public abstract class Berkeley<M> extends ForwardingObject {
                 final DatabaseEntry data, LockMode lockMode)
                 throws LockConflictException, DatabaseException,
                 IllegalArgumentException {
-            return delegate().get(txn, key, data, lockMode);
+            long start = meterStart();
+            try {
+                return delegate().get(txn, key, data, lockMode);
+            } finally {
+                meterStop("get", start);
+            }
         }
 
         /**
@@ -2488,7 +8304,12 @@ public abstract class Berkeley<M> extends ForwardingObject {
                 final DatabaseEntry key, final DatabaseEntry data, LockMode lockMode)
                 throws LockConflictException, DatabaseException,
                 IllegalArgumentException {
-            return delegate().getSearchBoth(txn, key, data, lockMode);
+            long start = meterStart();
+            try {
+                return delegate().getSearchBoth(txn, key, data, lockMode);
+            } finally {
+                meterStop("get", start);
+            }
         }
 
         /**
@@ -2496,7 +8317,12 @@ public abstract class Berkeley<M> extends ForwardingObject {
          */
         public OperationStatus put(final Transaction txn, final DatabaseEntry key,
                 final DatabaseEntry data) throws DatabaseException {
-            return delegate().put(txn, key, data);
+            long start = meterStart();
+            try {
+                return delegate().put(txn, key, data);
+            } finally {
+                meterStop("put", start);
+            }
         }
 
         /**
@@ -2505,7 +8331,12 @@ public abstract class Berkeley<M> extends ForwardingObject {
         public OperationStatus putNoOverwrite(final Transaction txn,
                 final DatabaseEntry key, final DatabaseEntry data)
                 throws DatabaseException {
-            return delegate().putNoOverwrite(txn, key, data);
+            long start = meterStart();
+            try {
+                return delegate().putNoOverwrite(txn, key, data);
+            } finally {
+                meterStop("put", start);
+            }
         }
 
         /**
@@ -2514,7 +8345,12 @@ public abstract class Berkeley<M> extends ForwardingObject {
         public OperationStatus putNoDupData(final Transaction txn,
                 final DatabaseEntry key, final DatabaseEntry data)
                 throws DatabaseException {
-            return delegate().putNoDupData(txn, key, data);
+            long start = meterStart();
+            try {
+                return delegate().putNoDupData(txn, key, data);
+            } finally {
+                meterStop("put", start);
+            }
         }
 
         /**
@@ -2566,6 +8402,10 @@ public abstract class Berkeley<M> extends ForwardingObject {
             }
             return dbName;
         }
+        
+        @Override protected String meterName() {
+            return getDatabaseName();
+        }
 
         /**
          * @see Database#getConfig()
@@ -2600,12 +8440,23 @@ public abstract class Berkeley<M> extends ForwardingObject {
         private String _dbName;
         private Database _database;
         private StoredClassCatalog storedClassCatalog = null;
+        // The last class ID and the record keys of the class catalog which shares this database
+        private volatile Pair<BigInteger, Set<ByteBuffer>> catalogKeys = null;
+        // The opened secondary indexes
+        private List<BerkeleyIndex> indexes = Lists.newCopyOnWriteArrayList();
+        
+        private static final String SETTINGS_SUFFIX = "-settings";
+        private static final String SETTINGS_SECTION = "#settings";
+        private static final String COMPRESSION_SETTING = "compression";
+        private static final String TUPLE_SETTING_PREFIX = "tuple:";
         
         private <SK, D> BerkeleyIndex openIndex(String databaseName,
                                                 Transaction txn, SecondaryConfig dbConfig, GenericKeyCreator<SK, D> genericKeyCreator) {
-            return new BerkeleyIndex(getEnv(), this, genericKeyCreator, getEnv().openSecondaryDatabase(
+            BerkeleyIndex index = new BerkeleyIndex(getEnv(), this, genericKeyCreator, getEnv().openSecondaryDatabase(
                     txn, checkNotNull(databaseName, "databaseName cannot be null"), 
                     getDatabase(), checkNotNull(dbConfig, "SecondaryConfig cannot be null")));
+            indexes.add(index);
+            return index;
         }
 
         @Override protected Database delegate() {
@@ -2635,15 +8486,106 @@ public abstract class Berkeley<M> extends ForwardingObject {
         return Pair.of(first, second);
     }
     
-    @SuppressWarnings({ "rawtypes", "unchecked" })
+    /**
+     * Returns a new entry over the exact bytes of given entry, the cursor operations on it leave the given entry intact
+     */
+    protected static DatabaseEntry copyOf(DatabaseEntry entry) {
+        return new DatabaseEntry(bytesOf(entry));
+    }
+    
+    /**
+     * Returns the exact bytes of given entry, copies the data only if the entry is a slice
+     */
+    protected static byte[] bytesOf(DatabaseEntry entry) {
+        byte[] data = entry.getData();
+        if (0 == entry.getOffset() && data.length == entry.getSize()) {
+            return data;
+        }
+        return Arrays.copyOfRange(data, entry.getOffset(), entry.getOffset() + entry.getSize());
+    }
+    
+    /**
+     * Returns the key of a {@link StoredClassCatalog} record of given record type and bytes
+     */
+    private static byte[] catalogKey(int recordType, byte[] bytes) {
+        byte[] key = new byte[bytes.length + 1];
+        key[0] = (byte) recordType;
+        System.arraycopy(bytes, 0, key, 1, bytes.length);
+        return key;
+    }
+    
+    /**
+     * Returns the class name of given {@link StoredClassCatalog} class format record which is a serialized 
+     * {@link java.io.ObjectStreamClass}, or null if it is not a class descriptor
+     */
+    private static String catalogClassName(DatabaseEntry format) {
+        DataInputStream in = new DataInputStream(
+                new ByteArrayInputStream(format.getData(), format.getOffset(), format.getSize()));
+        try {
+            return ObjectStreamConstants.STREAM_MAGIC == in.readShort() 
+                    && ObjectStreamConstants.STREAM_VERSION == in.readShort() 
+                    && ObjectStreamConstants.TC_CLASSDESC == in.readByte() ? in.readUTF() : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+    
+    /**
+     * Returns a new fixed thread pool of daemon threads with given name format
+     */
+    protected static ExecutorService newDaemonPool(int threads, String nameFormat) {
+        return Executors.newFixedThreadPool(threads, 
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat(nameFormat).build());
+    }
+    
+    /**
+     * Returns the cached {@link EntryBinding} of the given target class or the class of given target, 
+     * the primitive binding if present, otherwise the {@link SerialBinding} of given catalog
+     */
+    @SuppressWarnings("unchecked")
     protected static <T, E> EntryBinding<E> getBinding(T target, ClassCatalog catalog) {
-        EntryBinding<?> binding = bindingBehavior.update(target).doDetect();
-        if (null == binding) {
-            binding = new SerialBinding(checkNotNull(catalog, 
-                    "ClassCatalog cannot be null"), (Class) (target instanceof Class ? target : target.getClass()));
+        Class<?> clazz = checkNotNull(target, "The binding target cannot be null.") instanceof Class 
+                ? (Class<?>) target : target.getClass();
+        Optional<EntryBinding<?>> binding = primitiveBindings.getUnchecked(clazz);
+        if (binding.isPresent()) {
+            return (EntryBinding<E>) binding.get();
+        }
+        
+        EntryBinding<?> tupleBinding = null == catalog ? null : getTupleBinding(clazz, catalog);
+        if (null != tupleBinding) {
+            return (EntryBinding<E>) tupleBinding;
         }
         
-        return (EntryBinding<E>) binding;
+        return (EntryBinding<E>) serialBindings.getUnchecked(
+                checkNotNull(catalog, "ClassCatalog cannot be null")).getUnchecked(clazz);
+    }
+    
+    /**
+     * Returns the {@link EntityTupleBinding} of given class if enabled for the catalog, the binding of 
+     * the persisted schema version is created when the class is first used, or null if not enabled
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static EntryBinding<?> getTupleBinding(Class<?> clazz, ClassCatalog catalog) {
+        ConcurrentMap<Class<?>, EntryBinding<?>> bindings = tupleBindings.getUnchecked(catalog);
+        EntryBinding<?> binding = bindings.get(clazz);
+        if (null == binding) {
+            Integer schemaVersion = tupleSchemas.getUnchecked(catalog).get(clazz.getName());
+            if (null != schemaVersion) {
+                EntryBinding<?> created = new EntityTupleBinding(clazz, schemaVersion);
+                binding = firstNonNull(bindings.putIfAbsent(clazz, created), created);
+            }
+        }
+        return binding;
+    }
+    
+    /**
+     * Returns the data {@link EntryBinding} of the given target, which is the {@link CompressedBinding} 
+     * of the {@link #getBinding(Object, ClassCatalog)} if the compression is enabled for the catalog
+     */
+    protected static <T, E> EntryBinding<E> getDataBinding(T target, ClassCatalog catalog) {
+        EntryBinding<E> binding = getBinding(target, catalog);
+        Integer threshold = null == catalog ? null : compressThresholds.getIfPresent(catalog);
+        return null == threshold ? binding : new CompressedBinding<E>(binding, threshold);
     }
     
     /**
@@ -2667,6 +8609,28 @@ public abstract class Berkeley<M> extends ForwardingObject {
         return getSequence(sequenceKey, null).get(txn, delta);
     }
     
+    /**
+     * Returns the shared {@link IdAllocator} of given sequence key with given block size
+     * @see Berkeley#idAllocator(String, int, boolean)
+     */
+    public IdAllocator idAllocator(String sequenceKey, int blockSize) {
+        return idAllocator(sequenceKey, blockSize, false);
+    }
+    
+    /**
+     * Returns the {@link IdAllocator} of given sequence key, block size and whether reserve the blocks per thread, 
+     * the allocator is created once and shared by the callers with the same arguments
+     */
+    public IdAllocator idAllocator(String sequenceKey, int blockSize, boolean threadLocal) {
+        List<Object> allocatorKey = Arrays.<Object>asList(checkNotNull(sequenceKey), blockSize, threadLocal);
+        IdAllocator allocator = idAllocators.get(allocatorKey);
+        if (null == allocator) {
+            IdAllocator created = new IdAllocator(getSequence(sequenceKey, null), blockSize, threadLocal);
+            allocator = firstNonNull(idAllocators.putIfAbsent(allocatorKey, created), created);
+        }
+        return allocator;
+    }
+    
     /**
      * @see Database#removeSequence(Transaction, DatabaseEntry)
      */
@@ -2679,6 +8643,11 @@ public abstract class Berkeley<M> extends ForwardingObject {
      */
     public void removeSequence(String sequenceKey, Transaction transaction) {
         sequences.remove(sequenceKey);
+        for (Iterator<List<Object>> itr = idAllocators.keySet().iterator(); itr.hasNext();) {
+            if (sequenceKey.equals(itr.next().get(0))) {
+                itr.remove();
+            }
+        }
         sequenceDB().removeSequence(transaction, sequenceDB().getEntry(sequenceKey));
     }
     
@@ -2713,15 +8682,19 @@ public abstract class Berkeley<M> extends ForwardingObject {
     public Sequence getSequence(String sequenceKey, SequenceConfig sequenceConfig) {
         Sequence sequence = sequences.get(checkNotNull(sequenceKey));
         if (null == sequence) {
-            sequence = sequenceDB().openSequence(null, 
-                    sequenceDB().getEntry(sequenceKey), firstNonNull(sequenceConfig, defaultSequenceConfig()));
-            sequences.put(sequenceKey, sequence);
+            synchronized (sequences) {
+                if (null == (sequence = sequences.get(sequenceKey))) {
+                    sequence = sequenceDB().openSequence(null, 
+                            sequenceDB().getEntry(sequenceKey), firstNonNull(sequenceConfig, defaultSequenceConfig()));
+                    sequences.put(sequenceKey, sequence);
+                }
+            }
         }
         
         return sequence;
     }
     
-    private BerkeleyDB sequenceDB() {
+    private synchronized BerkeleyDB sequenceDB() {
         if (!uniqueDB.isPresent()) {
             uniqueDB = Optional.of(from(getEnvHome().getPath(), "sequences"));
         }
@@ -2760,15 +8733,118 @@ public abstract class Berkeley<M> extends ForwardingObject {
         this.berkeleyEnv = checkNotNull(berkeleyEnv, "Berkeley environment cannot be null.");
     }
     
+    /**
+     * Returns the start time of a metered operation, or {@link Berkeley#NOT_METERED} if the metrics are not enabled
+     * @see BerkeleyEnv#metrics(MetricRegistry, long, TimeUnit)
+     */
+    protected long meterStart() {
+        return null == berkeleyEnv.metrics ? NOT_METERED : System.nanoTime();
+    }
+    
+    /**
+     * Records the metered operation of {@link Berkeley#meterName()} started at given time
+     * @see BerkeleyMetrics#record(String, String, long)
+     */
+    protected void meterStop(String operation, long start) {
+        if (NOT_METERED != start) {
+            meterStop(meterName(), operation, start);
+        }
+    }
+    
+    /**
+     * Records the metered operation of given name started at given time
+     * @see BerkeleyMetrics#record(String, String, long)
+     */
+    protected void meterStop(String name, String operation, long start) {
+        BerkeleyMetrics metrics = berkeleyEnv.metrics;
+        if (NOT_METERED != start && null != metrics) {
+            metrics.record(name, operation, System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Returns the name of the operation metrics
+     */
+    protected String meterName() {
+        return getClass().getSimpleName();
+    }
+    
+    protected static final long NOT_METERED = Long.MIN_VALUE;
+    
     private BerkeleyEnv berkeleyEnv = null;
     private Optional<BerkeleyDB> uniqueDB = Optional.absent();
-    private Map<String, Sequence> sequences = Maps.newHashMap();
+    private final ConcurrentMap<String, Sequence> sequences = Maps.newConcurrentMap();
+    private final ConcurrentMap<List<Object>, IdAllocator> idAllocators = Maps.newConcurrentMap();
     
     /**
-     * 
+     * @deprecated The shared behavior is not thread-safe, using {@link Berkeley#getBinding(Object, ClassCatalog)} 
+     * with the cached bindings instead
      */
+    @Deprecated
     protected static final BindingBehavior bindingBehavior = new BindingBehavior(null);
     
+    /**
+     * The primitive bindings by class, absent if the class has none
+     */
+    private static final LoadingCache<Class<?>, Optional<EntryBinding<?>>> primitiveBindings = 
+            CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<Class<?>, Optional<EntryBinding<?>>>() {
+                
+                @Override public Optional<EntryBinding<?>> load(Class<?> clazz) {
+                    return Optional.<EntryBinding<?>>fromNullable(new BindingBehavior(clazz).doDetect());
+                }
+            });
+    
+    /**
+     * The opt-in {@link EntityTupleBinding}s by catalog and entity class
+     * @see BerkeleyDB#enableTupleBinding(Class, int)
+     */
+    private static final LoadingCache<ClassCatalog, ConcurrentMap<Class<?>, EntryBinding<?>>> tupleBindings = 
+            CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<ClassCatalog, ConcurrentMap<Class<?>, EntryBinding<?>>>() {
+                
+                @Override public ConcurrentMap<Class<?>, EntryBinding<?>> load(ClassCatalog catalog) {
+                    return Maps.newConcurrentMap();
+                }
+            });
+    
+    /**
+     * The schema versions of the opt-in {@link EntityTupleBinding}s by catalog and entity class name
+     * @see BerkeleyDB#enableTupleBinding(Class, int)
+     */
+    private static final LoadingCache<ClassCatalog, ConcurrentMap<String, Integer>> tupleSchemas = 
+            CacheBuilder.newBuilder().weakKeys().build(new CacheLoader<ClassCatalog, ConcurrentMap<String, Integer>>() {
+                
+                @Override public ConcurrentMap<String, Integer> load(ClassCatalog catalog) {
+                    return Maps.newConcurrentMap();
+                }
+            });
+    
+    /**
+     * The value compression thresholds by catalog
+     * @see BerkeleyDB#enableCompression(int)
+     */
+    private static final Cache<ClassCatalog, Integer> compressThresholds = CacheBuilder.newBuilder().weakKeys().build();
+    
+    /**
+     * The serial bindings by catalog and class, weak-keyed so that a closed catalog or an unloaded class 
+     * is not retained by the cache. The bindings strongly reference both of their keys, which would keep 
+     * the weak keys reachable forever, so that the values are soft and released under memory pressure
+     */
+    private static final LoadingCache<ClassCatalog, LoadingCache<Class<?>, EntryBinding<?>>> serialBindings = 
+            CacheBuilder.newBuilder().weakKeys().softValues().build(
+                    new CacheLoader<ClassCatalog, LoadingCache<Class<?>, EntryBinding<?>>>() {
+                
+                @Override public LoadingCache<Class<?>, EntryBinding<?>> load(final ClassCatalog catalog) {
+                    return CacheBuilder.newBuilder().weakKeys().softValues().build(
+                            new CacheLoader<Class<?>, EntryBinding<?>>() {
+                        
+                        @SuppressWarnings({ "rawtypes", "unchecked" })
+                        @Override public EntryBinding<?> load(Class<?> clazz) {
+                            return new SerialBinding(catalog, clazz);
+                        }
+                    });
+                }
+            });
+    
     /**
      * @see BerkeleyStore
      */
@@ -2787,12 +8863,29 @@ public abstract class Berkeley<M> extends ForwardingObject {
         }
         
         /**
+         * Returns the next ID of given sequence, from the {@link IdAllocator} if the ID blocks are enabled
          * @see BerkeleyStore#increaseAndGet(String)
+         * @see BerkeleyAccess#enableIdBlocks(int)
          */
         public Long autoincreaseID(String sequenceName) {
+            Integer blockSize = store.idBlockSizes.get(entityClass);
+            if (null != blockSize) {
+                return store.idAllocator(sequenceName, blockSize).next();
+            }
             return store.increaseAndGet(sequenceName);
         }
         
+        /**
+         * Enables the auto increase IDs of the entity class of the {@link BerkeleyStore} to be reserved from 
+         * the sequence in blocks of given size, the IDs stay unique but the unused IDs of a block are skipped 
+         * after restart
+         * @see IdAllocator
+         */
+        public void enableIdBlocks(int blockSize) {
+            checkArgument(blockSize > 0, "The block size must be positive, but is %s", blockSize);
+            store.idBlockSizes.put(entityClass, blockSize);
+        }
+        
         /**
          * @see BerkeleyStore#query(com.sleepycat.persist.EntityIndex, String)
          */
@@ -2806,25 +8899,223 @@ public abstract class Berkeley<M> extends ForwardingObject {
         }
         
         /**
-         * @see BerkeleyStore#query(com.sleepycat.persist.EntityIndex, Object, boolean, Object, boolean)
-         * @see EntityIndex#entities(Object, boolean, Object, boolean)
+         * @see BerkeleyStore#query(com.sleepycat.persist.EntityIndex, Object, boolean, Object, boolean)
+         * @see EntityIndex#entities(Object, boolean, Object, boolean)
+         */
+        public <K, V> List<E> findRange(String keyName, K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
+            return all(store.query(getRegisterSK(keyName), fromKey, fromInclusive, toKey, toInclusive));
+        }
+        
+        /**
+         * @see PrimaryIndex#entities(Object, boolean, Object, boolean)
+         */
+        public List<E> findRange(PK fromKey, boolean fromInclusive, PK toKey, boolean toInclusive) {
+            return all(getPK().entities(fromKey, fromInclusive, toKey, toInclusive));
+        }
+        
+        /**
+         * @see SecondaryIndex#subIndex(Object)
+         */
+        public <SK> List<E> find(String keyName, SK value) {
+            return all(getRegisterSK(keyName).subIndex(checkNotNull(value)).entities());
+        }
+        
+        /**
+         * Returns the primary keys of given secondary key from the secondary index only, the primary records are not read
+         * @see SecondaryIndex#subIndex(Object)
+         * @see EntityIndex#keys()
+         */
+        public <SK> List<PK> findKeys(String keyName, SK value) {
+            return allOf(getRegisterSK(keyName).subIndex(checkNotNull(value)).keys());
+        }
+        
+        /**
+         * Returns the primary keys of given primary key range, the record data are not read
+         * @see PrimaryIndex#keys(Object, boolean, Object, boolean)
+         */
+        public List<PK> findKeys(PK fromKey, boolean fromInclusive, PK toKey, boolean toInclusive) {
+            return allOf(getPK().keys(fromKey, fromInclusive, toKey, toInclusive));
+        }
+        
+        /**
+         * Returns the primary keys of given secondary key range in secondary key order from the secondary index only
+         * @see SecondaryIndex#keysIndex()
+         */
+        public <SK> List<PK> findKeysRange(String keyName, SK fromKey, boolean fromInclusive, SK toKey, boolean toInclusive) {
+            return allOf(this.<SK>getRegisterSK(keyName).keysIndex().entities(fromKey, fromInclusive, toKey, toInclusive));
+        }
+        
+        /**
+         * Returns the distinct secondary keys of given secondary key range from the secondary index only
+         * @see SecondaryIndex#keysIndex()
+         * @see EntityCursor#nextNoDup()
+         */
+        public <SK> List<SK> findSecondaryKeys(String keyName, SK fromKey, boolean fromInclusive, SK toKey, boolean toInclusive) {
+            EntityCursor<SK> cursor = this.<SK>getRegisterSK(keyName).keysIndex().keys(fromKey, fromInclusive, toKey, toInclusive);
+            List<SK> keys = Lists.newArrayList();
+            try {
+                SK key = null;
+                while (null != (key = cursor.nextNoDup())) {
+                    keys.add(key);
+                }
+            } finally {
+                cursor.close();
+            }
+            return keys;
+        }
+        
+        /**
+         * Returns the secondary key and primary key pairs of given secondary key range in secondary key order 
+         * from the secondary index only, walks the keys database once with one cursor
+         * @see SecondaryIndex#getKeysDatabase()
+         */
+        public <SK> List<Pair<SK, PK>> findKeyPairs(String keyName, SK fromKey, boolean fromInclusive, SK toKey, boolean toInclusive) {
+            SecondaryIndex<SK, PK, E> index = getRegisterSK(keyName);
+            index.keysIndex();
+            EntryBinding<SK> keyBinding = index.getKeyBinding();
+            EntryBinding<PK> primaryKeyBinding = index.getPrimaryIndex().getKeyBinding();
+            Comparator<byte[]> comparator = firstNonNull(
+                    index.getDatabase().getConfig().getBtreeComparator(), UnsignedBytes.lexicographicalComparator());
+            byte[] from = null == fromKey ? null : keyBytes(keyBinding, fromKey);
+            byte[] to = null == toKey ? null : keyBytes(keyBinding, toKey);
+            
+            List<Pair<SK, PK>> pairs = Lists.newArrayList();
+            DatabaseEntry key = new DatabaseEntry();
+            DatabaseEntry data = new DatabaseEntry();
+            Cursor cursor = index.getKeysDatabase().openCursor(null, null);
+            try {
+                OperationStatus status = null;
+                if (null == from) {
+                    status = cursor.getFirst(key, data, null);
+                } else {
+                    key.setData(from);
+                    status = cursor.getSearchKeyRange(key, data, null);
+                    if (OperationStatus.SUCCESS == status && !fromInclusive && 0 == comparator.compare(bytesOf(key), from)) {
+                        status = cursor.getNextNoDup(key, data, null);
+                    }
+                }
+                
+                for (; OperationStatus.SUCCESS == status; status = cursor.getNext(key, data, null)) {
+                    if (null != to) {
+                        int c = comparator.compare(bytesOf(key), to);
+                        if (c > 0 || (0 == c && !toInclusive)) {
+                            break;
+                        }
+                    }
+                    pairs.add(Pair.of(keyBinding.entryToObject(key), primaryKeyBinding.entryToObject(data)));
+                }
+            } finally {
+                cursor.close();
+            }
+            return pairs;
+        }
+        
+        private static <K> byte[] keyBytes(EntryBinding<K> binding, K key) {
+            DatabaseEntry entry = new DatabaseEntry();
+            binding.objectToEntry(key, entry);
+            return bytesOf(entry);
+        }
+        
+        /**
+         * Returns the count of the entities of given secondary key from the secondary index only
+         * @see EntityIndex#count()
+         */
+        public <SK> long count(String keyName, SK value) {
+            return getRegisterSK(keyName).subIndex(checkNotNull(value)).count();
+        }
+        
+        /**
+         * Returns the count of the entities of given secondary key range from the secondary index only
+         * @see SecondaryIndex#keysIndex()
+         */
+        public <SK> long count(String keyName, SK fromKey, boolean fromInclusive, SK toKey, boolean toInclusive) {
+            EntityCursor<SK> cursor = this.<SK>getRegisterSK(keyName).keysIndex().keys(fromKey, fromInclusive, toKey, toInclusive);
+            long count = 0;
+            try {
+                while (null != cursor.next()) {
+                    count++;
+                }
+            } finally {
+                cursor.close();
+            }
+            return count;
+        }
+        
+        /**
+         * Returns the lazy entities of {@link BerkeleyAccess#findPrefix(String, String)}
+         * @see EntityStream
+         */
+        public <SK> EntityStream<E> streamPrefix(final String keyName, final String prefix) {
+            SecondaryIndex<SK, PK, E> secondaryIndex = getRegisterSK(keyName);
+            Class<SK> classSK = secondaryIndex.getKeyClass();
+            checkArgument(String.class == classSK, "The secondary index class type must be java.lang.String.class, but is %s", classSK);
+            checkArgument(!Strs.isBlank(prefix));
+            
+            @SuppressWarnings("unchecked") final SecondaryIndex<String, PK, E> idx = (SecondaryIndex<String, PK, E>) secondaryIndex;
+            return new EntityStream<E>(new Supplier<ForwardCursor<E>>() {
+                
+                @Override public ForwardCursor<E> get() {
+                    return store.query(idx, prefix);
+                }
+            });
+        }
+        
+        /**
+         * Returns the lazy entities of {@link BerkeleyAccess#findRange(String, Object, boolean, Object, boolean)}
+         * @see EntityStream
+         */
+        public <K> EntityStream<E> streamRange(String keyName, 
+                final K fromKey, final boolean fromInclusive, final K toKey, final boolean toInclusive) {
+            final SecondaryIndex<K, PK, E> idx = getRegisterSK(keyName);
+            return new EntityStream<E>(new Supplier<ForwardCursor<E>>() {
+                
+                @Override public ForwardCursor<E> get() {
+                    return store.query(idx, fromKey, fromInclusive, toKey, toInclusive);
+                }
+            });
+        }
+        
+        /**
+         * Returns the lazy entities of {@link BerkeleyAccess#findRange(Object, boolean, Object, boolean)}
+         * @see EntityStream
          */
-        public <K, V> List<E> findRange(String keyName, K fromKey, boolean fromInclusive, K toKey, boolean toInclusive) {
-            return all(store.query(getRegisterSK(keyName), fromKey, fromInclusive, toKey, toInclusive));
+        public EntityStream<E> streamRange(final PK fromKey, final boolean fromInclusive, final PK toKey, final boolean toInclusive) {
+            final PrimaryIndex<PK, E> idx = getPK();
+            return new EntityStream<E>(new Supplier<ForwardCursor<E>>() {
+                
+                @Override public ForwardCursor<E> get() {
+                    return idx.entities(fromKey, fromInclusive, toKey, toInclusive);
+                }
+            });
         }
         
         /**
-         * @see PrimaryIndex#entities(Object, boolean, Object, boolean)
+         * Returns the lazy entities of {@link BerkeleyAccess#find(String, Object)}
+         * @see EntityStream
          */
-        public List<E> findRange(PK fromKey, boolean fromInclusive, PK toKey, boolean toInclusive) {
-            return all(getPK().entities(fromKey, fromInclusive, toKey, toInclusive));
+        public <SK> EntityStream<E> stream(String keyName, final SK value) {
+            final SecondaryIndex<SK, PK, E> idx = getRegisterSK(keyName);
+            checkNotNull(value);
+            return new EntityStream<E>(new Supplier<ForwardCursor<E>>() {
+                
+                @Override public ForwardCursor<E> get() {
+                    return idx.subIndex(value).entities();
+                }
+            });
         }
         
         /**
-         * @see SecondaryIndex#subIndex(Object)
+         * Returns the lazy entities of all
+         * @see EntityStream
          */
-        public <SK> List<E> find(String keyName, SK value) {
-            return all(getRegisterSK(keyName).subIndex(checkNotNull(value)).entities());
+        public EntityStream<E> stream() {
+            final PrimaryIndex<PK, E> idx = getPK();
+            return new EntityStream<E>(new Supplier<ForwardCursor<E>>() {
+                
+                @Override public ForwardCursor<E> get() {
+                    return idx.entities();
+                }
+            });
         }
         
         /**
@@ -2836,11 +9127,47 @@ public abstract class Berkeley<M> extends ForwardingObject {
         
         /**
          * @see PrimaryIndex#contains(Object) 
+         * @see EntityBloomFilter#mightContain(Object)
          */
         public boolean contains(PK key) {
+            if (!mightContain(key)) {
+                return false;
+            }
             return getPK().contains(key);
         }
         
+        /**
+         * Enables the {@link EntityBloomFilter} of the primary keys for the entity class of the {@link BerkeleyStore} 
+         * with given expected insertions and false positive probability, returns the enabled filter if already enabled
+         */
+        public EntityBloomFilter<PK> enableBloomFilter(long expectedInsertions, double fpp) {
+            synchronized (store.bloomFilters) {
+                if (!store.bloomFilters.containsKey(entityClass)) {
+                    store.bloomFilters.put(entityClass, new EntityBloomFilter<PK>(store.getEnvironment(), 
+                            store.getStoreName() + "-bloom", entityClass, getPK(), expectedInsertions, fpp));
+                }
+            }
+            return store.<PK>getBloomFilter(entityClass).get();
+        }
+        
+        /**
+         * Returns false if the given key definitely does not exist, or true if the filter is not enabled
+         */
+        protected boolean mightContain(PK key) {
+            Optional<EntityBloomFilter<PK>> filter = store.getBloomFilter(entityClass);
+            return !filter.isPresent() || filter.get().mightContain(checkNotNull(key));
+        }
+        
+        /**
+         * Puts the given key to the filter if enabled
+         */
+        protected void bloomPut(PK key) {
+            Optional<EntityBloomFilter<PK>> filter = store.getBloomFilter(entityClass);
+            if (filter.isPresent()) {
+                filter.get().put(key);
+            }
+        }
+        
         /**
          * @see PrimaryIndex#entities()
          */
@@ -2862,11 +9189,18 @@ public abstract class Berkeley<M> extends ForwardingObject {
          * @see PrimaryIndex#entities()
          */
         public List<E> all(ForwardCursor<E> cursor) {
+            return allOf(cursor);
+        }
+        
+        /**
+         * Returns all of the values of given cursor, the cursor is closed after
+         */
+        protected <V> List<V> allOf(ForwardCursor<V> cursor) {
             Closer closer = closer(checkNotNull(cursor));
-            List<E> items = Lists.newArrayList();
+            List<V> items = Lists.newArrayList();
             
             try {
-                for (E item : cursor) {
+                for (V item : cursor) {
                     items.add(item);
                 }
             } catch (Exception e) {
@@ -2900,6 +9234,26 @@ public abstract class Berkeley<M> extends ForwardingObject {
                 return all(entities());
             }
             
+            /**
+             * Returns the primary keys of the join without reading the entities
+             */
+            public List<PK> findKeys() {
+                return allOf(keys());
+            }
+            
+            /**
+             * Returns the lazy entities of the join
+             * @see EntityStream
+             */
+            public EntityStream<E> stream() {
+                return new EntityStream<E>(new Supplier<ForwardCursor<E>>() {
+                    
+                    @Override public ForwardCursor<E> get() {
+                        return entities();
+                    }
+                });
+            }
+            
         }
         
         /**
@@ -2909,11 +9263,100 @@ public abstract class Berkeley<M> extends ForwardingObject {
             return new JoinQuery(getPK()).join(keyName, value);
         }
         
+        /**
+         *
+         */
+        public class Query extends EntityQuery<PK, E> {
+            
+            public Query(PrimaryIndex<PK, E> index) {
+                super(index);
+            }
+            
+            public <SK> Query equal(String keyName, SK value) {
+                equal(BerkeleyAccess.this.<SK>getRegisterSK(keyName), value);
+                return this;
+            }
+            
+            public <SK> Query in(String keyName, Collection<SK> values) {
+                in(BerkeleyAccess.this.<SK>getRegisterSK(keyName), values);
+                return this;
+            }
+            
+            public <SK> Query range(String keyName, SK fromKey, boolean fromInclusive, SK toKey, boolean toInclusive) {
+                range(BerkeleyAccess.this.<SK>getRegisterSK(keyName), fromKey, fromInclusive, toKey, toInclusive);
+                return this;
+            }
+            
+            public <SK> Query prefix(String keyName, String prefix) {
+                SecondaryIndex<SK, PK, E> secondaryIndex = getRegisterSK(keyName);
+                Class<SK> classSK = secondaryIndex.getKeyClass();
+                checkArgument(String.class == classSK, "The secondary index class type must be java.lang.String.class, but is %s", classSK);
+                
+                @SuppressWarnings("unchecked") SecondaryIndex<String, PK, E> idx = (SecondaryIndex<String, PK, E>) secondaryIndex;
+                prefix(idx, prefix);
+                return this;
+            }
+            
+            public E get() {
+                return one(entities());
+            }
+            
+            public List<E> find() {
+                return all(entities());
+            }
+            
+            /**
+             * Returns the primary keys of the query, the primary records are read only for the range filters
+             */
+            public List<PK> findKeys() {
+                return allOf(keys());
+            }
+            
+            /**
+             * Returns the lazy entities of the query
+             * @see EntityStream
+             */
+            public EntityStream<E> stream() {
+                return new EntityStream<E>(new Supplier<ForwardCursor<E>>() {
+                    
+                    @Override public ForwardCursor<E> get() {
+                        return entities();
+                    }
+                });
+            }
+            
+        }
+        
+        /**
+         * Returns a query of the equality, IN, range and prefix conditions by secondary key names, for example:
+         * <blockquote><pre>
+         * access.query().equal("status", status).range("created", from, true, to, false).find();
+         * </pre></blockquote>
+         * @see BerkeleyStore#query(PrimaryIndex)
+         */
+        public Query query() {
+            return new Query(getPK());
+        }
+        
         /**
          * @see PrimaryIndex#get
+         * @see EntityCache#get(Object, PrimaryIndex)
          */
         public E get(PK key) {
-            return getPK().get(checkNotNull(key));
+            if (!mightContain(key)) {
+                return null;
+            }
+            
+            long start = store.meterStart();
+            try {
+                Optional<EntityCache<PK, E>> cache = getCache();
+                if (cache.isPresent()) {
+                    return cache.get().get(checkNotNull(key), getPK());
+                }
+                return getPK().get(checkNotNull(key));
+            } finally {
+                meterStop("get", start);
+            }
         }
         
         /**
@@ -2921,27 +9364,95 @@ public abstract class Berkeley<M> extends ForwardingObject {
          * 
          * @see SecondaryIndex#subIndex(Object)
          * @see BerkeleyAccess#one(ForwardCursor)
+         * @see EntityCache#get(String, Object, SecondaryIndex)
          */
         public <SK> E get(String keyName, SK key) {
-            return one(getRegisterSK(keyName).subIndex(key).entities());
+            long start = store.meterStart();
+            try {
+                Optional<EntityCache<PK, E>> cache = getCache();
+                if (cache.isPresent()) {
+                    return cache.get().get(keyName, checkNotNull(key), this.<SK>getRegisterSK(keyName));
+                }
+                return one(getRegisterSK(keyName).subIndex(key).entities());
+            } finally {
+                meterStop("getBy", start);
+            }
+        }
+        
+        /**
+         * Enables the read-through {@link EntityCache} with given cache builder for the entity class of 
+         * the {@link BerkeleyStore}, returns the enabled cache if already enabled. For example:
+         * <blockquote><pre>
+         * access.enableCache(CacheBuilder.newBuilder().maximumSize(10000).expireAfterWrite(10, TimeUnit.MINUTES).recordStats());
+         * </pre></blockquote>
+         */
+        public EntityCache<PK, E> enableCache(CacheBuilder<Object, Object> cacheBuilder) {
+            store.entityCaches.putIfAbsent(entityClass, new EntityCache<PK, E>(cacheBuilder, new Function<E, PK>() {
+                
+                @Override public PK apply(E entity) {
+                    return getPrimaryKey(entity);
+                }
+            }));
+            return getCache().get();
+        }
+        
+        /**
+         * @see BerkeleyStore#getEntityCache(Class)
+         */
+        public Optional<EntityCache<PK, E>> getCache() {
+            return store.getEntityCache(entityClass);
+        }
+        
+        /**
+         * Invalidates the cached entity of given primary key if the cache is enabled
+         */
+        protected void invalidate(PK key) {
+            Optional<EntityCache<PK, E>> cache = getCache();
+            if (cache.isPresent()) {
+                cache.get().invalidate(key);
+            }
         }
         
         /**
-         * Returns the items with given key list
+         * Returns the items with given key list in request order, the none exists keys are skipped
+         * @see BerkeleyAccess#gets(List, int)
          */
         public List<E> gets(List<PK> keys) {
-            PrimaryIndex<PK, E> indexPK = getPK();
-            E item = null; List<E> items = Lists.newArrayListWithCapacity(checkNotNull(keys).size());
-            
-            for (PK pk : keys) {
-                if (null == (item = indexPK.get(pk))) {
-                    log.warn(String.format("The primary key: %s is none exists.", pk));
-                } else {
-                    items.add(item);
+            return gets(keys, 1);
+        }
+        
+        /**
+         * Returns the items with given key list in request order, the keys are sorted and looked up 
+         * by cursor sweeps, which are split into given parallelism of key ranges for large key list 
+         * that each range is swept with its own cursor in a worker thread
+         */
+        public List<E> gets(List<PK> keys, int parallelism) {
+            final PrimaryIndex<PK, E> indexPK = getPK();
+            return multiGet(keys, indexPK.getKeyBinding(), indexPK.getDatabase().getConfig().getBtreeComparator(), 
+                    parallelism, "The primary key: %s is none exists.", new Supplier<KeySweep>() {
+                
+                @Override public KeySweep get() {
+                    final Cursor cursor = indexPK.getDatabase().openCursor(null, null);
+                    return new KeySweep() {
+                        
+                        @Override protected OperationStatus searchRange() {
+                            return cursor.getSearchKeyRange(key, data, LockMode.DEFAULT);
+                        }
+
+                        @Override protected OperationStatus next() {
+                            return cursor.getNext(key, data, LockMode.DEFAULT);
+                        }
+
+                        @Override protected E current() {
+                            return indexPK.getEntityBinding().entryToObject(key, data);
+                        }
+
+                        @Override public void close() {
+                            cursor.close();
+                        }
+                    };
                 }
-            }
-            
-            return items;
+            });
         }
         
         /**
@@ -2952,21 +9463,45 @@ public abstract class Berkeley<M> extends ForwardingObject {
         }
         
         /**
-         * Returns the items with given field and key list, one key returns one item
+         * Returns the items with given field and key list in request order, one key returns one item
+         * @see BerkeleyAccess#gets(String, List, int)
          */
         public <SK> List<E> gets(String keyName, List<SK> keys) {
-            SecondaryIndex<SK, PK, E> indexSK = getRegisterSK(keyName);
-            E item = null; List<E> items = Lists.newArrayListWithCapacity(checkNotNull(keys).size());
-            
-            for (SK sk : keys) {
-                if (null == (item = one(indexSK.subIndex(sk).entities()))) {
-                    log.warn(String.format("The Field %s's key: %s is none exists.", keyName, sk));
-                } else {
-                    items.add(item);
+            return gets(keyName, keys, 1);
+        }
+        
+        /**
+         * Returns the items with given field and key list in request order, one key returns one item
+         * @see BerkeleyAccess#gets(List, int)
+         */
+        public <SK> List<E> gets(String keyName, List<SK> keys, int parallelism) {
+            final SecondaryIndex<SK, PK, E> indexSK = getRegisterSK(keyName);
+            return multiGet(keys, indexSK.getKeyBinding(), indexSK.getDatabase().getConfig().getBtreeComparator(), 
+                    parallelism, "The Field " + keyName + "'s key: %s is none exists.", new Supplier<KeySweep>() {
+                
+                @Override public KeySweep get() {
+                    final SecondaryCursor cursor = indexSK.getDatabase().openCursor(null, null);
+                    final DatabaseEntry pKey = new DatabaseEntry();
+                    return new KeySweep() {
+                        
+                        @Override protected OperationStatus searchRange() {
+                            return cursor.getSearchKeyRange(key, pKey, data, LockMode.DEFAULT);
+                        }
+                        
+                        @Override protected OperationStatus next() {
+                            return cursor.getNextNoDup(key, pKey, data, LockMode.DEFAULT);
+                        }
+                        
+                        @Override protected E current() {
+                            return indexSK.getPrimaryIndex().getEntityBinding().entryToObject(pKey, data);
+                        }
+                        
+                        @Override public void close() {
+                            cursor.close();
+                        }
+                    };
                 }
-            }
-            
-            return items;
+            });
         }
         
         /**
@@ -2980,7 +9515,7 @@ public abstract class Berkeley<M> extends ForwardingObject {
          * @see PrimaryIndex#put(Object)
          */
         public E save(E entity) {
-            getPK().put(checkNotNull(entity));
+            put(checkNotNull(entity));
             return entity;
         }
         
@@ -2988,15 +9523,200 @@ public abstract class Berkeley<M> extends ForwardingObject {
          * @see PrimaryIndex#put(Object)
          */
         public E update(E entity) {
-            getPK().put(checkNotNull(entity));
+            put(checkNotNull(entity));
             return entity;
         }
         
+        /**
+         * Puts the primary key to the Bloom filter before written that the concurrent reads never miss it, 
+         * and again after written since the key may be assigned by the sequence, then invalidates the cached 
+         * entity after written
+         */
+        private void put(E entity) {
+            PK key = null == primaryKeyField ? null : getPrimaryKey(entity);
+            if (null != key) {
+                bloomPut(key);
+            }
+            
+            long start = store.meterStart();
+            try {
+                getPK().put(entity);
+            } finally {
+                meterStop("put", start);
+            }
+            if (null != primaryKeyField) {
+                bloomPut(getPrimaryKey(entity));
+            }
+            invalidateEntity(entity);
+        }
+        
         /**
          * @see PrimaryIndex#delete(Object)
          */
         public boolean delete(PK key) {
-            return getPK().delete(key);
+            long start = store.meterStart();
+            try {
+                return getPK().delete(key);
+            } finally {
+                meterStop("delete", start);
+                invalidate(key);
+            }
+        }
+        
+        /**
+         * Records the metered operation of the entity class, named as "&lt;store&gt;.&lt;entity&gt;"
+         * @see BerkeleyMetrics
+         */
+        private void meterStop(String operation, long start) {
+            if (NOT_METERED != start) {
+                store.meterStop(store.getStoreName() + '.' + entityClass.getSimpleName(), operation, start);
+            }
+        }
+        
+        /**
+         * Invalidates the cached entity of given entity if the cache is enabled
+         */
+        private void invalidateEntity(E entity) {
+            Optional<EntityCache<PK, E>> cache = getCache();
+            if (cache.isPresent()) {
+                cache.get().invalidate(getPrimaryKey(entity));
+            }
+        }
+        
+        /**
+         * Returns the primary key of given entity
+         */
+        @SuppressWarnings("unchecked")
+        protected PK getPrimaryKey(E entity) {
+            try {
+                return (PK) checkNotNull(primaryKeyField, 
+                        "None @PrimaryKey field of %s", entityClass.getName()).get(entity);
+            } catch (IllegalAccessException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+        
+        /**
+         * Returns a new {@link EntityWriteBatch} which applies the saves and deletes in one transaction 
+         * per given batch size of writes with given durability
+         * @see WriteBatch
+         */
+        public EntityWriteBatch writeBatch(int batchSize, Durability durability) {
+            return new EntityWriteBatch(batchSize, durability);
+        }
+        
+        /**
+         * Returns a new {@link AsyncEntityWriter} which group commits up to given max batch of writes 
+         * in one transaction with given durability
+         * @see AsyncWriter
+         */
+        public AsyncEntityWriter asyncWriter(int maxBatch, Durability durability) {
+            return new AsyncEntityWriter(maxBatch, durability);
+        }
+        
+        /**
+         * {@link AsyncWriter} of entities
+         */
+        public class AsyncEntityWriter extends AsyncWriter {
+            
+            protected AsyncEntityWriter(int maxBatch, Durability durability) {
+                super(store.getEnvironment(), store.getConfig().getTransactional(), maxBatch, durability);
+                this.indexPK = getPK();
+            }
+            
+            /**
+             * @see BerkeleyAccess#save(Object)
+             */
+            public ListenableFuture<E> save(final E entity) {
+                checkNotNull(entity);
+                return submit(new AsyncWrite<E>() {
+                    
+                    @Override protected E apply(Transaction txn) {
+                        indexPK.putNoReturn(txn, entity);
+                        bloomPut(getPrimaryKey(entity));
+                        return entity;
+                    }
+                    
+                    @Override protected void committed(E result) {
+                        invalidateEntity(result);
+                    }
+                });
+            }
+            
+            /**
+             * @see BerkeleyAccess#update(Object)
+             */
+            public ListenableFuture<E> update(E entity) {
+                return save(entity);
+            }
+            
+            /**
+             * @see BerkeleyAccess#delete(Object)
+             */
+            public ListenableFuture<Boolean> delete(final PK key) {
+                checkNotNull(key);
+                return submit(new AsyncWrite<Boolean>() {
+                    
+                    @Override protected Boolean apply(Transaction txn) {
+                        return indexPK.delete(txn, key);
+                    }
+                    
+                    @Override protected void committed(Boolean result) {
+                        invalidate(key);
+                    }
+                });
+            }
+            
+            private final PrimaryIndex<PK, E> indexPK;
+        }
+        
+        /**
+         * {@link WriteBatch} of entities, the writes are applied in the collected order
+         */
+        public class EntityWriteBatch extends WriteBatch<Pair<PK, E>> {
+            
+            protected EntityWriteBatch(int batchSize, Durability durability) {
+                super(store.getEnvironment(), store.getConfig().getTransactional(), batchSize, durability);
+                this.indexPK = getPK();
+            }
+            
+            /**
+             * @see BerkeleyAccess#save(Object)
+             */
+            public EntityWriteBatch save(E entity) {
+                add(Pair.<PK, E>of(null, checkNotNull(entity)));
+                return this;
+            }
+            
+            /**
+             * @see BerkeleyAccess#delete(Object)
+             */
+            public EntityWriteBatch delete(PK key) {
+                add(Pair.<PK, E>of(checkNotNull(key), null));
+                return this;
+            }
+            
+            @Override protected void apply(List<Pair<PK, E>> writes, Transaction txn) {
+                for (Pair<PK, E> write : writes) {
+                    if (null == write.getR()) {
+                        indexPK.delete(txn, write.getL());
+                    } else {
+                        indexPK.putNoReturn(txn, write.getR());
+                        bloomPut(getPrimaryKey(write.getR()));
+                    }
+                }
+            }
+            
+            @Override protected void committed(List<Pair<PK, E>> writes) {
+                Optional<EntityCache<PK, E>> cache = getCache();
+                if (cache.isPresent()) {
+                    for (Pair<PK, E> write : writes) {
+                        cache.get().invalidate(null == write.getR() ? write.getL() : getPrimaryKey(write.getR()));
+                    }
+                }
+            }
+            
+            private final PrimaryIndex<PK, E> indexPK;
         }
         
         /**
@@ -3031,6 +9751,141 @@ public abstract class Berkeley<M> extends ForwardingObject {
             return checkNotNull(secondaryIdx, "The secondary index key name: %s has not register, use registerSK first.", keyName);
         }
         
+        /**
+         * A cursor sweeping over the sorted keys, the key entry is the target key before searching
+         * and the current key after positioning
+         */
+        protected abstract class KeySweep implements Closeable {
+            
+            /**
+             * Moves to the smallest key greater than or equal to the key entry
+             */
+            protected abstract OperationStatus searchRange();
+            
+            /**
+             * Moves to the next key
+             */
+            protected abstract OperationStatus next();
+            
+            /**
+             * Returns the item of current position
+             */
+            protected abstract E current();
+            
+            @Override public abstract void close();
+            
+            protected final DatabaseEntry key = new DatabaseEntry();
+            protected final DatabaseEntry data = new DatabaseEntry();
+        }
+        
+        /**
+         * Looks up the given keys by sorted cursor sweeps, returns the items in request order
+         */
+        protected <K> List<E> multiGet(List<K> keys, EntryBinding<K> keyBinding, Comparator<byte[]> comparator, 
+                int parallelism, String noneExists, final Supplier<KeySweep> sweeps) {
+            checkArgument(parallelism > 0, "The parallelism must be positive, but is %s", parallelism);
+            final int size = checkNotNull(keys).size();
+            final byte[][] keyBytes = new byte[size][];
+            DatabaseEntry entry = new DatabaseEntry();
+            for (int i = 0; i < size; i++) {
+                keyBinding.objectToEntry(checkNotNull(keys.get(i), "The key cannot be null."), entry);
+                keyBytes[i] = bytesOf(entry);
+            }
+            
+            final Comparator<byte[]> keyComparator = null != comparator 
+                    ? comparator : UnsignedBytes.lexicographicalComparator();
+            final Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                
+                @Override public int compare(Integer o1, Integer o2) {
+                    return keyComparator.compare(keyBytes[o1], keyBytes[o2]);
+                }
+            });
+            
+            final Object[] results = new Object[size];
+            int ranges = Math.min(parallelism, Math.max(1, size / MIN_PARALLEL_KEYS));
+            if (1 == ranges) {
+                sweep(sweeps.get(), keyComparator, keyBytes, order, 0, size, results);
+            } else {
+                ExecutorService workers = newDaemonPool(ranges, "berkeley-multiget-%d");
+                try {
+                    List<Callable<Void>> tasks = Lists.newArrayListWithCapacity(ranges);
+                    for (int i = 0; i < ranges; i++) {
+                        final int from = (int) ((long) size * i / ranges), to = (int) ((long) size * (i + 1) / ranges);
+                        tasks.add(new Callable<Void>() {
+                            
+                            @Override public Void call() throws Exception {
+                                sweep(sweeps.get(), keyComparator, keyBytes, order, from, to, results);
+                                return null;
+                            }
+                        });
+                    }
+                    for (Future<Void> future : workers.invokeAll(tasks)) {
+                        future.get();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw Throwables.propagate(e);
+                } catch (ExecutionException e) {
+                    throw Throwables.propagate(e.getCause());
+                } finally {
+                    workers.shutdownNow();
+                }
+            }
+            
+            List<E> items = Lists.newArrayListWithCapacity(size);
+            for (int i = 0; i < size; i++) {
+                if (null == results[i]) {
+                    log.warn(String.format(noneExists, keys.get(i)));
+                } else {
+                    @SuppressWarnings("unchecked") E item = (E) results[i];
+                    items.add(item);
+                }
+            }
+            
+            return items;
+        }
+        
+        /**
+         * Sweeps the sorted keys of given range, steps to the next key first since the keys 
+         * are dense usually, and searches the key range only if the next key is still behind
+         */
+        private void sweep(KeySweep sweep, Comparator<byte[]> comparator, 
+                byte[][] keyBytes, Integer[] order, int from, int to, Object[] results) {
+            try {
+                byte[] current = null;
+                for (int i = from; i < to; i++) {
+                    byte[] target = keyBytes[order[i]];
+                    int c = null == current ? -1 : comparator.compare(current, target);
+                    if (c < 0 && null != current) {
+                        if (OperationStatus.SUCCESS != sweep.next()) {
+                            break;
+                        }
+                        c = comparator.compare(current = bytesOf(sweep.key), target);
+                    }
+                    
+                    if (c < 0) {
+                        sweep.key.setData(target);
+                        if (OperationStatus.SUCCESS != sweep.searchRange()) {
+                            break;
+                        }
+                        c = comparator.compare(current = bytesOf(sweep.key), target);
+                    }
+                    
+                    if (0 == c) {
+                        results[order[i]] = sweep.current();
+                    }
+                }
+            } finally {
+                sweep.close();
+            }
+        }
+        
+        private static final int MIN_PARALLEL_KEYS = 1024;
+        
         /**
          * @see Closer#create()
          * @see Closer#register(Closeable)
@@ -3088,6 +9943,16 @@ public abstract class Berkeley<M> extends ForwardingObject {
                 log.debug(String.format("EntityStore %s: %s data access initialized.", berkeleyStore.getStoreName(), entityClass.getName()));
             }
             
+            for (Class<?> clazz = entityClass; null != clazz && null == primaryKeyField; clazz = clazz.getSuperclass()) {
+                for (Field field : clazz.getDeclaredFields()) {
+                    if (null != field.getAnnotation(PrimaryKey.class)) {
+                        field.setAccessible(true);
+                        primaryKeyField = field;
+                        break;
+                    }
+                }
+            }
+            
             //Register a secondary index for a given primary index and secondary key, opening it if necessary. 
             for (Field field : entityClass.getDeclaredFields()) {
                 if (null != field.getAnnotation(SecondaryKey.class)) {
@@ -3102,6 +9967,7 @@ public abstract class Berkeley<M> extends ForwardingObject {
         private BerkeleyStore store = null;
         private Class<E> entityClass = null;
         private Class<PK> primaryKeyClass = null;
+        private Field primaryKeyField = null;
         //Dumps a store or all stores to standard output in raw XML format
         private Optional<RawStore> rawStore = Optional.absent();
         private Map<String, SecondaryIndex<?, ?, ?>> secondaryIndexs = Maps.newHashMap();
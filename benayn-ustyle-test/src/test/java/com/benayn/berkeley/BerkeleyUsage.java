@@ -3,43 +3,89 @@ package com.benayn.berkeley;
 import java.io.File;
 import java.io.IOException;
 import java.io.UnsupportedEncodingException;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.benayn.berkeley.Berkeley.AsyncBerkeleyWriter;
+import com.benayn.berkeley.Berkeley.AsyncWrite;
 import com.benayn.berkeley.Berkeley.BerkeleyAccess;
+import com.benayn.berkeley.Berkeley.BerkeleyCursor;
 import com.benayn.berkeley.Berkeley.BerkeleyDB;
 import com.benayn.berkeley.Berkeley.BerkeleyEnv;
 import com.benayn.berkeley.Berkeley.BerkeleyIndex;
 import com.benayn.berkeley.Berkeley.BerkeleyIndexCursor;
 import com.benayn.berkeley.Berkeley.BerkeleyQueue;
 import com.benayn.berkeley.Berkeley.BerkeleyStore;
+import com.benayn.berkeley.Berkeley.BerkeleyWriteBatch;
+import com.benayn.berkeley.Berkeley.BlockingBerkeleyQueue;
+import com.benayn.berkeley.Berkeley.CompressedBinding;
 import com.benayn.berkeley.Berkeley.DBEntry;
+import com.benayn.berkeley.Berkeley.DBEntryScan;
 import com.benayn.berkeley.Berkeley.DBEntryVisit;
+import com.benayn.berkeley.Berkeley.DefaultMetricRegistry;
+import com.benayn.berkeley.Berkeley.EntityCache;
+import com.benayn.berkeley.Berkeley.EntityJoinQuery;
+import com.benayn.berkeley.Berkeley.EntityStream;
+import com.benayn.berkeley.Berkeley.EntityTupleBinding;
+import com.benayn.berkeley.Berkeley.EntityVisit;
+import com.benayn.berkeley.Berkeley.FieldQueueCodec;
+import com.benayn.berkeley.Berkeley.BerkeleyMetrics;
 import com.benayn.berkeley.Berkeley.GenericKeyCreator;
+import com.benayn.berkeley.Berkeley.IdAllocator;
+import com.benayn.berkeley.Berkeley.LZCodec;
+import com.benayn.berkeley.Berkeley.PageToken;
+import com.benayn.berkeley.Berkeley.RawEntryVisit;
+import com.benayn.berkeley.Berkeley.RawQueueCodec;
+import com.benayn.berkeley.Berkeley.ShardedBerkeleyQueue;
+import com.benayn.berkeley.Berkeley.TupleQueueCodec;
 import com.benayn.ustyle.Dater;
 import com.benayn.ustyle.Objects2;
 import com.benayn.ustyle.Pair;
 import com.benayn.ustyle.Reflecter;
 import com.benayn.ustyle.logger.Log;
 import com.benayn.ustyle.logger.Loggers;
+import com.google.common.base.Charsets;
+import com.google.common.base.Function;
 import com.google.common.base.Stopwatch;
+import com.google.common.base.Strings;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import com.google.common.io.Files;
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.sleepycat.bind.EntryBinding;
+import com.sleepycat.bind.serial.SerialBinding;
 import com.sleepycat.bind.tuple.LongBinding;
+import com.sleepycat.je.Cursor;
+import com.sleepycat.je.DatabaseConfig;
 import com.sleepycat.je.DatabaseEntry;
+import com.sleepycat.je.Durability;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.SecondaryCursor;
+import com.sleepycat.je.Transaction;
 import com.sleepycat.persist.EntityCursor;
+import com.sleepycat.persist.EntityJoin;
+import com.sleepycat.persist.ForwardCursor;
 import com.sleepycat.persist.IndexNotAvailableException;
 import com.sleepycat.persist.PrimaryIndex;
+import com.sleepycat.persist.SecondaryIndex;
 import com.sleepycat.persist.model.EntityModel;
 import com.sleepycat.persist.raw.RawObject;
 import com.sleepycat.persist.raw.RawStore;
@@ -66,6 +112,14 @@ public class BerkeleyUsage extends Assert {
         
     }
     
+    class SequenceEntityAccess extends BerkeleyAccess<Long, SequenceEntity> {
+
+        public SequenceEntityAccess(BerkeleyStore berkeleyStore) {
+            super(berkeleyStore);
+        }
+        
+    }
+    
     @Before
     public void setup() {
         //Framewroks.enableConfigurations();
@@ -178,6 +232,53 @@ public class BerkeleyUsage extends Assert {
             }
         });
         
+        final long[] theNextId = { 1 };
+        PageToken token = null;
+        do {
+            token = bic.pageVisit(null == token ? null : PageToken.of(token.toString()), 3, new DBEntryVisit<Long, Person>() {
+                
+                @Override protected void apply(Long key, Person data) {
+                    assertTrue(Objects2.isEqual(bdb.get(theNextId[0]++, Person.class), data));
+                }
+            });
+        } while (null != token);
+        assertEquals(count + 1, theNextId[0]);
+        
+        //raw visit, decodes the records of even birthday only
+        final List<Person> evens = Lists.newArrayList();
+        final EntryBinding<Person> personBinding = bdb.getBinding(Person.class);
+        DatabaseEntry rawKey = new DatabaseEntry(), rawData = new DatabaseEntry();
+        long accepted = bic.rawVisit(rawKey, rawData, null, new RawEntryVisit() {
+            
+            @Override protected boolean apply(byte[] key, int keyOffset, int keyLength, 
+                                              byte[] data, int dataOffset, int dataLength) {
+                if (0 != (key[keyOffset + keyLength - 1] & 1)) {
+                    return false;
+                }
+                evens.add(personBinding.entryToObject(new DatabaseEntry(data, dataOffset, dataLength)));
+                return true;
+            }
+        });
+        assertEquals(accepted, evens.size());
+        
+        rawData.setPartial(0, 0, true);
+        PageToken rawToken = null;
+        int rawCount = 0;
+        do {
+            final int[] page = { 0 };
+            rawToken = bic.rawPageVisit(rawToken, 3, rawKey, rawData, null, new RawEntryVisit() {
+                
+                @Override protected boolean apply(byte[] key, int keyOffset, int keyLength, 
+                                                  byte[] data, int dataOffset, int dataLength) {
+                    assertEquals(0, dataLength);
+                    page[0]++;
+                    return true;
+                }
+            });
+            rawCount += page[0];
+        } while (null != rawToken);
+        assertEquals(count, rawCount);
+        
         Pair<DBEntry, DBEntry> kv = null;
         long theDescSortId = count;
         boolean firstGet = true;
@@ -351,6 +452,23 @@ public class BerkeleyUsage extends Assert {
         assertTrue(list7.size() > 0);
         log.info(Dater.of(begin).asText());
         log.info(Dater.of(end).asText());
+        
+        List<QueueEntity> list8 = access.query().range("date", begin, true, end, true).prefix("name", "name").find();
+        assertEquals(list7.size(), list8.size());
+        
+        QueueEntity qe6 = access.get(1002L);
+        List<QueueEntity> list9 = access.query().equal("address", qe6.getAddress())
+                .range("date", qe6.getDate(), true, qe6.getDate(), true).find();
+        assertTrue(list9.size() > 0);
+        for (QueueEntity item : list9) {
+            assertEquals(qe6.getAddress(), item.getAddress());
+            assertEquals(qe6.getDate(), item.getDate());
+        }
+        
+        List<Long> keys = access.findKeysRange("date", begin, true, end, true);
+        assertEquals(list7.size(), keys.size());
+        assertEquals(list7.size(), access.count("date", begin, true, end, true));
+        assertEquals(access.find("address", qe6.getAddress()).size(), access.count("address", qe6.getAddress()));
     }
     
     public void fillData() throws InterruptedException {
@@ -444,6 +562,1301 @@ public class BerkeleyUsage extends Assert {
         }
     }
     
+    @Test
+    public void testBatchedQueueConcurrent() throws Throwable {
+        final BerkeleyQueue<String> queue = newEnv("batched").batchedQueue("batched-queue", String.class, 64, 0);
+        try {
+            try {
+                queue.offer(null);
+                fail();
+            } catch (NullPointerException e) {
+                assertEquals(0, queue.size());
+            }
+            
+            final int threadCount = 4, eachThread = 2000, total = threadCount * eachThread;
+            final Set<String> polled = Collections.synchronizedSet(new HashSet<String>());
+            final AtomicInteger duplicates = new AtomicInteger();
+            final CountDownLatch latch = new CountDownLatch(threadCount * 2);
+            for (int i = 0; i < threadCount; i++) {
+                final int producer = i;
+                new Thread() {
+                    public void run() {
+                        for (int j = 0; j < eachThread; j++) {
+                            queue.offer(producer + "-" + j);
+                        }
+                        latch.countDown();
+                    }
+                }.start();
+                new Thread() {
+                    public void run() {
+                        long deadline = System.currentTimeMillis() + 10000;
+                        while (polled.size() < total && System.currentTimeMillis() < deadline) {
+                            List<String> items = producer % 2 == 0 
+                                    ? queue.pollBatch(16) : Collections.singletonList(queue.poll());
+                            for (String item : items) {
+                                if (null != item && !polled.add(item)) {
+                                    duplicates.incrementAndGet();
+                                }
+                            }
+                        }
+                        latch.countDown();
+                    }
+                }.start();
+            }
+            
+            assertTrue(latch.await(15, TimeUnit.SECONDS));
+            assertEquals(total, polled.size());
+            assertEquals(0, duplicates.get());
+            assertNull(queue.poll());
+            assertEquals(0, queue.size());
+        } finally {
+            queue.close();
+        }
+    }
+    
+    @Test
+    public void testBatchedQueueGroupCommit() throws Throwable {
+        BerkeleyEnv env = newEnv("groupcommit");
+        BerkeleyQueue<String> queue = env.batchedQueue("groupcommit-queue", String.class, 5, 0);
+        BerkeleyQueue<String> timedQueue = env.batchedQueue("timedcommit-queue", String.class, 1000, 50);
+        try {
+            for (int i = 0; i < 4; i++) {
+                queue.offer(Integer.toString(i));
+            }
+            assertNull(queue.getQueueDB().get(3L, String.class));
+            queue.offer("4");
+            assertEquals("4", queue.getQueueDB().get(4L, String.class));
+            assertEquals("0", queue.peek());
+            
+            timedQueue.offer("timed");
+            assertNull(timedQueue.getQueueDB().get(0L, String.class));
+            Thread.sleep(500);
+            assertEquals("timed", timedQueue.getQueueDB().get(0L, String.class));
+        } finally {
+            queue.close();
+            timedQueue.close();
+        }
+    }
+    
+    @Test
+    public void testBatchedQueueRecover() throws Throwable {
+        BerkeleyEnv env = newEnv("batchedrecover");
+        env.batchedQueue("batchedrecover-queue", String.class, 1000, 0).clear();
+        BerkeleyQueue<String> crashed = env.batchedQueue("batchedrecover-queue", String.class, 1000, 0);
+        for (int i = 0; i < 10; i++) {
+            crashed.offer(Integer.toString(i));
+        }
+        crashed.sync();
+        assertEquals("0", crashed.poll());
+        crashed.offer("10");
+        crashed.offer("11");
+        //a batch is written without the pointers committed, the elements 10 to 12 are lost in crash
+        crashed.getQueueDB().put(13L, "13");
+        //crashes without the pending elements written
+        crashed.getQueueDB().getDatabase().close();
+        
+        BerkeleyQueue<String> queue = env.batchedQueue("batchedrecover-queue", String.class, 1000, 0);
+        try {
+            assertEquals(14, queue.size());
+            for (int i = 0; i < 10; i++) {
+                assertEquals(Integer.toString(i), queue.poll());
+            }
+            assertEquals("13", queue.poll());
+            assertNull(queue.poll());
+            
+            queue.offer("14");
+            queue.sync();
+            assertEquals("14", queue.poll());
+            assertEquals(0, queue.size());
+        } finally {
+            queue.close();
+        }
+    }
+    
+    @Test
+    public void testCatalogRecords() {
+        final Person person = new Person();
+        person.setId(1L);
+        person.setFirstName("first");
+        BerkeleyDB db = newEnv("catalog").connection("catalog-db", null, null);
+        try {
+            //the keys of byte 1 and 2 prefix are data records, the catalog records share the database
+            final Set<String> keys = Sets.newHashSet("\u0001a", "\u0002b", "plain");
+            for (String key : keys) {
+                db.put(key, "value of " + key);
+            }
+            db.put("person", person);
+            db.delete(null, db.getEntry("person"));
+            
+            final Set<String> visited = Sets.newHashSet();
+            BerkeleyCursor cursor = db.opensCursor(null, null);
+            try {
+                cursor.pageVisit(0, 100, new DBEntryVisit<String, String>() {
+                    
+                    @Override protected void apply(String key, String data) {
+                        assertEquals("value of " + key, data);
+                        visited.add(key);
+                    }
+                });
+                assertEquals(keys, visited);
+                
+                //the classes registered after the catalog keys loaded are skipped too
+                db.put("list", Lists.newArrayList("item"));
+                db.delete(null, db.getEntry("list"));
+                assertNull(cursor.pageVisit(null, 100, new DBEntryVisit<String, String>() {
+                    
+                    @Override protected void apply(String key, String data) {
+                        assertTrue(keys.contains(key));
+                    }
+                }));
+                
+                DatabaseEntry data = new DatabaseEntry();
+                data.setPartial(0, 0, true);
+                assertEquals(keys.size(), cursor.rawVisit(new DatabaseEntry(), data, null, new RawEntryVisit() {
+                    
+                    @Override protected boolean apply(byte[] key, int keyOffset, int keyLength, 
+                                                      byte[] data, int dataOffset, int dataLength) {
+                        return true;
+                    }
+                }));
+            } finally {
+                cursor.close();
+            }
+            
+            assertEquals(Integer.valueOf(keys.size()), db.parallelScan(new DBEntryScan<String, String, Integer>() {
+                
+                @Override protected Integer newResult() {
+                    return 0;
+                }
+                
+                @Override protected Integer apply(Integer result, String key, String data) {
+                    return result + 1;
+                }
+                
+                @Override protected Integer merge(Integer left, Integer right) {
+                    return left + right;
+                }
+            }, 2));
+        } finally {
+            db.close();
+        }
+    }
+    
+    @Test
+    public void testPageVisitDuplicates() {
+        final BerkeleyDB db = newEnv("pagedup").connection("pagedup-db", null, null);
+        BerkeleyIndex groupIndex = db.openIndex("pagedup-group", null, new GenericKeyCreator<String, Person>() {
+
+            @Override protected String createSecondaryKey(Person data) {
+                return "group" + data.getId() % 3;
+            }
+        });
+        BerkeleyIndexCursor cursor = groupIndex.opensCursor(null, null);
+        try {
+            for (long id = 1; id <= 10; id++) {
+                Person p = new Person();
+                p.setId(id);
+                db.put(id, p);
+            }
+            
+            //the duplicates of a group are in the primary key order, the pages split the groups
+            List<Long> expected = Lists.newArrayList(3L, 6L, 9L, 1L, 4L, 7L, 10L, 2L, 5L, 8L);
+            for (boolean ascending : new boolean[] { true, false }) {
+                final List<Long> visited = Lists.newArrayList();
+                PageToken token = null;
+                do {
+                    token = cursor.pageVisit(null == token ? null : PageToken.of(token.toString()), 
+                            2, new DBEntryVisit<String, Person>(ascending) {
+                        
+                        @Override protected void apply(String key, Person data) {
+                            assertEquals("group" + data.getId() % 3, key);
+                            visited.add(data.getId());
+                        }
+                    });
+                } while (null != token);
+                
+                if (!ascending) {
+                    Collections.reverse(visited);
+                }
+                assertEquals(expected, visited);
+            }
+            
+            //the raw pages visit the duplicates of the same groups
+            final List<String> groups = Lists.newArrayList();
+            DatabaseEntry rawKey = new DatabaseEntry(), rawData = new DatabaseEntry();
+            rawData.setPartial(0, 0, true);
+            PageToken rawToken = null;
+            do {
+                rawToken = cursor.rawPageVisit(rawToken, 3, rawKey, rawData, null, new RawEntryVisit() {
+                    
+                    @Override protected boolean apply(byte[] key, int keyOffset, int keyLength, 
+                                                      byte[] data, int dataOffset, int dataLength) {
+                        //the string key ends with the zero terminator
+                        groups.add(new String(key, keyOffset, keyLength - 1, Charsets.UTF_8));
+                        return true;
+                    }
+                });
+            } while (null != rawToken);
+            assertEquals(expected.size(), groups.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertEquals("group" + expected.get(i) % 3, groups.get(i));
+            }
+        } finally {
+            cursor.close();
+            groupIndex.close();
+            db.close();
+        }
+    }
+    
+    @Test
+    public void testParallelScan() {
+        BerkeleyDB db = newEnv("pscan").connection("pscan-db", null, null);
+        try {
+            int count = 1000;
+            for (long i = 0; i < count; i++) {
+                db.put(i, "value" + i);
+            }
+            
+            DBEntryScan<Long, String, Long> sum = new DBEntryScan<Long, String, Long>() {
+                
+                @Override protected Long newResult() {
+                    return 0L;
+                }
+                
+                @Override protected Long apply(Long result, Long key, String data) {
+                    assertEquals("value" + key, data);
+                    return result + key;
+                }
+                
+                @Override protected Long merge(Long left, Long right) {
+                    return left + right;
+                }
+            };
+            long expected = count * (count - 1L) / 2;
+            assertEquals(Long.valueOf(expected), db.parallelScan(sum, 4));
+            assertEquals(Long.valueOf(expected), db.parallelRangeScan(sum, 4));
+            
+            //the range results are merged in key order
+            List<Long> keys = db.parallelRangeScan(new DBEntryScan<Long, String, List<Long>>() {
+                
+                @Override protected List<Long> newResult() {
+                    return Lists.newArrayList();
+                }
+                
+                @Override protected List<Long> apply(List<Long> result, Long key, String data) {
+                    result.add(key);
+                    return result;
+                }
+                
+                @Override protected List<Long> merge(List<Long> left, List<Long> right) {
+                    left.addAll(right);
+                    return left;
+                }
+            }, 3);
+            assertEquals(count, keys.size());
+            for (int i = 0; i < count; i++) {
+                assertEquals(Long.valueOf(i), keys.get(i));
+            }
+            
+            //the failure of a worker is rethrown
+            try {
+                db.parallelScan(new DBEntryScan<Long, String, Long>() {
+                    
+                    @Override protected Long newResult() {
+                        return 0L;
+                    }
+                    
+                    @Override protected Long apply(Long result, Long key, String data) {
+                        throw new IllegalStateException("scan failed");
+                    }
+                    
+                    @Override protected Long merge(Long left, Long right) {
+                        return left + right;
+                    }
+                }, 2);
+                fail();
+            } catch (IllegalStateException e) {
+                assertEquals("scan failed", e.getMessage());
+            }
+        } finally {
+            db.close();
+        }
+    }
+    
+    @Test
+    public void testWriteBatch() {
+        BerkeleyDB db = newEnv("wbatch").connection("wbatch-db", null, null);
+        GenericKeyCreator<String, String> lastChar = new GenericKeyCreator<String, String>() {
+
+            @Override protected String createSecondaryKey(String data) {
+                return data.substring(data.length() - 1);
+            }
+        };
+        if (db.getEnvironment().getDatabaseNames().contains("wbatch-last")) {
+            db.getEnvironment().removeDatabase(null, "wbatch-last");
+        }
+        
+        int count = 100;
+        BerkeleyWriteBatch batch = db.writeBatch(7, Durability.COMMIT_NO_SYNC);
+        for (long i = 0; i < count; i++) {
+            batch.put(i, "value" + i);
+        }
+        for (long i = 0; i < 10; i++) {
+            batch.delete(i);
+        }
+        batch.delete(1000L);
+        batch.close();
+        
+        for (long i = 0; i < count; i++) {
+            assertEquals(i < 10 ? null : "value" + i, db.get(i, String.class));
+        }
+        
+        BerkeleyIndex index = db.buildIndex("wbatch-last", lastChar, false);
+        try {
+            assertEquals(count - 10, index.count());
+            
+            //the index is unavailable until the deferred writes are closed
+            batch = db.writeBatch(7, Durability.COMMIT_NO_SYNC).deferSecondaries();
+            try {
+                index.get("5");
+                fail();
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage().contains("wbatch-last"));
+            }
+            for (long i = 0; i < count; i++) {
+                batch.put(i, "value" + i + "x");
+            }
+            batch.close();
+            
+            assertEquals(count, index.count());
+            assertNull(index.get("5"));
+            assertTrue(((String) index.get("x")).endsWith("x"));
+            
+            //a suspended index is resumed before closed
+            batch = db.writeBatch(7, Durability.COMMIT_NO_SYNC).deferSecondaries();
+            batch.put(1000L, "value1000y").flush();
+            index.close();
+            batch.close();
+            
+            index = db.openIndex("wbatch-last", null, lastChar);
+            assertEquals(count + 1, index.count());
+            assertEquals("value1000y", index.get("y"));
+        } finally {
+            index.close();
+            db.close();
+        }
+    }
+    
+    @Test
+    public void testBloomFilterSequenceKey() {
+        SequenceEntityAccess sequences = new SequenceEntityAccess(store);
+        sequences.enableBloomFilter(10000, 0.01);
+        
+        //the primitive key is assigned by the sequence during the put
+        SequenceEntity entity = new SequenceEntity();
+        entity.setName("saved");
+        sequences.save(entity);
+        assertTrue(entity.getId() > 0);
+        assertTrue(sequences.contains(entity.getId()));
+        assertEquals("saved", sequences.get(entity.getId()).getName());
+        
+        SequenceEntity batched = new SequenceEntity();
+        batched.setName("batched");
+        sequences.writeBatch(10, Durability.COMMIT_NO_SYNC).save(batched).close();
+        assertTrue(batched.getId() > entity.getId());
+        assertEquals("batched", sequences.get(batched.getId()).getName());
+    }
+    
+    @Test
+    public void testAsyncWriterFailures() throws Exception {
+        BerkeleyDB db = newEnv("async").connection("async-db", null, null);
+        AsyncBerkeleyWriter writer = db.asyncWriter(16, Durability.COMMIT_NO_SYNC);
+        try {
+            List<ListenableFuture<OperationStatus>> puts = Lists.newArrayList();
+            ListenableFuture<Object> failed = null;
+            for (long i = 0; i < 100; i++) {
+                puts.add(writer.put(i, "value" + i));
+                if (50 == i) {
+                    failed = writer.submit(new AsyncWrite<Object>() {
+                        
+                        @Override protected Object apply(Transaction txn) {
+                            throw new IllegalArgumentException("failed write");
+                        }
+                    });
+                }
+            }
+            ListenableFuture<String> callbackFailed = writer.submit(new AsyncWrite<String>() {
+                
+                @Override protected String apply(Transaction txn) {
+                    return "applied";
+                }
+                
+                @Override protected void committed(String result) {
+                    throw new IllegalStateException("failed callback");
+                }
+            });
+            
+            //the failed write is isolated from the writes of its group
+            for (ListenableFuture<OperationStatus> put : puts) {
+                assertEquals(OperationStatus.SUCCESS, put.get(10, TimeUnit.SECONDS));
+            }
+            try {
+                failed.get(10, TimeUnit.SECONDS);
+                fail();
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IllegalArgumentException);
+            }
+            assertEquals("applied", callbackFailed.get(10, TimeUnit.SECONDS));
+            
+            //the writer survives the failures
+            assertEquals(OperationStatus.SUCCESS, writer.put(100L, "value100").get(10, TimeUnit.SECONDS));
+            for (long i = 0; i <= 100; i++) {
+                assertEquals("value" + i, db.get(i, String.class));
+            }
+        } finally {
+            writer.close();
+            db.close();
+        }
+    }
+    
+    @Test
+    public void testQueryMultiValuedKey() {
+        PrimaryIndex<Long, TaggedEntity> pk = store.getPrimaryIndex(Long.class, TaggedEntity.class);
+        SecondaryIndex<String, Long, TaggedEntity> tags = store.getSecondaryIndex(pk, String.class, "tags");
+        String run = Long.toString(System.nanoTime());
+        for (int i = 0; i < 5; i++) {
+            TaggedEntity entity = new TaggedEntity();
+            entity.setTags(Sets.newHashSet(run + "-a", run + "-b", run + "-c" + i));
+            pk.put(entity);
+        }
+        
+        //every entity has two tags in the range
+        List<Long> keys = Lists.newArrayList();
+        ForwardCursor<Long> cursor = store.query(pk).range(tags, run + "-a", true, run + "-b", true).keys();
+        try {
+            for (Long key = cursor.next(); null != key; key = cursor.next()) {
+                keys.add(key);
+            }
+        } finally {
+            cursor.close();
+        }
+        assertEquals(5, keys.size());
+        assertEquals(5, Sets.newHashSet(keys).size());
+        
+        //the range drives the query and the equality condition is probed
+        List<TaggedEntity> entities = Lists.newArrayList();
+        ForwardCursor<TaggedEntity> driven = store.query(pk).equal(tags, run + "-a")
+                .range(tags, run + "-c1", true, run + "-c2", true).entities();
+        try {
+            for (TaggedEntity entity = driven.next(); null != entity; entity = driven.next()) {
+                entities.add(entity);
+            }
+        } finally {
+            driven.close();
+        }
+        assertEquals(2, entities.size());
+        assertTrue(entities.get(0).getTags().contains(run + "-c1"));
+        assertTrue(entities.get(1).getTags().contains(run + "-c2"));
+    }
+    
+    @Test
+    public void testJoinQueryPlanner() {
+        PrimaryIndex<Long, TaggedEntity> pk = store.getPrimaryIndex(Long.class, TaggedEntity.class);
+        SecondaryIndex<String, Long, TaggedEntity> tags = store.getSecondaryIndex(pk, String.class, "tags");
+        SecondaryIndex<String, Long, TaggedEntity> groups = store.getSecondaryIndex(pk, String.class, "group");
+        String run = Long.toString(System.nanoTime());
+        for (int i = 0; i < 20; i++) {
+            TaggedEntity entity = new TaggedEntity();
+            entity.setTags(Sets.newHashSet(run + "-all", run + "-t" + (i % 2)));
+            entity.setGroup(run + "-g" + (i % 4));
+            pk.put(entity);
+        }
+        
+        EntityJoin<Long, TaggedEntity> unplanned = new EntityJoin<Long, TaggedEntity>(pk);
+        unplanned.addCondition(tags, run + "-t0");
+        unplanned.addCondition(groups, run + "-g2");
+        List<Long> expected = drain(unplanned.keys());
+        assertEquals(5, expected.size());
+        
+        //the most selective condition is intersected with the others
+        EntityJoinQuery<Long, TaggedEntity> intersect = store.join(pk)
+                .join(tags, run + "-t0").join(groups, run + "-g2").intersectThreshold(Integer.MAX_VALUE);
+        List<Long> intersected = drain(intersect.keys());
+        assertEquals(Sets.newHashSet(expected), Sets.newHashSet(intersected));
+        assertEquals(Ordering.natural().sortedCopy(intersected), intersected);
+        for (TaggedEntity entity : drain(intersect.entities())) {
+            assertTrue(entity.getTags().contains(run + "-t0"));
+            assertEquals(run + "-g2", entity.getGroup());
+        }
+        
+        //the join cursor is driven by the most selective condition
+        EntityJoinQuery<Long, TaggedEntity> joined = store.join(pk)
+                .join(tags, run + "-t0").join(groups, run + "-g2").intersectThreshold(0);
+        assertEquals(Sets.newHashSet(expected), Sets.newHashSet(drain(joined.keys())));
+        assertEquals(expected.size(), drain(joined.entities()).size());
+        
+        //a condition without entities short-circuits the join
+        EntityJoinQuery<Long, TaggedEntity> empty = store.join(pk)
+                .join(tags, run + "-all").join(groups, run + "-missing");
+        assertEquals(Long.valueOf(0), empty.estimates().get(1));
+        assertTrue(drain(empty.keys()).isEmpty());
+        assertTrue(drain(empty.entities()).isEmpty());
+    }
+    
+    private static <V> List<V> drain(ForwardCursor<V> cursor) {
+        List<V> items = Lists.newArrayList();
+        try {
+            for (V item = cursor.next(); null != item; item = cursor.next()) {
+                items.add(item);
+            }
+        } finally {
+            cursor.close();
+        }
+        return items;
+    }
+    
+    @Test
+    public void testEntityCache() {
+        QueueEntityAccess cached = new QueueEntityAccess(env.connection("cache-store", null));
+        EntityCache<Long, QueueEntity> cache = cached.enableCache(
+                CacheBuilder.newBuilder().maximumSize(4).concurrencyLevel(1).recordStats());
+        cache.invalidateAll();
+        
+        long run = System.nanoTime();
+        QueueEntity first = new QueueEntity();
+        first.setId(run);
+        first.setName(run + "-a");
+        QueueEntity second = new QueueEntity();
+        second.setId(run + 1);
+        second.setName(run + "-b");
+        cached.save(first);
+        cached.save(second);
+        
+        assertEquals(run + "-a", cached.get(run).getName());
+        long misses = cache.stats().missCount();
+        assertEquals(run + "-a", cached.get(run).getName());
+        assertEquals(misses, cache.stats().missCount());
+        assertEquals(Long.valueOf(run), cached.get("name", run + "-a").getId());
+        assertEquals(Long.valueOf(run + 1), cached.get("name", run + "-b").getId());
+        assertEquals(4, cache.size());
+        
+        //the write invalidates the keys of the written entity only
+        first.setName(run + "-c");
+        cached.save(first);
+        assertEquals(2, cache.size());
+        misses = cache.stats().missCount();
+        assertEquals(Long.valueOf(run + 1), cached.get("name", run + "-b").getId());
+        assertEquals(misses, cache.stats().missCount());
+        assertNull(cached.get("name", run + "-a"));
+        assertEquals(Long.valueOf(run), cached.get("name", run + "-c").getId());
+        
+        //the entity loaded by primary key is not returned for the secondary keys it was not cached by
+        first.setName(run + "-d");
+        cached.save(first);
+        assertEquals(run + "-d", cached.get(run).getName());
+        assertNull(cached.get("name", run + "-c"));
+        
+        //the maximum size bounds the primary and secondary keys together
+        for (long i = 0; i < 3; i++) {
+            cached.get("name", run + "-b");
+            cached.get(run);
+            cached.get("name", run + "-d");
+        }
+        assertTrue(cache.size() <= 4);
+        
+        cached.delete(run);
+        cached.delete(run + 1);
+        assertNull(cached.get(run));
+        assertNull(cached.get("name", run + "-b"));
+    }
+    
+    @Test
+    public void testEntityStream() {
+        long run = System.nanoTime();
+        String address = run + "-stream";
+        for (long i = 0; i < 5; i++) {
+            QueueEntity entity = new QueueEntity();
+            entity.setId(run + i);
+            entity.setName(address + i);
+            entity.setAddress(address);
+            access.save(entity);
+        }
+        
+        EntityStream<QueueEntity> stream = access.stream("address", address).batchSize(2);
+        try {
+            assertEquals(5, stream.toList().size());
+            assertEquals(3, stream.visit(new EntityVisit<QueueEntity>() {
+                
+                @Override protected boolean apply(QueueEntity entity) {
+                    return !entity.getName().endsWith("2");
+                }
+            }));
+            
+            //the iterators of the same stream do not end each other
+            EntityStream<QueueEntity>.StreamIterator first = stream.iterator();
+            assertEquals(Long.valueOf(run), first.next().getId());
+            EntityStream<QueueEntity>.StreamIterator second = stream.iterator();
+            List<Long> interleaved = Lists.newArrayList();
+            while (first.hasNext() || second.hasNext()) {
+                if (first.hasNext()) {
+                    interleaved.add(first.next().getId());
+                }
+                if (second.hasNext()) {
+                    interleaved.add(second.next().getId());
+                }
+            }
+            assertEquals(9, interleaved.size());
+            
+            //the open iterators are closed with the stream
+            first = stream.iterator();
+            second = stream.iterator();
+            first.next();
+            stream.close();
+            assertEquals(1, Iterators.size(first));
+            assertEquals(0, Iterators.size(second));
+        } finally {
+            stream.close();
+            for (long i = 0; i < 5; i++) {
+                access.delete(run + i);
+            }
+        }
+    }
+    
+    @Test
+    public void testShardedQueue() {
+        env.shardedQueue("sharded-queue", QueueEntity.class, 3, 100).clear();
+        ShardedBerkeleyQueue<QueueEntity> sharded = env.shardedQueue("sharded-queue", QueueEntity.class, 3, 100);
+        assertEquals(3, sharded.getShardCount());
+        assertEquals(3, sharded.getQueueDBs().size());
+        assertEquals(3, sharded.getQueueMaps().size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals("sharded-queue-" + i, sharded.getQueueDBs().get(i).getDatabaseName());
+        }
+        assertTrue(sharded.getQueueDBs().contains(sharded.getQueueDB()));
+        
+        //round-robin
+        for (long i = 0; i < 6; i++) {
+            sharded.offer(newEntity(i));
+        }
+        assertEquals(6, sharded.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(2, sharded.shard(i).size());
+            assertSame(sharded.shard(i).getQueueMap(), sharded.getQueueMaps().get(i));
+        }
+        assertEquals(6, sharded.pollBatch(10).size());
+        assertTrue(sharded.isEmpty());
+        
+        //the elements of the same routing key keep FIFO order in one shard
+        int shard = sharded.shardFor("routing");
+        for (long i = 0; i < 5; i++) {
+            sharded.offer("routing", newEntity(i));
+        }
+        assertEquals(5, sharded.shard(shard).size());
+        assertEquals(Long.valueOf(0), sharded.poll(shard).getId());
+        assertEquals(Long.valueOf(1), sharded.peek().getId());
+        
+        //the consumers steal from the other shards
+        List<Long> polled = Lists.newArrayList();
+        for (QueueEntity item = sharded.poll(); null != item; item = sharded.poll()) {
+            polled.add(item.getId());
+        }
+        assertEquals(Lists.newArrayList(1L, 2L, 3L, 4L), polled);
+        assertNull(sharded.poll());
+        sharded.sync();
+    }
+    
+    private static QueueEntity newEntity(long id) {
+        QueueEntity entity = new QueueEntity();
+        entity.setId(id);
+        return entity;
+    }
+    
+    @Test
+    public void testBindingCache() throws InterruptedException {
+        //the primitive bindings are shared by all of the catalogs
+        EntryBinding<Long> longBinding = Berkeley.getBinding(Long.class, null);
+        assertSame(longBinding, Berkeley.getBinding(1L, null));
+        assertSame(longBinding, Berkeley.getBinding(Long.class, bdb.getCatalog()));
+        assertSame(Berkeley.getBinding(String.class, null), Berkeley.getBinding("binding", null));
+        DatabaseEntry entry = new DatabaseEntry();
+        longBinding.objectToEntry(42L, entry);
+        assertEquals(Long.valueOf(42L), longBinding.entryToObject(entry));
+        
+        //the serial bindings are cached by catalog and class
+        final EntryBinding<Person> personBinding = Berkeley.getBinding(Person.class, bdb.getCatalog());
+        assertTrue(personBinding instanceof SerialBinding);
+        assertSame(personBinding, Berkeley.getBinding(new Person(), bdb.getCatalog()));
+        assertSame(personBinding, bdb.getBinding(Person.class));
+        try {
+            Berkeley.getBinding(Person.class, null);
+            fail();
+        } catch (NullPointerException e) {
+            log.info(e.getMessage());
+        }
+        
+        //the concurrent resolutions return the same bindings
+        final int threads = 8;
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger mismatches = new AtomicInteger();
+        for (int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+                
+                @Override public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < 1000; j++) {
+                            EntryBinding<Person> binding = Berkeley.getBinding(Person.class, bdb.getCatalog());
+                            if (personBinding != binding 
+                                    || Berkeley.getBinding(Integer.class, null) != Berkeley.getBinding(j, null)) {
+                                mismatches.incrementAndGet();
+                            }
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        start.countDown();
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, mismatches.get());
+    }
+    
+    @Test
+    public void testFindKeyPairs() {
+        long run = System.nanoTime();
+        String prefix = run + "-pair-";
+        for (long i = 0; i < 6; i++) {
+            QueueEntity entity = new QueueEntity();
+            entity.setId(run + i);
+            entity.setName(prefix + i);
+            entity.setAddress(prefix + (i / 2));
+            access.save(entity);
+        }
+        
+        try {
+            List<Pair<String, Long>> pairs = access.findKeyPairs("address", prefix + 0, true, prefix + 2, true);
+            assertEquals(6, pairs.size());
+            for (int i = 0; i < pairs.size(); i++) {
+                assertEquals(prefix + (i / 2), pairs.get(i).getL());
+                assertEquals(Long.valueOf(run + i), pairs.get(i).getR());
+            }
+            
+            pairs = access.findKeyPairs("address", prefix + 0, false, prefix + 2, false);
+            assertEquals(2, pairs.size());
+            assertEquals(prefix + 1, pairs.get(0).getL());
+            assertEquals(Long.valueOf(run + 3), pairs.get(1).getR());
+            assertEquals(access.findKeysRange("address", prefix + 0, true, prefix + 1, true), 
+                    Lists.transform(access.findKeyPairs("address", prefix + 0, true, prefix + 1, true), 
+                            new Function<Pair<String, Long>, Long>() {
+                        
+                        @Override public Long apply(Pair<String, Long> pair) {
+                            return pair.getR();
+                        }
+                    }));
+            assertTrue(access.findKeyPairs("address", prefix + 3, true, prefix + 4, true).isEmpty());
+        } finally {
+            for (long i = 0; i < 6; i++) {
+                access.delete(run + i);
+            }
+        }
+    }
+    
+    @Test
+    public void testQueueBulkOperations() {
+        env.queue("bulk-queue", QueueEntity.class).clear();
+        BerkeleyQueue<QueueEntity> queue = env.queue("bulk-queue", QueueEntity.class);
+        assertFalse(queue.offerAll(Collections.<QueueEntity>emptyList()));
+        
+        List<QueueEntity> entities = Lists.newArrayList();
+        for (long i = 0; i < 10; i++) {
+            entities.add(newEntity(i));
+        }
+        assertTrue(queue.offerAll(entities));
+        assertEquals(10, queue.size());
+        assertTrue(queue.pollBatch(0).isEmpty());
+        
+        List<QueueEntity> polled = queue.pollBatch(4);
+        assertEquals(4, polled.size());
+        for (int i = 0; i < polled.size(); i++) {
+            assertEquals(Long.valueOf(i), polled.get(i).getId());
+        }
+        assertEquals(Long.valueOf(4), queue.peek().getId());
+        
+        List<QueueEntity> drained = Lists.newArrayList();
+        assertEquals(3, queue.drainTo(drained, 3));
+        assertEquals(Long.valueOf(6), drained.get(2).getId());
+        assertEquals(3, queue.drainTo(drained));
+        assertEquals(Long.valueOf(9), drained.get(5).getId());
+        assertTrue(queue.isEmpty());
+        assertNull(queue.poll());
+        assertTrue(queue.pollBatch(10).isEmpty());
+        
+        //the single and bulk operations share the head and tail pointers
+        queue.offer(newEntity(10));
+        assertTrue(queue.offerAll(Lists.newArrayList(newEntity(11), newEntity(12))));
+        assertEquals(Long.valueOf(10), queue.poll().getId());
+        assertEquals(Long.valueOf(11), queue.pollBatch(1).get(0).getId());
+        assertEquals(Long.valueOf(12), queue.poll().getId());
+        try {
+            queue.drainTo(queue);
+            fail();
+        } catch (IllegalArgumentException e) {
+            log.info(e.getMessage());
+        }
+        queue.sync();
+    }
+    
+    @Test
+    public void testQueuePrefetch() {
+        env.queue("prefetch-queue", QueueEntity.class).clear();
+        BerkeleyQueue<QueueEntity> queue = env.queue("prefetch-queue", QueueEntity.class, -1, 8);
+        for (long i = 0; i < 20; i++) {
+            queue.offer(newEntity(i));
+        }
+        
+        //served from the buffer and refilled in background
+        for (long i = 0; i < 10; i++) {
+            assertEquals(Long.valueOf(i), queue.peek().getId());
+            assertEquals(Long.valueOf(i), queue.poll().getId());
+        }
+        assertEquals(10, queue.size());
+        
+        //the elements offered after the buffer was filled are still polled in order
+        for (long i = 20; i < 25; i++) {
+            queue.offer(newEntity(i));
+        }
+        assertEquals(Long.valueOf(10), queue.poll().getId());
+        
+        //the bulk poll discards the buffer
+        List<QueueEntity> polled = queue.pollBatch(3);
+        assertEquals(Long.valueOf(11), polled.get(0).getId());
+        assertEquals(Long.valueOf(13), polled.get(2).getId());
+        for (long i = 14; i < 25; i++) {
+            assertEquals(Long.valueOf(i), queue.poll().getId());
+        }
+        assertNull(queue.peek());
+        assertNull(queue.poll());
+        assertTrue(queue.isEmpty());
+        
+        queue.offer(newEntity(25));
+        assertEquals(Long.valueOf(25), queue.poll().getId());
+        queue.close();
+    }
+    
+    @Test
+    public void testQueueCodecs() {
+        //the field codec writes the null fields as absent
+        FieldQueueCodec<QueueEntity> fieldCodec = new FieldQueueCodec<QueueEntity>(QueueEntity.class);
+        env.queue("codec-field-queue", QueueEntity.class).clear();
+        BerkeleyQueue<QueueEntity> fieldQueue = env.queue("codec-field-queue", QueueEntity.class, -1, fieldCodec);
+        QueueEntity entity = newEntity(1L);
+        entity.setName("codec");
+        entity.setDate(new Date(1000L));
+        fieldQueue.offer(entity);
+        fieldQueue.offer(newEntity(2L));
+        QueueEntity polled = fieldQueue.poll();
+        assertEquals(Long.valueOf(1L), polled.getId());
+        assertEquals("codec", polled.getName());
+        assertEquals(new Date(1000L), polled.getDate());
+        assertNull(polled.getAddress());
+        polled = fieldQueue.poll();
+        assertEquals(Long.valueOf(2L), polled.getId());
+        assertNull(polled.getName());
+        fieldQueue.close();
+        
+        try {
+            new FieldQueueCodec<TaggedEntity>(TaggedEntity.class);
+            fail();
+        } catch (IllegalArgumentException e) {
+            log.info(e.getMessage());
+        }
+        
+        //the tuple codec of primitive class
+        env.queue("codec-tuple-queue", Long.class).clear();
+        BerkeleyQueue<Long> tupleQueue = env.queue("codec-tuple-queue", Long.class, -1, TupleQueueCodec.of(long.class));
+        assertTrue(tupleQueue.offerAll(Lists.newArrayList(3L, 1L, 2L)));
+        assertEquals(Lists.newArrayList(3L, 1L, 2L), tupleQueue.pollBatch(10));
+        tupleQueue.close();
+        
+        //the raw codec passes the bytes through
+        env.queue("codec-raw-queue", byte[].class).clear();
+        BerkeleyQueue<byte[]> rawQueue = env.queue("codec-raw-queue", byte[].class, -1, new RawQueueCodec());
+        rawQueue.offer("raw".getBytes(Charsets.UTF_8));
+        rawQueue.offer(new byte[0]);
+        assertEquals("raw", new String(rawQueue.poll(), Charsets.UTF_8));
+        assertEquals(0, rawQueue.poll().length);
+        assertNull(rawQueue.poll());
+        rawQueue.close();
+        
+        //the entries of one thread share the reused buffer until the next encoding
+        DatabaseEntry first = new DatabaseEntry();
+        DatabaseEntry second = new DatabaseEntry();
+        fieldCodec.objectToEntry(entity, first);
+        QueueEntity copy = fieldCodec.entryToObject(first);
+        assertEquals("codec", copy.getName());
+        fieldCodec.objectToEntry(newEntity(3L), second);
+        assertSame(first.getData(), second.getData());
+        assertEquals(Long.valueOf(3L), fieldCodec.entryToObject(second).getId());
+    }
+    
+    @Test
+    public void testMultiGet() {
+        long run = System.nanoTime();
+        int size = 2100;
+        QueueEntityAccess multi = new QueueEntityAccess(env.connection("multiget-store", null));
+        for (long i = 0; i < size; i++) {
+            QueueEntity entity = newEntity(run + i);
+            entity.setName(run + "-multi-" + i);
+            multi.save(entity);
+        }
+        
+        //request order, the duplicate keys return one item each and the none exists keys are skipped
+        List<Long> keys = Lists.newArrayList(run + 7, run - 1, run + 3, run + 7, run + size, run);
+        List<QueueEntity> items = multi.gets(keys);
+        assertEquals(4, items.size());
+        assertEquals(Long.valueOf(run + 7), items.get(0).getId());
+        assertEquals(Long.valueOf(run + 3), items.get(1).getId());
+        assertEquals(Long.valueOf(run + 7), items.get(2).getId());
+        assertEquals(Long.valueOf(run), items.get(3).getId());
+        
+        List<String> names = Lists.newArrayList(run + "-multi-12", run + "-multi-none", run + "-multi-2");
+        items = multi.gets("name", names);
+        assertEquals(2, items.size());
+        assertEquals(Long.valueOf(run + 12), items.get(0).getId());
+        assertEquals(Long.valueOf(run + 2), items.get(1).getId());
+        
+        //the parallel sweeps over the split key ranges return the same items
+        keys = Lists.newArrayList();
+        names = Lists.newArrayList();
+        for (long i = size - 1; i >= 0; i--) {
+            keys.add(run + i);
+            names.add(run + "-multi-" + i);
+        }
+        Collections.shuffle(keys);
+        List<QueueEntity> parallel = multi.gets(keys, 4);
+        assertEquals(size, parallel.size());
+        for (int i = 0; i < size; i++) {
+            assertEquals(keys.get(i), parallel.get(i).getId());
+        }
+        parallel = multi.gets("name", names, 4);
+        assertEquals(size, parallel.size());
+        for (int i = 0; i < size; i++) {
+            assertEquals(names.get(i), parallel.get(i).getName());
+        }
+        
+        try {
+            multi.gets(keys, 0);
+            fail();
+        } catch (IllegalArgumentException e) {
+            log.info(e.getMessage());
+        }
+        
+        for (Long key : keys) {
+            multi.delete(key);
+        }
+    }
+    
+    @Test
+    public void testIdAllocator() throws Throwable {
+        BerkeleyDB db = newEnv("idalloc").connection("idalloc-db", null, null);
+        try {
+            int threadCount = 8, eachThread = 1000;
+            final Set<Long> ids = Collections.synchronizedSet(new HashSet<Long>());
+            final CountDownLatch latch = new CountDownLatch(threadCount);
+            for (final IdAllocator allocator : new IdAllocator[] { 
+                    db.idAllocator("ids", 100), db.idAllocator("ids", 100, true) }) {
+                final int count = eachThread;
+                for (int i = 0; i < threadCount / 2; i++) {
+                    new Thread() {
+                        public void run() {
+                            for (int j = 0; j < count; j++) {
+                                ids.add(allocator.next());
+                            }
+                            latch.countDown();
+                        }
+                    }.start();
+                }
+            }
+            
+            latch.await(10, TimeUnit.SECONDS);
+            Assert.assertEquals(threadCount * eachThread, ids.size());
+            Assert.assertSame(db.idAllocator("ids", 100), db.idAllocator("ids", 100));
+        } finally {
+            db.close();
+        }
+    }
+    
+    @Test
+    public void testBuildIndex() {
+        int count = 200;
+        intlPersonData(count);
+        
+        BerkeleyIndex fullnameIndex = bdb.buildIndex("fullname-bulk", new GenericKeyCreator<String, Person>() {
+
+            @Override protected String createSecondaryKey(Person data) {
+                return data.getFirstName() + " " + data.getLastName();
+            }
+        }, false);
+        
+        BerkeleyIndex addressIndex = bdb.buildIndex("address-bulk", new GenericKeyCreator<String, Person>() {
+
+            @Override protected String createSecondaryKey(Person data) {
+                return data.getAddress();
+            }
+        }, true);
+        
+        try {
+            assertEquals(count, fullnameIndex.count());
+            assertEquals(count, addressIndex.count());
+            for (int i = 0; i < count; i++) {
+                Person p = bdb.get(Long.valueOf(i + 1), Person.class);
+                assertTrue(Objects2.isEqual(fullnameIndex.get("first" + i + " last" + i), p));
+                assertTrue(Objects2.isEqual(addressIndex.get("address" + i), p));
+            }
+            
+            //maintained after the build
+            Person p = bdb.get(1L, Person.class);
+            p.setAddress("address-new");
+            bdb.put(1L, p);
+            assertTrue(Objects2.isEqual(addressIndex.get("address-new"), p));
+            assertNull(addressIndex.get("address0"));
+            
+            addressIndex.rebuild();
+            assertEquals(count, addressIndex.count());
+            assertTrue(Objects2.isEqual(addressIndex.get("address-new"), p));
+        } finally {
+            fullnameIndex.close();
+            addressIndex.close();
+        }
+    }
+    
+    @Test
+    public void testSnapshot() throws IOException {
+        int count = 100;
+        intlPersonData(count);
+        
+        File snapshot = new File(home + "bdb.snapshot");
+        long exported = bdb.exportSnapshot(snapshot);
+        
+        BerkeleyEnv snapshotEnv = newEnv("snapshot");
+        if (snapshotEnv.getDatabaseNames().contains("snapshot-db")) {
+            snapshotEnv.removeDatabase(null, "snapshot-db");
+        }
+        BerkeleyDB imported = snapshotEnv.connection("snapshot-db", null, null);
+        DatabaseConfig reversedConfig = Berkeley.defaultDatabaseConfig();
+        reversedConfig.setBtreeComparator(ReversedComparator.class);
+        BerkeleyDB reversed = snapshotEnv.connection("snapshot-reversed", reversedConfig, null).enableCompression(128);
+        if (snapshotEnv.getDatabaseNames().contains("snapshot-registered")) {
+            snapshotEnv.removeDatabase(null, "snapshot-registered");
+        }
+        BerkeleyDB registered = snapshotEnv.connection("snapshot-registered", null, null);
+        try {
+            long before = dataCount(imported);
+            assertEquals(exported, imported.importSnapshot(snapshot));
+            assertEquals(dataCount(bdb), dataCount(imported));
+            assertEquals(before + count, dataCount(imported));
+            for (int i = 0; i < count; i++) {
+                assertTrue(Objects2.isEqual(imported.get(Long.valueOf(i + 1), Person.class), 
+                        bdb.get(Long.valueOf(i + 1), Person.class)));
+            }
+            
+            //the comparators of the target database must match the snapshot
+            try {
+                reversed.importSnapshot(snapshot);
+                fail();
+            } catch (IllegalStateException e) {
+                assertTrue(e.getMessage().contains("snapshot-reversed"));
+            }
+            assertEquals(0, dataCount(reversed));
+            //the rejected import keeps the settings
+            assertTrue(snapshotEnv.getDatabaseNames().contains(reversed.getSettingsDatabaseName()));
+            assertEquals(128, reversed.getCompressionThreshold());
+            
+            //the class IDs of a registered class would collide with the imported
+            registered.put(1L, bdb.get(1L, Person.class));
+            registered.delete(null, registered.getEntry(1L));
+            try {
+                registered.importSnapshot(snapshot);
+                fail();
+            } catch (IllegalStateException e) {
+                log.info(e.getMessage());
+            }
+            assertEquals(0, dataCount(registered));
+        } finally {
+            imported.close();
+            reversed.close();
+            registered.close();
+            snapshotEnv.close();
+            snapshot.delete();
+        }
+        
+        //a truncated snapshot is rejected before the store is touched
+        BerkeleyStore snapshotStore = env.connection("snapshot-store", null);
+        QueueEntityAccess stored = new QueueEntityAccess(snapshotStore);
+        stored.save(newEntity(System.nanoTime()));
+        long entities = stored.count();
+        File truncated = new File(home + "store.snapshot");
+        try {
+            snapshotStore.exportSnapshot(truncated);
+            byte[] bytes = Files.toByteArray(truncated);
+            Files.write(Arrays.copyOf(bytes, bytes.length - 10), truncated);
+            try {
+                snapshotStore.importSnapshot(truncated);
+                fail();
+            } catch (IllegalStateException e) {
+                log.info(e.getMessage());
+            }
+            assertEquals(entities, stored.count());
+        } finally {
+            truncated.delete();
+        }
+    }
+    
+    /**
+     * Returns the number of the records of given database but the class catalog records
+     */
+    private static long dataCount(BerkeleyDB db) {
+        long count = 0;
+        Cursor cursor = db.openCursor(null, null);
+        try {
+            DatabaseEntry key = new DatabaseEntry(), data = new DatabaseEntry();
+            data.setPartial(0, 0, true);
+            while (OperationStatus.SUCCESS == cursor.getNext(key, data, null)) {
+                if (!db.isCatalogKey(key)) {
+                    count++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        return count;
+    }
+    
+    public static class ReversedComparator implements Comparator<byte[]> {
+        
+        @Override public int compare(byte[] o1, byte[] o2) {
+            return UnsignedBytes.lexicographicalComparator().compare(o2, o1);
+        }
+    }
+    
+    @Test
+    public void testTupleBinding() {
+        BerkeleyEnv tupleEnv = newEnv("tuple");
+        BerkeleyDB db = tupleEnv.connection("tuple-db", null, null).enableTupleBinding(Person.class, 1);
+        Person p = new Person();
+        try {
+            assertTrue(db.getBinding(Person.class) instanceof EntityTupleBinding);
+            
+            p.setId(1L);
+            p.setFirstName("first");
+            p.setBirthday(Dater.now().get());
+            db.put(1L, p);
+            
+            Person tp = db.get(1L, Person.class);
+            assertTrue(Objects2.isEqual(p, tp));
+            assertNull(tp.getLastName());
+            
+            DatabaseEntry entry = db.getEntry(p);
+            assertEquals(1, entry.getData()[entry.getOffset()]);
+            try {
+                new EntityTupleBinding<Person>(Person.class, 2).entryToObject(entry);
+                fail();
+            } catch (IllegalStateException e) {
+                log.info(e.getMessage());
+            }
+        } finally {
+            db.close();
+        }
+        
+        //the registration is restored by the later connections
+        db = tupleEnv.connection("tuple-db", null, null);
+        try {
+            EntryBinding<Person> binding = db.getBinding(Person.class);
+            assertTrue(binding instanceof EntityTupleBinding);
+            assertEquals(1, ((EntityTupleBinding<Person>) binding).getSchemaVersion());
+            assertTrue(Objects2.isEqual(p, db.get(1L, Person.class)));
+        } finally {
+            db.close();
+        }
+    }
+    
+    @Test
+    public void testCompression() {
+        BerkeleyEnv compressEnv = newEnv("compress");
+        BerkeleyDB db = compressEnv.connection("compress-db", null, null, 128);
+        try {
+            assertEquals(128, db.getCompressionThreshold());
+            assertTrue(db.getDataBinding(String.class) instanceof CompressedBinding);
+            
+            String small = "small value", large = Strings.repeat("{\"name\":\"benayn\",\"tags\":[\"a\",\"b\"]},", 64);
+            db.put(1L, small);
+            db.put(2L, large);
+            assertEquals(small, db.get(1L, String.class));
+            assertEquals(large, db.get(2L, String.class));
+            assertEquals(1 + db.getEntry(small).getSize(), db.getDataEntry(small).getSize());
+            assertTrue(db.getDataEntry(large).getSize() < db.getEntry(large).getSize() / 4);
+            
+            byte[] raw = large.getBytes(Charsets.UTF_8);
+            byte[] packed = new byte[LZCodec.maxCompressedLength(raw.length)];
+            int length = LZCodec.compress(raw, 0, raw.length, packed, 0);
+            byte[] unpacked = new byte[raw.length];
+            LZCodec.decompress(packed, 0, length, unpacked, 0, unpacked.length);
+            assertArrayEquals(raw, unpacked);
+        } finally {
+            db.close();
+        }
+        
+        //the threshold is restored by the later connections and the imports
+        db = compressEnv.connection("compress-db", null, null);
+        File snapshot = new File(home + "compress.snapshot");
+        if (compressEnv.getDatabaseNames().contains("compress-copy")) {
+            compressEnv.removeDatabase(null, "compress-copy");
+        }
+        BerkeleyDB copy = compressEnv.connection("compress-copy", null, null);
+        try {
+            assertEquals(128, db.getCompressionThreshold());
+            assertEquals(Strings.repeat("{\"name\":\"benayn\",\"tags\":[\"a\",\"b\"]},", 64), db.get(2L, String.class));
+            
+            assertEquals(-1, copy.getCompressionThreshold());
+            db.exportSnapshot(snapshot);
+            copy.importSnapshot(snapshot);
+            assertEquals(128, copy.getCompressionThreshold());
+            assertEquals(db.get(2L, String.class), copy.get(2L, String.class));
+        } finally {
+            db.close();
+            copy.close();
+            snapshot.delete();
+        }
+    }
+    
+    @Test
+    public void testMetrics() throws Throwable {
+        BerkeleyEnv env = newEnv("metrics");
+        DefaultMetricRegistry registry = new DefaultMetricRegistry();
+        BerkeleyMetrics metrics = env.metrics(registry, 1, TimeUnit.SECONDS);
+        BerkeleyDB db = env.connection("metrics-db", null, null);
+        try {
+            for (long i = 0; i < 100; i++) {
+                db.put(i, "value" + i);
+                assertEquals("value" + i, db.get(i, String.class));
+            }
+            
+            assertEquals(100, registry.getCounter("metrics-db.put"));
+            assertEquals(100, registry.getCounter("metrics-db.get"));
+            assertEquals(100, registry.getHistogram("metrics-db.get.latency").get().getCount());
+            metrics.poll();
+            assertNotNull(registry.getGauge("env.cache.hitRatio"));
+            assertNotNull(metrics.getLastStats());
+        } finally {
+            db.close();
+            metrics.close();
+        }
+    }
+    
     @Test @SuppressWarnings({ "unchecked", "rawtypes" })
     public void testMultiThreadedPoll() throws Throwable {
         final BerkeleyQueue<String> queue = newEnv("multipoll").queue("multipoll-queue", String.class, 1);
@@ -483,6 +1896,46 @@ public class BerkeleyUsage extends Assert {
         }
     }
     
+    @Test
+    public void testBlockingQueueTake() throws Throwable {
+        final BlockingBerkeleyQueue<String> queue = newEnv("blocking").blockingQueue("blocking-queue", String.class, 1, 10);
+        try {
+            int threadCount = 20;
+            
+            final Set<String> set = Collections.synchronizedSet(new HashSet<String>());
+            final CountDownLatch latch = new CountDownLatch(threadCount);
+            
+            for (int i = 0; i < threadCount; i++) {
+                new Thread() {
+                    public void run() {
+                        try {
+                            set.add(queue.take());
+                            latch.countDown();
+                        } catch (Throwable e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }.start();
+            }
+            
+            for (int i = 0; i < threadCount; i++) {
+                queue.put(Integer.toString(i));
+            }
+            
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            assertEquals(threadCount, set.size());
+            assertNull(queue.poll(10, TimeUnit.MILLISECONDS));
+            
+            for (int i = 0; i < 10; i++) {
+                assertTrue(queue.offer(Integer.toString(i)));
+            }
+            assertEquals(0, queue.remainingCapacity());
+            assertFalse(queue.offer("full", 10, TimeUnit.MILLISECONDS));
+        } finally {
+            queue.clear();
+        }
+    }
+    
     @Test
     public void testQueueSurviveReopen() throws Throwable {
         BerkeleyQueue<String> queue = newEnv("survive").queue("survive-queue", String.class, 3);
@@ -0,0 +1,34 @@
+package com.benayn.berkeley;
+
+import java.io.Serializable;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+
+@Entity
+public class SequenceEntity implements Serializable {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = 7412693505120178331L;
+    
+    @PrimaryKey(sequence = "sequence-entity")
+    private long id;
+    
+    private String name;
+    
+    public long getId() {
+        return id;
+    }
+    public void setId(long id) {
+        this.id = id;
+    }
+    public String getName() {
+        return name;
+    }
+    public void setName(String name) {
+        this.name = name;
+    }
+    
+}
@@ -0,0 +1,46 @@
+package com.benayn.berkeley;
+
+import java.io.Serializable;
+import java.util.HashSet;
+import java.util.Set;
+
+import com.sleepycat.persist.model.Entity;
+import com.sleepycat.persist.model.PrimaryKey;
+import com.sleepycat.persist.model.Relationship;
+import com.sleepycat.persist.model.SecondaryKey;
+
+@Entity(version=1)
+public class TaggedEntity implements Serializable {
+
+    /**
+     * 
+     */
+    private static final long serialVersionUID = -3169480517298823146L;
+    
+    @PrimaryKey(sequence = "tagged-entity")
+    private long id;
+    @SecondaryKey(relate = Relationship.MANY_TO_MANY)
+    private Set<String> tags = new HashSet<String>();
+    @SecondaryKey(relate = Relationship.MANY_TO_ONE)
+    private String group;
+    
+    public long getId() {
+        return id;
+    }
+    public void setId(long id) {
+        this.id = id;
+    }
+    public Set<String> getTags() {
+        return tags;
+    }
+    public void setTags(Set<String> tags) {
+        this.tags = tags;
+    }
+    public String getGroup() {
+        return group;
+    }
+    public void setGroup(String group) {
+        this.group = group;
+    }
+    
+}